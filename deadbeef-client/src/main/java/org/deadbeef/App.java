@@ -1,33 +1,30 @@
 package org.deadbeef;
 
-import com.codahale.metrics.MetricRegistry;
 import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
-import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpVersion;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetClientOptions;
-import io.vertx.core.net.NetSocket;
-import java.time.Duration;
+import io.vertx.core.net.SocketAddress;
 import java.util.concurrent.TimeUnit;
+import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
-import org.deadbeef.auth.ProxyAuthenticationGenerator;
+import org.deadbeef.auth.ProxyAuthenticationSource;
 import org.deadbeef.bootstrap.Bootstrap;
 import org.deadbeef.bootstrap.ProxyVerticle;
 import org.deadbeef.client.ClientConfig;
+import org.deadbeef.client.ClientResources;
 import org.deadbeef.client.ConnectTunnelHandler;
 import org.deadbeef.client.HttpProxyHandler;
 import org.deadbeef.client.MetricsDashboardServer;
+import org.deadbeef.client.MuxTunnelPool;
 import org.deadbeef.client.ProxyClientRequestHandler;
-import org.deadbeef.client.ReachabilityGate;
 import org.deadbeef.metrics.ProxyMetrics;
-import org.deadbeef.route.DefaultRoutePolicy;
-import org.deadbeef.route.HostNameMatcher;
 import org.deadbeef.route.OriginProvider;
 import org.deadbeef.route.RoutePolicy;
 
@@ -35,17 +32,22 @@ import org.deadbeef.route.RoutePolicy;
 public final class App extends ProxyVerticle<ClientConfig> {
 
   private static final int DEFAULT_TIMEOUT_IN_MILLS = (int) TimeUnit.SECONDS.toMillis(10);
+  private static final int REMOTE_HTTP2_CONNECTIONS = 2;
 
-  private final MetricRegistry metricRegistry = new MetricRegistry();
-  private final ProxyMetrics proxyMetrics = new ProxyMetrics(metricRegistry);
+  private final ClientResources resources;
 
-  public App(ClientConfig config) {
+  public App(ClientConfig config, @NonNull ClientResources resources) {
     super(config);
+    this.resources = resources;
   }
 
   public static void main(String[] args) {
     Bootstrap.printLogo();
-    Bootstrap.bootstrap(App::new, args, ClientConfig.class);
+    ClientConfig config = Bootstrap.loadCommandLineConfig(args, ClientConfig.class);
+    // Built once and shared by every instance: metrics, reachability verdicts and route matchers
+    // are process-wide state, not per event loop.
+    ClientResources resources = new ClientResources(config);
+    Bootstrap.bootstrap(c -> new App(c, resources), config);
   }
 
   private HttpClient createHttpClient() {
@@ -62,6 +64,31 @@ public final class App extends ProxyVerticle<ClientConfig> {
                         .setReadIdleTimeout(DEFAULT_TIMEOUT_IN_MILLS)));
   }
 
+  /**
+   * Client for the envelope POSTs to the remote server. With {@code remoteHttp2} this is a separate
+   * HTTP/2 client derived from the {@code httpClient} options; direct requests and CONNECT keep
+   * using the HTTP/1.1 client, since origins and CONNECT tunnels are not ours to upgrade.
+   */
+  private HttpClient createRemoteHttpClient(HttpClient httpClient) {
+    if (!getConfig().isRemoteHttp2()) {
+      return httpClient;
+    }
+    HttpClientOptions configured = getConfig().getHttpClientOptions();
+    HttpClientOptions options =
+        configured != null
+            ? new HttpClientOptions(configured)
+            : new HttpClientOptions()
+                .setConnectTimeout(DEFAULT_TIMEOUT_IN_MILLS)
+                .setReadIdleTimeout(DEFAULT_TIMEOUT_IN_MILLS)
+                .setHttp2MaxPoolSize(REMOTE_HTTP2_CONNECTIONS);
+    options
+        .setProtocolVersion(HttpVersion.HTTP_2)
+        .setUseAlpn(options.isSsl())
+        // h2c by prior knowledge: the server is ours, no need to pay for an Upgrade round trip.
+        .setHttp2ClearTextUpgrade(false);
+    return getVertx().createHttpClient(options);
+  }
+
   private NetClient createNetClient() {
     return getVertx()
         .createNetClient(new NetClientOptions().setConnectTimeout(DEFAULT_TIMEOUT_IN_MILLS));
@@ -76,60 +103,69 @@ public final class App extends ProxyVerticle<ClientConfig> {
   @Override
   public void start(Promise<Void> startPromise) {
     ClientConfig config = getConfig();
-    ProxyAuthenticationGenerator proxyAuthenticationGenerator =
-        new ProxyAuthenticationGenerator(config.getSecretId(), config.getSecretKey());
+    resources.retain();
+    registerCloseHookSync(resources::release);
+    ProxyMetrics proxyMetrics = resources.getMetrics();
+    ProxyAuthenticationSource proxyAuthenticationSource = resources.getTokens();
     HttpClient httpClient = createHttpClient();
+    HttpClient remoteHttpClient = createRemoteHttpClient(httpClient);
     NetClient netClient = createNetClient();
     HttpServer server = createHttpServer();
 
     // Remote proxy (static); direct targets are resolved per-request from the request-target.
     OriginProvider remoteProvider =
         OriginProvider.ofStatic(config.getRemotePort(), config.getRemoteHost());
-    boolean proxyAll = config.isProxyAll();
-    ReachabilityGate<HttpClientRequest> httpReachabilityGate =
-        new ReachabilityGate<>(Duration.ofMinutes(5), 10_000);
-    ReachabilityGate<NetSocket> tunnelReachabilityGate =
-        new ReachabilityGate<>(Duration.ofMinutes(5), 10_000);
-
-    // Rule lists: local_only -> always direct, remote_only -> always remote. Unlisted hosts fall
-    // through to the ReachabilityGate. Bundled as client classpath resources.
-    HostNameMatcher localOnly = HostNameMatcher.fromClasspathFile("local_only.txt");
-    HostNameMatcher remoteOnly = HostNameMatcher.fromClasspathFile("remote_only.txt");
-    RoutePolicy routePolicy =
-        new DefaultRoutePolicy(localOnly, remoteOnly, proxyAll, config.getRemoteHost());
+    RoutePolicy routePolicy = resources.getRoutePolicy();
+    MuxTunnelPool muxPool = null;
+    Integer muxConnections = config.getMuxConnections();
+    if (muxConnections != null && muxConnections > 0) {
+      muxPool =
+          new MuxTunnelPool(
+              getVertx(),
+              httpClient,
+              SocketAddress.inetSocketAddress(config.getRemotePort(), config.getRemoteHost()),
+              proxyAuthenticationSource,
+              muxConnections,
+              resources.getTunnelReaper());
+      registerCloseHookSync(muxPool::close);
+    }
 
     Handler<HttpServerRequest> requestHandler =
         new ProxyClientRequestHandler(
             new HttpProxyHandler(
                 getVertx(),
                 httpClient,
+                remoteHttpClient,
                 remoteProvider,
                 OriginProvider.ofAuthority(80),
-                httpReachabilityGate,
+                resources.getHttpReachabilityGate(),
                 routePolicy,
                 config.getLocalPort(),
-                proxyAuthenticationGenerator,
+                proxyAuthenticationSource,
                 proxyMetrics),
             new ConnectTunnelHandler(
                 httpClient,
                 netClient,
                 remoteProvider,
                 OriginProvider.ofAuthority(443),
-                tunnelReachabilityGate,
+                resources.getTunnelReachabilityGate(),
                 routePolicy,
                 config.getLocalPort(),
-                proxyAuthenticationGenerator,
-                proxyMetrics));
+                proxyAuthenticationSource,
+                proxyMetrics,
+                new ConnectTunnelHandler.Options()
+                    .muxPool(muxPool)
+                    .reaper(resources.getTunnelReaper())
+                    .shaper(resources.getBandwidthShaper())
+                    .flushWindowMicros(config.getTunnelFlushWindowMicros())));
     server.requestHandler(requestHandler);
 
     registerCloseHook(server::close);
     registerCloseHook(httpClient::close);
+    if (remoteHttpClient != httpClient) {
+      registerCloseHook(remoteHttpClient::close);
+    }
     registerCloseHook(netClient::close);
-    registerCloseHookSync(
-        () -> {
-          localOnly.close();
-          remoteOnly.close();
-        });
 
     server.listen(
         config.getLocalPort(),
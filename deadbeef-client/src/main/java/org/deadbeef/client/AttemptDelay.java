@@ -0,0 +1,42 @@
+package org.deadbeef.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link HappyEyeballs} gives a direct connect before it races the remote path too: the
+ * retransmission timeout of RFC 6298 over the direct connects to one target seen so far (smoothed
+ * time plus four deviations), kept within RFC 8305's bounds of 100 ms to 2 s and starting from its
+ * recommended 250 ms. A direct path that usually connects fast is therefore raced early when it
+ * stalls, and a slow but working one is not raced for nothing.
+ *
+ * <p>Only new connections are timed: a pooled one is handed out without connecting. Shared by every
+ * event loop; one update per direct connect, so a lock is cheap enough.
+ */
+final class AttemptDelay {
+
+  static final long MIN_MILLIS = 100;
+  static final long MAX_MILLIS = 2000;
+  static final long INITIAL_MILLIS = 250;
+
+  private long smoothedNanos = -1;
+  private long deviationNanos;
+
+  /** Records how long a new direct connection took to connect. */
+  synchronized void record(long nanos) {
+    if (smoothedNanos < 0) {
+      smoothedNanos = nanos;
+      deviationNanos = nanos / 2;
+      return;
+    }
+    deviationNanos = (3 * deviationNanos + Math.abs(smoothedNanos - nanos)) / 4;
+    smoothedNanos = (7 * smoothedNanos + nanos) / 8;
+  }
+
+  synchronized long millis() {
+    if (smoothedNanos < 0) {
+      return INITIAL_MILLIS;
+    }
+    long millis = TimeUnit.NANOSECONDS.toMillis(smoothedNanos + 4 * deviationNanos);
+    return Math.min(MAX_MILLIS, Math.max(MIN_MILLIS, millis));
+  }
+}
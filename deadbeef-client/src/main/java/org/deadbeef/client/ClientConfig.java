@@ -1,11 +1,14 @@
 package org.deadbeef.client;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
 import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpServerOptions;
 import java.util.List;
 import lombok.Getter;
+import org.deadbeef.bootstrap.BandwidthLimits;
 import org.deadbeef.bootstrap.ProxyConfig;
+import org.deadbeef.bootstrap.TunnelTimeouts;
 
 @Getter
 public final class ClientConfig implements ProxyConfig {
@@ -13,6 +16,10 @@ public final class ClientConfig implements ProxyConfig {
   private Boolean preferNativeTransport;
 
   private List<String> addressResolver;
+
+  /** Verticle instances sharing {@code localPort}; unset means one per available processor. */
+  private Integer instances;
+
   private String remoteHost;
   private int remotePort;
   private int localPort;
@@ -23,6 +30,58 @@ public final class ClientConfig implements ProxyConfig {
    */
   private boolean proxyAll;
 
+  /**
+   * When true, the envelope POSTs to the remote server use HTTP/2 — h2 over TLS when {@code
+   * httpClient.ssl} is set, prior-knowledge h2c otherwise — so concurrent requests are streams on a
+   * few connections rather than one pooled connection each. Defaults to false (HTTP/1.1).
+   */
+  private boolean remoteHttp2;
+
+  /**
+   * Optional: number of long-lived connections per instance that remote CONNECT tunnels are
+   * multiplexed over. Unset or 0 opens one CONNECT per tunnel.
+   */
+  private Integer muxConnections;
+
+  /**
+   * Optional: filesystem paths of the route lists, in the format of the bundled {@code
+   * local_only.txt} / {@code remote_only.txt} they replace. Edits are picked up without a restart.
+   */
+  private String localOnlyFile;
+
+  private String remoteOnlyFile;
+
+  /**
+   * Optional: directory where compiled route lists, reachability verdicts and learned routes are
+   * kept between runs, so that startup and reloads of unchanged lists skip pattern compilation and
+   * a restart keeps what was found out about each host. Defaults to {@code
+   * ~/.cache/deadbeef-proxy}; an empty value disables the cache.
+   */
+  private String routeCacheDir;
+
+  /**
+   * Optional: when true or unset, domains whose direct connections keep failing are routed
+   * remotely, and ones whose direct connections keep working directly, until the evidence fades;
+   * false routes unlisted hosts through the reachability gate only.
+   */
+  private Boolean learnRoutes;
+
+  /** Optional: idle limits and keepalive for CONNECT tunnels; unset uses the defaults. */
+  private TunnelTimeouts tunnelTimeouts;
+
+  /**
+   * Optional: when set, a burst of small writes to a tunnel socket is flushed once per this many
+   * microseconds (0: once per event-loop iteration) instead of once per write. A write after a
+   * quiet spell is flushed at once. Unset flushes every write.
+   */
+  private Integer tunnelFlushWindowMicros;
+
+  /**
+   * Optional: byte rates tunnels are shaped to, for the whole client and per tunnel; the per-user
+   * rate does not apply to a client.
+   */
+  private BandwidthLimits bandwidth;
+
   /** Optional: when set, the client binds a metrics dashboard HttpServer on 127.0.0.1:adminPort. */
   private Integer adminPort;
 
@@ -42,6 +101,21 @@ public final class ClientConfig implements ProxyConfig {
     if (adminPort != null) {
       ProxyConfig.verifyPort(adminPort, "adminPort");
     }
+    ProxyConfig.verifyInstances(instances);
+    Preconditions.checkArgument(
+        muxConnections == null || muxConnections >= 0,
+        "Illegal value for field `muxConnections`: %s",
+        muxConnections);
+    if (tunnelTimeouts != null) {
+      tunnelTimeouts.verify();
+    }
+    if (bandwidth != null) {
+      bandwidth.verify();
+    }
+    Preconditions.checkArgument(
+        tunnelFlushWindowMicros == null || tunnelFlushWindowMicros >= 0,
+        "Illegal value for field `tunnelFlushWindowMicros`: %s",
+        tunnelFlushWindowMicros);
 
     ProxyConfig.verifyStringNotBlank(remoteHost, "remoteHost");
     ProxyConfig.verifyStringNotBlank(secretId, "secretId");
@@ -0,0 +1,251 @@
+package org.deadbeef.client;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.net.NetSocket;
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.deadbeef.auth.ProxyAuthenticationGenerator;
+import org.deadbeef.auth.ProxyAuthenticationPool;
+import org.deadbeef.bootstrap.FileWatcher;
+import org.deadbeef.bootstrap.TunnelTimeouts;
+import org.deadbeef.metrics.ProxyMetrics;
+import org.deadbeef.route.HostNameMatcher;
+import org.deadbeef.route.HyperscanDatabaseCache;
+import org.deadbeef.route.LearnedRoutes;
+import org.deadbeef.route.ReloadableRoutePolicy;
+import org.deadbeef.streams.BandwidthShaper;
+import org.deadbeef.streams.TunnelReaper;
+
+/**
+ * Process-wide client state shared by every deployed {@code App} instance: the metrics registry,
+ * the reachability verdicts, the route-list matchers, the learned routes, the auth token pool, the
+ * tunnel reaper and the bandwidth shaper. Created once before deployment and handed to each
+ * instance, so N event loops see one set of counters and one verdict cache instead of N diverging
+ * copies.
+ *
+ * <p>The reachability verdicts and learned routes are kept in the route cache directory as well,
+ * restored on start and saved every {@link #STATE_SAVE_PERIOD} and on close, so a restart neither
+ * re-probes every blocked host nor forgets what it learned.
+ *
+ * <p>Instances {@link #retain()} on start and {@link #release()} on stop; the native matchers are
+ * closed, the verdicts and learned routes saved and the token prefetcher and reaper stopped when
+ * the last instance lets go.
+ */
+@Slf4j
+@Getter
+public final class ClientResources implements Closeable {
+
+  private final ProxyMetrics metrics;
+  private final ProxyAuthenticationPool tokens;
+  private final ReachabilityGate<HttpClientRequest> httpReachabilityGate;
+  private final ReachabilityGate<NetSocket> tunnelReachabilityGate;
+  private final ReloadableRoutePolicy routePolicy;
+  private final TunnelReaper tunnelReaper;
+
+  /** Null unless the config limits bandwidth. */
+  private final BandwidthShaper bandwidthShaper;
+
+  @Getter(AccessLevel.NONE)
+  private final HyperscanDatabaseCache routeCache;
+
+  @Getter(AccessLevel.NONE)
+  private final FileWatcher routeListWatcher;
+
+  /** Null when the route cache is disabled. */
+  @Getter(AccessLevel.NONE)
+  private final Path stateDirectory;
+
+  /** Null when the route cache is disabled. */
+  @Getter(AccessLevel.NONE)
+  private final ScheduledExecutorService stateSaver;
+
+  /** Null when route learning is disabled. */
+  @Getter(AccessLevel.NONE)
+  private final LearnedRoutes learnedRoutes;
+
+  private static final Duration ROUTE_LIST_POLL = Duration.ofSeconds(5);
+  private static final int TOKEN_POOL_CAPACITY = 128;
+  // A small slice of the server's 10-minute window, leaving the rest for clock skew.
+  private static final Duration TOKEN_MAX_AGE = Duration.ofMinutes(1);
+  private static final long MAX_VERDICTS = 10_000;
+  private static final Duration REACHABLE_FOR = Duration.ofMinutes(5);
+  // A failure in a row waits 30 s, 1 min, 2 min, ... up to 1 h before the target is probed again.
+  private static final Duration FIRST_BACKOFF = Duration.ofSeconds(30);
+  private static final Duration MAX_BACKOFF = Duration.ofHours(1);
+  private static final long MAX_LEARNED_DOMAINS = 10_000;
+  private static final Duration STATE_SAVE_PERIOD = Duration.ofMinutes(1);
+  private static final String HTTP_VERDICTS = "reachability-http.bin";
+  private static final String TUNNEL_VERDICTS = "reachability-tunnel.bin";
+  private static final String LEARNED_ROUTES = "learned-routes.bin";
+
+  @Getter(AccessLevel.NONE)
+  private final AtomicInteger references = new AtomicInteger();
+
+  public ClientResources(@NonNull ClientConfig config) {
+    this.metrics = new ProxyMetrics(new MetricRegistry());
+    this.tokens =
+        new ProxyAuthenticationPool(
+            new ProxyAuthenticationGenerator(config.getSecretId(), config.getSecretKey()),
+            TOKEN_POOL_CAPACITY,
+            TOKEN_MAX_AGE.toMillis());
+    this.learnedRoutes =
+        !Boolean.FALSE.equals(config.getLearnRoutes())
+            ? new LearnedRoutes(MAX_LEARNED_DOMAINS)
+            : null;
+    this.httpReachabilityGate =
+        new ReachabilityGate<>(
+            REACHABLE_FOR,
+            FIRST_BACKOFF,
+            MAX_BACKOFF,
+            MAX_VERDICTS,
+            metrics.httpGateHits,
+            metrics.httpGateMisses,
+            metrics.httpGateProbes,
+            this::recordDirectOutcome);
+    this.tunnelReachabilityGate =
+        new ReachabilityGate<>(
+            REACHABLE_FOR,
+            FIRST_BACKOFF,
+            MAX_BACKOFF,
+            MAX_VERDICTS,
+            metrics.httpsGateHits,
+            metrics.httpsGateMisses,
+            metrics.httpsGateProbes,
+            this::recordDirectOutcome);
+    this.stateDirectory = stateDirectory(config.getRouteCacheDir());
+    this.routeCache = stateDirectory != null ? new HyperscanDatabaseCache(stateDirectory) : null;
+    this.stateSaver = stateDirectory != null ? restoreState() : null;
+    // Rule lists: local_only -> always direct, remote_only -> always remote. Unlisted hosts take
+    // their learned route, if any, or fall through to the ReachabilityGate. Bundled as client
+    // classpath resources unless configured.
+    this.routePolicy =
+        new ReloadableRoutePolicy(
+            loadRouteList(config.getLocalOnlyFile(), "local_only.txt"),
+            loadRouteList(config.getRemoteOnlyFile(), "remote_only.txt"),
+            config.isProxyAll(),
+            config.getRemoteHost(),
+            learnedRoutes);
+    this.routeListWatcher = watchRouteLists(config);
+    this.tunnelReaper =
+        new TunnelReaper(
+            TunnelTimeouts.orDefault(config.getTunnelTimeouts()), metrics.httpsTunnelsReaped);
+    this.bandwidthShaper =
+        config.getBandwidth() != null && config.getBandwidth().limitsAny()
+            ? new BandwidthShaper(config.getBandwidth())
+            : null;
+  }
+
+  private static Path stateDirectory(String directory) {
+    if (directory == null) {
+      return Paths.get(System.getProperty("user.home"), ".cache", "deadbeef-proxy");
+    }
+    return directory.isEmpty() ? null : Paths.get(directory);
+  }
+
+  private void recordDirectOutcome(String host, boolean worked) {
+    if (learnedRoutes != null) {
+      learnedRoutes.record(host, worked);
+    }
+  }
+
+  /** Restores both gates' verdicts and the learned routes, and starts saving them periodically. */
+  private ScheduledExecutorService restoreState() {
+    httpReachabilityGate.restore(stateDirectory.resolve(HTTP_VERDICTS));
+    tunnelReachabilityGate.restore(stateDirectory.resolve(TUNNEL_VERDICTS));
+    if (learnedRoutes != null) {
+      learnedRoutes.restore(stateDirectory.resolve(LEARNED_ROUTES));
+    }
+    ScheduledExecutorService saver =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("deadbeef-state-saver")
+                .setDaemon(true)
+                .build());
+    long period = STATE_SAVE_PERIOD.toMillis();
+    saver.scheduleWithFixedDelay(this::saveState, period, period, TimeUnit.MILLISECONDS);
+    return saver;
+  }
+
+  private void saveState() {
+    httpReachabilityGate.save(stateDirectory.resolve(HTTP_VERDICTS));
+    tunnelReachabilityGate.save(stateDirectory.resolve(TUNNEL_VERDICTS));
+    if (learnedRoutes != null) {
+      learnedRoutes.save(stateDirectory.resolve(LEARNED_ROUTES));
+    }
+  }
+
+  private HostNameMatcher loadRouteList(String file, String classpathFile) {
+    return file != null
+        ? HostNameMatcher.fromFile(Paths.get(file), routeCache)
+        : HostNameMatcher.fromClasspathFile(classpathFile, routeCache);
+  }
+
+  /** Recompiles both lists on the watcher thread when a configured file changes. */
+  private FileWatcher watchRouteLists(ClientConfig config) {
+    List<Path> files =
+        Stream.of(config.getLocalOnlyFile(), config.getRemoteOnlyFile())
+            .filter(Objects::nonNull)
+            .map(Paths::get)
+            .toList();
+    if (files.isEmpty()) {
+      return null;
+    }
+    return new FileWatcher(
+        files,
+        ROUTE_LIST_POLL.toMillis(),
+        () -> {
+          HostNameMatcher localOnly = loadRouteList(config.getLocalOnlyFile(), "local_only.txt");
+          HostNameMatcher remoteOnly;
+          try {
+            remoteOnly = loadRouteList(config.getRemoteOnlyFile(), "remote_only.txt");
+          } catch (RuntimeException e) {
+            localOnly.close();
+            throw e;
+          }
+          routePolicy.swap(localOnly, remoteOnly);
+          log.info("Reloaded route lists {}", files);
+        });
+  }
+
+  /** Called by each instance on start. */
+  public void retain() {
+    references.incrementAndGet();
+  }
+
+  /** Called by each instance on stop; the last release closes the shared matchers and pool. */
+  public void release() {
+    if (references.decrementAndGet() == 0) {
+      close();
+    }
+  }
+
+  @Override
+  public void close() {
+    log.debug("Closing shared client resources");
+    if (routeListWatcher != null) {
+      routeListWatcher.close();
+    }
+    routePolicy.close();
+    if (stateSaver != null) {
+      stateSaver.shutdownNow();
+      saveState();
+    }
+    tokens.close();
+    tunnelReaper.close();
+  }
+}
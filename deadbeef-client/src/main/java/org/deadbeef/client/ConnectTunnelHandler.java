@@ -1,26 +1,35 @@
 package org.deadbeef.client;
 
 import com.codahale.metrics.Timer;
+import com.google.common.net.HostAndPort;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.http.RequestOptions;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetSocket;
 import io.vertx.core.net.SocketAddress;
+import java.util.function.LongConsumer;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.deadbeef.auth.ProxyAuthenticationGenerator;
+import org.deadbeef.auth.ProxyAuthenticationSource;
 import org.deadbeef.metrics.ProxyMetrics;
 import org.deadbeef.route.Authorities;
 import org.deadbeef.route.OriginProvider;
 import org.deadbeef.route.RoutePolicy;
+import org.deadbeef.streams.BandwidthShaper;
 import org.deadbeef.streams.MetricPipeFactory;
+import org.deadbeef.streams.MuxRejectedException;
+import org.deadbeef.streams.MuxStream;
 import org.deadbeef.streams.PipeFactory;
+import org.deadbeef.streams.TunnelReaper;
 import org.deadbeef.streams.Tunnels;
 import org.deadbeef.util.Constants;
 import org.deadbeef.util.HttpRequestUtils;
@@ -29,8 +38,12 @@ import org.deadbeef.util.Utils;
 /**
  * Handles browser {@code CONNECT} (HTTPS tunnel) requests. Unless {@code proxyAll} is set, it first
  * tries a raw TCP tunnel straight to the target ({@code netClient}), gated by {@link
- * ReachabilityGate}; only when the direct connection cannot be established does it fall back to
- * tunnelling through the remote proxy via the {@code CONNECT}-over-HTTP protocol.
+ * ReachabilityGate}; when the direct connection fails, or stalls long enough for the remote proxy
+ * to connect first (see {@link HappyEyeballs}), it tunnels through the remote proxy via the {@code
+ * CONNECT}-over-HTTP protocol.
+ *
+ * <p>With a {@link MuxTunnelPool}, remote tunnels are opened as streams on its shared sessions
+ * instead, and only fall back to a dedicated {@code CONNECT} when no session can be had.
  */
 @Slf4j
 public final class ConnectTunnelHandler implements Handler<HttpServerRequest> {
@@ -42,10 +55,12 @@ public final class ConnectTunnelHandler implements Handler<HttpServerRequest> {
   private final ReachabilityGate<NetSocket> reachabilityGate;
   private final RoutePolicy routePolicy;
   private final int localPort;
-  private final ProxyAuthenticationGenerator generator;
+  private final ProxyAuthenticationSource generator;
   private final ProxyMetrics metrics;
-  private final PipeFactory upPipeFactory;
-  private final PipeFactory downPipeFactory;
+  private final Integer flushWindowMicros;
+  private final MuxTunnelPool muxPool;
+  private final TunnelReaper reaper;
+  private final BandwidthShaper shaper;
 
   public ConnectTunnelHandler(
       @NonNull HttpClient httpClient,
@@ -55,8 +70,9 @@ public final class ConnectTunnelHandler implements Handler<HttpServerRequest> {
       @NonNull ReachabilityGate<NetSocket> reachabilityGate,
       @NonNull RoutePolicy routePolicy,
       int localPort,
-      @NonNull ProxyAuthenticationGenerator generator,
-      @NonNull ProxyMetrics metrics) {
+      @NonNull ProxyAuthenticationSource generator,
+      @NonNull ProxyMetrics metrics,
+      @NonNull Options options) {
     this.httpClient = httpClient;
     this.netClient = netClient;
     this.remoteProvider = remoteProvider;
@@ -66,8 +82,10 @@ public final class ConnectTunnelHandler implements Handler<HttpServerRequest> {
     this.localPort = localPort;
     this.generator = generator;
     this.metrics = metrics;
-    this.upPipeFactory = new MetricPipeFactory(metrics.httpsBytesUp);
-    this.downPipeFactory = new MetricPipeFactory(metrics.httpsBytesDown);
+    this.flushWindowMicros = options.flushWindowMicros;
+    this.muxPool = options.muxPool;
+    this.reaper = options.reaper;
+    this.shaper = options.shaper;
   }
 
   @Override
@@ -78,10 +96,13 @@ public final class ConnectTunnelHandler implements Handler<HttpServerRequest> {
       return;
     }
 
+    String host = hostOf(serverRequest.getHeader(HttpHeaderNames.HOST));
+    metrics.recordHostRequest(host);
     Handler<Throwable> originalErrorHandler =
         HttpRequestUtils.createErrorHandler(serverRequest.response());
     Timer.Context connectTimer = metrics.httpsConnectDuration.time();
-    Handler<Void> stopConnectTimerOnce = Utils.atMostOnce(v -> connectTimer.stop());
+    Handler<Void> stopConnectTimerOnce =
+        Utils.atMostOnce(v -> metrics.recordHostConnect(host, connectTimer.stop()));
     Handler<Throwable> errorHandler =
         Utils.atMostOnce(
             cause -> {
@@ -101,7 +122,7 @@ public final class ConnectTunnelHandler implements Handler<HttpServerRequest> {
       target = targetProvider.apply(serverRequest);
       decision = routePolicy.decide(target.host());
     } catch (RuntimeException e) {
-      tunnelViaRemote(serverRequest, stopConnectTimerOnce, errorHandler);
+      tunnelViaRemote(serverRequest, host, stopConnectTimerOnce, errorHandler);
       return;
     }
 
@@ -116,7 +137,7 @@ public final class ConnectTunnelHandler implements Handler<HttpServerRequest> {
 
     if (decision == RoutePolicy.Decision.REMOTE) {
       // Known-blocked: skip the doomed direct attempt.
-      tunnelViaRemote(serverRequest, stopConnectTimerOnce, errorHandler);
+      tunnelViaRemote(serverRequest, host, stopConnectTimerOnce, errorHandler);
       return;
     }
     if (decision == RoutePolicy.Decision.DIRECT) {
@@ -126,26 +147,70 @@ public final class ConnectTunnelHandler implements Handler<HttpServerRequest> {
           .onSuccess(
               upstream -> {
                 metrics.httpsDirectTunnels.inc();
-                openTunnel(serverRequest, upstream, stopConnectTimerOnce, errorHandler);
+                openTunnel(serverRequest, host, upstream, stopConnectTimerOnce, errorHandler);
               })
           .onFailure(errorHandler);
       return;
     }
 
-    // Unlisted (GATE): try a direct TCP tunnel first; fall back to the remote proxy on connect
-    // failure.
-    reachabilityGate
-        .apply(target, () -> netClient.connect(target))
+    // Unlisted (GATE): try a direct TCP tunnel first and race the remote proxy against it once it
+    // stalls; the remote proxy is used when it connects first or the direct connect fails. Learned
+    // direct (DIRECT_FIRST): the same without the race, the remote proxy only on failure.
+    HappyEyeballs<NetSocket, RemoteTunnel> race =
+        new HappyEyeballs<>(
+            reachabilityGate.attemptDelay(target),
+            () -> netClient.connect(target),
+            () -> connectRemote(serverRequest),
+            NetSocket::close,
+            RemoteTunnel::close);
+    Future<NetSocket> direct =
+        decision == RoutePolicy.Decision.DIRECT_FIRST
+            ? reachabilityGate.apply(target, () -> netClient.connect(target))
+            : race.chosen(reachabilityGate.apply(target, race::direct));
+    direct
         .onSuccess(
             upstream -> {
               metrics.httpsDirectTunnels.inc();
-              openTunnel(serverRequest, upstream, stopConnectTimerOnce, errorHandler);
+              openTunnel(serverRequest, host, upstream, stopConnectTimerOnce, errorHandler);
             })
-        .onFailure(cause -> tunnelViaRemote(serverRequest, stopConnectTimerOnce, errorHandler));
+        .onFailure(
+            cause ->
+                useRemote(serverRequest, host, race.remote(), stopConnectTimerOnce, errorHandler));
   }
 
   private void tunnelViaRemote(
-      HttpServerRequest serverRequest, Handler<Void> stopTimer, Handler<Throwable> errorHandler) {
+      HttpServerRequest serverRequest,
+      String host,
+      Handler<Void> stopTimer,
+      Handler<Throwable> errorHandler) {
+    useRemote(serverRequest, host, connectRemote(serverRequest), stopTimer, errorHandler);
+  }
+
+  /**
+   * Opens the remote end of a tunnel: a stream on a mux session, or a dedicated {@code CONNECT}
+   * when there is no pool or no session can be had. Fails with a {@link RemoteRejectedException}
+   * when the server answers for the target with anything but 200.
+   */
+  private Future<RemoteTunnel> connectRemote(HttpServerRequest serverRequest) {
+    if (muxPool == null) {
+      return connectViaRemote(serverRequest);
+    }
+    return muxPool
+        .open(serverRequest.getHeader(HttpHeaderNames.HOST))
+        .map(RemoteTunnel::new)
+        .recover(
+            cause -> {
+              if (cause instanceof MuxRejectedException rejected) {
+                // The server answered for this target; a dedicated CONNECT would get the same.
+                return Future.failedFuture(new RemoteRejectedException(rejected.status(), null));
+              }
+              log.debug(
+                  "No mux session, falling back to a dedicated CONNECT: {}", cause.toString());
+              return connectViaRemote(serverRequest);
+            });
+  }
+
+  private Future<RemoteTunnel> connectViaRemote(HttpServerRequest serverRequest) {
     SocketAddress remote = remoteProvider.apply(serverRequest);
     RequestOptions options =
         new RequestOptions()
@@ -156,46 +221,179 @@ public final class ConnectTunnelHandler implements Handler<HttpServerRequest> {
             .setURI(serverRequest.getHeader(HttpHeaderNames.HOST))
             .putHeader(Constants.authHeaderName(), generator.getString());
 
-    httpClient
+    return httpClient
         .request(options)
-        .onFailure(errorHandler)
+        .compose(HttpClientRequest::connect)
+        .compose(
+            clientResponse -> {
+              int status = clientResponse.statusCode();
+              if (status != HttpResponseStatus.OK.code()) {
+                return Future.failedFuture(
+                    new RemoteRejectedException(status, clientResponse.statusMessage()));
+              }
+              return Future.succeededFuture(new RemoteTunnel(clientResponse.netSocket()));
+            });
+  }
+
+  private void useRemote(
+      HttpServerRequest serverRequest,
+      String host,
+      Future<RemoteTunnel> remote,
+      Handler<Void> stopTimer,
+      Handler<Throwable> errorHandler) {
+    remote
         .onSuccess(
-            clientRequest ->
-                clientRequest
-                    .connect()
-                    .onFailure(errorHandler)
-                    .onSuccess(
-                        clientResponse -> {
-                          int status = clientResponse.statusCode();
-                          if (status != HttpResponseStatus.OK.code()) {
-                            stopTimer.handle(null);
-                            metrics.httpsTunnelsFailed.inc();
-                            serverRequest
-                                .response()
-                                .setStatusCode(status)
-                                .end(clientResponse.statusMessage());
-                            return;
-                          }
-                          metrics.httpsRemoteTunnels.inc();
-                          openTunnel(
-                              serverRequest, clientResponse.netSocket(), stopTimer, errorHandler);
-                        }));
+            tunnel -> {
+              metrics.httpsRemoteTunnels.inc();
+              if (tunnel.stream == null) {
+                openTunnel(serverRequest, host, tunnel.socket, stopTimer, errorHandler);
+                return;
+              }
+              metrics.httpsMultiplexedTunnels.inc();
+              stopTimer.handle(null);
+              metrics.httpsTunnelsOpened.inc();
+              LongConsumer bytes = metrics.hostBytes(host);
+              Tunnels.upgrade(
+                  serverRequest,
+                  tunnel.stream,
+                  upPipes(bytes),
+                  downPipes(bytes),
+                  v -> metrics.httpsActiveInc(),
+                  v -> metrics.httpsActiveDec(),
+                  errorHandler,
+                  reaper);
+            })
+        .onFailure(
+            cause -> {
+              if (!(cause instanceof RemoteRejectedException rejected)) {
+                errorHandler.handle(cause);
+                return;
+              }
+              stopTimer.handle(null);
+              metrics.httpsTunnelsFailed.inc();
+              HttpServerResponse response = serverRequest.response().setStatusCode(rejected.status);
+              if (rejected.statusMessage == null) {
+                response.end();
+              } else {
+                response.end(rejected.statusMessage);
+              }
+            });
   }
 
   private void openTunnel(
       HttpServerRequest serverRequest,
+      String host,
       NetSocket upstream,
       Handler<Void> stopTimer,
       Handler<Throwable> errorHandler) {
     stopTimer.handle(null);
     metrics.httpsTunnelsOpened.inc();
+    LongConsumer bytes = metrics.hostBytes(host);
     Tunnels.upgrade(
         serverRequest,
         upstream,
-        upPipeFactory,
-        downPipeFactory,
+        upPipes(bytes),
+        downPipes(bytes),
         v -> metrics.httpsActiveInc(),
         v -> metrics.httpsActiveDec(),
-        errorHandler);
+        errorHandler,
+        reaper);
+  }
+
+  /** Pipes for one new tunnel's browser → upstream direction, tallying its bytes to its host. */
+  private PipeFactory upPipes(LongConsumer bytes) {
+    PipeFactory pipes =
+        new MetricPipeFactory(metrics.httpsBytesUp, false, false, flushWindowMicros, bytes);
+    return shaper != null ? shaper.clientToUpstream(null, pipes) : pipes;
+  }
+
+  private PipeFactory downPipes(LongConsumer bytes) {
+    PipeFactory pipes =
+        new MetricPipeFactory(metrics.httpsBytesDown, false, false, flushWindowMicros, bytes);
+    return shaper != null ? shaper.upstreamToClient(null, pipes) : pipes;
+  }
+
+  /**
+   * The host of a CONNECT authority, for per-host accounting; the authority itself if malformed.
+   */
+  private static String hostOf(String authority) {
+    try {
+      return HostAndPort.fromString(authority).getHost();
+    } catch (IllegalArgumentException e) {
+      return authority;
+    }
+  }
+
+  /** The remote end of a tunnel: a mux stream or the socket of a dedicated CONNECT. */
+  private static final class RemoteTunnel {
+
+    final MuxStream stream;
+    final NetSocket socket;
+
+    RemoteTunnel(MuxStream stream) {
+      this.stream = stream;
+      this.socket = null;
+    }
+
+    RemoteTunnel(NetSocket socket) {
+      this.stream = null;
+      this.socket = socket;
+    }
+
+    void close() {
+      if (stream != null) {
+        stream.close();
+      } else {
+        socket.close();
+      }
+    }
+  }
+
+  /** The remote proxy answered the tunnel's CONNECT with a status other than 200. */
+  private static final class RemoteRejectedException extends RuntimeException {
+
+    final int status;
+    final String statusMessage;
+
+    RemoteRejectedException(int status, String statusMessage) {
+      // Control-flow signal carried via Future.failedFuture; no stack trace needed.
+      super("Remote proxy answered " + status, null, false, false);
+      this.status = status;
+      this.statusMessage = statusMessage;
+    }
+  }
+
+  /** The handler's optional collaborators; each one left unset is not used. */
+  public static final class Options {
+    private MuxTunnelPool muxPool;
+    private TunnelReaper reaper;
+    private BandwidthShaper shaper;
+    private Integer flushWindowMicros;
+
+    /** Sessions to open remote tunnels on, instead of one CONNECT per tunnel. */
+    public Options muxPool(MuxTunnelPool muxPool) {
+      this.muxPool = muxPool;
+      return this;
+    }
+
+    /** Closes idle tunnels, instead of leaving them open until either side closes. */
+    public Options reaper(TunnelReaper reaper) {
+      this.reaper = reaper;
+      return this;
+    }
+
+    /** Shapes each tunnel to the configured bandwidth. */
+    public Options shaper(BandwidthShaper shaper) {
+      this.shaper = shaper;
+      return this;
+    }
+
+    /**
+     * Coalesces the flushes of chatty tunnels within this window, instead of flushing each write.
+     */
+    public Options flushWindowMicros(Integer flushWindowMicros) {
+      this.flushWindowMicros = flushWindowMicros;
+      return this;
+    }
   }
 }
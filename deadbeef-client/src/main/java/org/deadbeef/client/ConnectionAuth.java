@@ -0,0 +1,35 @@
+package org.deadbeef.client;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpConnection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import org.deadbeef.util.Constants;
+
+/**
+ * Tracks which connections to the remote server are already authenticated. A server running in
+ * connection-auth mode says so on the response to the first verified request; from then on requests
+ * on that connection skip generating (and the server skips verifying) a token. Servers that don't
+ * say so keep getting a token on every request.
+ */
+final class ConnectionAuth {
+
+  // Keyed weakly: a connection evicted from the pool takes its state with it.
+  private final Set<HttpConnection> authenticated = Collections.newSetFromMap(new WeakHashMap<>());
+
+  /** Called once the request is bound to a connection, before its head is sent. */
+  boolean needsToken(HttpClientRequest clientRequest) {
+    return !authenticated.contains(clientRequest.connection());
+  }
+
+  void onResponse(HttpClientRequest clientRequest, HttpClientResponse clientResponse) {
+    if (clientResponse.statusCode() == HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED.code()) {
+      authenticated.remove(clientRequest.connection());
+    } else if (clientResponse.getHeader(Constants.authSessionHeaderName()) != null) {
+      authenticated.add(clientRequest.connection());
+    }
+  }
+}
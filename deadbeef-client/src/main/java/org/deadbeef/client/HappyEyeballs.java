@@ -0,0 +1,204 @@
+package org.deadbeef.client;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import lombok.NonNull;
+
+/**
+ * One request's race between the direct path and the remote proxy, after RFC 8305: the direct
+ * connect starts first, and if it has not connected within the {@link AttemptDelay} the remote
+ * connect starts alongside it. The first to connect is used and the other is discarded when (and
+ * if) it connects too.
+ *
+ * <p>{@link #direct} is meant as the probe of a {@link ReachabilityGate}, and completes with the
+ * direct attempt's own outcome, so the gate's verdict rests on whether the target could be reached,
+ * not on which path was faster. The caller passes what the gate returns through {@link #chosen},
+ * which fails at once if the remote path connected first; either way the caller then takes {@link
+ * #remote}, which is the remote connect already under way, or a new one.
+ *
+ * <p>Only direct connects that opened a new connection teach the {@link AttemptDelay}: one served
+ * from a pool took no time to connect.
+ *
+ * <p>Confined to the event loop of the request that created it. Without a Vert.x context nothing is
+ * raced: the remote path only starts once the caller asks for it.
+ */
+final class HappyEyeballs<D, R> {
+
+  /**
+   * The remote path connected before the direct one, which is given up on; control flow only, so no
+   * stack trace. Says nothing about the direct path, so it is neither a verdict nor a failure.
+   */
+  static final class LostRaceException extends RuntimeException {
+
+    LostRaceException() {
+      super("The remote path connected first", null, false, false);
+    }
+  }
+
+  private final AttemptDelay delay;
+  private final Supplier<? extends Future<D>> directAttempt;
+  private final Supplier<? extends Future<R>> remoteAttempt;
+  private final Consumer<D> discardDirect;
+  private final Consumer<R> discardRemote;
+  private final Predicate<D> newConnection;
+  private final Context context = Vertx.currentContext();
+  private Promise<D> direct;
+  private Promise<D> chosen;
+  private Future<R> remote;
+  private long timer = -1;
+  private boolean directWon;
+  private boolean remoteWon;
+
+  /**
+   * @param discardDirect releases a direct connection that lost the race
+   * @param discardRemote releases a remote connection that lost the race
+   */
+  HappyEyeballs(
+      @NonNull AttemptDelay delay,
+      @NonNull Supplier<? extends Future<D>> directAttempt,
+      @NonNull Supplier<? extends Future<R>> remoteAttempt,
+      @NonNull Consumer<D> discardDirect,
+      @NonNull Consumer<R> discardRemote) {
+    this(delay, directAttempt, remoteAttempt, discardDirect, discardRemote, connection -> true);
+  }
+
+  /**
+   * @param discardDirect releases a direct connection that lost the race
+   * @param discardRemote releases a remote connection that lost the race
+   * @param newConnection whether a direct attempt's result needed a new connection, rather than one
+   *     taken from a pool, so that its time is a connect time
+   */
+  HappyEyeballs(
+      @NonNull AttemptDelay delay,
+      @NonNull Supplier<? extends Future<D>> directAttempt,
+      @NonNull Supplier<? extends Future<R>> remoteAttempt,
+      @NonNull Consumer<D> discardDirect,
+      @NonNull Consumer<R> discardRemote,
+      @NonNull Predicate<D> newConnection) {
+    this.delay = delay;
+    this.directAttempt = directAttempt;
+    this.remoteAttempt = remoteAttempt;
+    this.discardDirect = discardDirect;
+    this.discardRemote = discardRemote;
+    this.newConnection = newConnection;
+  }
+
+  /**
+   * Starts the direct attempt and, unless started by {@link #chosen}, the attempt delay; completes
+   * with the attempt's own outcome, whichever path wins. Once the remote path has won, fails at
+   * once with a {@link LostRaceException} rather than connecting for nothing. Call at most once.
+   */
+  Future<D> direct() {
+    if (direct != null) {
+      throw new IllegalStateException("Race already started");
+    }
+    direct = Promise.promise();
+    if (remoteWon) {
+      direct.fail(new LostRaceException());
+      return direct.future();
+    }
+    startTimer();
+    long start = System.nanoTime();
+    directAttempt.get().onComplete(ar -> onDirect(ar, start));
+    return direct.future();
+  }
+
+  /**
+   * The direct connection to use, from {@code gated}, the {@link #direct} attempt as let through a
+   * gate: its outcome, unless the remote path connects first, which fails this at once with a
+   * {@link LostRaceException}. Starts the attempt delay, so that a caller left waiting on another's
+   * probe is raced too. Call at most once.
+   */
+  Future<D> chosen(Future<D> gated) {
+    if (chosen != null) {
+      throw new IllegalStateException("Race already chosen");
+    }
+    chosen = Promise.promise();
+    if (remoteWon) {
+      chosen.fail(new LostRaceException());
+    } else {
+      startTimer();
+    }
+    gated.onComplete(
+        ar -> {
+          if (ar.succeeded()) {
+            chosen.tryComplete(ar.result());
+          } else {
+            chosen.tryFail(ar.cause());
+          }
+        });
+    return chosen.future();
+  }
+
+  /** The remote connection: the one racing already, or a new attempt if none started. */
+  Future<R> remote() {
+    startRemote();
+    return remote;
+  }
+
+  private void onDirect(AsyncResult<D> ar, long start) {
+    cancelTimer();
+    if (ar.failed()) {
+      direct.fail(ar.cause());
+      return;
+    }
+    if (newConnection.test(ar.result())) {
+      delay.record(System.nanoTime() - start);
+    }
+    if (remoteWon) {
+      // Connected all the same: the verdict learns the target is reachable.
+      direct.complete(ar.result());
+      discardDirect.accept(ar.result());
+      return;
+    }
+    directWon = true;
+    direct.complete(ar.result());
+  }
+
+  private void startRemote() {
+    cancelTimer();
+    if (remote != null) {
+      return;
+    }
+    remote = remoteAttempt.get();
+    remote.onSuccess(
+        connection -> {
+          if (directWon) {
+            discardRemote.accept(connection);
+            return;
+          }
+          remoteWon = true;
+          if (chosen != null) {
+            chosen.tryFail(new LostRaceException());
+          }
+        });
+  }
+
+  private void startTimer() {
+    if (context == null || timer >= 0 || remote != null) {
+      return;
+    }
+    timer =
+        context
+            .owner()
+            .setTimer(
+                delay.millis(),
+                id -> {
+                  timer = -1;
+                  startRemote();
+                });
+  }
+
+  private void cancelTimer() {
+    if (timer >= 0) {
+      context.owner().cancelTimer(timer);
+      timer = -1;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package org.deadbeef.client;
+
+import com.google.common.primitives.Ints;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpConnection;
+import io.vertx.core.http.HttpVersion;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.deadbeef.protocol.HttpProto;
+import org.deadbeef.util.Constants;
+import org.deadbeef.util.HeaderBlockEncoder;
+
+/**
+ * Per-connection state of the compressed envelope headers towards the remote server. The first
+ * request on a connection carries plain headers plus an offer; if the response accepts it, later
+ * requests on that connection send a {@code header_block} instead. Servers that don't know the
+ * offer simply don't answer it, and the connection keeps plain headers.
+ *
+ * <p>Only HTTP/1.x connections take part: their requests reach the server one after another, which
+ * is what keeps both dynamic tables in step. HTTP/2 streams may be decoded out of order.
+ */
+final class HeaderCompression {
+
+  static final int CAPACITY = 16 * 1024;
+
+  // Keyed weakly: a connection evicted from the pool takes its table with it.
+  private final Map<HttpConnection, State> states = new WeakHashMap<>();
+
+  /**
+   * Called once the request is bound to a connection, right before the envelope is serialized.
+   * Returns the envelope to send, with its headers compressed if the connection has a table.
+   */
+  HttpProto.Request prepare(HttpClientRequest clientRequest, HttpProto.Request proto) {
+    if (clientRequest.version() == HttpVersion.HTTP_2 || !proto.hasHeaders()) {
+      return proto;
+    }
+    State state = states.get(clientRequest.connection());
+    if (state == null) {
+      states.put(clientRequest.connection(), new State());
+      clientRequest.putHeader(Constants.headerTableHeaderName(), Integer.toString(CAPACITY));
+      return proto;
+    }
+    if (state.encoder == null) {
+      return proto;
+    }
+    return proto.toBuilder()
+        .clearHeaders()
+        .setHeaderBlock(state.encoder.encode(proto.getHeaders()))
+        .build();
+  }
+
+  /** Settles a pending offer from the response to the request that carried it. */
+  void onResponse(HttpClientRequest clientRequest, HttpClientResponse clientResponse) {
+    State state = states.get(clientRequest.connection());
+    if (state == null || state.settled) {
+      return;
+    }
+    state.settled = true;
+    String accepted = clientResponse.getHeader(Constants.headerTableHeaderName());
+    Integer capacity = accepted == null ? null : Ints.tryParse(accepted);
+    if (capacity != null && capacity > 0 && capacity <= CAPACITY) {
+      state.encoder = new HeaderBlockEncoder(capacity);
+    }
+  }
+
+  private static final class State {
+    private boolean settled;
+    private HeaderBlockEncoder encoder;
+  }
+}
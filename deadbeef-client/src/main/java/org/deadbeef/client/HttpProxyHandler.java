@@ -1,27 +1,30 @@
 package org.deadbeef.client;
 
 import com.codahale.metrics.Timer;
-import io.netty.buffer.ByteBufInputStream;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpConnection;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.http.HttpVersion;
 import io.vertx.core.http.RequestOptions;
 import io.vertx.core.net.SocketAddress;
-import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.deadbeef.auth.ProxyAuthenticationGenerator;
+import org.deadbeef.auth.ProxyAuthenticationSource;
 import org.deadbeef.metrics.ProxyMetrics;
 import org.deadbeef.protocol.HttpProto;
 import org.deadbeef.route.Authorities;
@@ -30,6 +33,7 @@ import org.deadbeef.route.RoutePolicy;
 import org.deadbeef.streams.MetricPipeFactory;
 import org.deadbeef.streams.PipeFactory;
 import org.deadbeef.streams.Prefix;
+import org.deadbeef.streams.PrefixedWriteStream;
 import org.deadbeef.streams.ProxyStreamPrefixVisitor;
 import org.deadbeef.util.Constants;
 import org.deadbeef.util.HopByHopHeaders;
@@ -39,30 +43,37 @@ import org.deadbeef.util.Utils;
 
 /**
  * Handles plaintext HTTP proxy requests. Unless {@code proxyAll} is set, it first tries an ordinary
- * HTTP request straight to the target (gated by {@link ReachabilityGate}); only when that direct
- * connection cannot be established does it fall back to the remote proxy, which wraps the request
- * in the protobuf envelope. Fallback happens at connection time — before the request body is
- * consumed — so the body is intact for whichever path wins.
+ * HTTP request straight to the target (gated by {@link ReachabilityGate}); when that direct
+ * connection fails, or stalls long enough for the remote proxy to connect first (see {@link
+ * HappyEyeballs}), it uses the remote proxy, which wraps the request in the protobuf envelope.
+ * Fallback happens at connection time — before the request body is consumed — so the body is intact
+ * for whichever path wins.
  */
 @Slf4j
 public final class HttpProxyHandler implements Handler<HttpServerRequest> {
 
   private final HttpServerRequestEncoder httpServerRequestEncoder = new HttpServerRequestEncoder();
   private final HttpHeaderDecoder headerDecoder = new HttpHeaderDecoder();
+  private final HeaderCompression headerCompression = new HeaderCompression();
+  private final ConnectionAuth connectionAuth = new ConnectionAuth();
+  private final ConcurrentMap<HttpConnection, Boolean> directConnections =
+      Caffeine.newBuilder().weakKeys().<HttpConnection, Boolean>build().asMap();
 
   private final PipeFactory pipeFactory;
   private final PipeFactory downPipeFactory;
 
   private final ProxyStreamPrefixVisitor<HttpServerResponse> proxyStreamPrefixVisitor;
   private final HttpClient httpClient;
+  private final HttpClient remoteHttpClient;
   private final OriginProvider remoteProvider;
   private final OriginProvider targetProvider;
   private final ReachabilityGate<HttpClientRequest> reachabilityGate;
   private final RoutePolicy routePolicy;
   private final int localPort;
 
-  private final ProxyAuthenticationGenerator proxyAuthenticationGenerator;
+  private final ProxyAuthenticationSource proxyAuthenticationGenerator;
   private final ProxyMetrics metrics;
+  private final Vertx vertx;
 
   public HttpProxyHandler(
       @NonNull Vertx vertx,
@@ -72,11 +83,42 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
       @NonNull ReachabilityGate<HttpClientRequest> reachabilityGate,
       @NonNull RoutePolicy routePolicy,
       int localPort,
-      @NonNull ProxyAuthenticationGenerator generator,
+      @NonNull ProxyAuthenticationSource generator,
       @NonNull ProxyMetrics metrics) {
+    this(
+        vertx,
+        httpClient,
+        httpClient,
+        remoteProvider,
+        targetProvider,
+        reachabilityGate,
+        routePolicy,
+        localPort,
+        generator,
+        metrics);
+  }
+
+  /**
+   * @param httpClient client for direct requests to origins
+   * @param remoteHttpClient client for the envelope POSTs to the remote proxy; may be an HTTP/2
+   *     client so concurrent requests share a few connections instead of one each
+   */
+  public HttpProxyHandler(
+      @NonNull Vertx vertx,
+      @NonNull HttpClient httpClient,
+      @NonNull HttpClient remoteHttpClient,
+      @NonNull OriginProvider remoteProvider,
+      @NonNull OriginProvider targetProvider,
+      @NonNull ReachabilityGate<HttpClientRequest> reachabilityGate,
+      @NonNull RoutePolicy routePolicy,
+      int localPort,
+      @NonNull ProxyAuthenticationSource generator,
+      @NonNull ProxyMetrics metrics) {
+    this.vertx = vertx;
     this.proxyStreamPrefixVisitor =
         new ProxyStreamPrefixVisitor<>(vertx, new MetricPipeFactory(metrics.httpBytesDown));
     this.httpClient = httpClient;
+    this.remoteHttpClient = remoteHttpClient;
     this.remoteProvider = remoteProvider;
     this.targetProvider = targetProvider;
     this.reachabilityGate = reachabilityGate;
@@ -155,6 +197,13 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
       return;
     }
 
+    String host = target.host();
+    metrics.recordHostRequest(host);
+    serverResponse.bodyEndHandler(
+        v ->
+            metrics.recordHostBytes(
+                host, serverRequest.bytesRead() + serverResponse.bytesWritten()));
+
     if (Authorities.isSelfTarget(target, localPort)) {
       // Target is this client's own listen address: serving it (direct -> connect to self) loops,
       // and tunnelling it through the remote proxy can't help. Reject instead of routing.
@@ -176,26 +225,59 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
       httpClient
           .request(directOptions)
           .onSuccess(
-              clientRequest ->
-                  proxyDirect(
-                      serverRequest, serverResponse, clientRequest, contentLength, errorHandler))
+              clientRequest -> {
+                firstOnItsConnection(clientRequest);
+                proxyDirect(
+                    serverRequest, serverResponse, clientRequest, contentLength, errorHandler);
+              })
           .onFailure(errorHandler);
       return;
     }
 
-    // Unlisted (GATE): try direct first; fall back to the remote proxy on connect failure.
-    reachabilityGate
-        .apply(target, () -> httpClient.request(directOptions))
+    // Unlisted (GATE): try direct first and race the remote proxy against it once it stalls; the
+    // remote proxy is used when it connects first or the direct connect fails. Learned direct
+    // (DIRECT_FIRST): the same without the race, the remote proxy only on failure.
+    HappyEyeballs<HttpClientRequest, HttpClientRequest> race =
+        new HappyEyeballs<>(
+            reachabilityGate.attemptDelay(target),
+            () -> httpClient.request(directOptions),
+            () -> remoteHttpClient.request(remoteOptions(serverRequest)),
+            HttpClientRequest::reset,
+            HttpClientRequest::reset,
+            this::firstOnItsConnection);
+    Future<HttpClientRequest> direct =
+        decision == RoutePolicy.Decision.DIRECT_FIRST
+            ? reachabilityGate.apply(
+                target,
+                () -> httpClient.request(directOptions).onSuccess(this::firstOnItsConnection))
+            : race.chosen(reachabilityGate.apply(target, race::direct));
+    direct
         .onSuccess(
-            clientRequest ->
-                proxyDirect(
-                    serverRequest, serverResponse, clientRequest, contentLength, errorHandler))
+            clientRequest -> {
+              // A target that accepts the connection but drops the request is no better than an
+              // unreachable one: route the next requests to it remotely.
+              clientRequest
+                  .response()
+                  .onFailure(cause -> reachabilityGate.reportFailure(target, cause));
+              proxyDirect(
+                  serverRequest, serverResponse, clientRequest, contentLength, errorHandler);
+            })
         .onFailure(
-            cause -> proxyToRemote(serverRequest, serverResponse, contentLength, errorHandler));
+            cause ->
+                proxyToRemote(
+                    serverRequest, serverResponse, contentLength, errorHandler, race.remote()));
   }
 
   // ---- direct path: ordinary HTTP straight to the target ----
 
+  /**
+   * Whether {@code clientRequest} is the first direct request on its connection, which was then
+   * opened for it; a later one was handed a pooled connection without connecting.
+   */
+  private boolean firstOnItsConnection(HttpClientRequest clientRequest) {
+    return directConnections.putIfAbsent(clientRequest.connection(), Boolean.TRUE) == null;
+  }
+
   private RequestOptions buildDirectOptions(HttpServerRequest serverRequest, SocketAddress target) {
     RequestOptions options = new RequestOptions();
     options.setMethod(serverRequest.method());
@@ -267,32 +349,62 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
 
   // ---- remote path: protobuf-wrapped request to the remote proxy ----
 
+  private RequestOptions remoteOptions(HttpServerRequest serverRequest) {
+    RequestOptions requestOptions = new RequestOptions();
+    requestOptions.setMethod(HttpMethod.POST);
+    requestOptions.setServer(remoteProvider.apply(serverRequest));
+    putContentType(requestOptions);
+    return requestOptions;
+  }
+
   private void proxyToRemote(
       HttpServerRequest serverRequest,
       HttpServerResponse serverResponse,
       long contentLength,
       Handler<Throwable> errorHandler) {
+    proxyToRemote(
+        serverRequest,
+        serverResponse,
+        contentLength,
+        errorHandler,
+        remoteHttpClient.request(remoteOptions(serverRequest)));
+  }
+
+  /**
+   * @param remoteRequest the request to the remote proxy, connected or on its way
+   */
+  private void proxyToRemote(
+      HttpServerRequest serverRequest,
+      HttpServerResponse serverResponse,
+      long contentLength,
+      Handler<Throwable> errorHandler,
+      Future<HttpClientRequest> remoteRequest) {
     metrics.httpRequestsRemote.inc();
     HttpProto.Request proto = httpServerRequestEncoder.apply(serverRequest);
     if (log.isDebugEnabled()) {
       log.debug("{} :{}{}", Constants.rightArrow(), Constants.lineSeparator(), proto);
     }
 
-    RequestOptions requestOptions = new RequestOptions();
-    requestOptions.setMethod(HttpMethod.POST);
-    requestOptions.setServer(remoteProvider.apply(serverRequest));
-    putHeaders(proto, contentLength, requestOptions);
-
-    httpClient
-        .request(requestOptions)
+    remoteRequest
         .onSuccess(
             clientRequest -> {
               clientRequest.exceptionHandler(errorHandler);
+              if (connectionAuth.needsToken(clientRequest)) {
+                clientRequest.putHeader(
+                    Constants.authHeaderName(), proxyAuthenticationGenerator.getString());
+              }
+              // The header encoding depends on the connection the request was bound to, so the
+              // envelope (and the length derived from it) is only final here.
+              HttpProto.Request envelope = headerCompression.prepare(clientRequest, proto);
               if (contentLength < 0) {
                 // Unknown / chunked upstream body — request chunked transfer-encoding outbound.
                 clientRequest.setChunked(true);
+              } else {
+                clientRequest.putHeader(
+                    HttpHeaderNames.CONTENT_LENGTH,
+                    Long.toString(Prefix.serializeToBufferSize(envelope) + contentLength));
               }
-              Buffer prefixData = Prefix.serializeToBuffer(proto);
+              Buffer prefixData = Prefix.serializeToBuffer(envelope);
               // Only exact 0 means empty body!
               if (contentLength == 0) {
                 clientRequest
@@ -302,13 +414,24 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
                     .onFailure(errorHandler);
                 return;
               }
-              clientRequest.write(prefixData);
-              pipeFactory
-                  .newPipe(serverRequest)
-                  .to(clientRequest)
-                  .onSuccess(
-                      v -> awaitUpperStreamResponse(serverResponse, clientRequest, errorHandler))
-                  .onFailure(errorHandler);
+              // The envelope goes out with the first body chunk, in one write, if that chunk is
+              // already at hand; otherwise on its own, so that the remote proxy can start on the
+              // request while the browser is still sending (or waiting on 100-continue).
+              PrefixedWriteStream prefixed = new PrefixedWriteStream(clientRequest, prefixData);
+              Future<Void> piped =
+                  pipeFactory
+                      .newPipe(serverRequest)
+                      .to(prefixed)
+                      .onSuccess(
+                          v ->
+                              awaitUpperStreamResponse(serverResponse, clientRequest, errorHandler))
+                      .onFailure(errorHandler);
+              vertx.runOnContext(
+                  v -> {
+                    if (!piped.isComplete()) {
+                      prefixed.flush();
+                    }
+                  });
             })
         .onFailure(errorHandler);
   }
@@ -320,6 +443,8 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
     clientRequest.response(
         responseResult -> {
           if (responseResult.succeeded()) {
+            connectionAuth.onResponse(clientRequest, responseResult.result());
+            headerCompression.onResponse(clientRequest, responseResult.result());
             handleProxyServerResponse(serverResponse, responseResult.result(), errorHandler);
           } else {
             errorHandler.handle(responseResult.cause());
@@ -345,6 +470,8 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
           .setStatusCode(clientResponse.statusCode())
           .setStatusMessage(clientResponse.statusMessage());
       clientResponse.headers().forEach(serverResponse::putHeader);
+      serverResponse.headers().remove(Constants.headerTableHeaderName());
+      serverResponse.headers().remove(Constants.authSessionHeaderName());
       serverResponse.end();
       return;
     }
@@ -354,10 +481,9 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
         .onSuccess(
             prefixAndAction -> {
               HttpProto.Response response;
-              try (ByteBufInputStream inputStream =
-                  new ByteBufInputStream(prefixAndAction.get().getByteBuf())) {
-                response = HttpProto.Response.parseFrom(inputStream);
-              } catch (IOException e) {
+              try {
+                response = Prefix.parse(prefixAndAction.get(), HttpProto.Response.parser());
+              } catch (InvalidProtocolBufferException e) {
                 errorHandler.handle(e);
                 return;
               }
@@ -392,15 +518,8 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
     }
   }
 
-  private void putHeaders(
-      HttpProto.Request request, long contentLength, RequestOptions requestOptions) {
+  private void putContentType(RequestOptions requestOptions) {
     requestOptions.putHeader(
         HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
-    if (contentLength >= 0) {
-      requestOptions.putHeader(
-          HttpHeaderNames.CONTENT_LENGTH,
-          Long.toString(Prefix.serializeToBufferSize(request) + contentLength));
-    }
-    requestOptions.putHeader(Constants.authHeaderName(), proxyAuthenticationGenerator.getString());
   }
 }
@@ -0,0 +1,139 @@
+package org.deadbeef.client;
+
+import com.google.common.base.Preconditions;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxException;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.SocketAddress;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.deadbeef.auth.ProxyAuthenticationSource;
+import org.deadbeef.streams.MuxSession;
+import org.deadbeef.streams.MuxStream;
+import org.deadbeef.streams.TunnelReaper;
+import org.deadbeef.util.Constants;
+
+/**
+ * A few long-lived, pre-authenticated {@link MuxSession}s to the remote proxy. Remote CONNECT
+ * tunnels are opened as streams on them instead of costing a TCP connect, a TLS handshake and a
+ * token validation each.
+ *
+ * <p>Sessions are established lazily and single-flight per slot, handed out round-robin, and
+ * replaced once they close. One pool per verticle instance: a session is confined to the event loop
+ * it was created on, like the connections of the instance's {@code HttpClient}.
+ */
+@Slf4j
+public final class MuxTunnelPool {
+
+  private final Vertx vertx;
+  private final HttpClient httpClient;
+  private final SocketAddress remote;
+  private final ProxyAuthenticationSource generator;
+  private final TunnelReaper reaper;
+  private final Slot[] slots;
+  private int next;
+
+  /**
+   * @param reaper sets TCP keepalive on session sockets; {@code null} to leave them as they are
+   */
+  public MuxTunnelPool(
+      @NonNull Vertx vertx,
+      @NonNull HttpClient httpClient,
+      @NonNull SocketAddress remote,
+      @NonNull ProxyAuthenticationSource generator,
+      int connections,
+      TunnelReaper reaper) {
+    Preconditions.checkArgument(connections > 0, "connections should be positive: %s", connections);
+    this.vertx = vertx;
+    this.httpClient = httpClient;
+    this.remote = remote;
+    this.generator = generator;
+    this.reaper = reaper;
+    this.slots = new Slot[connections];
+    for (int i = 0; i < connections; i++) {
+      slots[i] = new Slot();
+    }
+  }
+
+  /**
+   * Opens a tunnel to {@code authority} on the next session. Fails with {@link
+   * org.deadbeef.streams.MuxRejectedException} when the server refused the target; any other
+   * failure means no session could be had and the caller should fall back to a plain CONNECT.
+   */
+  public Future<MuxStream> open(@NonNull String authority) {
+    Slot slot = slots[next];
+    next = (next + 1) % slots.length;
+    return slot.session().compose(session -> session.open(authority));
+  }
+
+  public void close() {
+    for (Slot slot : slots) {
+      slot.close();
+    }
+  }
+
+  private Future<MuxSession> connect() {
+    RequestOptions options =
+        new RequestOptions()
+            .setMethod(HttpMethod.CONNECT)
+            .setServer(remote)
+            .setHost(remote.host())
+            .setPort(remote.port())
+            .setURI(remote.host() + ":" + remote.port())
+            .putHeader(Constants.authHeaderName(), generator.getString())
+            .putHeader(Constants.muxHeaderName(), "1");
+    return httpClient
+        .request(options)
+        .compose(request -> request.connect())
+        .compose(
+            response -> {
+              if (response.statusCode() != HttpResponseStatus.OK.code()) {
+                return Future.failedFuture(
+                    new VertxException(
+                        "Mux session refused with status " + response.statusCode(), true));
+              }
+              NetSocket socket = response.netSocket();
+              if (reaper != null) {
+                reaper.keepAlive(socket);
+              }
+              return Future.succeededFuture(
+                  MuxSession.client(socket).keepAlive(vertx, MuxSession.DEFAULT_KEEP_ALIVE_MILLIS));
+            });
+  }
+
+  /** One session, or the in-flight attempt to establish it. */
+  private final class Slot {
+
+    private Future<MuxSession> session;
+
+    Future<MuxSession> session() {
+      // A full session is still returned: open() fails on it and the caller falls back.
+      if (session != null && !(session.succeeded() && session.result().isClosed())) {
+        return session;
+      }
+      Future<MuxSession> attempt = connect();
+      session = attempt;
+      attempt.onSuccess(s -> s.closeHandler(v -> forget(attempt)));
+      attempt.onFailure(cause -> forget(attempt));
+      return attempt;
+    }
+
+    private void forget(Future<MuxSession> attempt) {
+      if (session == attempt) {
+        session = null;
+      }
+    }
+
+    void close() {
+      if (session != null && session.succeeded()) {
+        session.result().close();
+      }
+      session = null;
+    }
+  }
+}
@@ -1,72 +1,411 @@
 package org.deadbeef.client;
 
+import com.codahale.metrics.Counter;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.base.Preconditions;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
+import io.vertx.core.impl.ContextInternal;
+import io.vertx.core.impl.future.PromiseInternal;
 import io.vertx.core.net.SocketAddress;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * Single-flight reachability gate for "try direct, fall back to remote" routing.
  *
  * <p>The first caller for a given {@link SocketAddress} runs the supplied probe; concurrent callers
- * wait on it, and the verdict (success or failure) is cached for the configured window so that a
- * known-unreachable address fast-fails into the fallback path instead of being re-probed on every
- * request. On a cached success the gate issues a fresh attempt per caller; the very first caller
- * additionally reuses the probe's own result so the probe connection is not wasted.
+ * wait on it, and the verdict (success or failure) is cached so that a known-unreachable address
+ * fast-fails into the fallback path instead of being re-probed on every request. On a cached
+ * success the gate issues a fresh attempt per caller; the very first caller additionally reuses the
+ * probe's own result so the probe connection is not wasted.
+ *
+ * <p>A success is trusted for a fixed window. A failure is trusted for a backoff that doubles with
+ * every failure in a row, from the first backoff up to the maximum, so a host that stays down or
+ * keeps flapping is re-probed less and less often; the streak ends once a success outlives its
+ * window. Live traffic heals a stale success: a fresh attempt that fails, or a failure {@link
+ * #reportFailure reported} by the caller after connecting, turns it into a failure at once.
  *
  * <p>The {@code supplier} may be invoked more than once (the first-caller probe, plus a fresh
  * attempt for concurrent / later callers), so it must be re-callable — {@code httpClient.request}
  * and {@code netClient.connect} both are.
+ *
+ * <p>One gate is shared by every deployed verticle instance, so a verdict may be settled on another
+ * instance's event loop; waiters are re-dispatched onto their own context before the fresh attempt
+ * runs. Settled verdicts can be {@link #save saved} to a file and {@link #restore restored} from
+ * it, so a restarted client does not re-probe every host it already knows to be blocked.
+ *
+ * <p>Every direct attempt it sees, probe or fresh, and every reported failure is also passed to an
+ * outcome listener by host name, for route learning. A fresh attempt given up because the remote
+ * path won its {@link HappyEyeballs} race tells nothing about the target and is not counted.
+ *
+ * <p>The gate also keeps, per address, the {@link AttemptDelay} its callers' races wait before
+ * starting the remote path, learned from the direct connects to that address.
  */
+@Slf4j
 public final class ReachabilityGate<T>
     implements BiFunction<SocketAddress, Supplier<? extends Future<T>>, Future<T>> {
 
-  private final ConcurrentMap<SocketAddress, Promise<Void>> availabilityCache;
+  // Bump when the snapshot format changes.
+  private static final int FORMAT = 1;
+
+  private final ConcurrentMap<SocketAddress, Target> targets;
+  private final long reachableMillis;
+  private final long firstBackoffMillis;
+  private final long maxBackoffMillis;
+  private final long forgetMillis;
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter probes;
+  private final BiConsumer<String, Boolean> outcomes;
+  private final LongSupplier clock;
 
+  /** A gate trusting every verdict for {@code expireDuration}, without backoff or counters. */
   public ReachabilityGate(@NonNull Duration expireDuration, long maxSize) {
-    this.availabilityCache =
+    this(
+        expireDuration,
+        expireDuration,
+        expireDuration,
+        maxSize,
+        new Counter(),
+        new Counter(),
+        new Counter());
+  }
+
+  /**
+   * @param reachableFor how long a success is trusted
+   * @param firstBackoff how long the first failure in a row is trusted
+   * @param maxBackoff the most any failure is trusted
+   * @param hits callers answered by a settled verdict
+   * @param misses callers that had to wait for a probe, their own or another's
+   * @param probes probes run
+   */
+  public ReachabilityGate(
+      @NonNull Duration reachableFor,
+      @NonNull Duration firstBackoff,
+      @NonNull Duration maxBackoff,
+      long maxSize,
+      @NonNull Counter hits,
+      @NonNull Counter misses,
+      @NonNull Counter probes) {
+    this(reachableFor, firstBackoff, maxBackoff, maxSize, hits, misses, probes, (host, ok) -> {});
+  }
+
+  /**
+   * @param outcomes told, by host name, whether each direct attempt through the gate worked
+   */
+  public ReachabilityGate(
+      @NonNull Duration reachableFor,
+      @NonNull Duration firstBackoff,
+      @NonNull Duration maxBackoff,
+      long maxSize,
+      @NonNull Counter hits,
+      @NonNull Counter misses,
+      @NonNull Counter probes,
+      @NonNull BiConsumer<String, Boolean> outcomes) {
+    this(
+        reachableFor,
+        firstBackoff,
+        maxBackoff,
+        maxSize,
+        hits,
+        misses,
+        probes,
+        outcomes,
+        System::currentTimeMillis);
+  }
+
+  ReachabilityGate(
+      Duration reachableFor,
+      Duration firstBackoff,
+      Duration maxBackoff,
+      long maxSize,
+      Counter hits,
+      Counter misses,
+      Counter probes,
+      BiConsumer<String, Boolean> outcomes,
+      LongSupplier clock) {
+    Preconditions.checkArgument(
+        firstBackoff.compareTo(maxBackoff) <= 0,
+        "first backoff %s exceeds the maximum %s",
+        firstBackoff,
+        maxBackoff);
+    this.reachableMillis = reachableFor.toMillis();
+    this.firstBackoffMillis = firstBackoff.toMillis();
+    this.maxBackoffMillis = maxBackoff.toMillis();
+    // Long enough idle that neither a verdict nor a failure streak is worth keeping.
+    this.forgetMillis = 2 * Math.max(reachableMillis, maxBackoffMillis);
+    this.hits = hits;
+    this.misses = misses;
+    this.probes = probes;
+    this.outcomes = outcomes;
+    this.clock = clock;
+    this.targets =
         Caffeine.newBuilder()
             .maximumSize(maxSize)
-            .expireAfterWrite(expireDuration)
-            .<SocketAddress, Promise<Void>>build()
+            .expireAfterAccess(forgetMillis, TimeUnit.MILLISECONDS)
+            .<SocketAddress, Target>build()
             .asMap();
   }
 
   @Override
   public Future<T> apply(SocketAddress socketAddress, Supplier<? extends Future<T>> supplier) {
+    Target target = targets.computeIfAbsent(socketAddress, addr -> new Target());
+    Promise<Void> probe = null;
+    Future<Void> verdict;
+    boolean settled;
+    synchronized (target) {
+      if (target.verdict == null || target.isStale(clock.getAsLong())) {
+        if (target.verdict != null && target.verdict.succeeded()) {
+          // Reachable for its whole window: whatever failed before is over.
+          target.failures = 0;
+        }
+        probe = Promise.promise();
+        target.verdict = probe.future();
+      }
+      verdict = target.verdict;
+      settled = verdict.isComplete();
+    }
+    (settled ? hits : misses).inc();
+
     @SuppressWarnings("unchecked")
     final Future<T>[] slot = new Future[1];
     // Happens-before: the slot write is ordered before the promise completion that triggers the
     // compose below, which reads it.
-    return availabilityCache
-        .computeIfAbsent(
-            socketAddress,
-            addr -> {
-              Promise<Void> availabilityPromise = Promise.promise();
-              supplier
-                  .get()
-                  .onComplete(
-                      ar -> {
-                        if (ar.succeeded()) {
-                          slot[0] = Future.succeededFuture(ar.result());
-                          availabilityPromise.tryComplete();
-                        } else {
-                          slot[0] = Future.failedFuture(ar.cause());
-                          availabilityPromise.tryFail(ar.cause());
-                        }
-                      });
-              return availabilityPromise;
-            })
-        .future()
+    if (probe != null) {
+      probes.inc();
+      Promise<Void> settling = probe;
+      supplier
+          .get()
+          .onComplete(
+              ar -> {
+                slot[0] =
+                    ar.succeeded()
+                        ? Future.succeededFuture(ar.result())
+                        : Future.failedFuture(ar.cause());
+                settle(target, settling, ar.cause());
+                outcomes.accept(socketAddress.host(), ar.succeeded());
+              });
+    }
+    return onCallerContext(verdict)
         .compose(
             v -> {
               Future<T> res = slot[0];
-              return res == null ? supplier.get() : res;
+              if (res != null) {
+                return res;
+              }
+              return supplier
+                  .get()
+                  .onSuccess(result -> outcomes.accept(socketAddress.host(), true))
+                  .onFailure(
+                      cause -> {
+                        if (!(cause instanceof HappyEyeballs.LostRaceException)) {
+                          reportFailure(socketAddress, cause);
+                        }
+                      });
             });
   }
+
+  /**
+   * Live traffic to {@code socketAddress} failed after the gate let it through: a cached success
+   * becomes a failure, backed off like a failed probe. Anything else is left alone, but the failure
+   * still reaches the outcome listener, so callers may report direct failures the gate never saw.
+   */
+  public void reportFailure(@NonNull SocketAddress socketAddress, @NonNull Throwable cause) {
+    outcomes.accept(socketAddress.host(), false);
+    Target target = targets.get(socketAddress);
+    if (target == null) {
+      return;
+    }
+    synchronized (target) {
+      if (target.verdict == null || !target.verdict.succeeded()) {
+        return;
+      }
+      target.fail(clock.getAsLong());
+      target.verdict = Future.failedFuture(cause);
+    }
+    log.debug("Direct path to {} failed, routing it remotely: {}", socketAddress, cause.toString());
+  }
+
+  /** How long a race to {@code socketAddress} gives the direct path before starting the remote. */
+  AttemptDelay attemptDelay(@NonNull SocketAddress socketAddress) {
+    return targets.computeIfAbsent(socketAddress, addr -> new Target()).attemptDelay;
+  }
+
+  private void settle(Target target, Promise<Void> verdict, Throwable cause) {
+    synchronized (target) {
+      if (cause == null) {
+        target.expiresAt = clock.getAsLong() + reachableMillis;
+      } else {
+        target.fail(clock.getAsLong());
+      }
+    }
+    if (cause == null) {
+      verdict.complete();
+    } else {
+      verdict.fail(cause);
+    }
+  }
+
+  private long backoffMillis(int failures) {
+    long backoff = firstBackoffMillis << Math.min(failures - 1, 30);
+    return backoff < 0 ? maxBackoffMillis : Math.min(maxBackoffMillis, backoff);
+  }
+
+  /**
+   * Writes the settled verdicts to {@code file}, replacing it atomically. Best effort: a failure is
+   * logged and only costs warm verdicts on the next start.
+   */
+  void save(@NonNull Path file) {
+    Path temporary = null;
+    try {
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      int count = 0;
+      try (DataOutputStream out = new DataOutputStream(records)) {
+        for (Map.Entry<SocketAddress, Target> entry : targets.entrySet()) {
+          SocketAddress address = entry.getKey();
+          Target target = entry.getValue();
+          if (!address.isInetSocket()) {
+            continue;
+          }
+          synchronized (target) {
+            if (target.verdict == null || !target.verdict.isComplete()) {
+              continue;
+            }
+            out.writeUTF(address.host());
+            out.writeShort(address.port());
+            out.writeBoolean(target.verdict.succeeded());
+            out.writeInt(target.failures);
+            out.writeLong(target.expiresAt);
+          }
+          count++;
+        }
+      }
+      Path directory = file.toAbsolutePath().getParent();
+      Files.createDirectories(directory);
+      temporary = Files.createTempFile(directory, "reachability", ".tmp");
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        out.writeInt(FORMAT);
+        out.writeInt(count);
+        records.writeTo(out);
+      }
+      Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+      temporary = null;
+      log.debug("Saved {} reachability verdicts to {}", count, file);
+    } catch (IOException e) {
+      log.warn("Failed to save reachability verdicts to {}", file, e);
+    } finally {
+      if (temporary != null) {
+        try {
+          Files.deleteIfExists(temporary);
+        } catch (IOException e) {
+          log.debug("Failed to delete {}", temporary, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads the verdicts {@link #save} wrote to {@code file}, skipping addresses the gate already
+   * knows and verdicts lapsed too long ago to matter. Best effort, like {@link #save}.
+   */
+  void restore(@NonNull Path file) {
+    long now = clock.getAsLong();
+    int restored = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != FORMAT) {
+        log.info("Ignoring reachability verdicts in an older format: {}", file);
+        return;
+      }
+      for (int i = in.readInt(); i > 0; i--) {
+        String host = in.readUTF();
+        SocketAddress address = SocketAddress.inetSocketAddress(in.readUnsignedShort(), host);
+        boolean reachable = in.readBoolean();
+        int failures = in.readInt();
+        long expiresAt = in.readLong();
+        if (now - expiresAt > forgetMillis) {
+          continue;
+        }
+        Target target = new Target();
+        target.verdict =
+            reachable
+                ? Future.succeededFuture()
+                : Future.failedFuture(new UnreachableException(address));
+        target.failures = failures;
+        target.expiresAt = expiresAt;
+        if (targets.putIfAbsent(address, target) == null) {
+          restored++;
+        }
+      }
+    } catch (NoSuchFileException e) {
+      return;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Ignoring unusable reachability verdicts in {}", file, e);
+    }
+    log.debug("Restored {} reachability verdicts from {}", restored, file);
+  }
+
+  private static Future<Void> onCallerContext(Future<Void> verdict) {
+    ContextInternal context = ContextInternal.current();
+    if (context == null) {
+      return verdict;
+    }
+    PromiseInternal<Void> promise = context.promise();
+    verdict.onComplete(promise);
+    return promise.future();
+  }
+
+  /** What the gate knows of one address; guarded by its own monitor. */
+  private final class Target {
+
+    /** In flight while incomplete; settled otherwise. */
+    Future<Void> verdict;
+
+    /** When a settled verdict lapses, in epoch millis. */
+    long expiresAt;
+
+    /** Failures in a row, probed or reported, since the address last stayed reachable. */
+    int failures;
+
+    /** Learned from this address's direct connects; not saved, it is relearned in a few. */
+    final AttemptDelay attemptDelay = new AttemptDelay();
+
+    boolean isStale(long now) {
+      return verdict.isComplete() && now >= expiresAt;
+    }
+
+    void fail(long now) {
+      failures++;
+      expiresAt = now + backoffMillis(failures);
+    }
+  }
+
+  /** The failure of a verdict restored from disk, whose original cause is long gone. */
+  static final class UnreachableException extends RuntimeException {
+
+    UnreachableException(SocketAddress address) {
+      super(
+          "Direct path to " + address + " was unreachable before the restart", null, false, false);
+    }
+  }
 }
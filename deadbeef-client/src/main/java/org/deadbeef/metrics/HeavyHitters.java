@@ -0,0 +1,147 @@
+package org.deadbeef.metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The heaviest keys of an unbounded stream, in constant memory, by Space-Saving (Metwally et al.):
+ * at most {@code capacity} keys are counted, and a key that is not counted yet takes over the slot
+ * of the lightest one when the table is full, inheriting its count as its error. Any key heavier
+ * than total / capacity is therefore always in the table, and a count overstates its key's weight
+ * by at most the error.
+ *
+ * <p>Fed from every event loop, so the keys are striped over independently locked tables of {@code
+ * capacity} each, and a key always lands in the same one; its count is exact to that table, and
+ * {@link #top} merges the tables. Only a key that is not counted yet costs a scan of its table;
+ * counted keys are a map lookup, and a full table allocates nothing.
+ */
+final class HeavyHitters {
+
+  private static final Comparator<Entry> HEAVIEST_FIRST =
+      Comparator.comparingLong((Entry entry) -> entry.count).reversed();
+
+  private final Table[] tables;
+
+  HeavyHitters(int capacity) {
+    this(capacity, 1);
+  }
+
+  /**
+   * @param stripes tables the keys are spread over, a power of two
+   */
+  HeavyHitters(int capacity, int stripes) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive: %s", capacity);
+    Preconditions.checkArgument(
+        stripes > 0 && Integer.bitCount(stripes) == 1,
+        "stripes must be a power of two: %s",
+        stripes);
+    this.tables = new Table[stripes];
+    for (int i = 0; i < stripes; i++) {
+      tables[i] = new Table(capacity);
+    }
+  }
+
+  void add(String key, long weight) {
+    int hash = key.hashCode();
+    tables[(hash ^ (hash >>> 16)) & (tables.length - 1)].add(key, weight);
+  }
+
+  /** Copies of the {@code limit} heaviest entries, heaviest first. */
+  List<Entry> top(int limit) {
+    List<Entry> top = new ArrayList<>();
+    for (Table table : tables) {
+      table.copyTo(top);
+    }
+    top.sort(HEAVIEST_FIRST);
+    return top.size() > limit ? top.subList(0, limit) : top;
+  }
+
+  int size() {
+    int size = 0;
+    for (Table table : tables) {
+      size += table.size();
+    }
+    return size;
+  }
+
+  private static final class Table {
+
+    private final int capacity;
+    private final Map<String, Entry> entries;
+
+    Table(int capacity) {
+      this.capacity = capacity;
+      this.entries = Maps.newHashMapWithExpectedSize(capacity);
+    }
+
+    synchronized void add(String key, long weight) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        if (entries.size() < capacity) {
+          entry = new Entry();
+        } else {
+          entry = lightest();
+          entries.remove(entry.key);
+        }
+        entry.replace(key);
+        entries.put(key, entry);
+      }
+      entry.count += weight;
+      entry.events++;
+    }
+
+    private Entry lightest() {
+      Entry lightest = null;
+      for (Entry entry : entries.values()) {
+        if (lightest == null || entry.count < lightest.count) {
+          lightest = entry;
+        }
+      }
+      return lightest;
+    }
+
+    synchronized void copyTo(List<Entry> copies) {
+      for (Entry entry : entries.values()) {
+        copies.add(entry.copy());
+      }
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+  }
+
+  static final class Entry {
+
+    String key;
+
+    /** Weight counted for the key, including {@link #error}. */
+    long count;
+
+    /** Weight inherited from the key this one replaced; 0 for a key counted from the start. */
+    long error;
+
+    /** Additions since the key took its slot. */
+    long events;
+
+    /** Takes the slot for {@code key}, keeping the count of the previous key as the error. */
+    private void replace(String key) {
+      this.key = key;
+      this.error = count;
+      this.events = 0;
+    }
+
+    private Entry copy() {
+      Entry copy = new Entry();
+      copy.key = key;
+      copy.count = count;
+      copy.error = error;
+      copy.events = events;
+      return copy;
+    }
+  }
+}
@@ -6,9 +6,11 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
 import lombok.NonNull;
 
 /**
@@ -25,14 +27,28 @@ import lombok.NonNull;
  *   <li>{@code requests.*} — count/state of HTTP requests
  *   <li>{@code tunnels.*} — count/state of HTTPS tunnels
  *   <li>{@code *.direct} / {@code *.remote} — served directly vs. via the remote proxy
+ *   <li>{@code *.multiplexed} — remote tunnels carried as streams of a shared session
+ *   <li>{@code tunnels.reaped} — tunnels closed for idling in both directions
+ *   <li>{@code gate.{hits,misses,probes}} — reachability-gate lookups answered by a cached verdict,
+ *       lookups that waited for a probe, and probes run
  *   <li>{@code responses.[2-5]xx} — status-code distribution
  *   <li>{@code bytes.up} / {@code bytes.down} — wire throughput, browser→upstream /
  *       upstream→browser
  *   <li>{@code *.duration} — full-cycle timer
  * </ul>
+ *
+ * <p>Per target host, the heaviest hosts by bytes, by requests and tunnels, and by time spent
+ * connecting tunnels are kept in {@link HeavyHitters} summaries of {@link #HOSTS_TRACKED} hosts per
+ * stripe, so memory stays fixed however many hosts are visited. They are not registry metrics; only
+ * {@link #toJson} shows them.
  */
 public final class ProxyMetrics {
 
+  static final int HOSTS_TRACKED = 64;
+  static final int HOSTS_SHOWN = 10;
+  // Enough that event loops adding for different hosts rarely share a lock.
+  private static final int HOST_STRIPES = 16;
+
   // ---- HTTP-proxy flow ----
   public final Counter httpRequestsTotal;
   public final Counter httpRequestsFailed;
@@ -45,16 +61,28 @@ public final class ProxyMetrics {
   public final Timer httpRequestDuration;
   public final Meter httpBytesUp;
   public final Meter httpBytesDown;
+  public final Counter httpGateHits;
+  public final Counter httpGateMisses;
+  public final Counter httpGateProbes;
   // ---- HTTPS-tunnel flow ----
   public final Counter httpsTunnelsOpened;
   public final Counter httpsTunnelsFailed;
   public final Counter httpsDirectTunnels;
   public final Counter httpsRemoteTunnels;
+  public final Counter httpsMultiplexedTunnels;
+  public final Counter httpsTunnelsReaped;
   public final Timer httpsConnectDuration;
   public final Meter httpsBytesUp;
   public final Meter httpsBytesDown;
+  public final Counter httpsGateHits;
+  public final Counter httpsGateMisses;
+  public final Counter httpsGateProbes;
   private final AtomicInteger httpInFlight = new AtomicInteger();
   private final AtomicInteger httpsActive = new AtomicInteger();
+  // ---- per target host ----
+  private final HeavyHitters hostBytes = new HeavyHitters(HOSTS_TRACKED, HOST_STRIPES);
+  private final HeavyHitters hostRequests = new HeavyHitters(HOSTS_TRACKED, HOST_STRIPES);
+  private final HeavyHitters hostConnectNanos = new HeavyHitters(HOSTS_TRACKED, HOST_STRIPES);
 
   public ProxyMetrics(@NonNull MetricRegistry registry) {
     this.httpRequestsTotal = registry.counter("proxy.http.requests.total");
@@ -68,15 +96,23 @@ public final class ProxyMetrics {
     this.httpRequestDuration = registry.timer("proxy.http.request.duration");
     this.httpBytesUp = registry.meter("proxy.http.bytes.up");
     this.httpBytesDown = registry.meter("proxy.http.bytes.down");
+    this.httpGateHits = registry.counter("proxy.http.gate.hits");
+    this.httpGateMisses = registry.counter("proxy.http.gate.misses");
+    this.httpGateProbes = registry.counter("proxy.http.gate.probes");
     registry.register("proxy.http.requests.in_flight", (Gauge<Integer>) httpInFlight::get);
 
     this.httpsTunnelsOpened = registry.counter("proxy.https.tunnels.opened");
     this.httpsTunnelsFailed = registry.counter("proxy.https.tunnels.failed");
     this.httpsDirectTunnels = registry.counter("proxy.https.tunnels.direct");
     this.httpsRemoteTunnels = registry.counter("proxy.https.tunnels.remote");
+    this.httpsMultiplexedTunnels = registry.counter("proxy.https.tunnels.multiplexed");
+    this.httpsTunnelsReaped = registry.counter("proxy.https.tunnels.reaped");
     this.httpsConnectDuration = registry.timer("proxy.https.connect.duration");
     this.httpsBytesUp = registry.meter("proxy.https.bytes.up");
     this.httpsBytesDown = registry.meter("proxy.https.bytes.down");
+    this.httpsGateHits = registry.counter("proxy.https.gate.hits");
+    this.httpsGateMisses = registry.counter("proxy.https.gate.misses");
+    this.httpsGateProbes = registry.counter("proxy.https.gate.probes");
     registry.register("proxy.https.tunnels.active", (Gauge<Integer>) httpsActive::get);
   }
 
@@ -113,6 +149,22 @@ public final class ProxyMetrics {
     return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
   }
 
+  private static JsonArray hostsJson(HeavyHitters hitters, boolean nanos) {
+    JsonArray hosts = new JsonArray();
+    for (HeavyHitters.Entry entry : hitters.top(HOSTS_SHOWN)) {
+      JsonObject host = new JsonObject().put("host", entry.key);
+      if (nanos) {
+        host.put("value", toMillis(entry.count))
+            .put("error", toMillis(entry.error))
+            .put("mean", toMillis((double) (entry.count - entry.error) / entry.events));
+      } else {
+        host.put("value", entry.count).put("error", entry.error);
+      }
+      hosts.add(host);
+    }
+    return hosts;
+  }
+
   /**
    * Serialise the current values of these metrics into a Vert.x {@link JsonObject} for the
    * dashboard's polling endpoint. Reads the metric fields directly — the set is fixed and known, so
@@ -127,11 +179,16 @@ public final class ProxyMetrics {
    *   "counters": { "proxy.http.requests.total": 42, ... },
    *   "gauges":   { "proxy.http.requests.in_flight": 3, ... },
    *   "meters":   { "proxy.http.bytes.up": { "count": 12345, "m1": 100.0, ... }, ... },
-   *   "timers":   { "proxy.http.request.duration": { "count": 42, "p50": 12.3, ... }, ... }
+   *   "timers":   { "proxy.http.request.duration": { "count": 42, "p50": 12.3, ... }, ... },
+   *   "hosts":    { "bytes": [ { "host": "example.com", "value": 12345, "error": 0 }, ... ],
+   *                 "requests": [...], "connect": [ { ..., "mean": 41.5 }, ... ] }
    * }
    * }</pre>
    *
-   * <p>Timer durations are emitted in <b>milliseconds</b>; rates are events-per-second.
+   * <p>Timer durations are emitted in <b>milliseconds</b>; rates are events-per-second. Each {@code
+   * hosts} list has the {@link #HOSTS_SHOWN} heaviest hosts, heaviest first; {@code value} may
+   * overstate a host by up to its {@code error}. {@code connect} is in milliseconds, its {@code
+   * mean} taken over the connects seen since the host entered the list.
    */
   public JsonObject toJson() {
     JsonObject counters =
@@ -144,10 +201,18 @@ public final class ProxyMetrics {
             .put("proxy.http.responses.3xx", httpResponse3xx.getCount())
             .put("proxy.http.responses.4xx", httpResponse4xx.getCount())
             .put("proxy.http.responses.5xx", httpResponse5xx.getCount())
+            .put("proxy.http.gate.hits", httpGateHits.getCount())
+            .put("proxy.http.gate.misses", httpGateMisses.getCount())
+            .put("proxy.http.gate.probes", httpGateProbes.getCount())
             .put("proxy.https.tunnels.opened", httpsTunnelsOpened.getCount())
             .put("proxy.https.tunnels.failed", httpsTunnelsFailed.getCount())
             .put("proxy.https.tunnels.direct", httpsDirectTunnels.getCount())
-            .put("proxy.https.tunnels.remote", httpsRemoteTunnels.getCount());
+            .put("proxy.https.tunnels.remote", httpsRemoteTunnels.getCount())
+            .put("proxy.https.tunnels.multiplexed", httpsMultiplexedTunnels.getCount())
+            .put("proxy.https.tunnels.reaped", httpsTunnelsReaped.getCount())
+            .put("proxy.https.gate.hits", httpsGateHits.getCount())
+            .put("proxy.https.gate.misses", httpsGateMisses.getCount())
+            .put("proxy.https.gate.probes", httpsGateProbes.getCount());
     JsonObject gauges =
         new JsonObject()
             .put("proxy.http.requests.in_flight", httpInFlight.get())
@@ -162,12 +227,18 @@ public final class ProxyMetrics {
         new JsonObject()
             .put("proxy.http.request.duration", timerJson(httpRequestDuration))
             .put("proxy.https.connect.duration", timerJson(httpsConnectDuration));
+    JsonObject hosts =
+        new JsonObject()
+            .put("bytes", hostsJson(hostBytes, false))
+            .put("requests", hostsJson(hostRequests, false))
+            .put("connect", hostsJson(hostConnectNanos, true));
     return new JsonObject()
         .put("ts", System.currentTimeMillis())
         .put("counters", counters)
         .put("gauges", gauges)
         .put("meters", meters)
-        .put("timers", timers);
+        .put("timers", timers)
+        .put("hosts", hosts);
   }
 
   public void httpInFlightInc() {
@@ -196,6 +267,26 @@ public final class ProxyMetrics {
     return httpsActive.get();
   }
 
+  /** Counts one HTTP request or HTTPS tunnel to {@code host}. */
+  public void recordHostRequest(@NonNull String host) {
+    hostRequests.add(host, 1);
+  }
+
+  /** Adds the bytes of a finished HTTP exchange with {@code host}, both directions together. */
+  public void recordHostBytes(@NonNull String host, long bytes) {
+    hostBytes.add(host, bytes);
+  }
+
+  /** A sink for the bytes of one tunnel to {@code host}, to be fed as the tunnel carries them. */
+  public LongConsumer hostBytes(@NonNull String host) {
+    return bytes -> hostBytes.add(host, bytes);
+  }
+
+  /** Records how long a tunnel to {@code host} took to connect, successfully or not. */
+  public void recordHostConnect(@NonNull String host, long nanos) {
+    hostConnectNanos.add(host, nanos);
+  }
+
   /** Bucket an HTTP status code into the appropriate counter. */
   public void recordHttpStatus(int statusCode) {
     if (statusCode >= 200 && statusCode < 300) {
@@ -19,7 +19,10 @@ import org.apache.commons.lang3.StringUtils;
  *   <li>{@code proxyAll} forces everything else {@link Decision#REMOTE}.
  *   <li>A {@code localOnly} match wins over a {@code remoteOnly} match (a host in both lists is
  *       pinned {@link Decision#DIRECT}).
- *   <li>Anything unlisted is left to the adaptive {@link Decision#GATE} path.
+ *   <li>A host name on neither list takes the route {@link LearnedRoutes} learned for its domain,
+ *       if any: {@link Decision#REMOTE} or {@link Decision#DIRECT_FIRST}, never the hard-pinned
+ *       {@link Decision#DIRECT}, which only the configured list and local addresses get.
+ *   <li>Anything else is left to the adaptive {@link Decision#GATE} path.
  * </ol>
  */
 public final class DefaultRoutePolicy implements RoutePolicy {
@@ -29,14 +32,30 @@ public final class DefaultRoutePolicy implements RoutePolicy {
   private final boolean proxyAll;
   private final InetAddress remoteProxyAddress;
 
+  /** Null when routes are not learned. */
+  private final LearnedRoutes learned;
+
   public DefaultRoutePolicy(
       @NonNull HostNameMatcher localOnly,
       @NonNull HostNameMatcher remoteOnly,
       boolean proxyAll,
       String remoteProxyHost) {
+    this(localOnly, remoteOnly, proxyAll, remoteProxyHost, null);
+  }
+
+  /**
+   * @param learned routes learned for unlisted host names (nullable)
+   */
+  public DefaultRoutePolicy(
+      @NonNull HostNameMatcher localOnly,
+      @NonNull HostNameMatcher remoteOnly,
+      boolean proxyAll,
+      String remoteProxyHost,
+      LearnedRoutes learned) {
     this.localOnly = localOnly;
     this.remoteOnly = remoteOnly;
     this.proxyAll = proxyAll;
+    this.learned = learned;
     this.remoteProxyAddress =
         StringUtils.isNotEmpty(remoteProxyHost) && InetAddresses.isInetAddress(remoteProxyHost)
             ? InetAddresses.forString(remoteProxyHost)
@@ -76,6 +95,10 @@ public final class DefaultRoutePolicy implements RoutePolicy {
     if (localOnly.matchName(host)) {
       return Decision.DIRECT;
     }
-    return remoteOnly.matchName(host) ? Decision.REMOTE : Decision.GATE;
+    if (remoteOnly.matchName(host)) {
+      return Decision.REMOTE;
+    }
+    Decision decision = learned != null ? learned.decide(host) : null;
+    return decision != null ? decision : Decision.GATE;
   }
 }
@@ -6,9 +6,12 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.Predicate;
@@ -20,6 +23,11 @@ public sealed interface HostNameMatcher extends Predicate<String>, Closeable
     permits HostNameMatcherImpl, EmptyMatcher {
 
   static HostNameMatcher create(Iterable<String> hostNames) {
+    return create(hostNames, null);
+  }
+
+  /** Like {@link #create(Iterable)}, loading the compiled patterns from {@code cache} if given. */
+  static HostNameMatcher create(Iterable<String> hostNames, HyperscanDatabaseCache cache) {
     if (hostNames == null
         || (hostNames instanceof Collection<?> collection && collection.isEmpty())) {
       return EmptyMatcher.INSTANCE;
@@ -32,25 +40,22 @@ public sealed interface HostNameMatcher extends Predicate<String>, Closeable
     if (filteredHostNames.isEmpty()) {
       return EmptyMatcher.INSTANCE;
     }
-    return HostNameMatcherImpl.create(filteredHostNames);
+    return HostNameMatcherImpl.create(filteredHostNames, cache);
   }
 
   static HostNameMatcher fromClasspathFile(@NonNull String classpathFile) {
+    return fromClasspathFile(classpathFile, null);
+  }
+
+  static HostNameMatcher fromClasspathFile(
+      @NonNull String classpathFile, HyperscanDatabaseCache cache) {
     try (InputStream inputStream =
         HostNameMatcher.class.getClassLoader().getResourceAsStream(classpathFile)) {
       if (inputStream == null) {
         throw new IllegalArgumentException("Classpath resource not found: " + classpathFile);
       }
       try (InputStreamReader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8)) {
-        List<String> hostNames =
-            CharStreams.readLines(reader).stream()
-                // drop '#' comments — whole-line or inline — so the lists can be documented
-                // (host names and globs never contain '#'), then skip blanks
-                .map(line -> StringUtils.substringBefore(line, "#"))
-                .map(StringUtils::trimToEmpty)
-                .filter(line -> !line.isEmpty())
-                .toList();
-        return create(hostNames);
+        return create(readHostNames(reader), cache);
       }
     } catch (IOException e) {
       throw new UncheckedIOException(
@@ -58,6 +63,29 @@ public sealed interface HostNameMatcher extends Predicate<String>, Closeable
     }
   }
 
+  /** Same format as {@link #fromClasspathFile}, read from the filesystem. */
+  static HostNameMatcher fromFile(@NonNull Path file) {
+    return fromFile(file, null);
+  }
+
+  static HostNameMatcher fromFile(@NonNull Path file, HyperscanDatabaseCache cache) {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      return create(readHostNames(reader), cache);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to load host names from file: " + file, e);
+    }
+  }
+
+  private static List<String> readHostNames(Reader reader) throws IOException {
+    return CharStreams.readLines(reader).stream()
+        // drop '#' comments — whole-line or inline — so the lists can be documented
+        // (host names and globs never contain '#'), then skip blanks
+        .map(line -> StringUtils.substringBefore(line, "#"))
+        .map(StringUtils::trimToEmpty)
+        .filter(line -> !line.isEmpty())
+        .toList();
+  }
+
   default boolean match(String hostName) {
     if (InetAddresses.isInetAddress(hostName)) {
       return matchAddress(InetAddresses.forString(hostName));
@@ -14,7 +14,10 @@ import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -35,29 +38,25 @@ final class HostNameMatcherImpl implements HostNameMatcher {
           ExpressionFlag.SINGLEMATCH,
           ExpressionFlag.CASELESS);
 
+  // One thread local for every matcher: each would otherwise take an index in every thread's table
+  // for good. Weak keys let the scratch of a matcher replaced by a reload go with it.
+  private static final FastThreadLocal<Map<HostNameMatcherImpl, Scanner>> SCANNERS =
+      new FastThreadLocal<>() {
+        @Override
+        protected Map<HostNameMatcherImpl, Scanner> initialValue() {
+          return new WeakHashMap<>();
+        }
+      };
+
   private final AtomicBoolean closed = new AtomicBoolean(false);
   private final ReadWriteLock closeLock = new ReentrantReadWriteLock(false);
   private final Set<String> ipAddresses;
   // null when no host-name patterns were configured (IP-only list); the pattern branch of match()
   // then short-circuits to false.
   private final Database database;
-  private final FastThreadLocal<Scanner> scanner =
-      new FastThreadLocal<>() {
-        @Override
-        protected Scanner initialValue() {
-          if (database == null) {
-            return null; // No patterns, so no scanner needed
-          }
-          Scanner s = new Scanner();
-          s.allocScratch(database);
-          return s;
-        }
-
-        @Override
-        protected void onRemoval(Scanner s) {
-          closeQuietly(s);
-        }
-      };
+  // Every thread's scratch, so that close() can free them all and not only the closing thread's:
+  // a matcher replaced by a reload must not leave its scratch behind on each event loop.
+  private final Set<Scanner> scanners = ConcurrentHashMap.newKeySet();
 
   private static void closeQuietly(Closeable closeable) {
     if (closeable != null) {
@@ -70,6 +69,10 @@ final class HostNameMatcherImpl implements HostNameMatcher {
   }
 
   static HostNameMatcherImpl create(List<String> hostNames) {
+    return create(hostNames, null);
+  }
+
+  static HostNameMatcherImpl create(List<String> hostNames, HyperscanDatabaseCache cache) {
     Set<String> ipAddresses = new HashSet<>();
     List<Expression> expressions = new ArrayList<>();
     for (String hostName : hostNames) {
@@ -83,7 +86,7 @@ final class HostNameMatcherImpl implements HostNameMatcher {
     // Hyperscan rejects an empty expression set, so only build the engine when there are patterns.
     if (!expressions.isEmpty()) {
       try {
-        database = Database.compile(expressions);
+        database = cache != null ? cache.getOrCompile(expressions) : Database.compile(expressions);
       } catch (Exception e) {
         closeQuietly(database);
         throw new RuntimeException("Failed to create HostNameMatcherImpl", e);
@@ -141,13 +144,20 @@ final class HostNameMatcherImpl implements HostNameMatcher {
     try {
       readLock.lock();
       ensureOpen();
-      Scanner s = scanner.get();
+      Scanner s = SCANNERS.get().computeIfAbsent(this, HostNameMatcherImpl::newScanner);
       return s.hasMatch(database, host);
     } finally {
       readLock.unlock();
     }
   }
 
+  private Scanner newScanner() {
+    Scanner s = new Scanner();
+    s.allocScratch(database);
+    scanners.add(s);
+    return s;
+  }
+
   @Override
   public boolean matchAddress(InetAddress ipAddress) {
     return ipAddresses != null
@@ -162,7 +172,8 @@ final class HostNameMatcherImpl implements HostNameMatcher {
         Lock writeLock = closeLock.writeLock();
         try {
           writeLock.lock();
-          scanner.remove();
+          scanners.forEach(HostNameMatcherImpl::closeQuietly);
+          scanners.clear();
           closeQuietly(database);
         } finally {
           writeLock.unlock();
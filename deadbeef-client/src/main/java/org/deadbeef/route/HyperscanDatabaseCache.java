@@ -0,0 +1,181 @@
+package org.deadbeef.route;
+
+import com.gliwka.hyperscan.wrapper.CompileErrorException;
+import com.gliwka.hyperscan.wrapper.Database;
+import com.gliwka.hyperscan.wrapper.Expression;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compiled Hyperscan databases kept on disk, so that a client restart or a route-list reload with
+ * unchanged content deserializes the database instead of compiling every pattern again.
+ *
+ * <p>Entries are named by a hash of the expressions, their flags, the Hyperscan library and the CPU
+ * architecture; a change to any of them simply misses. An entry that fails to load (truncated,
+ * written by an incompatible build) is deleted and the database compiled afresh. Writes go to a
+ * temporary file moved into place, so concurrent clients sharing the directory never read half an
+ * entry. Only the {@link #MAX_ENTRIES} most recently used entries are kept.
+ *
+ * <p>Deserialized databases are trusted, so the directory must not be writable by other users.
+ */
+@Slf4j
+public final class HyperscanDatabaseCache {
+
+  static final int MAX_ENTRIES = 8;
+
+  // Bump when the key derivation or entry format changes.
+  private static final int FORMAT = 2;
+  private static final String SUFFIX = ".hsdb";
+  private static final Supplier<String> LIBRARY_VERSION =
+      Suppliers.memoize(HyperscanDatabaseCache::libraryVersion);
+
+  private final Path directory;
+
+  public HyperscanDatabaseCache(@NonNull Path directory) {
+    this.directory = directory;
+  }
+
+  /** Loads the database for {@code expressions} from disk, or compiles and stores it. */
+  Database getOrCompile(List<Expression> expressions) throws CompileErrorException {
+    Path entry = directory.resolve(key(expressions) + SUFFIX);
+    Database database = load(entry, expressions.size());
+    if (database != null) {
+      return database;
+    }
+    database = Database.compile(expressions);
+    store(entry, database);
+    return database;
+  }
+
+  private Database load(Path entry, int expressionCount) {
+    Database database = null;
+    try (InputStream in = Files.newInputStream(entry)) {
+      database = Database.load(in);
+      if (database.getExpressionCount() != expressionCount) {
+        throw new IOException("expected " + expressionCount + " expressions");
+      }
+      // Marks the entry as recently used for pruning.
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+      log.debug("Loaded compiled route list {}", entry);
+      return database;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Discarding unusable compiled route list {}", entry, e);
+      if (database != null) {
+        database.close();
+      }
+      deleteQuietly(entry);
+      return null;
+    }
+  }
+
+  /** Best effort: a client that cannot write its cache still starts, only slower next time. */
+  private void store(Path entry, Database database) {
+    Path temporary = null;
+    try {
+      Files.createDirectories(directory);
+      temporary = Files.createTempFile(directory, "route-list", ".tmp");
+      try (OutputStream out = Files.newOutputStream(temporary)) {
+        database.save(out);
+      }
+      Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE);
+      temporary = null;
+      prune();
+    } catch (IOException | UncheckedIOException e) {
+      log.warn("Failed to cache compiled route list in {}", directory, e);
+    } finally {
+      if (temporary != null) {
+        deleteQuietly(temporary);
+      }
+    }
+  }
+
+  private void prune() throws IOException {
+    List<Path> entries;
+    try (Stream<Path> files = Files.list(directory)) {
+      entries =
+          files
+              .filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+              .sorted(Comparator.comparing(HyperscanDatabaseCache::lastModified).reversed())
+              .toList();
+    }
+    entries.stream().skip(MAX_ENTRIES).forEach(HyperscanDatabaseCache::deleteQuietly);
+  }
+
+  private static FileTime lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.debug("Failed to delete {}", file, e);
+    }
+  }
+
+  static String key(List<Expression> expressions) {
+    Hasher hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putInt(FORMAT)
+            .putString(LIBRARY_VERSION.get(), StandardCharsets.UTF_8)
+            .putString(System.getProperty("os.arch"), StandardCharsets.UTF_8)
+            .putInt(expressions.size());
+    for (Expression expression : expressions) {
+      hasher.putString(expression.getExpression(), StandardCharsets.UTF_8).putByte((byte) 0);
+      expression.getFlags().forEach(flag -> hasher.putInt(flag.ordinal()));
+      hasher.putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * A hash of the jar the wrapper was loaded from, which changes whenever the jar does: with the
+   * wrapper's version, or with every build of a shaded client jar. Failing that, the manifest
+   * version or the jar's location, which may outlive a library change; {@link Database#load} then
+   * rejects the stale entry and it is compiled again.
+   */
+  private static String libraryVersion() {
+    var source = Database.class.getProtectionDomain().getCodeSource();
+    if (source != null) {
+      try {
+        Path jar = Path.of(source.getLocation().toURI());
+        if (Files.isRegularFile(jar)) {
+          return MoreFiles.asByteSource(jar).hash(Hashing.sha256()).toString();
+        }
+      } catch (URISyntaxException | IOException | RuntimeException e) {
+        log.debug("Failed to hash {}", source.getLocation(), e);
+      }
+    }
+    String version = Database.class.getPackage().getImplementationVersion();
+    if (version != null) {
+      return version;
+    }
+    return source != null ? source.getLocation().toString() : "unknown";
+  }
+}
@@ -0,0 +1,232 @@
+package org.deadbeef.route;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.net.InetAddresses;
+import com.google.common.net.InternetDomainName;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.deadbeef.route.RoutePolicy.Decision;
+
+/**
+ * Route lists learned from how direct connections fare, per registrable domain: everything under
+ * {@code foo.com} counts towards {@code foo.com}, so a block found on a few subdomains spares the
+ * rest their doomed direct attempts.
+ *
+ * <p>Each domain keeps a count of direct successes and failures, halved every {@link #HALF_LIFE}. A
+ * domain whose failures reach {@link #REMOTE_MIN_FAILURES} and {@link #REMOTE_MIN_SHARE} of the
+ * outcomes is routed {@link Decision#REMOTE}; one whose successes reach {@link
+ * #DIRECT_MIN_SUCCESSES} and {@link #DIRECT_MIN_SHARE} is routed {@link Decision#DIRECT_FIRST}. A
+ * learned remote route stops the attempts that would confirm it, so its evidence fades until the
+ * domain drops back to the gate and is tried again. A direct domain is not raced, so a stalled
+ * connect costs it the whole connect timeout before it falls back; its first failure sends it back
+ * to the gate at once.
+ *
+ * <p>Addresses are not learned; neither is anything a configured list already decides, since the
+ * lists are consulted first. The evidence can be {@link #save saved} to a file and {@link #restore
+ * restored} from it.
+ */
+@Slf4j
+public final class LearnedRoutes {
+
+  static final double REMOTE_MIN_FAILURES = 8;
+  static final double REMOTE_MIN_SHARE = 0.9;
+  static final double DIRECT_MIN_SUCCESSES = 32;
+  static final double DIRECT_MIN_SHARE = 0.98;
+  static final Duration HALF_LIFE = Duration.ofDays(1);
+
+  // Bump when the snapshot format changes.
+  private static final int FORMAT = 1;
+
+  private final ConcurrentMap<String, Evidence> domains;
+  private final long halfLifeMillis;
+  private final LongSupplier clock;
+
+  public LearnedRoutes(long maxDomains) {
+    this(maxDomains, HALF_LIFE, System::currentTimeMillis);
+  }
+
+  LearnedRoutes(long maxDomains, @NonNull Duration halfLife, @NonNull LongSupplier clock) {
+    this.halfLifeMillis = halfLife.toMillis();
+    this.clock = clock;
+    this.domains = Caffeine.newBuilder().maximumSize(maxDomains).<String, Evidence>build().asMap();
+  }
+
+  /** Counts a direct connection to {@code host} that worked, or failed. */
+  public void record(@NonNull String host, boolean directWorked) {
+    String domain = domainOf(host);
+    if (domain == null) {
+      return;
+    }
+    Evidence evidence = domains.computeIfAbsent(domain, d -> new Evidence(clock.getAsLong()));
+    Decision before;
+    Decision after;
+    synchronized (evidence) {
+      evidence.decay(clock.getAsLong());
+      before = evidence.decision();
+      if (directWorked) {
+        evidence.successes++;
+      } else {
+        evidence.failures++;
+        if (before == Decision.DIRECT_FIRST) {
+          evidence.successes = 0;
+        }
+      }
+      after = evidence.decision();
+    }
+    if (before != after) {
+      log.info("Learned route for {}: {}", domain, after != null ? after : Decision.GATE);
+    }
+  }
+
+  /** The learned decision for {@code host}, or null if nothing has been learned for it. */
+  public Decision decide(@NonNull String host) {
+    String domain = domainOf(host);
+    Evidence evidence = domain != null ? domains.get(domain) : null;
+    if (evidence == null) {
+      return null;
+    }
+    synchronized (evidence) {
+      evidence.decay(clock.getAsLong());
+      return evidence.decision();
+    }
+  }
+
+  /**
+   * The registrable domain {@code host} is learned under: its public suffix plus one label, or the
+   * whole name when it is not under a public suffix. Null for an address or an invalid name.
+   */
+  static String domainOf(String host) {
+    if (InetAddresses.isInetAddress(host) || !InternetDomainName.isValid(host)) {
+      return null;
+    }
+    InternetDomainName name = InternetDomainName.from(host);
+    return (name.isUnderPublicSuffix() ? name.topPrivateDomain() : name).toString();
+  }
+
+  /**
+   * Writes the evidence worth keeping to {@code file}, replacing it atomically. Best effort: a
+   * failure is logged and only costs what was learned, should the client restart.
+   */
+  public void save(@NonNull Path file) {
+    Path temporary = null;
+    try {
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      int count = 0;
+      try (DataOutputStream out = new DataOutputStream(records)) {
+        for (Map.Entry<String, Evidence> entry : domains.entrySet()) {
+          Evidence evidence = entry.getValue();
+          synchronized (evidence) {
+            if (evidence.successes + evidence.failures < 1) {
+              continue;
+            }
+            out.writeUTF(entry.getKey());
+            out.writeDouble(evidence.successes);
+            out.writeDouble(evidence.failures);
+            out.writeLong(evidence.updatedAt);
+          }
+          count++;
+        }
+      }
+      Path directory = file.toAbsolutePath().getParent();
+      Files.createDirectories(directory);
+      temporary = Files.createTempFile(directory, "learned-routes", ".tmp");
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        out.writeInt(FORMAT);
+        out.writeInt(count);
+        records.writeTo(out);
+      }
+      Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+      temporary = null;
+      log.debug("Saved {} learned domains to {}", count, file);
+    } catch (IOException e) {
+      log.warn("Failed to save learned routes to {}", file, e);
+    } finally {
+      if (temporary != null) {
+        try {
+          Files.deleteIfExists(temporary);
+        } catch (IOException e) {
+          log.debug("Failed to delete {}", temporary, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads the evidence {@link #save} wrote to {@code file}, skipping domains already known. Best
+   * effort, like {@link #save}.
+   */
+  public void restore(@NonNull Path file) {
+    int restored = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != FORMAT) {
+        log.info("Ignoring learned routes in an older format: {}", file);
+        return;
+      }
+      for (int i = in.readInt(); i > 0; i--) {
+        String domain = in.readUTF();
+        Evidence evidence = new Evidence(0);
+        evidence.successes = in.readDouble();
+        evidence.failures = in.readDouble();
+        evidence.updatedAt = in.readLong();
+        if (domains.putIfAbsent(domain, evidence) == null) {
+          restored++;
+        }
+      }
+    } catch (NoSuchFileException e) {
+      return;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Ignoring unusable learned routes in {}", file, e);
+    }
+    log.debug("Restored {} learned domains from {}", restored, file);
+  }
+
+  /** Decayed outcomes of the direct connections to one domain; guarded by its own monitor. */
+  private final class Evidence {
+
+    double successes;
+    double failures;
+
+    /** When the counts were last decayed, in epoch millis. */
+    long updatedAt;
+
+    Evidence(long now) {
+      this.updatedAt = now;
+    }
+
+    void decay(long now) {
+      if (now > updatedAt) {
+        double factor = Math.pow(0.5, (double) (now - updatedAt) / halfLifeMillis);
+        successes *= factor;
+        failures *= factor;
+        updatedAt = now;
+      }
+    }
+
+    Decision decision() {
+      double total = successes + failures;
+      if (failures >= REMOTE_MIN_FAILURES && failures >= REMOTE_MIN_SHARE * total) {
+        return Decision.REMOTE;
+      }
+      if (successes >= DIRECT_MIN_SUCCESSES && successes >= DIRECT_MIN_SHARE * total) {
+        return Decision.DIRECT_FIRST;
+      }
+      return null;
+    }
+  }
+}
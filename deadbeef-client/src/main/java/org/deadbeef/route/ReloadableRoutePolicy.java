@@ -0,0 +1,92 @@
+package org.deadbeef.route;
+
+import java.io.Closeable;
+import lombok.NonNull;
+
+/**
+ * A {@link DefaultRoutePolicy} whose route lists can be replaced while requests are being routed.
+ *
+ * <p>{@link #swap} publishes the new lists and closes the old ones right away: a match already
+ * running finishes first (closing waits for it), and a decision that reaches a list closed under it
+ * is simply made again on the new lists, so no request fails because of a reload.
+ */
+public final class ReloadableRoutePolicy implements RoutePolicy, Closeable {
+
+  private final boolean proxyAll;
+  private final String remoteProxyHost;
+  private final LearnedRoutes learned;
+  private volatile Lists current;
+
+  public ReloadableRoutePolicy(
+      @NonNull HostNameMatcher localOnly,
+      @NonNull HostNameMatcher remoteOnly,
+      boolean proxyAll,
+      String remoteProxyHost) {
+    this(localOnly, remoteOnly, proxyAll, remoteProxyHost, null);
+  }
+
+  /**
+   * @param learned routes learned for unlisted host names, kept across swaps (nullable)
+   */
+  public ReloadableRoutePolicy(
+      @NonNull HostNameMatcher localOnly,
+      @NonNull HostNameMatcher remoteOnly,
+      boolean proxyAll,
+      String remoteProxyHost,
+      LearnedRoutes learned) {
+    this.proxyAll = proxyAll;
+    this.remoteProxyHost = remoteProxyHost;
+    this.learned = learned;
+    this.current = new Lists(localOnly, remoteOnly);
+  }
+
+  /** Routes by the given lists from now on; this policy takes ownership of them. */
+  public void swap(@NonNull HostNameMatcher localOnly, @NonNull HostNameMatcher remoteOnly) {
+    Lists previous;
+    synchronized (this) {
+      previous = current;
+      current = new Lists(localOnly, remoteOnly);
+    }
+    previous.close();
+  }
+
+  @Override
+  public Decision decide(String host) {
+    while (true) {
+      Lists lists = current;
+      try {
+        return lists.policy.decide(host);
+      } catch (IllegalStateException e) {
+        if (lists == current) {
+          // Closed for good, not swapped out.
+          throw e;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    current.close();
+  }
+
+  private final class Lists implements Closeable {
+
+    final HostNameMatcher localOnly;
+    final HostNameMatcher remoteOnly;
+    final DefaultRoutePolicy policy;
+
+    Lists(HostNameMatcher localOnly, HostNameMatcher remoteOnly) {
+      this.localOnly = localOnly;
+      this.remoteOnly = remoteOnly;
+      this.policy =
+          new DefaultRoutePolicy(localOnly, remoteOnly, proxyAll, remoteProxyHost, learned);
+    }
+
+    @Override
+    public void close() {
+      localOnly.close();
+      remoteOnly.close();
+    }
+  }
+}
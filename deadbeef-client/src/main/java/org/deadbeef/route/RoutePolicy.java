@@ -15,6 +15,11 @@ public interface RoutePolicy {
     REMOTE,
     /** Always go direct, hard-pinned (a connect failure errors rather than falling back). */
     DIRECT,
+    /**
+     * Learned to work direct: go direct without racing the remote proxy, and fall back to it only
+     * on connect failure.
+     */
+    DIRECT_FIRST,
     /** Unlisted: try direct first, fall back to the remote proxy on connect failure. */
     GATE
   }
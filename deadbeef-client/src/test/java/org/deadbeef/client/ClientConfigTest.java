@@ -71,4 +71,38 @@ public class ClientConfigTest {
       assertTrue(expected.getMessage().contains("secretId"));
     }
   }
+
+  @Test
+  public void verifyRejectsNonPositiveInstances() throws Exception {
+    com.fasterxml.jackson.dataformat.yaml.YAMLMapper yaml =
+        new com.fasterxml.jackson.dataformat.yaml.YAMLMapper();
+    ClientConfig cfg =
+        yaml.readValue(
+            "remoteHost: r\nremotePort: 14483\nlocalPort: 14482\ninstances: -1\n"
+                + "secretId: x\nsecretKey: y\n",
+            ClientConfig.class);
+    try {
+      cfg.verify();
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("instances"));
+    }
+  }
+
+  @Test
+  public void verifyRejectsNegativeMuxConnections() throws Exception {
+    com.fasterxml.jackson.dataformat.yaml.YAMLMapper yaml =
+        new com.fasterxml.jackson.dataformat.yaml.YAMLMapper();
+    ClientConfig cfg =
+        yaml.readValue(
+            "remoteHost: r\nremotePort: 14483\nlocalPort: 14482\nmuxConnections: -1\n"
+                + "secretId: x\nsecretKey: y\n",
+            ClientConfig.class);
+    try {
+      cfg.verify();
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("muxConnections"));
+    }
+  }
 }
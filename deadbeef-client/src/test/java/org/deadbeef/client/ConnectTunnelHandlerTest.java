@@ -11,6 +11,7 @@ import io.vertx.core.http.HttpServer;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetServer;
 import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.SocketAddress;
 import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestContext;
 import io.vertx.ext.unit.junit.RunTestOnContext;
@@ -19,6 +20,7 @@ import java.time.Duration;
 import org.deadbeef.auth.ProxyAuthenticationGenerator;
 import org.deadbeef.route.OriginProvider;
 import org.deadbeef.route.RoutePolicy;
+import org.deadbeef.streams.MuxSession;
 import org.deadbeef.util.Constants;
 import org.junit.Rule;
 import org.junit.Test;
@@ -87,7 +89,37 @@ public class ConnectTunnelHandlerTest {
             policy,
             localPort,
             new ProxyAuthenticationGenerator("id", "key"),
-            new org.deadbeef.metrics.ProxyMetrics(new MetricRegistry()));
+            new org.deadbeef.metrics.ProxyMetrics(new MetricRegistry()),
+            new ConnectTunnelHandler.Options());
+    HttpServer server = vertx.createHttpServer();
+    server.requestHandler(handler);
+    return server.listen(0).map(server);
+  }
+
+  /** Client-facing server whose remote tunnels go through a one-session {@link MuxTunnelPool}. */
+  private Future<HttpServer> startMuxClientFacingServer(Vertx vertx, int remotePort) {
+    HttpClient httpClient = vertx.createHttpClient();
+    ProxyAuthenticationGenerator generator = new ProxyAuthenticationGenerator("id", "key");
+    ConnectTunnelHandler handler =
+        new ConnectTunnelHandler(
+            httpClient,
+            vertx.createNetClient(),
+            OriginProvider.ofStatic(remotePort, "127.0.0.1"),
+            OriginProvider.ofAuthority(443),
+            new ReachabilityGate<>(Duration.ofMinutes(5), 1_000),
+            decision(RoutePolicy.Decision.REMOTE),
+            0,
+            generator,
+            new org.deadbeef.metrics.ProxyMetrics(new MetricRegistry()),
+            new ConnectTunnelHandler.Options()
+                .muxPool(
+                    new MuxTunnelPool(
+                        vertx,
+                        httpClient,
+                        SocketAddress.inetSocketAddress(remotePort, "127.0.0.1"),
+                        generator,
+                        1,
+                        null)));
     HttpServer server = vertx.createHttpServer();
     server.requestHandler(handler);
     return server.listen(0).map(server);
@@ -151,6 +183,16 @@ public class ConnectTunnelHandlerTest {
 
   @Test
   public void gateFallsBackToRemoteWhenDirectConnectFails(TestContext ctx) {
+    assertFallsBackToRemoteWhenDirectConnectFails(ctx, RoutePolicy.Decision.GATE);
+  }
+
+  @Test
+  public void learnedDirectFallsBackToRemoteWhenDirectConnectFails(TestContext ctx) {
+    assertFallsBackToRemoteWhenDirectConnectFails(ctx, RoutePolicy.Decision.DIRECT_FIRST);
+  }
+
+  private void assertFallsBackToRemoteWhenDirectConnectFails(
+      TestContext ctx, RoutePolicy.Decision decision) {
     Vertx vertx = rule.vertx();
     Async done = ctx.async();
     startStubServer(
@@ -165,11 +207,11 @@ public class ConnectTunnelHandlerTest {
                         vertx.createHttpClient(),
                         vertx.createNetClient(),
                         stub.actualPort(),
-                        decision(RoutePolicy.Decision.GATE))
+                        decision(decision))
                     .onFailure(ctx::fail)
                     .onSuccess(
                         facing ->
-                            // direct target 127.0.0.1:1 is refused -> gate falls back to remote
+                            // direct target 127.0.0.1:1 is refused -> falls back to remote
                             expectEchoTunnel(
                                 ctx, done, vertx.createHttpClient(), facing, "127.0.0.1:1")));
   }
@@ -391,4 +433,82 @@ public class ConnectTunnelHandlerTest {
                                     })
                                 .onFailure(ctx::fail)));
   }
+
+  @Test
+  public void muxPoolCarriesRemoteTunnelAsStream(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    startStubServer(
+            vertx,
+            req -> {
+              if (req.getHeader(Constants.muxHeaderName()) == null) {
+                // A dedicated CONNECT must not be used while the session works.
+                req.response().setStatusCode(500).end();
+                return;
+              }
+              req.toNetSocket()
+                  .onFailure(ctx::fail)
+                  .onSuccess(
+                      sock ->
+                          MuxSession.server(
+                              sock,
+                              stream -> {
+                                stream.accept();
+                                stream.handler(stream::write);
+                              },
+                              16));
+            })
+        .compose(stub -> startMuxClientFacingServer(vertx, stub.actualPort()))
+        .onFailure(ctx::fail)
+        .onSuccess(
+            facing ->
+                expectEchoTunnel(ctx, done, vertx.createHttpClient(), facing, "example.com:443"));
+  }
+
+  @Test
+  public void muxRejectionStatusReachesBrowser(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    startStubServer(
+            vertx,
+            req ->
+                req.toNetSocket()
+                    .onFailure(ctx::fail)
+                    .onSuccess(sock -> MuxSession.server(sock, stream -> stream.reject(403), 16)))
+        .compose(stub -> startMuxClientFacingServer(vertx, stub.actualPort()))
+        .onFailure(ctx::fail)
+        .onSuccess(
+            facing ->
+                vertx
+                    .createHttpClient()
+                    .request(connectRequest(facing, "example.com:443"))
+                    .compose(req -> req.connect())
+                    .onSuccess(
+                        resp -> {
+                          ctx.assertEquals(403, resp.statusCode());
+                          done.complete();
+                        })
+                    .onFailure(ctx::fail));
+  }
+
+  @Test
+  public void refusedMuxSessionFallsBackToDedicatedConnect(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    startStubServer(
+            vertx,
+            req -> {
+              if (req.getHeader(Constants.muxHeaderName()) != null) {
+                // An older server that doesn't know the session protocol.
+                req.response().setStatusCode(400).end();
+                return;
+              }
+              req.toNetSocket().onSuccess(sock -> sock.handler(sock::write)).onFailure(ctx::fail);
+            })
+        .compose(stub -> startMuxClientFacingServer(vertx, stub.actualPort()))
+        .onFailure(ctx::fail)
+        .onSuccess(
+            facing ->
+                expectEchoTunnel(ctx, done, vertx.createHttpClient(), facing, "example.com:443"));
+  }
 }
@@ -0,0 +1,244 @@
+package org.deadbeef.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Counter;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.net.SocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class HappyEyeballsTest {
+
+  private static final SocketAddress ADDR = SocketAddress.inetSocketAddress(443, "example.com");
+
+  private final Promise<String> directAttempt = Promise.promise();
+  private final Promise<String> remoteAttempt = Promise.promise();
+  private final AtomicInteger remoteAttempts = new AtomicInteger();
+  private final List<String> discarded = new ArrayList<>();
+
+  // Created off any Vert.x context, so only remote() starts the remote path.
+  private final HappyEyeballs<String, String> race =
+      new HappyEyeballs<>(
+          new AttemptDelay(),
+          directAttempt::future,
+          () -> {
+            remoteAttempts.incrementAndGet();
+            return remoteAttempt.future();
+          },
+          discarded::add,
+          discarded::add);
+
+  @Test
+  public void directWinsWithoutStartingRemote() {
+    Future<String> direct = race.direct();
+    directAttempt.complete("direct");
+
+    assertEquals("direct", direct.result());
+    assertEquals(0, remoteAttempts.get());
+  }
+
+  @Test
+  public void failedDirectFallsBackToRemote() {
+    Future<String> direct = race.direct();
+    directAttempt.fail("refused");
+
+    assertTrue(direct.failed());
+    Future<String> remote = race.remote();
+    remoteAttempt.complete("remote");
+    assertEquals("remote", remote.result());
+    assertEquals(1, remoteAttempts.get());
+    assertTrue(discarded.isEmpty());
+  }
+
+  @Test
+  public void remoteConnectingFirstWinsAndTheLateDirectIsDiscarded() {
+    Future<String> direct = race.direct();
+    Future<String> chosen = race.chosen(direct);
+    Future<String> remote = race.remote();
+    remoteAttempt.complete("remote");
+
+    assertTrue(chosen.failed());
+    assertTrue(chosen.cause() instanceof HappyEyeballs.LostRaceException);
+    assertFalse(direct.isComplete());
+    assertEquals("remote", race.remote().result());
+    assertEquals(1, remoteAttempts.get());
+
+    directAttempt.complete("direct");
+    assertEquals("direct", direct.result());
+    assertEquals(List.of("direct"), discarded);
+    assertEquals("remote", remote.result());
+  }
+
+  @Test
+  public void directConnectingFirstWinsAndTheLateRemoteIsDiscarded() {
+    Future<String> chosen = race.chosen(race.direct());
+    race.remote();
+    directAttempt.complete("direct");
+    assertEquals("direct", chosen.result());
+
+    remoteAttempt.complete("remote");
+    assertEquals(List.of("remote"), discarded);
+  }
+
+  @Test
+  public void lostRaceLeavesTheVerdictToTheDirectAttempt() {
+    ReachabilityGate<String> gate = new ReachabilityGate<>(Duration.ofMinutes(5), 100);
+    Future<String> chosen = race.chosen(gate.apply(ADDR, race::direct));
+    race.remote();
+    remoteAttempt.complete("remote");
+    assertTrue(chosen.cause() instanceof HappyEyeballs.LostRaceException);
+
+    // Not a failure yet: the direct attempt is still connecting, so others wait on it.
+    Future<String> waiting = gate.apply(ADDR, () -> Future.succeededFuture("direct"));
+    assertFalse(waiting.isComplete());
+
+    directAttempt.complete("late");
+    assertEquals("direct", waiting.result());
+    assertEquals(List.of("late"), discarded);
+  }
+
+  @Test
+  public void lostRaceIsNotLearnedAsADirectFailure() {
+    List<Boolean> outcomes = new ArrayList<>();
+    ReachabilityGate<String> gate =
+        new ReachabilityGate<>(
+            Duration.ofMinutes(5),
+            Duration.ofMinutes(5),
+            Duration.ofMinutes(5),
+            100,
+            new Counter(),
+            new Counter(),
+            new Counter(),
+            (host, worked) -> outcomes.add(worked));
+    race.chosen(gate.apply(ADDR, race::direct));
+    race.remote();
+    remoteAttempt.complete("remote");
+    assertTrue(outcomes.isEmpty());
+
+    directAttempt.complete("late");
+    assertEquals(List.of(true), outcomes);
+  }
+
+  @Test
+  public void failedDirectAttemptAfterALostRaceFailsTheVerdict() {
+    ReachabilityGate<String> gate = new ReachabilityGate<>(Duration.ofMinutes(5), 100);
+    race.chosen(gate.apply(ADDR, race::direct));
+    race.remote();
+    remoteAttempt.complete("remote");
+    directAttempt.fail("refused");
+
+    AtomicInteger probes = new AtomicInteger();
+    Future<String> second =
+        gate.apply(
+            ADDR,
+            () -> {
+              probes.incrementAndGet();
+              return Future.succeededFuture("direct");
+            });
+    assertTrue(second.failed());
+    assertEquals(0, probes.get());
+  }
+
+  @Test
+  public void directAttemptIsSkippedOnceTheRemoteHasWon() {
+    ReachabilityGate<String> gate = new ReachabilityGate<>(Duration.ofMinutes(5), 100);
+    gate.apply(ADDR, () -> Future.succeededFuture("probe"));
+    AtomicInteger directAttempts = new AtomicInteger();
+    HappyEyeballs<String, String> waiter =
+        new HappyEyeballs<>(
+            new AttemptDelay(),
+            () -> {
+              directAttempts.incrementAndGet();
+              return Future.succeededFuture("direct");
+            },
+            () -> Future.succeededFuture("remote"),
+            discarded::add,
+            discarded::add);
+    waiter.remote();
+
+    Future<String> chosen = waiter.chosen(gate.apply(ADDR, waiter::direct));
+    assertTrue(chosen.cause() instanceof HappyEyeballs.LostRaceException);
+    assertEquals(0, directAttempts.get());
+    // The given-up attempt did not turn the cached success into a failure.
+    assertEquals(
+        "probe again", gate.apply(ADDR, () -> Future.succeededFuture("probe again")).result());
+  }
+
+  @Test
+  public void pooledDirectConnectionsAreNotTimed() {
+    AttemptDelay delay = new AttemptDelay();
+    HappyEyeballs<String, String> pooled =
+        new HappyEyeballs<>(
+            delay,
+            () -> Future.succeededFuture("pooled"),
+            () -> Future.succeededFuture("remote"),
+            discarded::add,
+            discarded::add,
+            connection -> false);
+    pooled.chosen(pooled.direct());
+
+    assertEquals(AttemptDelay.INITIAL_MILLIS, delay.millis());
+  }
+
+  @Test
+  public void stalledDirectIsRacedAfterTheAttemptDelay() throws Exception {
+    Vertx vertx = Vertx.vertx();
+    try {
+      CompletableFuture<Throwable> lost = new CompletableFuture<>();
+      long start = System.nanoTime();
+      vertx.runOnContext(
+          v -> {
+            HappyEyeballs<String, String> stalled =
+                new HappyEyeballs<>(
+                    new AttemptDelay(),
+                    () -> Promise.<String>promise().future(),
+                    () -> Future.succeededFuture("remote"),
+                    discarded::add,
+                    discarded::add);
+            stalled.chosen(stalled.direct()).onComplete(ar -> lost.complete(ar.cause()));
+          });
+
+      assertTrue(lost.get(5, TimeUnit.SECONDS) instanceof HappyEyeballs.LostRaceException);
+      long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("raced after " + waited + " ms", waited >= AttemptDelay.INITIAL_MILLIS - 10);
+    } finally {
+      vertx.close().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void attemptDelayFollowsDirectConnectTimesWithinBounds() {
+    AttemptDelay delay = new AttemptDelay();
+    assertEquals(AttemptDelay.INITIAL_MILLIS, delay.millis());
+
+    for (int i = 0; i < 20; i++) {
+      delay.record(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    assertEquals(AttemptDelay.MIN_MILLIS, delay.millis());
+
+    for (int i = 0; i < 20; i++) {
+      delay.record(TimeUnit.MILLISECONDS.toNanos(150));
+    }
+    long learned = delay.millis();
+    assertTrue("learned " + learned, learned > 150 && learned < 400);
+
+    delay.record(TimeUnit.SECONDS.toNanos(30));
+    assertEquals(AttemptDelay.MAX_MILLIS, delay.millis());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void raceStartsOnce() {
+    race.direct();
+    race.direct();
+  }
+}
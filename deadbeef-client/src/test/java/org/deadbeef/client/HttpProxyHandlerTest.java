@@ -2,20 +2,35 @@ package org.deadbeef.client;
 
 import com.codahale.metrics.MetricRegistry;
 import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpConnection;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.core.net.SocketAddress;
 import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestContext;
 import io.vertx.ext.unit.junit.RunTestOnContext;
 import io.vertx.ext.unit.junit.VertxUnitRunner;
+import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.deadbeef.auth.ProxyAuthenticationGenerator;
+import org.deadbeef.protocol.HttpProto;
 import org.deadbeef.route.OriginProvider;
 import org.deadbeef.route.RoutePolicy;
+import org.deadbeef.streams.Prefix;
 import org.deadbeef.util.Constants;
+import org.deadbeef.util.HeaderBlockDecoder;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -120,6 +135,16 @@ public class HttpProxyHandlerTest {
 
   @Test
   public void gateFallsBackToRemoteWhenDirectConnectFails(TestContext ctx) {
+    assertFallsBackToRemoteWhenDirectConnectFails(ctx, RoutePolicy.Decision.GATE);
+  }
+
+  @Test
+  public void learnedDirectFallsBackToRemoteWhenDirectConnectFails(TestContext ctx) {
+    assertFallsBackToRemoteWhenDirectConnectFails(ctx, RoutePolicy.Decision.DIRECT_FIRST);
+  }
+
+  private void assertFallsBackToRemoteWhenDirectConnectFails(
+      TestContext ctx, RoutePolicy.Decision decision) {
     Vertx vertx = rule.vertx();
     Async done = ctx.async();
 
@@ -135,8 +160,7 @@ public class HttpProxyHandlerTest {
         .onSuccess(
             remote -> {
               HttpClient httpClient = vertx.createHttpClient();
-              startClientFacingServer(
-                      vertx, httpClient, remote.actualPort(), decision(RoutePolicy.Decision.GATE))
+              startClientFacingServer(vertx, httpClient, remote.actualPort(), decision(decision))
                   .onFailure(ctx::fail)
                   .onSuccess(
                       facing -> {
@@ -144,7 +168,7 @@ public class HttpProxyHandlerTest {
                             SocketAddress.inetSocketAddress(facing.actualPort(), "127.0.0.1");
                         vertx
                             .createHttpClient()
-                            // direct target 127.0.0.1:1 is refused -> gate falls back to remote
+                            // direct target 127.0.0.1:1 is refused -> falls back to remote
                             .request(browserRequest(facingAddr, "127.0.0.1", 1))
                             .compose(req -> req.send())
                             .onSuccess(
@@ -200,6 +224,51 @@ public class HttpProxyHandlerTest {
                         }));
   }
 
+  @Test
+  public void envelopeDoesNotWaitForASlowFirstBodyChunk(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    // The browser holds its body back until the remote proxy has seen the request.
+    Promise<Void> remoteSawRequest = Promise.promise();
+    startServer(
+            vertx,
+            req -> {
+              remoteSawRequest.tryComplete();
+              req.endHandler(v -> req.response().setStatusCode(502).end());
+            })
+        .onFailure(ctx::fail)
+        .onSuccess(
+            remote -> {
+              HttpClient httpClient = vertx.createHttpClient();
+              startClientFacingServer(
+                      vertx, httpClient, remote.actualPort(), decision(RoutePolicy.Decision.REMOTE))
+                  .onFailure(ctx::fail)
+                  .onSuccess(
+                      facing ->
+                          vertx
+                              .createHttpClient()
+                              .request(
+                                  browserRequest(
+                                          SocketAddress.inetSocketAddress(
+                                              facing.actualPort(), "127.0.0.1"),
+                                          "127.0.0.1",
+                                          1)
+                                      .setMethod(HttpMethod.POST))
+                              .compose(
+                                  req ->
+                                      req.setChunked(true)
+                                          .sendHead()
+                                          .compose(v -> remoteSawRequest.future())
+                                          .compose(v -> req.send(Buffer.buffer("data"))))
+                              .onSuccess(
+                                  resp -> {
+                                    ctx.assertEquals(502, resp.statusCode());
+                                    done.complete();
+                                  })
+                              .onFailure(ctx::fail));
+            });
+  }
+
   @Test
   public void directDecisionErrorsWithoutFallback(TestContext ctx) {
     Vertx vertx = rule.vertx();
@@ -304,4 +373,190 @@ public class HttpProxyHandlerTest {
                       });
             });
   }
+
+  @Test
+  public void remoteHttp2ClientMultiplexesEnvelopesOnOneConnection(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async(2);
+    Set<HttpConnection> connections = new HashSet<>();
+
+    startServer(
+            vertx,
+            req -> {
+              ctx.assertEquals(HttpVersion.HTTP_2, req.version());
+              ctx.assertEquals(HttpMethod.POST, req.method());
+              connections.add(req.connection());
+              req.response().setStatusCode(502).end();
+            })
+        .onFailure(ctx::fail)
+        .onSuccess(
+            remote -> {
+              HttpClient remoteHttpClient =
+                  vertx.createHttpClient(
+                      new HttpClientOptions()
+                          .setProtocolVersion(HttpVersion.HTTP_2)
+                          .setHttp2ClearTextUpgrade(false)
+                          .setHttp2MaxPoolSize(1));
+              HttpProxyHandler handler =
+                  new HttpProxyHandler(
+                      vertx,
+                      vertx.createHttpClient(),
+                      remoteHttpClient,
+                      OriginProvider.ofStatic(remote.actualPort(), "127.0.0.1"),
+                      OriginProvider.ofAuthority(80),
+                      new ReachabilityGate<>(Duration.ofMinutes(5), 1_000),
+                      decision(RoutePolicy.Decision.REMOTE),
+                      0,
+                      new ProxyAuthenticationGenerator("id", "key"),
+                      new org.deadbeef.metrics.ProxyMetrics(new MetricRegistry()));
+              startServer(vertx, handler)
+                  .onFailure(ctx::fail)
+                  .onSuccess(
+                      facing -> {
+                        SocketAddress facingAddr =
+                            SocketAddress.inetSocketAddress(facing.actualPort(), "127.0.0.1");
+                        HttpClient browser = vertx.createHttpClient();
+                        for (int i = 0; i < 2; i++) {
+                          browser
+                              .request(browserRequest(facingAddr, "example.com", 80))
+                              .compose(req -> req.send())
+                              .onFailure(ctx::fail)
+                              .onSuccess(
+                                  resp -> {
+                                    ctx.assertEquals(502, resp.statusCode());
+                                    ctx.assertEquals(1, connections.size());
+                                    done.countDown();
+                                  });
+                        }
+                      });
+            });
+  }
+
+  @Test
+  public void acceptedHeaderTableOfferSwitchesConnectionToHeaderBlocks(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    List<HttpProto.Request> envelopes = new ArrayList<>();
+    List<String> offers = new ArrayList<>();
+
+    // Remote stub: accepts the offer and records the envelope of every request.
+    startServer(
+            vertx,
+            req -> {
+              offers.add(req.getHeader(Constants.headerTableHeaderName()));
+              req.body()
+                  .onSuccess(
+                      body -> {
+                        try {
+                          envelopes.add(
+                              HttpProto.Request.parseFrom(
+                                  body.getBytes(Prefix.FIXED, Prefix.FIXED + body.getInt(4))));
+                        } catch (IOException e) {
+                          ctx.fail(e);
+                        }
+                        req.response()
+                            .putHeader(Constants.headerTableHeaderName(), "4096")
+                            .setStatusCode(502)
+                            .end();
+                      });
+            })
+        .onFailure(ctx::fail)
+        .onSuccess(
+            remote ->
+                startClientFacingServer(
+                        vertx,
+                        vertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(1)),
+                        remote.actualPort(),
+                        decision(RoutePolicy.Decision.REMOTE))
+                    .onFailure(ctx::fail)
+                    .onSuccess(
+                        facing -> {
+                          SocketAddress facingAddr =
+                              SocketAddress.inetSocketAddress(facing.actualPort(), "127.0.0.1");
+                          HttpClient browser = vertx.createHttpClient();
+                          Future<Integer> first =
+                              browser
+                                  .request(browserRequest(facingAddr, "example.com", 80))
+                                  .compose(req -> req.send())
+                                  .map(resp -> resp.statusCode());
+                          first
+                              .compose(
+                                  status ->
+                                      browser
+                                          .request(browserRequest(facingAddr, "example.com", 80))
+                                          .compose(req -> req.send()))
+                              .onFailure(ctx::fail)
+                              .onSuccess(
+                                  resp -> {
+                                    ctx.assertEquals(2, envelopes.size());
+                                    ctx.assertNotNull(offers.get(0));
+                                    ctx.assertNull(offers.get(1));
+                                    ctx.assertTrue(envelopes.get(0).hasHeaders());
+                                    ctx.assertFalse(envelopes.get(1).hasHeaders());
+                                    ctx.assertTrue(envelopes.get(1).hasHeaderBlock());
+                                    Map<String, String> decoded = new HashMap<>();
+                                    new HeaderBlockDecoder(4096)
+                                        .decode(envelopes.get(1).getHeaderBlock(), decoded::put);
+                                    ctx.assertEquals(
+                                        envelopes.get(0).getHeaders().getHost(),
+                                        decoded.get("host"));
+                                    done.complete();
+                                  });
+                        }));
+  }
+
+  @Test
+  public void authenticatedConnectionStopsCarryingTokens(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    List<Boolean> tokens = new ArrayList<>();
+
+    // Remote stub in connection-auth mode: marks the connection verified on the first token.
+    startServer(
+            vertx,
+            req -> {
+              boolean token = req.getHeader(Constants.authHeaderName()) != null;
+              tokens.add(token);
+              req.body()
+                  .onSuccess(
+                      body -> {
+                        if (token) {
+                          req.response().putHeader(Constants.authSessionHeaderName(), "1");
+                        }
+                        req.response().setStatusCode(502).end();
+                      });
+            })
+        .onFailure(ctx::fail)
+        .onSuccess(
+            remote ->
+                startClientFacingServer(
+                        vertx,
+                        vertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(1)),
+                        remote.actualPort(),
+                        decision(RoutePolicy.Decision.REMOTE))
+                    .onFailure(ctx::fail)
+                    .onSuccess(
+                        facing -> {
+                          SocketAddress facingAddr =
+                              SocketAddress.inetSocketAddress(facing.actualPort(), "127.0.0.1");
+                          HttpClient browser = vertx.createHttpClient();
+                          browser
+                              .request(browserRequest(facingAddr, "example.com", 80))
+                              .compose(req -> req.send())
+                              .compose(
+                                  first -> {
+                                    ctx.assertNull(
+                                        first.getHeader(Constants.authSessionHeaderName()));
+                                    return browser
+                                        .request(browserRequest(facingAddr, "example.com", 80))
+                                        .compose(req -> req.send());
+                                  })
+                              .onFailure(ctx::fail)
+                              .onSuccess(
+                                  resp -> {
+                                    ctx.assertEquals(List.of(true, false), tokens);
+                                    done.complete();
+                                  });
+                        }));
+  }
 }
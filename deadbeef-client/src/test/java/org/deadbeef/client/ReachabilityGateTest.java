@@ -4,21 +4,69 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.codahale.metrics.Counter;
+import io.vertx.core.Context;
 import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
 import io.vertx.core.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class ReachabilityGateTest {
 
   private static final SocketAddress ADDR = SocketAddress.inetSocketAddress(8080, "example.com");
 
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AtomicLong now = new AtomicLong(1_000_000);
+  private final Counter hits = new Counter();
+  private final Counter misses = new Counter();
+  private final Counter probes = new Counter();
+
   private static <T> ReachabilityGate<T> newGate() {
     return new ReachabilityGate<>(Duration.ofMinutes(5), 100);
   }
 
+  /** Successes trusted for 5 minutes, failures for 30 s doubling up to 4 minutes. */
+  private <T> ReachabilityGate<T> backoffGate() {
+    return new ReachabilityGate<>(
+        Duration.ofMinutes(5),
+        Duration.ofSeconds(30),
+        Duration.ofMinutes(4),
+        100,
+        hits,
+        misses,
+        probes,
+        (host, ok) -> {},
+        now::get);
+  }
+
+  private static Supplier<Future<String>> counting(AtomicInteger calls, boolean succeed) {
+    return () -> {
+      calls.incrementAndGet();
+      return succeed
+          ? Future.succeededFuture("ok")
+          : Future.failedFuture(new RuntimeException("down"));
+    };
+  }
+
+  private void advance(Duration duration) {
+    now.addAndGet(duration.toMillis());
+  }
+
   @Test
   public void firstSuccessReturnsProbeResult() {
     ReachabilityGate<String> gate = newGate();
@@ -81,4 +129,195 @@ public class ReachabilityGateTest {
     assertFalse(up.failed());
     assertEquals("ok", up.result());
   }
+
+  @Test
+  public void attemptDelayIsPerAddress() {
+    ReachabilityGate<String> gate = newGate();
+    SocketAddress other = SocketAddress.inetSocketAddress(9090, "other.example.com");
+
+    for (int i = 0; i < 20; i++) {
+      gate.attemptDelay(ADDR).record(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    assertEquals(AttemptDelay.MIN_MILLIS, gate.attemptDelay(ADDR).millis());
+    assertEquals(AttemptDelay.INITIAL_MILLIS, gate.attemptDelay(other).millis());
+  }
+
+  @Test
+  public void failureStreakBacksOffExponentiallyUpToTheMaximum() {
+    ReachabilityGate<String> gate = backoffGate();
+    AtomicInteger calls = new AtomicInteger();
+    Supplier<Future<String>> down = counting(calls, false);
+
+    gate.apply(ADDR, down);
+    long[] backoffSeconds = {30, 60, 120, 240, 240};
+    for (long seconds : backoffSeconds) {
+      int before = calls.get();
+      advance(Duration.ofSeconds(seconds - 1));
+      assertTrue(gate.apply(ADDR, down).failed());
+      assertEquals("re-probed early", before, calls.get());
+      advance(Duration.ofSeconds(1));
+      assertTrue(gate.apply(ADDR, down).failed());
+      assertEquals("not re-probed after " + seconds + " s", before + 1, calls.get());
+    }
+  }
+
+  @Test
+  public void successThatOutlivesItsWindowEndsTheStreak() {
+    ReachabilityGate<String> gate = backoffGate();
+    AtomicInteger calls = new AtomicInteger();
+
+    gate.apply(ADDR, counting(calls, false));
+    advance(Duration.ofSeconds(30));
+    gate.apply(ADDR, counting(calls, false));
+    advance(Duration.ofSeconds(60));
+    assertTrue(gate.apply(ADDR, counting(calls, true)).succeeded());
+    advance(Duration.ofMinutes(5));
+    assertTrue(gate.apply(ADDR, counting(calls, false)).failed());
+    assertEquals(4, calls.get());
+
+    // Back to the first backoff, not the 2 minutes the old streak would have earned.
+    advance(Duration.ofSeconds(30));
+    gate.apply(ADDR, counting(calls, false));
+    assertEquals(5, calls.get());
+  }
+
+  @Test
+  public void failedFreshAttemptInvalidatesCachedSuccess() {
+    ReachabilityGate<String> gate = backoffGate();
+    AtomicInteger calls = new AtomicInteger();
+    gate.apply(ADDR, counting(calls, true));
+
+    assertTrue(gate.apply(ADDR, counting(calls, false)).failed());
+    assertTrue(gate.apply(ADDR, counting(calls, true)).failed());
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void reportedFailureInvalidatesCachedSuccess() {
+    ReachabilityGate<String> gate = backoffGate();
+    AtomicInteger calls = new AtomicInteger();
+    gate.apply(ADDR, counting(calls, true));
+
+    gate.reportFailure(ADDR, new RuntimeException("reset"));
+    assertTrue(gate.apply(ADDR, counting(calls, true)).failed());
+    advance(Duration.ofSeconds(30));
+    assertTrue(gate.apply(ADDR, counting(calls, true)).succeeded());
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void countsHitsMissesAndProbes() {
+    ReachabilityGate<String> gate = backoffGate();
+    Promise<String> probe = Promise.promise();
+    gate.apply(ADDR, probe::future);
+    gate.apply(ADDR, () -> Future.succeededFuture("fresh"));
+    probe.complete("ok");
+    gate.apply(ADDR, () -> Future.succeededFuture("fresh"));
+
+    assertEquals(1, hits.getCount());
+    assertEquals(2, misses.getCount());
+    assertEquals(1, probes.getCount());
+  }
+
+  @Test
+  public void everyDirectOutcomeReachesTheListener() {
+    List<String> outcomes = new ArrayList<>();
+    ReachabilityGate<String> gate =
+        new ReachabilityGate<>(
+            Duration.ofMinutes(5),
+            Duration.ofSeconds(30),
+            Duration.ofMinutes(4),
+            100,
+            hits,
+            misses,
+            probes,
+            (host, ok) -> outcomes.add(host + (ok ? " ok" : " failed")),
+            now::get);
+    AtomicInteger calls = new AtomicInteger();
+
+    gate.apply(ADDR, counting(calls, true));
+    gate.apply(ADDR, counting(calls, true));
+    gate.apply(ADDR, counting(calls, false));
+    gate.reportFailure(SocketAddress.inetSocketAddress(80, "pinned.example.com"), new Exception());
+
+    assertEquals(
+        List.of(
+            "example.com ok", "example.com ok", "example.com failed", "pinned.example.com failed"),
+        outcomes);
+  }
+
+  @Test
+  public void savedVerdictsSurviveARestart() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("verdicts.bin");
+    SocketAddress up = SocketAddress.inetSocketAddress(443, "up.example.com");
+    ReachabilityGate<String> gate = backoffGate();
+    AtomicInteger calls = new AtomicInteger();
+    gate.apply(ADDR, counting(calls, false));
+    advance(Duration.ofSeconds(30));
+    gate.apply(ADDR, counting(calls, false));
+    gate.apply(up, counting(calls, true));
+    gate.apply(
+        SocketAddress.inetSocketAddress(80, "pending.example.com"),
+        () -> Promise.<String>promise().future());
+    gate.save(file);
+
+    ReachabilityGate<String> restarted = backoffGate();
+    restarted.restore(file);
+    AtomicInteger probesAfterRestart = new AtomicInteger();
+    Future<String> blocked = restarted.apply(ADDR, counting(probesAfterRestart, true));
+    assertTrue(blocked.failed());
+    assertTrue(blocked.cause() instanceof ReachabilityGate.UnreachableException);
+    assertTrue(restarted.apply(up, counting(probesAfterRestart, true)).succeeded());
+    // Only the fresh attempt for the reachable host; the blocked one is still backed off.
+    assertEquals(1, probesAfterRestart.get());
+
+    // The streak of two failures came along: the next one backs off for 2 minutes.
+    advance(Duration.ofSeconds(60));
+    restarted.apply(ADDR, counting(probesAfterRestart, false));
+    advance(Duration.ofSeconds(119));
+    restarted.apply(ADDR, counting(probesAfterRestart, false));
+    assertEquals(2, probesAfterRestart.get());
+  }
+
+  @Test
+  public void unusableSnapshotIsIgnored() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("verdicts.bin");
+    Files.write(file, new byte[] {0, 0, 0, 1, 0, 0, 0, 5, 0});
+    ReachabilityGate<String> gate = backoffGate();
+    gate.restore(file);
+    gate.restore(folder.getRoot().toPath().resolve("missing.bin"));
+
+    AtomicInteger calls = new AtomicInteger();
+    assertTrue(gate.apply(ADDR, counting(calls, true)).succeeded());
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void waiterResumesOnItsOwnContext() throws Exception {
+    Vertx vertx = Vertx.vertx();
+    try {
+      ReachabilityGate<String> gate = newGate();
+      Promise<String> probe = Promise.promise();
+      gate.apply(ADDR, probe::future);
+
+      Context waiterContext = vertx.getOrCreateContext();
+      CountDownLatch registered = new CountDownLatch(1);
+      CompletableFuture<Boolean> resumedOnContext = new CompletableFuture<>();
+      waiterContext.runOnContext(
+          v -> {
+            gate.apply(ADDR, () -> Future.succeededFuture("fresh"))
+                .onComplete(
+                    ar -> resumedOnContext.complete(Vertx.currentContext() == waiterContext));
+            registered.countDown();
+          });
+      assertTrue(registered.await(5, TimeUnit.SECONDS));
+
+      // Settle the verdict from a foreign thread, as another instance's event loop would.
+      probe.complete("ok");
+      assertTrue(resumedOnContext.get(5, TimeUnit.SECONDS));
+    } finally {
+      vertx.close();
+    }
+  }
 }
@@ -0,0 +1,97 @@
+package org.deadbeef.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.junit.Test;
+
+public class HeavyHittersTest {
+
+  @Test
+  public void countsExactlyWhileThereIsRoom() {
+    HeavyHitters hitters = new HeavyHitters(4);
+    hitters.add("a", 10);
+    hitters.add("b", 30);
+    hitters.add("a", 5);
+    hitters.add("c", 1);
+
+    List<HeavyHitters.Entry> top = hitters.top(2);
+    assertEquals(2, top.size());
+    assertEquals("b", top.get(0).key);
+    assertEquals(30, top.get(0).count);
+    assertEquals("a", top.get(1).key);
+    assertEquals(15, top.get(1).count);
+    assertEquals(0, top.get(1).error);
+    assertEquals(2, top.get(1).events);
+  }
+
+  @Test
+  public void newKeyTakesOverTheLightestSlot() {
+    HeavyHitters hitters = new HeavyHitters(2);
+    hitters.add("a", 10);
+    hitters.add("b", 3);
+    hitters.add("c", 1);
+
+    List<HeavyHitters.Entry> top = hitters.top(2);
+    assertEquals("a", top.get(0).key);
+    assertEquals("c", top.get(1).key);
+    // c inherits b's 3 as its error: it may have seen up to 4, and has seen at least 1.
+    assertEquals(4, top.get(1).count);
+    assertEquals(3, top.get(1).error);
+    assertEquals(1, top.get(1).events);
+  }
+
+  @Test
+  public void heavyKeySurvivesAFloodOfDistinctKeysInBoundedMemory() {
+    HeavyHitters hitters = new HeavyHitters(16);
+    for (int i = 0; i < 100_000; i++) {
+      hitters.add("host-" + i, 1);
+      if (i % 10 == 0) {
+        hitters.add("heavy.example", 1);
+      }
+    }
+
+    assertEquals(16, hitters.size());
+    HeavyHitters.Entry heaviest = hitters.top(1).get(0);
+    assertEquals("heavy.example", heaviest.key);
+    assertTrue(heaviest.count - heaviest.error <= 10_000);
+    assertTrue(heaviest.count >= 10_000);
+  }
+
+  @Test
+  public void stripesKeepEachKeyExactAndMergeTheirTops() throws Exception {
+    HeavyHitters hitters = new HeavyHitters(4, 8);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 10_000; i++) {
+                  hitters.add("host-" + (i % 20), i % 20 + 1);
+                }
+              });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    List<HeavyHitters.Entry> top = hitters.top(3);
+    assertEquals(3, top.size());
+    assertEquals("host-19", top.get(0).key);
+    assertTrue(top.get(0).count >= 4 * 500 * 20);
+    assertTrue(top.get(0).count - top.get(0).error <= 4 * 500 * 20);
+    assertTrue(top.get(0).count >= top.get(1).count && top.get(1).count >= top.get(2).count);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsStripesThatAreNotAPowerOfTwo() {
+    new HeavyHitters(4, 3);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsZeroCapacity() {
+    new HeavyHitters(0);
+  }
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import com.codahale.metrics.MetricRegistry;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
@@ -24,14 +25,22 @@ public class ProxyMetricsTest {
     "proxy.http.bytes.up",
     "proxy.http.bytes.down",
     "proxy.http.requests.in_flight",
+    "proxy.http.gate.hits",
+    "proxy.http.gate.misses",
+    "proxy.http.gate.probes",
     "proxy.https.tunnels.opened",
     "proxy.https.tunnels.failed",
     "proxy.https.tunnels.direct",
     "proxy.https.tunnels.remote",
+    "proxy.https.tunnels.multiplexed",
+    "proxy.https.tunnels.reaped",
     "proxy.https.connect.duration",
     "proxy.https.bytes.up",
     "proxy.https.bytes.down",
     "proxy.https.tunnels.active",
+    "proxy.https.gate.hits",
+    "proxy.https.gate.misses",
+    "proxy.https.gate.probes",
   };
 
   private static ProxyMetrics newMetrics() {
@@ -195,4 +204,37 @@ public class ProxyMetricsTest {
     assertTrue(timer.getDouble("min") >= 49.0 && timer.getDouble("min") <= 51.0);
     assertTrue(timer.getDouble("max") >= 149.0 && timer.getDouble("max") <= 151.0);
   }
+
+  @Test
+  public void hostsAreListedHeaviestFirst() {
+    ProxyMetrics m = newMetrics();
+    m.recordHostRequest("a.example");
+    m.recordHostRequest("b.example");
+    m.recordHostRequest("b.example");
+    m.recordHostBytes("a.example", 100);
+    m.hostBytes("b.example").accept(2048);
+    m.recordHostConnect("a.example", TimeUnit.MILLISECONDS.toNanos(30));
+    m.recordHostConnect("a.example", TimeUnit.MILLISECONDS.toNanos(50));
+
+    JsonObject hosts = m.toJson().getJsonObject("hosts");
+    JsonArray requests = hosts.getJsonArray("requests");
+    assertEquals("b.example", requests.getJsonObject(0).getString("host"));
+    assertEquals(2L, (long) requests.getJsonObject(0).getLong("value"));
+    assertEquals(0L, (long) requests.getJsonObject(0).getLong("error"));
+    assertEquals("b.example", hosts.getJsonArray("bytes").getJsonObject(0).getString("host"));
+    JsonObject connect = hosts.getJsonArray("connect").getJsonObject(0);
+    assertEquals(80.0, connect.getDouble("value"), 0.001);
+    assertEquals(40.0, connect.getDouble("mean"), 0.001);
+  }
+
+  @Test
+  public void hostListsAreBounded() {
+    ProxyMetrics m = newMetrics();
+    for (int i = 0; i < ProxyMetrics.HOSTS_TRACKED * 4; i++) {
+      m.recordHostRequest("host-" + i);
+    }
+    JsonObject hosts = m.toJson().getJsonObject("hosts");
+    assertEquals(ProxyMetrics.HOSTS_SHOWN, hosts.getJsonArray("requests").size());
+    assertTrue(hosts.getJsonArray("bytes").isEmpty());
+  }
 }
@@ -39,6 +39,42 @@ public class DefaultRoutePolicyTest {
         DIRECT, policy(List.of("conflict.com"), List.of("conflict.com")).decide("conflict.com"));
   }
 
+  // ---- learned routes ----
+
+  @Test
+  public void learnedRouteAppliesToUnlistedNames() {
+    LearnedRoutes learned = new LearnedRoutes(100);
+    // One more than the threshold, as the evidence fades a little between records.
+    for (int i = 0; i <= LearnedRoutes.REMOTE_MIN_FAILURES; i++) {
+      learned.record("s" + i + ".blocked.org", false);
+    }
+    RoutePolicy p =
+        new DefaultRoutePolicy(
+            HostNameMatcher.create(List.of()),
+            HostNameMatcher.create(List.of()),
+            false,
+            null,
+            learned);
+    assertEquals(REMOTE, p.decide("www.blocked.org"));
+    assertEquals(GATE, p.decide("other.org"));
+  }
+
+  @Test
+  public void listsWinOverLearnedRoutes() {
+    LearnedRoutes learned = new LearnedRoutes(100);
+    for (int i = 0; i < LearnedRoutes.REMOTE_MIN_FAILURES; i++) {
+      learned.record("intranet.example", false);
+    }
+    RoutePolicy p =
+        new DefaultRoutePolicy(
+            HostNameMatcher.create(List.of("intranet.example")),
+            HostNameMatcher.create(List.of()),
+            false,
+            null,
+            learned);
+    assertEquals(DIRECT, p.decide("intranet.example"));
+  }
+
   // ---- IP literals ----
 
   @Test
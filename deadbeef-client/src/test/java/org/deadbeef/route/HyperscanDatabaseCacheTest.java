@@ -0,0 +1,89 @@
+package org.deadbeef.route;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.gliwka.hyperscan.wrapper.Expression;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HyperscanDatabaseCacheTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void secondLoadReadsTheStoredDatabase() throws Exception {
+    Path directory = folder.getRoot().toPath().resolve("cache");
+    HyperscanDatabaseCache cache = new HyperscanDatabaseCache(directory);
+
+    try (HostNameMatcher first = HostNameMatcher.create(List.of("*.example", "10.0.0.1"), cache)) {
+      assertTrue(first.match("www.example"));
+    }
+    List<Path> entries = entries(directory);
+    assertEquals(1, entries.size());
+    byte[] stored = Files.readAllBytes(entries.get(0));
+
+    try (HostNameMatcher second = HostNameMatcher.create(List.of("*.example", "10.0.0.1"), cache)) {
+      assertTrue(second.match("WWW.EXAMPLE"));
+      assertTrue(second.match("10.0.0.1"));
+      assertFalse(second.match("example.org"));
+    }
+    assertEquals(entries, entries(directory));
+    assertArrayEquals(stored, Files.readAllBytes(entries.get(0)));
+  }
+
+  @Test
+  public void corruptEntryIsRecompiled() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    HyperscanDatabaseCache cache = new HyperscanDatabaseCache(directory);
+    String key = HyperscanDatabaseCache.key(List.of(HostNameMatcherImpl.mapToExpression("*.test")));
+    Files.writeString(directory.resolve(key + ".hsdb"), "garbage", StandardCharsets.UTF_8);
+
+    try (HostNameMatcher matcher = HostNameMatcher.create(List.of("*.test"), cache)) {
+      assertTrue(matcher.match("a.test"));
+    }
+    assertFalse(
+        Arrays.equals(
+            "garbage".getBytes(StandardCharsets.UTF_8),
+            Files.readAllBytes(directory.resolve(key + ".hsdb"))));
+  }
+
+  @Test
+  public void keyCoversPatternsAndFlags() {
+    Expression glob = HostNameMatcherImpl.mapToExpression("*.test");
+    assertEquals(
+        HyperscanDatabaseCache.key(List.of(glob)), HyperscanDatabaseCache.key(List.of(glob)));
+    assertNotEquals(
+        HyperscanDatabaseCache.key(List.of(glob)),
+        HyperscanDatabaseCache.key(List.of(HostNameMatcherImpl.mapToExpression("*.tes"))));
+    assertNotEquals(
+        HyperscanDatabaseCache.key(List.of(glob)),
+        HyperscanDatabaseCache.key(List.of(new Expression(glob.getExpression()))));
+  }
+
+  @Test
+  public void keepsOnlyTheMostRecentEntries() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    HyperscanDatabaseCache cache = new HyperscanDatabaseCache(directory);
+    for (int i = 0; i < HyperscanDatabaseCache.MAX_ENTRIES + 3; i++) {
+      HostNameMatcher.create(List.of("host" + i + ".test"), cache).close();
+    }
+    assertEquals(HyperscanDatabaseCache.MAX_ENTRIES, entries(directory).size());
+  }
+
+  private static List<Path> entries(Path directory) throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted().toList();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package org.deadbeef.route;
+
+import static org.deadbeef.route.RoutePolicy.Decision.DIRECT_FIRST;
+import static org.deadbeef.route.RoutePolicy.Decision.REMOTE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LearnedRoutesTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AtomicLong now = new AtomicLong(1_000_000);
+
+  private LearnedRoutes newRoutes() {
+    return new LearnedRoutes(100, Duration.ofDays(1), now::get);
+  }
+
+  private static void record(LearnedRoutes routes, String host, boolean worked, int times) {
+    for (int i = 0; i < times; i++) {
+      routes.record(host, worked);
+    }
+  }
+
+  @Test
+  public void learnsByRegistrableDomain() {
+    assertEquals("foo.com", LearnedRoutes.domainOf("a.b.foo.com"));
+    assertEquals("foo.com", LearnedRoutes.domainOf("FOO.com."));
+    assertEquals("bbc.co.uk", LearnedRoutes.domainOf("www.bbc.co.uk"));
+    assertEquals("someone.github.io", LearnedRoutes.domainOf("someone.github.io"));
+    assertEquals("localhost", LearnedRoutes.domainOf("localhost"));
+    assertNull(LearnedRoutes.domainOf("8.8.8.8"));
+    assertNull(LearnedRoutes.domainOf("::1"));
+  }
+
+  @Test
+  public void failuresAcrossSubdomainsPromoteTheDomainToRemote() {
+    LearnedRoutes routes = newRoutes();
+    for (int i = 0; i < LearnedRoutes.REMOTE_MIN_FAILURES - 1; i++) {
+      routes.record("s" + i + ".blocked.com", false);
+    }
+    assertNull(routes.decide("never-seen.blocked.com"));
+
+    routes.record("last.blocked.com", false);
+    assertEquals(REMOTE, routes.decide("never-seen.blocked.com"));
+    assertNull(routes.decide("blocked.org"));
+  }
+
+  @Test
+  public void mixedOutcomesAreLeftToTheGate() {
+    LearnedRoutes routes = newRoutes();
+    record(routes, "flaky.com", false, 20);
+    record(routes, "flaky.com", true, 20);
+    assertNull(routes.decide("flaky.com"));
+  }
+
+  @Test
+  public void consistentSuccessesPromoteTheDomainToDirect() {
+    LearnedRoutes routes = newRoutes();
+    record(routes, "www.fine.com", true, (int) LearnedRoutes.DIRECT_MIN_SUCCESSES);
+    assertEquals(DIRECT_FIRST, routes.decide("cdn.fine.com"));
+  }
+
+  @Test
+  public void oneFailureSendsADirectDomainBackToTheGate() {
+    LearnedRoutes routes = newRoutes();
+    record(routes, "www.fine.com", true, 1_000);
+    routes.record("www.fine.com", false);
+    assertNull(routes.decide("www.fine.com"));
+  }
+
+  @Test
+  public void learnedRouteFadesWithoutFreshEvidence() {
+    LearnedRoutes routes = newRoutes();
+    record(routes, "blocked.com", false, 16);
+    now.addAndGet(Duration.ofHours(23).toMillis());
+    assertEquals(REMOTE, routes.decide("blocked.com"));
+    now.addAndGet(Duration.ofHours(2).toMillis());
+    assertNull(routes.decide("blocked.com"));
+  }
+
+  @Test
+  public void savedRoutesSurviveARestart() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("learned.bin");
+    LearnedRoutes routes = newRoutes();
+    record(routes, "blocked.com", false, 16);
+    record(routes, "fine.com", true, 64);
+    routes.record("barely-seen.com", false);
+    routes.save(file);
+
+    LearnedRoutes restarted = newRoutes();
+    restarted.restore(file);
+    assertEquals(REMOTE, restarted.decide("www.blocked.com"));
+    assertEquals(DIRECT_FIRST, restarted.decide("www.fine.com"));
+    assertNull(restarted.decide("barely-seen.com"));
+
+    // The evidence keeps fading from when it was gathered.
+    now.addAndGet(Duration.ofDays(2).toMillis());
+    assertNull(restarted.decide("www.blocked.com"));
+  }
+
+  @Test
+  public void unusableSnapshotIsIgnored() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("learned.bin");
+    Files.write(file, new byte[] {0, 0, 0, 1, 0, 0, 0, 3, 0});
+    LearnedRoutes routes = newRoutes();
+    routes.restore(file);
+    routes.restore(folder.getRoot().toPath().resolve("missing.bin"));
+
+    record(routes, "blocked.com", false, 8);
+    assertEquals(REMOTE, routes.decide("blocked.com"));
+  }
+}
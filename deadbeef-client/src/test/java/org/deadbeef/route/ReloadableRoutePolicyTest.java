@@ -0,0 +1,88 @@
+package org.deadbeef.route;
+
+import static org.deadbeef.route.RoutePolicy.Decision.DIRECT;
+import static org.deadbeef.route.RoutePolicy.Decision.GATE;
+import static org.deadbeef.route.RoutePolicy.Decision.REMOTE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReloadableRoutePolicyTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void swapRoutesByTheNewLists() {
+    ReloadableRoutePolicy policy =
+        new ReloadableRoutePolicy(
+            HostNameMatcher.create(List.of("*.old.example")),
+            HostNameMatcher.create(List.of()),
+            false,
+            null);
+    assertEquals(DIRECT, policy.decide("a.old.example"));
+
+    policy.swap(
+        HostNameMatcher.create(List.of("*.new.example")),
+        HostNameMatcher.create(List.of("*.old.example")));
+
+    assertEquals(REMOTE, policy.decide("a.old.example"));
+    assertEquals(DIRECT, policy.decide("a.new.example"));
+    assertEquals(GATE, policy.decide("other.org"));
+    policy.close();
+  }
+
+  @Test
+  public void decisionsNeverFailAcrossSwaps() throws Exception {
+    ReloadableRoutePolicy policy =
+        new ReloadableRoutePolicy(
+            HostNameMatcher.create(List.of("*.example")),
+            HostNameMatcher.create(List.of()),
+            false,
+            null);
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread router =
+        new Thread(
+            () -> {
+              try {
+                while (!done.get()) {
+                  assertEquals(DIRECT, policy.decide("www.example"));
+                }
+              } catch (Throwable t) {
+                failure.set(t);
+              }
+            });
+    router.start();
+    for (int i = 0; i < 50; i++) {
+      policy.swap(
+          HostNameMatcher.create(List.of("*.example", "host" + i + ".test")),
+          HostNameMatcher.create(List.of()));
+    }
+    done.set(true);
+    router.join();
+
+    assertEquals(null, failure.get());
+    policy.close();
+  }
+
+  @Test
+  public void routeListsLoadFromFiles() throws Exception {
+    Path file = folder.newFile("local_only.txt").toPath();
+    Files.writeString(
+        file, "# comment\n*.lan.example  # inline\n\n192.0.2.10\n", StandardCharsets.UTF_8);
+
+    try (HostNameMatcher matcher = HostNameMatcher.fromFile(file)) {
+      assertTrue(matcher.match("nas.lan.example"));
+      assertTrue(matcher.match("192.0.2.10"));
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package org.deadbeef.auth;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The in-process {@link NonceStore}. Each bucket is an open-addressing table of nonces packed as
+ * two {@code long}s, split into independently locked segments so concurrent inserts rarely contend.
+ * A segment is sized for its share of the expected nonces and doubles when it fills, so a burst
+ * past the expected peak costs memory, never a valid token.
+ */
+final class HeapNonceStore implements NonceStore {
+
+  private static final int RING = 4;
+  private static final int SEGMENT_BITS = 6;
+
+  private final long window;
+  private final int segmentSlots;
+  private final AtomicReferenceArray<Bucket> ring = new AtomicReferenceArray<>(RING);
+
+  /**
+   * @param window the auth window in milliseconds, i.e. how far a token timestamp may be from now
+   * @param capacity nonces expected per bucket (one window's worth of token timestamps) at peak
+   */
+  HeapNonceStore(long window, int capacity) {
+    Preconditions.checkArgument(window > 0, "window should be positive: %s", window);
+    Preconditions.checkArgument(capacity > 0, "capacity should be positive: %s", capacity);
+    this.window = window;
+    int segmentCapacity = Math.max(1, (capacity + (1 << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+    this.segmentSlots = Integer.highestOneBit(segmentCapacity + (segmentCapacity >>> 1)) << 1;
+  }
+
+  @Override
+  public boolean add(long timestamp, ByteString nonce) {
+    if (nonce.size() != NONCE_LENGTH) {
+      return false;
+    }
+    long hi = NonceStore.readLong(nonce, 0);
+    long lo = NonceStore.readLong(nonce, Long.BYTES);
+    if (hi == 0 && lo == 0) {
+      // Marks an empty slot; a random nonce is never all zeroes.
+      return false;
+    }
+    Bucket bucket = bucket(Math.floorDiv(timestamp, window));
+    if (bucket == null) {
+      return false;
+    }
+    long hash = (hi ^ lo) * 0x9E3779B97F4A7C15L;
+    Segment segment = bucket.segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+    return segment.add(hi, lo, segmentSlots);
+  }
+
+  /** The bucket of {@code epoch}, recycling the slot of an expired one; null if already expired. */
+  private Bucket bucket(long epoch) {
+    int index = (int) Math.floorMod(epoch, (long) RING);
+    while (true) {
+      Bucket current = ring.get(index);
+      if (current != null && current.epoch == epoch) {
+        return current;
+      }
+      if (current != null && current.epoch > epoch) {
+        return null;
+      }
+      Bucket fresh = new Bucket(epoch);
+      if (ring.compareAndSet(index, current, fresh)) {
+        return fresh;
+      }
+    }
+  }
+
+  private static final class Bucket {
+
+    final long epoch;
+    final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    Bucket(long epoch) {
+      this.epoch = epoch;
+      for (int i = 0; i < segments.length; i++) {
+        segments[i] = new Segment();
+      }
+    }
+  }
+
+  private static final class Segment {
+
+    // Two longs per slot, allocated on first insert.
+    private long[] keys;
+    private int size;
+
+    synchronized boolean add(long hi, long lo, int initialSlots) {
+      if (keys == null) {
+        keys = new long[initialSlots << 1];
+      }
+      int mask = (keys.length >>> 1) - 1;
+      for (int slot = slot(hi, lo) & mask; ; slot = (slot + 1) & mask) {
+        int i = slot << 1;
+        long storedHi = keys[i];
+        long storedLo = keys[i + 1];
+        if (storedHi == hi && storedLo == lo) {
+          return false;
+        }
+        if (storedHi == 0 && storedLo == 0) {
+          keys[i] = hi;
+          keys[i + 1] = lo;
+          // Load factor at most 2/3 keeps probe sequences short.
+          if (3 * ++size > 2 * (mask + 1)) {
+            grow();
+          }
+          return true;
+        }
+      }
+    }
+
+    private void grow() {
+      long[] old = keys;
+      keys = new long[old.length << 1];
+      int mask = (keys.length >>> 1) - 1;
+      for (int i = 0; i < old.length; i += 2) {
+        long hi = old[i];
+        long lo = old[i + 1];
+        if (hi == 0 && lo == 0) {
+          continue;
+        }
+        int slot = slot(hi, lo) & mask;
+        while (keys[slot << 1] != 0 || keys[(slot << 1) + 1] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot << 1] = hi;
+        keys[(slot << 1) + 1] = lo;
+      }
+    }
+
+    private static int slot(long hi, long lo) {
+      // The low bits of the hash; the segment came from the high ones.
+      return (int) ((hi ^ lo) * 0x9E3779B97F4A7C15L);
+    }
+  }
+}
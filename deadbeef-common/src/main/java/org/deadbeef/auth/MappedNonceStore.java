@@ -0,0 +1,255 @@
+package org.deadbeef.auth;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A {@link NonceStore} in a memory-mapped file, shared by every server process on the host that
+ * maps the same file, so that a token accepted by one process is a replay to all of them.
+ *
+ * <p>The file holds a small header followed by the ring of buckets. A bucket is a state word (its
+ * epoch, plus a bit set while it is being wiped for reuse), an insert count and an open-addressing
+ * table of 64-bit nonce fingerprints. Every insert is a single compare-and-set on the mapping, so
+ * processes never lock each other out; a crashed process leaves nothing held. A fingerprint
+ * collision can only turn a fresh token away, never let a replay through.
+ *
+ * <p>The file cannot grow under other processes, so a bucket that fills up sends further nonces to
+ * an in-process {@link HeapNonceStore}: a nonce already in the file stays a replay everywhere, and
+ * one past the capacity is single-use within each process, as without a shared store.
+ *
+ * <p>The one step that is not lock-free is wiping an expired bucket for a new epoch. {@link
+ * #prepare} does it a window ahead, off the request path, so inserts normally find their bucket
+ * ready. The wiping process holds a lease on the bucket; another process takes over a wipe whose
+ * lease ran out, so one that died mid-wipe holds the bucket up for seconds, not a whole ring.
+ */
+@Slf4j
+final class MappedNonceStore implements NonceStore {
+
+  private static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+  private static final long MAGIC = 0xDEADBEEF_4E4F4E31L;
+  private static final int RING = 4;
+  // Header and bucket headers take a cache line each, so their words do not share one with slots.
+  private static final int HEADER_BYTES = 64;
+  private static final int STATE = 0;
+  private static final int COUNT = Long.BYTES;
+  // When the wipe in progress may be taken over, in epoch millis; also identifies its owner.
+  private static final int LEASE = 2 * Long.BYTES;
+  private static final int CLEARING = 1;
+  static final long WIPE_LEASE = TimeUnit.SECONDS.toMillis(10);
+  // A wiper checks it still holds the lease every this many bytes.
+  private static final int WIPE_CHECK_BYTES = 1 << 15;
+  // Keeps a bucket under 64 MiB and the whole mapping under the 2 GiB a buffer can address.
+  static final int MAX_CAPACITY = 5 << 20;
+
+  private final MappedByteBuffer buffer;
+  private final long window;
+  private final int capacity;
+  private final int slotMask;
+  private final int bucketBytes;
+  private final LongSupplier clock;
+  private final HeapNonceStore overflow;
+  private volatile boolean overflowed;
+
+  /**
+   * @param file created if missing; every process sharing it must use the same window and capacity
+   * @param window the auth window in milliseconds
+   * @param capacity nonces kept in the file per bucket (one window's worth of token timestamps), at
+   *     most {@link #MAX_CAPACITY}
+   */
+  MappedNonceStore(Path file, long window, int capacity) {
+    this(file, window, capacity, System::currentTimeMillis);
+  }
+
+  MappedNonceStore(Path file, long window, int capacity, LongSupplier clock) {
+    Preconditions.checkArgument(window > 0, "window should be positive: %s", window);
+    Preconditions.checkArgument(capacity > 0, "capacity should be positive: %s", capacity);
+    this.window = window;
+    this.capacity = Math.min(capacity, MAX_CAPACITY);
+    this.clock = clock;
+    this.overflow = new HeapNonceStore(window, this.capacity);
+    // Load factor at most 2/3 keeps probe sequences short.
+    int slots = Integer.highestOneBit(this.capacity + (this.capacity >>> 1)) << 1;
+    this.slotMask = slots - 1;
+    this.bucketBytes = HEADER_BYTES + slots * Long.BYTES;
+    long size = HEADER_BYTES + (long) RING * bucketBytes;
+    try (FileChannel channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // Grows the file with zeroes, which is an empty store; the mapping outlives the channel.
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot map nonce store " + file, e);
+    }
+    claimHeader(0, MAGIC, file);
+    claimHeader(Long.BYTES, window, file);
+    claimHeader(2 * Long.BYTES, slots, file);
+    // Before any insert, so that none finds its bucket mid-wipe.
+    prepare();
+  }
+
+  /** Writes a header word into a new file, or checks an existing file agrees with it. */
+  private void claimHeader(int offset, long expected, Path file) {
+    long current = (long) LONGS.compareAndExchange(buffer, offset, 0L, expected);
+    if (current != 0 && current != expected) {
+      throw new IllegalStateException(
+          "Nonce store " + file + " was created with a different layout or window");
+    }
+  }
+
+  @Override
+  public boolean add(long timestamp, ByteString nonce) {
+    if (nonce.size() != NONCE_LENGTH) {
+      return false;
+    }
+    long fingerprint =
+        NonceStore.readLong(nonce, 0) * 0x9E3779B97F4A7C15L
+            ^ NonceStore.readLong(nonce, Long.BYTES);
+    if (fingerprint == 0) {
+      // Marks an empty slot.
+      return false;
+    }
+    long epoch = Math.floorDiv(timestamp, window);
+    int bucket = bucket(epoch);
+    if (!enter(bucket, epoch, clock.getAsLong())) {
+      return false;
+    }
+    int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & slotMask;
+    if ((long) LONGS.getAndAdd(buffer, bucket + COUNT, 1L) >= capacity) {
+      LONGS.getAndAdd(buffer, bucket + COUNT, -1L);
+      return addOverflow(bucket, slot, fingerprint, timestamp, nonce);
+    }
+    while (true) {
+      int offset = bucket + HEADER_BYTES + slot * Long.BYTES;
+      long stored = (long) LONGS.compareAndExchange(buffer, offset, 0L, fingerprint);
+      if (stored == 0) {
+        break;
+      }
+      if (stored == fingerprint) {
+        LONGS.getAndAdd(buffer, bucket + COUNT, -1L);
+        return false;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+    // A bucket wiped for a newer epoch meanwhile may have lost this entry, but then the token is
+    // too old anyway.
+    return (long) LONGS.getVolatile(buffer, bucket + STATE) == epoch << 1;
+  }
+
+  /** Adds a nonce past the capacity of its bucket, unless the bucket already holds it. */
+  private boolean addOverflow(
+      int bucket, int slot, long fingerprint, long timestamp, ByteString nonce) {
+    // The load factor leaves free slots, so the probe ends.
+    while (true) {
+      long stored = (long) LONGS.getVolatile(buffer, bucket + HEADER_BYTES + slot * Long.BYTES);
+      if (stored == 0) {
+        break;
+      }
+      if (stored == fingerprint) {
+        return false;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+    if (!overflowed) {
+      overflowed = true;
+      log.warn(
+          "Nonce store bucket full at {} nonces; further nonces are single-use per process only,"
+              + " raise the server's authPeakRate",
+          capacity);
+    }
+    return overflow.add(timestamp, nonce);
+  }
+
+  /**
+   * Wipes the expired bucket for the epoch after next, so that inserts find it ready when its
+   * window comes; also readies any other bucket the ring has not reached yet.
+   */
+  @Override
+  public void prepare() {
+    long now = clock.getAsLong();
+    long epoch = Math.floorDiv(now, window);
+    for (long next = epoch - 1; next <= epoch + 2; next++) {
+      enter(bucket(next), next, now);
+    }
+  }
+
+  private int bucket(long epoch) {
+    return HEADER_BYTES + (int) Math.floorMod(epoch, (long) RING) * bucketBytes;
+  }
+
+  /**
+   * Makes sure the bucket holds {@code epoch}, wiping it if it holds an older one. False if it
+   * already moved on to a newer epoch, or another process is still wiping it: only when {@link
+   * #prepare} fell behind, and then the token is turned away rather than waited for.
+   */
+  private boolean enter(int bucket, long epoch, long now) {
+    long ready = epoch << 1;
+    while (true) {
+      long state = (long) LONGS.getVolatile(buffer, bucket + STATE);
+      if (state == ready) {
+        return true;
+      }
+      if (state >> 1 > epoch) {
+        return false;
+      }
+      long lease = claim(epoch, now);
+      if (lease < 0) {
+        return false;
+      }
+      if (lease > 0) {
+        wipe(bucket, lease, ready);
+      }
+    }
+  }
+
+  /**
+   * Claims the wipe of {@code epoch}'s bucket: from an older epoch, or from a wiper whose lease ran
+   * out. The lease taken, 0 if the bucket changed meanwhile, or -1 if a live wiper holds it.
+   */
+  long claim(long epoch, long now) {
+    int bucket = bucket(epoch);
+    long state = (long) LONGS.getVolatile(buffer, bucket + STATE);
+    long lease = (long) LONGS.getVolatile(buffer, bucket + LEASE);
+    if (state >> 1 == epoch && (state & CLEARING) != 0 && now < lease) {
+      return -1;
+    }
+    if (state >> 1 > epoch || state == epoch << 1) {
+      return 0;
+    }
+    if (state >> 1 < epoch
+        && !LONGS.compareAndSet(buffer, bucket + STATE, state, epoch << 1 | CLEARING)) {
+      return 0;
+    }
+    // Whoever swaps the lease owns the wipe; a new lease never equals the one it replaces.
+    long mine = Math.max(now + WIPE_LEASE, lease + 1);
+    return LONGS.compareAndSet(buffer, bucket + LEASE, lease, mine) ? mine : 0;
+  }
+
+  /** Zeroes the bucket and publishes it as {@code ready}, unless its lease is taken over. */
+  private void wipe(int bucket, long lease, long ready) {
+    int end = bucket + bucketBytes;
+    for (int offset = bucket + HEADER_BYTES; offset < end; offset += Long.BYTES) {
+      if ((offset - bucket) % WIPE_CHECK_BYTES == 0
+          && (long) LONGS.getVolatile(buffer, bucket + LEASE) != lease) {
+        return;
+      }
+      buffer.putLong(offset, 0L);
+    }
+    buffer.putLong(bucket + COUNT, 0L);
+    if ((long) LONGS.getVolatile(buffer, bucket + LEASE) == lease) {
+      LONGS.compareAndSet(buffer, bucket + STATE, ready | CLEARING, ready);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package org.deadbeef.auth;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Remembers every 16-byte nonce accepted within the auth window so that each is accepted once.
+ *
+ * <p>Nonces are bucketed by the timestamp of their token: a bucket spans one window, so tokens
+ * still acceptable (timestamp within one window of now) fall into at most three consecutive
+ * buckets, and a ring of four lets the oldest be recycled once nothing in it can be presented
+ * again. Buckets are sized for the expected peak and never forget a nonce early; past that size
+ * they keep accepting fresh nonces, so a busy window costs memory rather than valid tokens.
+ */
+interface NonceStore {
+
+  int NONCE_LENGTH = 16;
+
+  /**
+   * Records {@code nonce} for a token carrying {@code timestamp}, which the caller has already
+   * checked against the window. Returns false for a replay, a nonce that is not {@value
+   * #NONCE_LENGTH} random bytes, or a token whose bucket the ring has already recycled.
+   */
+  boolean add(long timestamp, ByteString nonce);
+
+  /** Readies the store for the windows to come, off the request path; called periodically. */
+  default void prepare() {}
+
+  /** Big-endian {@code long} at {@code offset}, read without copying the bytes out. */
+  static long readLong(ByteString bytes, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + Long.BYTES; i++) {
+      value = (value << Byte.SIZE) | (bytes.byteAt(i) & 0xFF);
+    }
+    return value;
+  }
+}
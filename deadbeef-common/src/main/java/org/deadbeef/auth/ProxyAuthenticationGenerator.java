@@ -1,11 +1,11 @@
 package org.deadbeef.auth;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.CharStreams;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
@@ -17,11 +17,13 @@ import org.apache.commons.lang3.StringUtils;
 import org.deadbeef.protocol.HttpProto;
 
 @SuppressWarnings("UnstableApiUsage")
-public final class ProxyAuthenticationGenerator implements Supplier<HttpProto.ProxyAuthentication> {
+public final class ProxyAuthenticationGenerator
+    implements Supplier<HttpProto.ProxyAuthentication>, ProxyAuthenticationSource {
 
   private static final int NONCE_LEN = 16;
   private final String secretId;
-  private final HashFunction sha256;
+  private final byte[] secretIdBytes;
+  private final SigningKey key;
 
   private final LongSupplier clock;
 
@@ -30,7 +32,8 @@ public final class ProxyAuthenticationGenerator implements Supplier<HttpProto.Pr
     Preconditions.checkArgument(StringUtils.isNotEmpty(secretKey), "empty secretKey");
     Preconditions.checkNotNull(clock, "null clock");
     this.secretId = secretId;
-    this.sha256 = Hashing.hmacSha256(secretKey.getBytes(StandardCharsets.UTF_8));
+    this.secretIdBytes = secretId.getBytes(StandardCharsets.UTF_8);
+    this.key = new SigningKey(secretKey.getBytes(StandardCharsets.UTF_8));
     this.clock = clock;
   }
 
@@ -38,6 +41,8 @@ public final class ProxyAuthenticationGenerator implements Supplier<HttpProto.Pr
     this(secretId, secretKey, System::currentTimeMillis);
   }
 
+  /** The signature as computed before {@link SigningKey}; the reference its output must match. */
+  @VisibleForTesting
   static byte[] signature(String secretId, long timestamp, byte[] nonce, HashFunction function) {
     return function
         .newHasher()
@@ -53,17 +58,24 @@ public final class ProxyAuthenticationGenerator implements Supplier<HttpProto.Pr
     byte[] nonce = new byte[NONCE_LEN];
     Holder.RANDOM.nextBytes(nonce);
     long timestamp = clock.getAsLong();
-    byte[] signature = signature(secretId, timestamp, nonce, sha256);
+    byte[] signature = key.sign(secretIdBytes, timestamp, nonce);
+    // Both arrays are fresh and never touched again, so the message can own them.
     return HttpProto.ProxyAuthentication.newBuilder()
         .setSecretId(secretId)
         .setTimestamp(timestamp)
-        .setNonce(ByteString.copyFrom(nonce))
-        .setSignature(ByteString.copyFrom(signature))
+        .setNonce(UnsafeByteOperations.unsafeWrap(nonce))
+        .setSignature(UnsafeByteOperations.unsafeWrap(signature))
+        .setKeyId(key.keyId())
         .build();
   }
 
+  @Override
   public String getString() {
-    HttpProto.ProxyAuthentication proxyAuthentication = get();
+    return encode(get());
+  }
+
+  /** The header value carrying {@code proxyAuthentication}. */
+  static String encode(HttpProto.ProxyAuthentication proxyAuthentication) {
     StringBuilder builder = new StringBuilder(128);
     try (Writer writer = CharStreams.asWriter(builder)) {
       try (OutputStream outputStream = BaseEncoding.base64Url().encodingStream(writer)) {
@@ -0,0 +1,136 @@
+package org.deadbeef.auth;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.deadbeef.protocol.HttpProto;
+
+/**
+ * Tokens made ahead of time by a background thread, so that the event loop only pops a ready string
+ * instead of drawing from {@code SecureRandom}, signing and encoding on the spot (see {@code
+ * SecurityRandomBenchmark} for what the random bytes alone cost under contention).
+ *
+ * <p>Taking a token below half capacity wakes the refiller, which tops the pool up in one batch.
+ * Tokens older than {@code maxAge} are dropped rather than handed out, so that a token spends at
+ * most that much of the server's auth window in the pool. An empty pool never blocks: the caller
+ * then makes its own token, as it did before.
+ */
+@Slf4j
+public final class ProxyAuthenticationPool implements ProxyAuthenticationSource, Closeable {
+
+  private final ProxyAuthenticationGenerator generator;
+  private final BlockingQueue<Token> tokens;
+  private final int lowWatermark;
+  private final long maxAge;
+  private final LongSupplier clock;
+  private final ExecutorService refiller;
+  private final AtomicBoolean refillPending = new AtomicBoolean();
+
+  public ProxyAuthenticationPool(
+      @NonNull ProxyAuthenticationGenerator generator, int capacity, long maxAgeMillis) {
+    this(
+        generator,
+        capacity,
+        maxAgeMillis,
+        System::currentTimeMillis,
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("deadbeef-auth-prefetch")
+                .setDaemon(true)
+                .build()));
+  }
+
+  ProxyAuthenticationPool(
+      ProxyAuthenticationGenerator generator,
+      int capacity,
+      long maxAgeMillis,
+      LongSupplier clock,
+      ExecutorService refiller) {
+    Preconditions.checkArgument(capacity > 1, "capacity should be at least 2: %s", capacity);
+    Preconditions.checkArgument(maxAgeMillis > 0, "maxAge should be positive: %s", maxAgeMillis);
+    this.generator = generator;
+    this.tokens = new ArrayBlockingQueue<>(capacity);
+    this.lowWatermark = capacity / 2;
+    this.maxAge = maxAgeMillis;
+    this.clock = clock;
+    this.refiller = refiller;
+    requestRefill();
+  }
+
+  @Override
+  public String getString() {
+    long now = clock.getAsLong();
+    Token token;
+    while ((token = tokens.poll()) != null && now - token.timestamp > maxAge) {
+      // Stale: the pool sat idle. Everything behind it is younger, so keep looking.
+    }
+    if (tokens.size() < lowWatermark) {
+      requestRefill();
+    }
+    return token != null ? token.value : generator.getString();
+  }
+
+  /** Tokens ready to be handed out, stale ones included. */
+  int size() {
+    return tokens.size();
+  }
+
+  private void requestRefill() {
+    if (refillPending.compareAndSet(false, true)) {
+      try {
+        refiller.execute(this::refill);
+      } catch (RejectedExecutionException e) {
+        // Closed: callers fall back to making their own tokens.
+        refillPending.set(false);
+      }
+    }
+  }
+
+  private void refill() {
+    try {
+      while (!refiller.isShutdown() && tokens.remainingCapacity() > 0) {
+        HttpProto.ProxyAuthentication token = generator.get();
+        if (!tokens.offer(
+            new Token(ProxyAuthenticationGenerator.encode(token), token.getTimestamp()))) {
+          break;
+        }
+      }
+    } catch (RuntimeException e) {
+      log.warn("Failed to prefetch proxy authentication tokens", e);
+    } finally {
+      refillPending.set(false);
+    }
+  }
+
+  @Override
+  public void close() {
+    refiller.shutdownNow();
+    try {
+      refiller.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    tokens.clear();
+  }
+
+  private static final class Token {
+
+    final String value;
+    final long timestamp;
+
+    Token(String value, long timestamp) {
+      this.value = value;
+      this.timestamp = timestamp;
+    }
+  }
+}
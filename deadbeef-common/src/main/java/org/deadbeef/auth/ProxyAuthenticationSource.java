@@ -0,0 +1,8 @@
+package org.deadbeef.auth;
+
+/** Hands out proxy authentication header values, each good for exactly one request. */
+public interface ProxyAuthenticationSource {
+
+  /** A fresh token, base64url-encoded for the auth header. */
+  String getString();
+}
@@ -1,39 +1,59 @@
 package org.deadbeef.auth;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ListMultimap;
-import com.google.common.hash.HashFunction;
+import com.google.common.collect.Multimaps;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.deadbeef.protocol.HttpProto;
 
+@Slf4j
 public final class ProxyAuthenticationValidator
     implements Predicate<HttpProto.ProxyAuthentication> {
 
   private static final long MAX_TIME_DELTA = TimeUnit.MINUTES.toMillis(10);
-  private final ConcurrentMap<NonceKey, Boolean> nonceCache =
-      Caffeine.newBuilder()
-          .expireAfterWrite(2 * MAX_TIME_DELTA + (MAX_TIME_DELTA >> 1), TimeUnit.MILLISECONDS)
-          .maximumSize(1L << 18)
-          .<NonceKey, Boolean>build()
-          .asMap();
-  private final ListMultimap<String, HashFunction> storedMap;
 
-  private ProxyAuthenticationValidator(ListMultimap<String, HashFunction> storedMap) {
-    this.storedMap = storedMap;
+  /** Tokens per second a secretId is expected to present at peak, unless configured. */
+  public static final int DEFAULT_PEAK_RATE = 500;
+
+  private final Function<String, NonceStore> nonceStores;
+  // Swapped whole by reload; a verification in progress finishes against the map it started with.
+  private volatile Map<String, Credential> credentials;
+
+  private ProxyAuthenticationValidator(
+      ListMultimap<String, SigningKey> storedMap, Function<String, NonceStore> nonceStores) {
+    this.nonceStores = nonceStores;
+    this.credentials = credentials(storedMap, ImmutableMap.of());
+  }
+
+  private ProxyAuthenticationValidator(ListMultimap<String, SigningKey> storedMap, int peakRate) {
+    this(storedMap, secretId -> new HeapNonceStore(MAX_TIME_DELTA, nonceCapacity(peakRate)));
+  }
+
+  /** Nonces per window-sized bucket of token timestamps at {@code peakRate} tokens per second. */
+  private static int nonceCapacity(int peakRate) {
+    Preconditions.checkArgument(peakRate > 0, "peakRate should be positive: %s", peakRate);
+    return (int)
+        Math.min(Integer.MAX_VALUE, peakRate * TimeUnit.MILLISECONDS.toSeconds(MAX_TIME_DELTA));
   }
 
   public static ProxyAuthenticationValidator simple(String secretId, String secretKey) {
@@ -42,7 +62,8 @@ public final class ProxyAuthenticationValidator
         StringUtils.isNotEmpty(secretKey), "empty secretKey for secretId: %s", secretId);
     return new ProxyAuthenticationValidator(
         ImmutableListMultimap.of(
-            secretId, Hashing.hmacSha256(secretKey.getBytes(StandardCharsets.UTF_8))));
+            secretId, new SigningKey(secretKey.getBytes(StandardCharsets.UTF_8))),
+        DEFAULT_PEAK_RATE);
   }
 
   public static ProxyAuthenticationValidator fromMap(@NonNull Map<String, String> map) {
@@ -51,7 +72,77 @@ public final class ProxyAuthenticationValidator
 
   public static ProxyAuthenticationValidator fromEntries(
       @NonNull Iterable<? extends Map.Entry<String, String>> iterable) {
-    ImmutableListMultimap.Builder<String, HashFunction> builder = ImmutableListMultimap.builder();
+    return fromEntries(iterable, DEFAULT_PEAK_RATE);
+  }
+
+  /**
+   * Like {@link #fromEntries(Iterable)}, with each secretId's nonce store sized for {@code
+   * peakRate} tokens per second. A busier secretId still authenticates, at the cost of memory.
+   */
+  public static ProxyAuthenticationValidator fromEntries(
+      @NonNull Iterable<? extends Map.Entry<String, String>> iterable, int peakRate) {
+    return new ProxyAuthenticationValidator(toKeys(iterable), peakRate);
+  }
+
+  /**
+   * Like {@link #fromEntries(Iterable)}, but remembers accepted nonces in files under {@code
+   * nonceDirectory}, one per secretId, which every process using the same directory shares. Lets
+   * several server processes share a port without a token being replayable once per process.
+   */
+  public static ProxyAuthenticationValidator fromEntries(
+      @NonNull Iterable<? extends Map.Entry<String, String>> iterable,
+      @NonNull Path nonceDirectory) {
+    return fromEntries(iterable, nonceDirectory, DEFAULT_PEAK_RATE);
+  }
+
+  /**
+   * Like {@link #fromEntries(Iterable, Path)}, sized for {@code peakRate} as in {@link
+   * #fromEntries(Iterable, int)}; every process sharing the directory must use the same rate.
+   */
+  public static ProxyAuthenticationValidator fromEntries(
+      @NonNull Iterable<? extends Map.Entry<String, String>> iterable,
+      @NonNull Path nonceDirectory,
+      int peakRate) {
+    int capacity = nonceCapacity(peakRate);
+    try {
+      Files.createDirectories(nonceDirectory);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot create nonce store directory " + nonceDirectory, e);
+    }
+    ProxyAuthenticationValidator validator =
+        new ProxyAuthenticationValidator(
+            toKeys(iterable),
+            secretId ->
+                new MappedNonceStore(
+                    nonceDirectory.resolve(
+                        Hashing.sha256().hashString(secretId, StandardCharsets.UTF_8) + ".nonces"),
+                    MAX_TIME_DELTA,
+                    capacity));
+    // Wipes each store's next bucket well before its window, so no request ever waits for it.
+    Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("deadbeef-nonce-wiper")
+                .setDaemon(true)
+                .build())
+        .scheduleWithFixedDelay(
+            validator::prepareNonceStores, 0, MAX_TIME_DELTA / 10, TimeUnit.MILLISECONDS);
+    return validator;
+  }
+
+  private void prepareNonceStores() {
+    for (Credential credential : credentials.values()) {
+      try {
+        credential.nonces.prepare();
+      } catch (RuntimeException e) {
+        // Thrown out of the task, it would cancel every later run.
+        log.warn("Failed to prepare the nonce store", e);
+      }
+    }
+  }
+
+  private static ListMultimap<String, SigningKey> toKeys(
+      Iterable<? extends Map.Entry<String, String>> iterable) {
+    ImmutableListMultimap.Builder<String, SigningKey> builder = ImmutableListMultimap.builder();
     for (Map.Entry<String, String> entry : iterable) {
       Preconditions.checkArgument(StringUtils.isNotEmpty(entry.getKey()), "empty secretId!");
       Preconditions.checkArgument(
@@ -59,93 +150,113 @@ public final class ProxyAuthenticationValidator
           "empty secretKey for secretId: %s",
           entry.getKey());
       builder.put(
-          entry.getKey(), Hashing.hmacSha256(entry.getValue().getBytes(StandardCharsets.UTF_8)));
+          entry.getKey(), new SigningKey(entry.getValue().getBytes(StandardCharsets.UTF_8)));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Replaces the accepted keys with {@code iterable} without interrupting verification. A secretId
+   * that stays keeps its nonce store, so tokens it already accepted remain replays.
+   */
+  public synchronized void reload(@NonNull Iterable<? extends Map.Entry<String, String>> iterable) {
+    this.credentials = credentials(toKeys(iterable), credentials);
+  }
+
+  private Map<String, Credential> credentials(
+      ListMultimap<String, SigningKey> storedMap, Map<String, Credential> previous) {
+    ImmutableMap.Builder<String, Credential> builder = ImmutableMap.builder();
+    for (Map.Entry<String, List<SigningKey>> entry : Multimaps.asMap(storedMap).entrySet()) {
+      String secretId = entry.getKey();
+      Credential existing = previous.get(secretId);
+      NonceStore nonces = existing != null ? existing.nonces : nonceStores.apply(secretId);
+      builder.put(secretId, new Credential(secretId, entry.getValue(), nonces));
     }
-    return new ProxyAuthenticationValidator(builder.build());
+    return builder.build();
+  }
+
+  /** Whether {@code secretId} is among the currently accepted ones, i.e. not reloaded away. */
+  public boolean knows(String secretId) {
+    return secretId != null && credentials.containsKey(secretId);
   }
 
   public boolean testString(String input) {
+    return authenticate(input) != null;
+  }
+
+  /** Verifies {@code input} like {@link #testString}; the secretId it proved, or null. */
+  public String authenticate(String input) {
     if (StringUtils.isEmpty(input) || !BaseEncoding.base64Url().canDecode(input)) {
-      return false;
+      return null;
     }
     byte[] bytes = BaseEncoding.base64Url().decode(input);
     HttpProto.ProxyAuthentication proxyAuthentication;
     try {
       proxyAuthentication = HttpProto.ProxyAuthentication.parseFrom(bytes);
     } catch (InvalidProtocolBufferException ignore) {
-      return false;
+      return null;
     }
 
-    return test(proxyAuthentication);
-  }
-
-  private boolean isNonceNeverSeen(String secretId, byte[] nonce) {
-    return nonceCache.putIfAbsent(new NonceKey(secretId, nonce), Boolean.TRUE) == null;
+    return verifiedSecretId(proxyAuthentication);
   }
 
   @Override
   public boolean test(HttpProto.ProxyAuthentication proxyAuthentication) {
+    return verifiedSecretId(proxyAuthentication) != null;
+  }
+
+  private String verifiedSecretId(HttpProto.ProxyAuthentication proxyAuthentication) {
     if (proxyAuthentication == null) {
-      return false;
+      return null;
     }
     long timestamp;
     if (!proxyAuthentication.hasTimestamp()
         || Math.abs((timestamp = proxyAuthentication.getTimestamp()) - System.currentTimeMillis())
             > MAX_TIME_DELTA) {
-      return false;
+      return null;
     }
 
     String secretId;
     if (!proxyAuthentication.hasSecretId()
         || StringUtils.isEmpty(secretId = proxyAuthentication.getSecretId())) {
-      return false;
+      return null;
     }
 
     if (!proxyAuthentication.hasNonce() || proxyAuthentication.getNonce().isEmpty()) {
-      return false;
+      return null;
     }
     if (!proxyAuthentication.hasSignature() || proxyAuthentication.getSignature().isEmpty()) {
-      return false;
+      return null;
     }
-    byte[] nonce = proxyAuthentication.getNonce().toByteArray();
-    byte[] signature = proxyAuthentication.getSignature().toByteArray();
-    List<HashFunction> hashFunctions = storedMap.get(secretId);
-    if (hashFunctions.isEmpty()) {
-      return false;
+    Credential credential = credentials.get(secretId);
+    if (credential == null) {
+      return null;
     }
-    for (HashFunction function : hashFunctions) {
-      if (MessageDigest.isEqual(
-          signature,
-          ProxyAuthenticationGenerator.signature(secretId, timestamp, nonce, function))) {
-        return isNonceNeverSeen(secretId, nonce);
+    ByteString nonce = proxyAuthentication.getNonce();
+    ByteString signature = proxyAuthentication.getSignature();
+    boolean hinted = proxyAuthentication.hasKeyId();
+    int keyId = proxyAuthentication.getKeyId();
+    for (SigningKey key : credential.keys) {
+      // Tokens from older generators carry no hint and are tried against every key.
+      if ((!hinted || key.keyId() == keyId)
+          && key.verify(credential.secretId, timestamp, nonce, signature)) {
+        return credential.nonces.add(timestamp, nonce) ? secretId : null;
       }
     }
-    return false;
+    return null;
   }
 
-  private static final class NonceKey {
-    private final String secretId;
-    private final byte[] nonce;
+  private static final class Credential {
 
-    NonceKey(String secretId, byte[] nonce) {
-      this.secretId = secretId;
-      this.nonce = nonce;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) {
-        return true;
-      }
-      if (!(o instanceof NonceKey that)) {
-        return false;
-      }
-      return secretId.equals(that.secretId) && Arrays.equals(nonce, that.nonce);
-    }
+    final byte[] secretId;
+    final List<SigningKey> keys;
+    // Nonces are single-use per (secretId, nonce).
+    final NonceStore nonces;
 
-    @Override
-    public int hashCode() {
-      return secretId.hashCode() * 31 + Arrays.hashCode(nonce);
+    Credential(String secretId, List<SigningKey> keys, NonceStore nonces) {
+      this.secretId = secretId.getBytes(StandardCharsets.UTF_8);
+      this.keys = keys;
+      this.nonces = nonces;
     }
   }
 }
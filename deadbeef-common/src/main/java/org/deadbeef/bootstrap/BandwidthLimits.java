@@ -0,0 +1,43 @@
+package org.deadbeef.bootstrap;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+
+/**
+ * Byte rates CONNECT tunnels are shaped to, each applied to either direction separately: for the
+ * whole process, for each secretId, and for each tunnel. A tunnel is held to the tightest of the
+ * three. Any rate of 0 leaves that level unlimited.
+ */
+@Getter
+public final class BandwidthLimits {
+
+  private long globalBytesPerSecond;
+
+  /** Server only: the client has a single secretId, so its global rate is its per-user rate. */
+  private long perUserBytesPerSecond;
+
+  private long perTunnelBytesPerSecond;
+
+  /** How long a rested level may send faster than its rate before it is held back. */
+  private int burstMillis = 250;
+
+  public BandwidthLimits() {}
+
+  public BandwidthLimits(long global, long perUser, long perTunnel) {
+    this.globalBytesPerSecond = global;
+    this.perUserBytesPerSecond = perUser;
+    this.perTunnelBytesPerSecond = perTunnel;
+  }
+
+  public boolean limitsAny() {
+    return globalBytesPerSecond > 0 || perUserBytesPerSecond > 0 || perTunnelBytesPerSecond > 0;
+  }
+
+  public void verify() {
+    Preconditions.checkArgument(
+        globalBytesPerSecond >= 0 && perUserBytesPerSecond >= 0 && perTunnelBytesPerSecond >= 0,
+        "Negative rate in `bandwidth`");
+    Preconditions.checkArgument(
+        burstMillis > 0, "Illegal value for field `bandwidth.burstMillis`: %s", burstMillis);
+  }
+}
@@ -94,6 +94,16 @@ public final class Bootstrap {
   }
 
   public static <C extends ProxyConfig> C loadCommandLineConfig(String[] args, Class<C> type) {
+    C config = loadYamlFileConfig(commandLineConfigPath(args), type);
+    config.verify();
+    if (log.isDebugEnabled()) {
+      log.debug("Load config successfully:{}{}", Constants.lineSeparator(), config);
+    }
+    return config;
+  }
+
+  /** The {@code -c} argument, for callers that watch the config file for changes. */
+  public static String commandLineConfigPath(String[] args) {
     CLI cli =
         CLI.create("deadbeef")
             .addOption(
@@ -105,24 +115,22 @@ public final class Bootstrap {
                     .setArgName("config-path"));
 
     CommandLine commandLine = cli.parse(Arrays.asList(args), true);
-    C config = loadYamlFileConfig(commandLine.getOptionValue("c"), type);
-    config.verify();
-    if (log.isDebugEnabled()) {
-      log.debug("Load config successfully:{}{}", Constants.lineSeparator(), config);
-    }
-    return config;
+    return commandLine.getOptionValue("c");
   }
 
   public static <A extends ProxyVerticle<C>, C extends ProxyConfig> void deploy(
       @NonNull Vertx vertx, @NonNull Function<C, A> factory, @NonNull C config) {
     log.info("Native transport enable status: {}", vertx.isNativeTransportEnabled());
+    int instances = ProxyConfig.instancesOrDefault(config.getInstances());
+    // The factory runs once per instance; anything that must stay process-wide (metrics, nonce
+    // cache, route matchers, ...) has to be created outside of it and captured by the factory.
     vertx.deployVerticle(
         () -> factory.apply(config),
-        new DeploymentOptions(),
+        new DeploymentOptions().setInstances(instances),
         result -> {
           String deployID = result.result();
           if (result.succeeded()) {
-            log.info("Deploy verticle successfully: {}", deployID);
+            log.info("Deploy {} verticle instance(s) successfully: {}", instances, deployID);
           } else {
             log.error("Deploy verticle with unexpected exception: ", result.cause());
           }
@@ -0,0 +1,91 @@
+package org.deadbeef.bootstrap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Calls {@code onChange} on its own daemon thread whenever one of the watched files changes, so
+ * that reloading (parsing, compiling, key derivation) never runs on an event loop.
+ *
+ * <p>Polls modification time and size rather than using a {@code WatchService}: editors and config
+ * management tools replace files by rename, which directory watches report unreliably across
+ * platforms, and a reload a few seconds late costs nothing. A failing {@code onChange} is logged
+ * and the previous state stays in place until the next change.
+ */
+@Slf4j
+public final class FileWatcher implements Closeable {
+
+  private final List<Path> files;
+  private final Runnable onChange;
+  private final ScheduledExecutorService executor;
+  // Touched by the watcher thread only.
+  private List<Object> lastSeen;
+
+  public FileWatcher(@NonNull List<Path> files, long periodMillis, @NonNull Runnable onChange) {
+    Preconditions.checkArgument(!files.isEmpty(), "no files to watch");
+    Preconditions.checkArgument(periodMillis > 0, "period should be positive: %s", periodMillis);
+    this.files = ImmutableList.copyOf(files);
+    this.onChange = onChange;
+    this.lastSeen = snapshot();
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("deadbeef-file-watcher")
+                .setDaemon(true)
+                .build());
+    executor.scheduleWithFixedDelay(this::poll, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Modification time and size of every file, or null for one that cannot be read right now. */
+  private List<Object> snapshot() {
+    List<Object> attributes = new ArrayList<>(files.size() * 2);
+    for (Path file : files) {
+      try {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        attributes.add(attrs.lastModifiedTime());
+        attributes.add(attrs.size());
+      } catch (IOException e) {
+        attributes.add(null);
+        attributes.add(null);
+      }
+    }
+    return attributes;
+  }
+
+  private void poll() {
+    List<Object> current = snapshot();
+    if (Objects.equals(current, lastSeen)) {
+      return;
+    }
+    lastSeen = current;
+    if (current.contains(null)) {
+      // Mid-replacement or deleted: wait for the file to come back rather than load half of it.
+      return;
+    }
+    log.info("Change detected in {}, reloading", files);
+    try {
+      onChange.run();
+    } catch (RuntimeException e) {
+      log.error("Reload failed, keeping the previous state: ", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -16,8 +16,24 @@ public interface ProxyConfig {
         StringUtils.isNotBlank(value), "Field `%s` should not blank!", name);
   }
 
+  static void verifyInstances(Integer instances) {
+    Preconditions.checkArgument(
+        instances == null || instances > 0, "Illegal value for field `instances`: %s", instances);
+  }
+
+  /**
+   * Number of verticle instances to deploy, every one of them listening on the same port. Falls
+   * back to one instance per available processor when the config leaves it unset.
+   */
+  static int instancesOrDefault(Integer instances) {
+    return instances != null ? instances : Runtime.getRuntime().availableProcessors();
+  }
+
   Boolean getPreferNativeTransport();
 
+  /** Verticle instances to deploy; {@code null} means one per available processor. */
+  Integer getInstances();
+
   List<String> getAddressResolver();
 
   void verify();
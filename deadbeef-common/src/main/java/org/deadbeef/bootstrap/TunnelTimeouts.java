@@ -0,0 +1,66 @@
+package org.deadbeef.bootstrap;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+
+/**
+ * When a CONNECT tunnel is given up on: idle limits for each direction, enforced by the tunnel
+ * reaper, and the TCP keepalive and {@code TCP_USER_TIMEOUT} set on its sockets so the kernel
+ * notices a peer that is gone. Any value of 0 turns that check off.
+ */
+@Getter
+public final class TunnelTimeouts {
+
+  /**
+   * A tunnel is closed once each side with a limit has sent nothing for it; a side at 0 never keeps
+   * it open. Both are 0 by default, as a quiet tunnel is often a healthy one (IMAP IDLE, push
+   * channels, an idle SSH session).
+   */
+  private int clientIdleSeconds;
+
+  private int upstreamIdleSeconds;
+
+  private int keepAliveIdleSeconds = 60;
+  private int keepAliveIntervalSeconds = 15;
+  private int keepAliveCount = 4;
+
+  /**
+   * How long sent data may stay unacknowledged before the connection is dropped; by default the
+   * time keepalive takes to give up, so both agree on when a peer is dead.
+   */
+  private int userTimeoutSeconds = 120;
+
+  public TunnelTimeouts() {}
+
+  public TunnelTimeouts(int clientIdleSeconds, int upstreamIdleSeconds) {
+    this.clientIdleSeconds = clientIdleSeconds;
+    this.upstreamIdleSeconds = upstreamIdleSeconds;
+  }
+
+  /** The config's timeouts, or the defaults when it leaves them unset. */
+  public static TunnelTimeouts orDefault(TunnelTimeouts timeouts) {
+    return timeouts != null ? timeouts : new TunnelTimeouts();
+  }
+
+  public boolean reapsIdle() {
+    return clientIdleSeconds > 0 || upstreamIdleSeconds > 0;
+  }
+
+  public boolean keepsAlive() {
+    return keepAliveIdleSeconds > 0;
+  }
+
+  public void verify() {
+    Preconditions.checkArgument(
+        clientIdleSeconds >= 0
+            && upstreamIdleSeconds >= 0
+            && keepAliveIdleSeconds >= 0
+            && keepAliveIntervalSeconds >= 0
+            && keepAliveCount >= 0
+            && userTimeoutSeconds >= 0,
+        "Negative value in `tunnelTimeouts`");
+    Preconditions.checkArgument(
+        !keepsAlive() || (keepAliveIntervalSeconds > 0 && keepAliveCount > 0),
+        "`tunnelTimeouts` keepalive needs `keepAliveIntervalSeconds` and `keepAliveCount`");
+  }
+}
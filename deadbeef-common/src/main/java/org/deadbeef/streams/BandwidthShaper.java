@@ -0,0 +1,86 @@
+package org.deadbeef.streams;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import lombok.NonNull;
+import org.deadbeef.bootstrap.BandwidthLimits;
+
+/**
+ * Shapes CONNECT tunnels to {@link BandwidthLimits} with a tree of {@link TokenBucket}s per
+ * direction: the process-wide bucket, one per secretId under it, and one per tunnel under that.
+ * Every chunk a tunnel's {@link EventLoopPipe} reads is charged up the tree, and when any level is
+ * in debt the pipe pauses its source until it is not. One user's bulk download thus waits on its
+ * own bucket before it can drain the global one that everybody else's tunnels share.
+ *
+ * <p>Create one per process. Shaped tunnels are never spliced in the kernel, since there is no pipe
+ * there to pause. Pipes of factories other than the built-in ones are not shaped.
+ */
+public final class BandwidthShaper {
+
+  private final BandwidthLimits limits;
+  private final long burstNanos;
+  private final TokenBucket globalUp;
+  private final TokenBucket globalDown;
+  private final Map<String, TokenBucket[]> users = new ConcurrentHashMap<>();
+
+  public BandwidthShaper(@NonNull BandwidthLimits limits) {
+    this.limits = limits;
+    this.burstNanos = TimeUnit.MILLISECONDS.toNanos(limits.getBurstMillis());
+    this.globalUp = new TokenBucket(limits.getGlobalBytesPerSecond(), burstNanos, null);
+    this.globalDown = new TokenBucket(limits.getGlobalBytesPerSecond(), burstNanos, null);
+  }
+
+  /**
+   * Pipes for one tunnel's client → upstream direction.
+   *
+   * @param user the tunnel's secretId, or null to skip the per-user level
+   * @param pipes the factory the tunnel would use unshaped
+   */
+  public PipeFactory clientToUpstream(String user, @NonNull PipeFactory pipes) {
+    return shape(pipes, user, globalUp, 0);
+  }
+
+  /** Same as {@link #clientToUpstream}, for the upstream → client direction. */
+  public PipeFactory upstreamToClient(String user, @NonNull PipeFactory pipes) {
+    return shape(pipes, user, globalDown, 1);
+  }
+
+  /**
+   * Drops the buckets of every secretId {@code live} no longer accepts, e.g. after an auth reload.
+   * Tunnels already shaped by them keep them; a secretId that comes back starts afresh.
+   */
+  public void retainUsers(@NonNull Predicate<String> live) {
+    users.keySet().removeIf(user -> !live.test(user));
+  }
+
+  int users() {
+    return users.size();
+  }
+
+  private PipeFactory shape(PipeFactory pipes, String user, TokenBucket global, int direction) {
+    if (!limits.limitsAny()) {
+      return pipes;
+    }
+    TokenBucket parent = global;
+    if (user != null && limits.getPerUserBytesPerSecond() > 0) {
+      parent = users.computeIfAbsent(user, this::userBuckets)[direction];
+    }
+    TokenBucket tunnel = new TokenBucket(limits.getPerTunnelBytesPerSecond(), burstNanos, parent);
+    if (pipes instanceof DefaultPipeFactory factory) {
+      return factory.shaped(tunnel);
+    }
+    if (pipes instanceof MetricPipeFactory factory) {
+      return factory.shaped(tunnel);
+    }
+    return pipes;
+  }
+
+  private TokenBucket[] userBuckets(String user) {
+    long rate = limits.getPerUserBytesPerSecond();
+    return new TokenBucket[] {
+      new TokenBucket(rate, burstNanos, globalUp), new TokenBucket(rate, burstNanos, globalDown)
+    };
+  }
+}
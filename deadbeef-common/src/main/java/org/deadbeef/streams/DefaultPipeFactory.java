@@ -3,17 +3,26 @@ package org.deadbeef.streams;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.streams.Pipe;
 import io.vertx.core.streams.ReadStream;
-import io.vertx.core.streams.impl.PipeImpl;
 import lombok.NonNull;
 
 public final class DefaultPipeFactory implements PipeFactory {
 
   private final boolean endOnSuccess;
   private final boolean endOnFailure;
+  private final long flushWindowNanos;
 
-  public DefaultPipeFactory(boolean endOnSuccess, boolean endOnFailure) {
+  /**
+   * @param flushWindowMicros coalesce the flushes of socket destinations within this window (0: one
+   *     event-loop iteration, see {@link FlushCoalescer}); null to flush every write
+   */
+  public DefaultPipeFactory(boolean endOnSuccess, boolean endOnFailure, Integer flushWindowMicros) {
     this.endOnSuccess = endOnSuccess;
     this.endOnFailure = endOnFailure;
+    this.flushWindowNanos = FlushCoalescer.windowNanos(flushWindowMicros);
+  }
+
+  public DefaultPipeFactory(boolean endOnSuccess, boolean endOnFailure) {
+    this(endOnSuccess, endOnFailure, null);
   }
 
   public DefaultPipeFactory() {
@@ -22,6 +31,13 @@ public final class DefaultPipeFactory implements PipeFactory {
 
   @Override
   public Pipe<Buffer> newPipe(@NonNull ReadStream<Buffer> src) {
-    return new PipeImpl<>(src).endOnSuccess(endOnSuccess).endOnFailure(endOnFailure);
+    return new EventLoopPipe(src, null)
+        .coalesceFlushes(flushWindowNanos)
+        .endOnSuccess(endOnSuccess)
+        .endOnFailure(endOnFailure);
+  }
+
+  PipeFactory shaped(TokenBucket bucket) {
+    return new ShapedPipeFactory(bucket, null, null, endOnSuccess, endOnFailure, flushWindowNanos);
   }
 }
@@ -0,0 +1,287 @@
+package org.deadbeef.streams;
+
+import com.codahale.metrics.Meter;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxException;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.Pipe;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import lombok.NonNull;
+import org.deadbeef.util.Utils;
+
+/**
+ * The pipe behind every {@link PipeFactory}: Vert.x's {@code PipeImpl} semantics, confined to the
+ * event loop that created it, so nothing in it is locked or volatile.
+ *
+ * <p>A chunk costs no allocation here: the data, drain and write-result handlers are created once
+ * per pipe, and the write-result handler only acts on a failure. Bytes are added up in a plain
+ * field and marked on the optional {@link Meter} and {@link #tally}, and charged to the optional
+ * {@link TokenBucket}, once per event-loop tick rather than once per chunk, and always before the
+ * completion handler runs. Without a Vert.x context, as in plain unit tests, each chunk is counted
+ * at once.
+ *
+ * <p>The destination's write queue is sized per pipe by a {@link WriteQueueTuner}, starting from
+ * Vert.x's default. A shaped pipe pauses the source while its bucket is in debt; its queue is not
+ * tuned, as the rate and not the destination is what holds it back.
+ *
+ * <p>A pipe told to {@link #coalesceFlushes} installs a {@link FlushCoalescer} on a socket
+ * destination, so that a burst of small chunks leaves it in few syscalls.
+ */
+final class EventLoopPipe implements Pipe<Buffer> {
+
+  private static final long MIN_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final ReadStream<Buffer> src;
+  private final Meter meter;
+  private final Context context;
+  private final Handler<Buffer> onData = this::onData;
+  private final Handler<Void> onDrain = this::onDrain;
+  private final Handler<AsyncResult<Void>> onWriteResult = this::onWriteResult;
+  private final Handler<Void> flush = this::flush;
+  private final Handler<Long> onTokens = this::onTokens;
+  private final TokenBucket bucket;
+  private final WriteQueueTuner tuner;
+  private boolean endOnSuccess = true;
+  private boolean endOnFailure = true;
+  private long flushWindowNanos = -1;
+  private LongConsumer tally;
+  private WriteStream<Buffer> dst;
+  private Handler<AsyncResult<Void>> completionHandler;
+  private boolean completed;
+  private Throwable failure;
+  private boolean writeFailed;
+  private long piped;
+  private long uncounted;
+  private boolean flushScheduled;
+  private boolean awaitingDrain;
+  private boolean awaitingTokens;
+
+  /**
+   * @param meter marked with the bytes piped, or null for none
+   */
+  EventLoopPipe(@NonNull ReadStream<Buffer> src, Meter meter) {
+    this(src, meter, null);
+  }
+
+  /**
+   * @param meter marked with the bytes piped, or null for none
+   * @param bucket charged with the bytes piped, or null for an unshaped pipe
+   */
+  EventLoopPipe(@NonNull ReadStream<Buffer> src, Meter meter, TokenBucket bucket) {
+    this(src, meter, bucket, bucket == null ? new WriteQueueTuner() : null);
+  }
+
+  EventLoopPipe(
+      @NonNull ReadStream<Buffer> src, Meter meter, TokenBucket bucket, WriteQueueTuner tuner) {
+    this.src = src;
+    this.meter = meter;
+    this.bucket = bucket;
+    this.tuner = tuner;
+    this.context = Vertx.currentContext();
+    src.endHandler(v -> complete(null));
+    src.exceptionHandler(this::complete);
+  }
+
+  @Override
+  public Pipe<Buffer> endOnFailure(boolean end) {
+    endOnFailure = end;
+    return this;
+  }
+
+  @Override
+  public Pipe<Buffer> endOnSuccess(boolean end) {
+    endOnSuccess = end;
+    return this;
+  }
+
+  @Override
+  public Pipe<Buffer> endOnComplete(boolean end) {
+    endOnSuccess = end;
+    endOnFailure = end;
+    return this;
+  }
+
+  /** Coalesces the destination's flushes within {@code windowNanos}; see {@link FlushCoalescer}. */
+  EventLoopPipe coalesceFlushes(long windowNanos) {
+    flushWindowNanos = windowNanos;
+    return this;
+  }
+
+  /** Also hands the bytes of each tick to {@code tally}, or to nothing if it is null. */
+  EventLoopPipe tally(LongConsumer tally) {
+    this.tally = tally;
+    return this;
+  }
+
+  @Override
+  public void to(@NonNull WriteStream<Buffer> ws, Handler<AsyncResult<Void>> completionHandler) {
+    if (dst != null) {
+      throw new IllegalStateException();
+    }
+    dst = ws;
+    if (flushWindowNanos >= 0) {
+      FlushCoalescer.install(ws, flushWindowNanos);
+    }
+    if (tuner != null) {
+      dst.setWriteQueueMaxSize(tuner.size());
+    }
+    this.completionHandler = completionHandler;
+    if (completed) {
+      // The source ended before anyone piped it.
+      finish();
+      return;
+    }
+    src.handler(onData);
+    src.resume();
+  }
+
+  /** Bytes handed to the destination so far. */
+  long piped() {
+    return piped;
+  }
+
+  private void onData(Buffer item) {
+    piped += item.length();
+    count(item.length());
+    if (tuner != null && tuner.refilled()) {
+      dst.setWriteQueueMaxSize(tuner.size());
+    }
+    dst.write(item, onWriteResult);
+    if (dst.writeQueueFull()) {
+      src.pause();
+      awaitingDrain = true;
+      if (tuner != null) {
+        tuner.paused();
+      }
+      dst.drainHandler(onDrain);
+    }
+  }
+
+  private void onDrain(Void v) {
+    awaitingDrain = false;
+    if (tuner != null) {
+      tuner.drained();
+    }
+    if (!awaitingTokens) {
+      src.resume();
+    }
+  }
+
+  private void onWriteResult(AsyncResult<Void> ack) {
+    if (ack.failed() && !completed) {
+      writeFailed = true;
+      complete(ack.cause());
+    }
+  }
+
+  private void count(int bytes) {
+    if (meter == null && bucket == null && tally == null) {
+      return;
+    }
+    if (context == null) {
+      uncounted = bytes;
+      flush(null);
+      return;
+    }
+    uncounted += bytes;
+    if (!flushScheduled) {
+      flushScheduled = true;
+      context.runOnContext(flush);
+    }
+  }
+
+  /** Marks the meter and tally and charges the bucket with the bytes of the tick. */
+  private void flush(Void v) {
+    flushScheduled = false;
+    if (uncounted == 0) {
+      return;
+    }
+    if (meter != null) {
+      meter.mark(uncounted);
+    }
+    if (tally != null) {
+      tally.accept(uncounted);
+    }
+    if (bucket != null && !completed) {
+      shape(uncounted);
+    }
+    uncounted = 0;
+  }
+
+  private void shape(long bytes) {
+    long wait = bucket.charge(bytes, System.nanoTime());
+    // Below a timer tick the debt is left to the next charge, which then waits for both.
+    if (wait < MIN_WAIT || awaitingTokens || context == null) {
+      return;
+    }
+    awaitingTokens = true;
+    src.pause();
+    context.owner().setTimer(TimeUnit.NANOSECONDS.toMillis(wait), onTokens);
+  }
+
+  private void onTokens(Long timerId) {
+    awaitingTokens = false;
+    if (!awaitingDrain && !completed) {
+      src.resume();
+    }
+  }
+
+  private void complete(Throwable cause) {
+    if (completed) {
+      return;
+    }
+    completed = true;
+    failure = cause;
+    if (dst != null) {
+      finish();
+    }
+  }
+
+  private void finish() {
+    Utils.clearHandlers(src);
+    if (tuner != null) {
+      tuner.release();
+    }
+    flush(null);
+    Handler<AsyncResult<Void>> handler = completionHandler != null ? completionHandler : ar -> {};
+    if (failure == null) {
+      if (endOnSuccess) {
+        dst.end(handler);
+      } else {
+        handler.handle(Future.succeededFuture());
+      }
+      return;
+    }
+    if (writeFailed) {
+      // Let the source drain rather than stall paused on a destination that is gone.
+      src.resume();
+    }
+    Future<Void> result = Future.failedFuture(failure);
+    if (endOnFailure) {
+      dst.end(ignore -> handler.handle(result));
+    } else {
+      handler.handle(result);
+    }
+  }
+
+  @Override
+  public void close() {
+    src.exceptionHandler(null);
+    src.handler(null);
+    if (dst != null) {
+      dst.drainHandler(null);
+      dst.exceptionHandler(null);
+    }
+    if (!completed) {
+      complete(new VertxException("Pipe closed", true));
+      src.resume();
+    }
+  }
+}
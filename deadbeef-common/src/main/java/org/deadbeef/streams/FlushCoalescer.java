@@ -0,0 +1,142 @@
+package org.deadbeef.streams;
+
+import com.google.common.base.Preconditions;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.concurrent.Future;
+import io.vertx.core.net.impl.NetSocketInternal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back the flushes of a chatty tunnel socket so that many small writes leave in one syscall,
+ * like Netty's {@link FlushConsolidationHandler}, but only once the socket is busy: a flush after a
+ * quiet spell goes out at once, and only the flushes that follow it within the window are held and
+ * issued together when the window closes. A window of 0 closes at the end of the current event-loop
+ * iteration. Sparse traffic therefore gains no latency, and a flood is flushed every {@link
+ * #MAX_HELD} flushes regardless.
+ *
+ * <p>Held flushes are issued before the channel closes or disconnects, when it stops being writable
+ * and when the handler is removed.
+ */
+final class FlushCoalescer extends ChannelDuplexHandler {
+
+  static final String NAME = "deadbeefFlushCoalescer";
+
+  /** Netty's default for {@link FlushConsolidationHandler}. */
+  static final int MAX_HELD = FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES;
+
+  private final long windowNanos;
+  private final Runnable release = this::release;
+  private ChannelHandlerContext ctx;
+  private boolean holding;
+  private int held;
+  private Future<?> scheduled;
+
+  FlushCoalescer(long windowNanos) {
+    this.windowNanos = windowNanos;
+  }
+
+  /** Converts a configured window in microseconds; null turns coalescing off. */
+  static long windowNanos(Integer windowMicros) {
+    if (windowMicros == null) {
+      return -1;
+    }
+    Preconditions.checkArgument(windowMicros >= 0, "Negative flush window: %s", windowMicros);
+    return TimeUnit.MICROSECONDS.toNanos(windowMicros);
+  }
+
+  /** Adds a coalescer to the socket's pipeline, unless it has one or is not a Netty channel. */
+  static void install(Object socket, long windowNanos) {
+    if (!(socket instanceof NetSocketInternal internal)) {
+      return;
+    }
+    ChannelPipeline pipeline = internal.channelHandlerContext().pipeline();
+    if (pipeline.get(NAME) == null) {
+      pipeline.addFirst(NAME, new FlushCoalescer(windowNanos));
+    }
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) {
+    this.ctx = ctx;
+  }
+
+  @Override
+  public void flush(ChannelHandlerContext ctx) {
+    if (!holding) {
+      holding = true;
+      ctx.flush();
+      closeWindowLater();
+    } else if (++held == MAX_HELD) {
+      held = 0;
+      ctx.flush();
+    }
+  }
+
+  private void closeWindowLater() {
+    if (windowNanos == 0) {
+      ctx.executor().execute(release);
+    } else {
+      scheduled = ctx.executor().schedule(release, windowNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** The window closed: flush what it held and keep holding, or stop if it held nothing. */
+  private void release() {
+    scheduled = null;
+    if (held > 0) {
+      held = 0;
+      ctx.flush();
+      closeWindowLater();
+    } else {
+      holding = false;
+    }
+  }
+
+  private void flushHeld(ChannelHandlerContext ctx) {
+    if (held > 0) {
+      held = 0;
+      ctx.flush();
+    }
+  }
+
+  @Override
+  public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+    flushHeld(ctx);
+    ctx.close(promise);
+  }
+
+  @Override
+  public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+    flushHeld(ctx);
+    ctx.disconnect(promise);
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    if (!ctx.channel().isWritable()) {
+      // Let the held bytes drain so that the channel can become writable again.
+      flushHeld(ctx);
+    }
+    ctx.fireChannelWritabilityChanged();
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+    flushHeld(ctx);
+    ctx.fireExceptionCaught(cause);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    flushHeld(ctx);
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+    holding = false;
+  }
+}
@@ -0,0 +1,272 @@
+package org.deadbeef.streams;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.traffic.AbstractTrafficShapingHandler;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.impl.NetSocketInternal;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.Queue;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Moves tunnel bytes socket to socket with {@code splice(2)} through a kernel pipe, so they are
+ * never copied into a {@code ByteBuf}, passed through the pipeline or written back out. Only
+ * possible between two epoll channels on the same event loop whose pipelines do nothing with the
+ * bytes: no TLS, idle timeout, traffic shaping or logging handler.
+ *
+ * <p>The epoll classes are only on the classpath in the native builds, so they are bound
+ * reflectively; without them {@link #start} always declines and tunnels use Vert.x pipes.
+ *
+ * <p>Netty splices only in level-triggered mode, which cannot be changed on a registered channel,
+ * so both channels are deregistered, switched and registered again on the same loop. Bytes already
+ * read before that are still forwarded by Vert.x, through the same outbound buffer the spliced
+ * bytes are queued in, so order is kept. Splicing is issued in {@link #CHUNK} slices and each is
+ * accounted to the direction's {@link PipeFactory}: a completed slice in full, the slice cut short
+ * when the tunnel closes by what its splice task got through. Netty keeps no byte count on the
+ * channel, nor in the {@code tcp_info} it reads, so the task is looked at reflectively; where that
+ * is not allowed, the last slice goes uncounted.
+ */
+@Slf4j
+final class KernelSplice {
+
+  static final int CHUNK = 64 * 1024;
+
+  private static final Class<?> STREAM_CHANNEL;
+  private static final MethodHandle SPLICE_TO;
+  private static final ChannelOption<Object> EPOLL_MODE;
+  private static final Object LEVEL_TRIGGERED;
+  private static final MethodHandle SPLICE_QUEUE;
+  private static final MethodHandle SPLICE_REMAINING;
+
+  static {
+    Class<?> streamChannel = null;
+    MethodHandle spliceTo = null;
+    ChannelOption<Object> epollMode = null;
+    Object levelTriggered = null;
+    try {
+      Class<?> channel = Class.forName("io.netty.channel.epoll.AbstractEpollStreamChannel");
+      spliceTo =
+          MethodHandles.publicLookup()
+              .findVirtual(
+                  channel,
+                  "spliceTo",
+                  MethodType.methodType(ChannelFuture.class, channel, int.class));
+      @SuppressWarnings("unchecked")
+      ChannelOption<Object> option =
+          (ChannelOption<Object>)
+              Class.forName("io.netty.channel.epoll.EpollChannelOption")
+                  .getField("EPOLL_MODE")
+                  .get(null);
+      epollMode = option;
+      levelTriggered =
+          Class.forName("io.netty.channel.epoll.EpollMode").getField("LEVEL_TRIGGERED").get(null);
+      streamChannel = channel;
+    } catch (ReflectiveOperationException | LinkageError e) {
+      log.debug("Native epoll not on the classpath, tunnels are piped in user space");
+    }
+    MethodHandle spliceQueue = null;
+    MethodHandle spliceRemaining = null;
+    if (streamChannel != null) {
+      try {
+        Class<?> task =
+            Class.forName("io.netty.channel.epoll.AbstractEpollStreamChannel$SpliceInTask");
+        spliceQueue =
+            MethodHandles.privateLookupIn(streamChannel, MethodHandles.lookup())
+                .findGetter(streamChannel, "spliceQueue", Queue.class)
+                .asType(MethodType.methodType(Queue.class, Channel.class));
+        spliceRemaining =
+            MethodHandles.privateLookupIn(task, MethodHandles.lookup())
+                .findGetter(task, "len", int.class)
+                .asType(MethodType.methodType(int.class, Object.class));
+      } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+        log.debug("Cannot see into splice tasks, a tunnel's last partial slice goes uncounted");
+        spliceQueue = null;
+      }
+    }
+    STREAM_CHANNEL = streamChannel;
+    SPLICE_TO = spliceTo;
+    EPOLL_MODE = epollMode;
+    LEVEL_TRIGGERED = levelTriggered;
+    SPLICE_QUEUE = spliceQueue;
+    SPLICE_REMAINING = spliceRemaining;
+  }
+
+  private KernelSplice() {
+    throw new IllegalStateException();
+  }
+
+  /**
+   * Starts splicing {@code a} and {@code b} into each other if both allow it. Must be called on
+   * their event loop, after their close handlers are set: a failed splice closes the channel.
+   *
+   * @return false if the sockets cannot be spliced and should be piped instead
+   */
+  static boolean start(NetSocket a, NetSocket b, PipeFactory aToB, PipeFactory bToA) {
+    Channel from = channel(a);
+    Channel to = channel(b);
+    if (from == null
+        || to == null
+        || from.eventLoop() != to.eventLoop()
+        || !from.eventLoop().inEventLoop()
+        || !bytesUntouched(from)
+        || !bytesUntouched(to)) {
+      return false;
+    }
+    forwardReadBytes(a, b, aToB);
+    forwardReadBytes(b, a, bToA);
+    levelTriggered(
+        from,
+        () ->
+            levelTriggered(
+                to,
+                () -> {
+                  splice(from, to, aToB);
+                  splice(to, from, bToA);
+                }));
+    return true;
+  }
+
+  /** The socket's epoll stream channel, or null if it is another kind or closed. */
+  static Channel channel(NetSocket socket) {
+    if (STREAM_CHANNEL == null || !(socket instanceof NetSocketInternal internal)) {
+      return null;
+    }
+    Channel channel = internal.channelHandlerContext().channel();
+    return STREAM_CHANNEL.isInstance(channel) && channel.isActive() ? channel : null;
+  }
+
+  private static boolean bytesUntouched(Channel channel) {
+    for (Map.Entry<String, ChannelHandler> entry : channel.pipeline()) {
+      ChannelHandler handler = entry.getValue();
+      if (handler instanceof SslHandler
+          || handler instanceof IdleStateHandler
+          || handler instanceof AbstractTrafficShapingHandler
+          || handler instanceof LoggingHandler) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Bytes Vert.x read before the switch, or between two slices, take the ordinary write path. */
+  private static void forwardReadBytes(NetSocket src, NetSocket dst, PipeFactory accounting) {
+    src.handler(
+        buffer -> {
+          accounting.transferred(buffer.length());
+          dst.write(buffer);
+        });
+    src.resume();
+  }
+
+  private static void levelTriggered(Channel channel, Runnable then) {
+    channel
+        .deregister()
+        .addListener(
+            (ChannelFutureListener)
+                deregistered -> {
+                  if (!deregistered.isSuccess()) {
+                    fail(channel, deregistered.cause());
+                    return;
+                  }
+                  try {
+                    channel.config().setOption(EPOLL_MODE, LEVEL_TRIGGERED);
+                  } catch (RuntimeException e) {
+                    // Carries on registered as before; the failed splice below closes it.
+                    log.debug("Cannot switch {} to level-triggered: ", channel, e);
+                  }
+                  channel
+                      .eventLoop()
+                      .register(channel)
+                      .addListener(
+                          (ChannelFutureListener)
+                              registered -> {
+                                if (registered.isSuccess()) {
+                                  then.run();
+                                } else {
+                                  fail(channel, registered.cause());
+                                }
+                              });
+                });
+  }
+
+  /** Splices one slice, accounts for it and issues the next, until either side closes. */
+  private static void splice(Channel from, Channel to, PipeFactory accounting) {
+    if (!from.isActive() || !to.isActive()) {
+      return;
+    }
+    ChannelFuture slice;
+    Object task;
+    try {
+      slice = (ChannelFuture) SPLICE_TO.invoke(from, to, CHUNK);
+      task = newestTask(from);
+    } catch (Throwable e) {
+      fail(from, e);
+      return;
+    }
+    slice.addListener(
+        (ChannelFutureListener)
+            done -> {
+              if (done.isSuccess()) {
+                accounting.transferred(CHUNK);
+                splice(from, to, accounting);
+                return;
+              }
+              int spliced = splicedBy(task);
+              if (spliced > 0) {
+                accounting.transferred(spliced);
+              }
+              if (from.isActive() && to.isActive()) {
+                fail(from, done.cause());
+              }
+            });
+  }
+
+  /**
+   * The splice task last queued on {@code channel}, or null if it cannot be told. The slice before
+   * it may still be queued: it is only dequeued after its listener issued this one.
+   */
+  private static Object newestTask(Channel channel) {
+    if (SPLICE_QUEUE == null) {
+      return null;
+    }
+    try {
+      Queue<?> queue = (Queue<?>) SPLICE_QUEUE.invoke(channel);
+      Object newest = null;
+      if (queue != null) {
+        for (Object task : queue) {
+          newest = task;
+        }
+      }
+      return newest;
+    } catch (Throwable e) {
+      return null;
+    }
+  }
+
+  /** Bytes the splice task of a slice cut short got through, 0 if unknown. */
+  private static int splicedBy(Object task) {
+    if (task == null) {
+      return 0;
+    }
+    try {
+      return CHUNK - (int) SPLICE_REMAINING.invoke(task);
+    } catch (Throwable e) {
+      return 0;
+    }
+  }
+
+  private static void fail(Channel channel, Throwable cause) {
+    log.debug("Splicing {} failed, closing it: ", channel, cause);
+    channel.close();
+  }
+}
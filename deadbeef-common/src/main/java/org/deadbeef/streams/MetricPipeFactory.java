@@ -4,22 +4,42 @@ import com.codahale.metrics.Meter;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.streams.Pipe;
 import io.vertx.core.streams.ReadStream;
+import java.util.function.LongConsumer;
 import lombok.NonNull;
 
 /**
- * Pipe factory that meters every buffer flowing through. The caller hands in the {@link Meter}
- * directly — naming and registry ownership belong to {@code ProxyMetrics}, not to this class.
+ * Pipe factory that meters every buffer flowing through, batched per event-loop tick (see {@link
+ * EventLoopPipe}). The caller hands in the {@link Meter} directly — naming and registry ownership
+ * belong to {@code ProxyMetrics}, not to this class.
  */
 public final class MetricPipeFactory implements PipeFactory {
 
   private final Meter meter;
   private final boolean endOnSuccess;
   private final boolean endOnFailure;
+  private final long flushWindowNanos;
+  private final LongConsumer tally;
 
-  public MetricPipeFactory(@NonNull Meter meter, boolean endOnSuccess, boolean endOnFailure) {
+  /**
+   * @param flushWindowMicros coalesce the flushes of socket destinations within this window (0: one
+   *     event-loop iteration, see {@link FlushCoalescer}); null to flush every write
+   * @param tally also given the bytes piped, in batches as the meter is marked; null for none
+   */
+  public MetricPipeFactory(
+      @NonNull Meter meter,
+      boolean endOnSuccess,
+      boolean endOnFailure,
+      Integer flushWindowMicros,
+      LongConsumer tally) {
     this.meter = meter;
     this.endOnSuccess = endOnSuccess;
     this.endOnFailure = endOnFailure;
+    this.flushWindowNanos = FlushCoalescer.windowNanos(flushWindowMicros);
+    this.tally = tally;
+  }
+
+  public MetricPipeFactory(@NonNull Meter meter, boolean endOnSuccess, boolean endOnFailure) {
+    this(meter, endOnSuccess, endOnFailure, null, null);
   }
 
   public MetricPipeFactory(@NonNull Meter meter) {
@@ -28,6 +48,23 @@ public final class MetricPipeFactory implements PipeFactory {
 
   @Override
   public Pipe<Buffer> newPipe(@NonNull ReadStream<Buffer> src) {
-    return new MetricPipeImpl(src, meter).endOnSuccess(endOnSuccess).endOnFailure(endOnFailure);
+    return new EventLoopPipe(src, meter)
+        .coalesceFlushes(flushWindowNanos)
+        .tally(tally)
+        .endOnSuccess(endOnSuccess)
+        .endOnFailure(endOnFailure);
+  }
+
+  PipeFactory shaped(TokenBucket bucket) {
+    return new ShapedPipeFactory(
+        bucket, meter, tally, endOnSuccess, endOnFailure, flushWindowNanos);
+  }
+
+  @Override
+  public void transferred(long bytes) {
+    meter.mark(bytes);
+    if (tally != null) {
+      tally.accept(bytes);
+    }
   }
 }
@@ -0,0 +1,63 @@
+package org.deadbeef.streams;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.buffer.impl.VertxByteBufAllocator;
+
+/**
+ * Wire format of a {@link MuxSession}: a fixed 9-byte header ({@code type:u8 streamId:i32
+ * length:i32}) followed by {@code length} payload bytes. Same big-endian length-prefix idea as
+ * {@link Prefix}, minus the magic — a session is established by an authenticated CONNECT, so both
+ * ends already know what they are talking to.
+ */
+final class MuxFrame {
+
+  static final int HEADER = 9;
+
+  /** Upper bound for a single payload; a DATA frame never exceeds the per-stream window anyway. */
+  static final int MAX_PAYLOAD = MuxSession.INITIAL_WINDOW;
+
+  /** Client → server: open a stream; payload is the UTF-8 {@code host:port} authority. */
+  static final byte OPEN = 1;
+
+  /** Server → client: outcome of an OPEN; payload is a 4-byte HTTP-style status code. */
+  static final byte OPEN_ACK = 2;
+
+  static final byte DATA = 3;
+
+  /** Receive-window credit; payload is a 4-byte increment. */
+  static final byte WINDOW = 4;
+
+  /** Either side: the stream is done, no further frames will be sent for it. */
+  static final byte CLOSE = 5;
+
+  /** Session keepalive on stream 0; answered with {@link #PONG}. */
+  static final byte PING = 6;
+
+  static final byte PONG = 7;
+
+  private MuxFrame() {
+    throw new IllegalStateException();
+  }
+
+  static Buffer encode(byte type, int streamId, Buffer payload) {
+    int length = payload == null ? 0 : payload.length();
+    ByteBuf byteBuf = VertxByteBufAllocator.DEFAULT.buffer(HEADER + length);
+    byteBuf.writeByte(type);
+    byteBuf.writeInt(streamId);
+    byteBuf.writeInt(length);
+    if (length > 0) {
+      byteBuf.writeBytes(payload.getByteBuf());
+    }
+    return Buffer.buffer(byteBuf);
+  }
+
+  static Buffer encode(byte type, int streamId, int value) {
+    ByteBuf byteBuf = VertxByteBufAllocator.DEFAULT.buffer(HEADER + 4);
+    byteBuf.writeByte(type);
+    byteBuf.writeInt(streamId);
+    byteBuf.writeInt(4);
+    byteBuf.writeInt(value);
+    return Buffer.buffer(byteBuf);
+  }
+}
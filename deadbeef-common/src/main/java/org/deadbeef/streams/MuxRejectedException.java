@@ -0,0 +1,17 @@
+package org.deadbeef.streams;
+
+/** The server refused to open a {@link MuxStream}; carries the status a plain CONNECT would get. */
+public final class MuxRejectedException extends RuntimeException {
+
+  private final int status;
+
+  public MuxRejectedException(int status) {
+    // Control-flow signal carried via Future.failedFuture; no stack trace needed.
+    super("Mux stream rejected with status " + status, null, false, false);
+    this.status = status;
+  }
+
+  public int status() {
+    return status;
+  }
+}
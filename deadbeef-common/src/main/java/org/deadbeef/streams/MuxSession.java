@@ -0,0 +1,296 @@
+package org.deadbeef.streams;
+
+import com.google.common.base.Preconditions;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxException;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.parsetools.RecordParser;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Carries many {@link MuxStream}s over one already-established socket, so that N tunnels cost one
+ * TCP connection and one authentication instead of N of each. Frames are described in {@link
+ * MuxFrame}; each stream has its own receive window, so a slow reader on one stream pauses only
+ * that stream and never the socket the others share.
+ *
+ * <p>The client side opens streams ({@link #open}); the server side receives them through the open
+ * handler and answers with {@link MuxStream#accept()} or {@link MuxStream#reject(int)}. Both sides
+ * are confined to the event loop of the underlying socket.
+ */
+@Slf4j
+public final class MuxSession {
+
+  /** Bytes a peer may send on one stream before it has to wait for a WINDOW credit. */
+  static final int INITIAL_WINDOW = 256 * 1024;
+
+  public static final int DEFAULT_MAX_STREAMS = 1024;
+
+  /** How often the client PINGs; the server gives up on a session after a few silent ones. */
+  public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30_000;
+
+  private static final Buffer EMPTY = Buffer.buffer();
+
+  private final NetSocket socket;
+  private final boolean client;
+  private final Handler<MuxStream> openHandler;
+  private final int maxStreams;
+  private final IntObjectMap<MuxStream> streams = new IntObjectHashMap<>();
+  private final RecordParser parser;
+  private Handler<Void> closeHandler;
+  private long keepAliveTimer = -1;
+  private long expiryTimer = -1;
+  private boolean receivedSinceCheck;
+  private Vertx vertx;
+  private boolean closed;
+  private int nextStreamId = 1;
+  private int lastRemoteStreamId;
+
+  // Parser state: a header record is followed by a payload record unless its length is zero.
+  private boolean expectPayload;
+  private byte frameType;
+  private int frameStreamId;
+
+  private MuxSession(
+      NetSocket socket, boolean client, Handler<MuxStream> openHandler, int maxStreams) {
+    this.socket = socket;
+    this.client = client;
+    this.openHandler = openHandler;
+    this.maxStreams = maxStreams;
+    this.parser = RecordParser.newFixed(MuxFrame.HEADER, this::handleRecord);
+    socket.handler(parser);
+    socket.closeHandler(v -> handleSocketClosed());
+    socket.exceptionHandler(
+        cause -> {
+          log.debug("Mux session socket failed: ", cause);
+          socket.close();
+        });
+    socket.drainHandler(v -> handleSocketDrain());
+  }
+
+  /** Wraps the client end of an authenticated connection; streams are opened with {@link #open}. */
+  public static MuxSession client(@NonNull NetSocket socket) {
+    return new MuxSession(socket, true, null, DEFAULT_MAX_STREAMS);
+  }
+
+  /**
+   * Wraps the server end of an authenticated connection.
+   *
+   * @param openHandler receives every stream the peer opens; it must eventually accept or reject it
+   * @param maxStreams concurrent streams beyond which new OPENs are refused with 503
+   */
+  public static MuxSession server(
+      @NonNull NetSocket socket, @NonNull Handler<MuxStream> openHandler, int maxStreams) {
+    Preconditions.checkArgument(maxStreams > 0, "maxStreams should be positive: %s", maxStreams);
+    return new MuxSession(socket, false, openHandler, maxStreams);
+  }
+
+  /**
+   * Sends a PING every {@code intervalMillis} for as long as the session lives. Keeps pooled idle
+   * sessions from being reaped by idle timeouts along the path.
+   */
+  public MuxSession keepAlive(@NonNull Vertx vertx, long intervalMillis) {
+    Preconditions.checkState(keepAliveTimer == -1, "keepAlive already enabled");
+    this.vertx = vertx;
+    this.keepAliveTimer =
+        vertx.setPeriodic(intervalMillis, id -> send(MuxFrame.encode(MuxFrame.PING, 0, EMPTY)));
+    return this;
+  }
+
+  /**
+   * Closes the session once nothing, not even a PING, has arrived for {@code idleMillis} (and at
+   * most twice that). A client that went away without a FIN leaves the server with a session that
+   * keepalive alone may take far longer to notice.
+   */
+  public MuxSession expireIdle(@NonNull Vertx vertx, long idleMillis) {
+    Preconditions.checkState(expiryTimer == -1, "expireIdle already enabled");
+    this.vertx = vertx;
+    this.expiryTimer =
+        vertx.setPeriodic(
+            idleMillis,
+            id -> {
+              if (!receivedSinceCheck) {
+                log.debug("Mux session silent for {} ms, closing", idleMillis);
+                socket.close();
+              }
+              receivedSinceCheck = false;
+            });
+    return this;
+  }
+
+  public MuxSession closeHandler(Handler<Void> handler) {
+    this.closeHandler = handler;
+    return this;
+  }
+
+  /**
+   * Opens a stream to {@code authority} ({@code host:port}). Completes once the peer has connected
+   * the target; fails with {@link MuxRejectedException} when it refused to.
+   */
+  public Future<MuxStream> open(@NonNull String authority) {
+    Preconditions.checkState(client, "Only the client side opens streams");
+    if (!canOpen()) {
+      return Future.failedFuture(new VertxException("Mux session is not accepting streams", true));
+    }
+    int id = nextStreamId;
+    nextStreamId += 2;
+    MuxStream stream = new MuxStream(this, id, authority);
+    streams.put(id, stream);
+    send(MuxFrame.encode(MuxFrame.OPEN, id, Buffer.buffer(authority, "UTF-8")));
+    return stream.opened();
+  }
+
+  /** False once the session is closed or has run out of stream ids. */
+  public boolean canOpen() {
+    return !closed && nextStreamId > 0 && streams.size() < maxStreams;
+  }
+
+  public int activeStreams() {
+    return streams.size();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public Future<Void> close() {
+    return socket.close();
+  }
+
+  // ---- called by MuxStream ----
+
+  Future<Void> send(Buffer frame) {
+    return socket.write(frame);
+  }
+
+  boolean socketWriteQueueFull() {
+    return socket.writeQueueFull();
+  }
+
+  void unregister(int streamId) {
+    streams.remove(streamId);
+  }
+
+  // ---- inbound ----
+
+  private void handleRecord(Buffer record) {
+    if (closed) {
+      return;
+    }
+    receivedSinceCheck = true;
+    if (!expectPayload) {
+      frameType = record.getByte(0);
+      frameStreamId = record.getInt(1);
+      int length = record.getInt(5);
+      if (length < 0 || length > MuxFrame.MAX_PAYLOAD) {
+        protocolError("Illegal frame length: " + length);
+        return;
+      }
+      if (length == 0) {
+        dispatch(frameType, frameStreamId, EMPTY);
+      } else {
+        expectPayload = true;
+        parser.fixedSizeMode(length);
+      }
+    } else {
+      expectPayload = false;
+      parser.fixedSizeMode(MuxFrame.HEADER);
+      dispatch(frameType, frameStreamId, record);
+    }
+  }
+
+  private void dispatch(byte type, int streamId, Buffer payload) {
+    switch (type) {
+      case MuxFrame.OPEN -> handleOpen(streamId, payload);
+      case MuxFrame.OPEN_ACK -> {
+        MuxStream stream = streams.get(streamId);
+        if (client && stream != null && payload.length() == 4) {
+          stream.handleOpenAck(payload.getInt(0));
+        }
+      }
+      case MuxFrame.DATA -> {
+        MuxStream stream = streams.get(streamId);
+        if (stream != null) {
+          stream.handleData(payload);
+        }
+      }
+      case MuxFrame.WINDOW -> {
+        MuxStream stream = streams.get(streamId);
+        if (stream != null && payload.length() == 4) {
+          stream.handleWindow(payload.getInt(0));
+        }
+      }
+      case MuxFrame.CLOSE -> {
+        MuxStream stream = streams.get(streamId);
+        if (stream != null) {
+          stream.handleClose();
+        }
+      }
+      case MuxFrame.PING -> send(MuxFrame.encode(MuxFrame.PONG, 0, EMPTY));
+      default -> {
+        // PONG and unknown types: nothing to do. Frames for streams already gone are dropped above.
+      }
+    }
+  }
+
+  private void handleOpen(int streamId, Buffer payload) {
+    // Client-initiated ids are odd and strictly increasing; anything else is a broken peer.
+    if (client || streamId <= lastRemoteStreamId || (streamId & 1) == 0) {
+      protocolError("Unexpected OPEN for stream " + streamId);
+      return;
+    }
+    lastRemoteStreamId = streamId;
+    String authority = payload.toString(StandardCharsets.UTF_8);
+    MuxStream stream = new MuxStream(this, streamId, authority);
+    if (streams.size() >= maxStreams) {
+      stream.reject(503);
+      return;
+    }
+    streams.put(streamId, stream);
+    openHandler.handle(stream);
+  }
+
+  private void handleSocketDrain() {
+    for (MuxStream stream : snapshot()) {
+      stream.handleSocketDrain();
+    }
+  }
+
+  private void protocolError(String message) {
+    log.warn("Mux protocol error, closing session: {}", message);
+    socket.close();
+  }
+
+  private void handleSocketClosed() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (keepAliveTimer != -1) {
+      vertx.cancelTimer(keepAliveTimer);
+    }
+    if (expiryTimer != -1) {
+      vertx.cancelTimer(expiryTimer);
+    }
+    List<MuxStream> remaining = snapshot();
+    streams.clear();
+    for (MuxStream stream : remaining) {
+      stream.handleSessionClosed();
+    }
+    if (closeHandler != null) {
+      closeHandler.handle(null);
+    }
+  }
+
+  private List<MuxStream> snapshot() {
+    return new ArrayList<>(streams.values());
+  }
+}
@@ -0,0 +1,364 @@
+package org.deadbeef.streams;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.VertxException;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+import java.util.ArrayDeque;
+
+/**
+ * One tunnel inside a {@link MuxSession}. Behaves like a {@code NetSocket} towards the pipes in
+ * {@link Tunnels}: {@link #writeQueueFull()} reports an exhausted send window (or a congested
+ * shared socket), and pausing the stream stops returning receive-window credit to the peer, which
+ * is what applies back-pressure to the far end.
+ *
+ * <p>A CLOSE frame is a full close of both directions; {@link #end()} flushes what is still waiting
+ * for window first.
+ */
+public final class MuxStream implements ReadStream<Buffer>, WriteStream<Buffer> {
+
+  private static final VertxException STREAM_CLOSED = new VertxException("Mux stream closed", true);
+
+  private final MuxSession session;
+  private final int id;
+  private final String authority;
+  private final Promise<MuxStream> opened = Promise.promise();
+  private final ArrayDeque<Buffer> inbound = new ArrayDeque<>();
+  private final ArrayDeque<PendingWrite> outbound = new ArrayDeque<>();
+
+  private Handler<Buffer> handler;
+  private Handler<Void> endHandler;
+  private Handler<Void> drainHandler;
+  private Handler<Void> closeHandler;
+  private Handler<Throwable> exceptionHandler;
+  private long demand = Long.MAX_VALUE;
+  private int sendWindow = MuxSession.INITIAL_WINDOW;
+  private int receiveWindow = MuxSession.INITIAL_WINDOW;
+  private int consumed;
+  private boolean delivering;
+  private boolean remoteClosed;
+  private boolean readEnded;
+  private boolean endRequested;
+  private boolean finished;
+
+  MuxStream(MuxSession session, int id, String authority) {
+    this.session = session;
+    this.id = id;
+    this.authority = authority;
+  }
+
+  public int id() {
+    return id;
+  }
+
+  public MuxSession session() {
+    return session;
+  }
+
+  /** The {@code host:port} the client asked this stream to be connected to. */
+  public String authority() {
+    return authority;
+  }
+
+  Future<MuxStream> opened() {
+    return opened.future();
+  }
+
+  /**
+   * Server side: the target is connected, tell the client to start sending. Returns false when the
+   * client gave up on the stream in the meantime, in which case the caller owns the cleanup.
+   */
+  public boolean accept() {
+    if (finished) {
+      return false;
+    }
+    session.send(MuxFrame.encode(MuxFrame.OPEN_ACK, id, 200));
+    opened.tryComplete(this);
+    return true;
+  }
+
+  /**
+   * Server side: refuse the stream with an HTTP-style status, mirroring the plain CONNECT reply.
+   */
+  public void reject(int status) {
+    if (finished) {
+      return;
+    }
+    session.send(MuxFrame.encode(MuxFrame.OPEN_ACK, id, status));
+    finish(null);
+  }
+
+  // ---- ReadStream ----
+
+  @Override
+  public MuxStream exceptionHandler(Handler<Throwable> handler) {
+    this.exceptionHandler = handler;
+    return this;
+  }
+
+  @Override
+  public MuxStream handler(Handler<Buffer> handler) {
+    this.handler = handler;
+    if (handler != null) {
+      deliver();
+    }
+    return this;
+  }
+
+  @Override
+  public MuxStream pause() {
+    demand = 0;
+    return this;
+  }
+
+  @Override
+  public MuxStream resume() {
+    return fetch(Long.MAX_VALUE);
+  }
+
+  @Override
+  public MuxStream fetch(long amount) {
+    if (amount > 0) {
+      demand += amount;
+      if (demand < 0) {
+        demand = Long.MAX_VALUE;
+      }
+      deliver();
+    }
+    return this;
+  }
+
+  @Override
+  public MuxStream endHandler(Handler<Void> endHandler) {
+    this.endHandler = endHandler;
+    return this;
+  }
+
+  public MuxStream closeHandler(Handler<Void> closeHandler) {
+    this.closeHandler = closeHandler;
+    return this;
+  }
+
+  // ---- WriteStream ----
+
+  @Override
+  public Future<Void> write(Buffer data) {
+    Promise<Void> promise = Promise.promise();
+    write(data, promise);
+    return promise.future();
+  }
+
+  @Override
+  public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+    if (finished || endRequested) {
+      if (handler != null) {
+        handler.handle(Future.failedFuture(STREAM_CLOSED));
+      }
+      return;
+    }
+    if (outbound.isEmpty() && data.length() <= sendWindow) {
+      sendWindow -= data.length();
+      Future<Void> sent = session.send(MuxFrame.encode(MuxFrame.DATA, id, data));
+      if (handler != null) {
+        sent.onComplete(handler);
+      }
+      return;
+    }
+    outbound.add(new PendingWrite(data, handler));
+    flushOutbound();
+  }
+
+  @Override
+  public void end(Handler<AsyncResult<Void>> handler) {
+    if (finished) {
+      if (handler != null) {
+        handler.handle(Future.succeededFuture());
+      }
+      return;
+    }
+    endRequested = true;
+    flushOutbound();
+    if (handler != null) {
+      handler.handle(Future.succeededFuture());
+    }
+  }
+
+  /** Closes the stream right away, dropping whatever is still waiting for send window. */
+  public Future<Void> close() {
+    if (!finished) {
+      if (!remoteClosed) {
+        session.send(MuxFrame.encode(MuxFrame.CLOSE, id, null));
+      }
+      finish(null);
+    }
+    return Future.succeededFuture();
+  }
+
+  @Override
+  public MuxStream setWriteQueueMaxSize(int maxSize) {
+    // The peer's receive window is the write queue limit.
+    return this;
+  }
+
+  @Override
+  public boolean writeQueueFull() {
+    return sendWindow <= 0 || !outbound.isEmpty() || session.socketWriteQueueFull();
+  }
+
+  @Override
+  public MuxStream drainHandler(Handler<Void> handler) {
+    this.drainHandler = handler;
+    return this;
+  }
+
+  // ---- called by MuxSession ----
+
+  void handleOpenAck(int status) {
+    if (status == 200) {
+      opened.tryComplete(this);
+    } else {
+      finish(new MuxRejectedException(status));
+    }
+  }
+
+  void handleData(Buffer data) {
+    if (remoteClosed) {
+      return;
+    }
+    if (data.length() > receiveWindow) {
+      // The peer ignored our window: reset the stream rather than buffer without bound.
+      session.send(MuxFrame.encode(MuxFrame.CLOSE, id, null));
+      finish(new VertxException("Mux stream window exceeded", true));
+      return;
+    }
+    receiveWindow -= data.length();
+    inbound.add(data);
+    deliver();
+  }
+
+  void handleWindow(int increment) {
+    if (increment <= 0 || sendWindow + increment < 0) {
+      return;
+    }
+    sendWindow += increment;
+    flushOutbound();
+    handleSocketDrain();
+  }
+
+  void handleSocketDrain() {
+    Handler<Void> drain = drainHandler;
+    if (drain != null && !finished && !writeQueueFull()) {
+      drain.handle(null);
+    }
+  }
+
+  void handleClose() {
+    remoteClosed = true;
+    deliver();
+  }
+
+  void handleSessionClosed() {
+    finish(opened.future().isComplete() ? null : STREAM_CLOSED);
+  }
+
+  // ---- internals ----
+
+  private void deliver() {
+    if (delivering) {
+      return;
+    }
+    delivering = true;
+    try {
+      while (!finished && handler != null && demand > 0 && !inbound.isEmpty()) {
+        Buffer data = inbound.poll();
+        if (demand != Long.MAX_VALUE) {
+          demand--;
+        }
+        handler.handle(data);
+        credit(data.length());
+      }
+      if (remoteClosed && inbound.isEmpty() && !finished) {
+        readEnded = true;
+        if (endHandler != null) {
+          endHandler.handle(null);
+        }
+        finish(null);
+      }
+    } finally {
+      delivering = false;
+    }
+  }
+
+  /** Hands window back once half of it has been consumed, so credits are batched not per-chunk. */
+  private void credit(int length) {
+    consumed += length;
+    if (consumed >= MuxSession.INITIAL_WINDOW / 2 && !finished && !remoteClosed) {
+      receiveWindow += consumed;
+      session.send(MuxFrame.encode(MuxFrame.WINDOW, id, consumed));
+      consumed = 0;
+    }
+  }
+
+  private void flushOutbound() {
+    while (!outbound.isEmpty() && sendWindow > 0) {
+      PendingWrite head = outbound.peek();
+      int length = head.data.length();
+      if (length <= sendWindow) {
+        outbound.poll();
+        sendWindow -= length;
+        Future<Void> sent = session.send(MuxFrame.encode(MuxFrame.DATA, id, head.data));
+        if (head.handler != null) {
+          sent.onComplete(head.handler);
+        }
+      } else {
+        int part = sendWindow;
+        session.send(MuxFrame.encode(MuxFrame.DATA, id, head.data.getBuffer(0, part)));
+        head.data = head.data.getBuffer(part, length);
+        sendWindow = 0;
+      }
+    }
+    if (endRequested && outbound.isEmpty() && !finished) {
+      close();
+    }
+  }
+
+  private void finish(Throwable cause) {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    session.unregister(id);
+    inbound.clear();
+    for (PendingWrite pending : outbound) {
+      if (pending.handler != null) {
+        pending.handler.handle(Future.failedFuture(STREAM_CLOSED));
+      }
+    }
+    outbound.clear();
+    // An open stream that did not end its read side (closed here, reset, or its session gone)
+    // fails it, so that whatever reads it, a pipe above all, completes and lets go.
+    if (!opened.tryFail(cause != null ? cause : STREAM_CLOSED) && !readEnded) {
+      readEnded = true;
+      if (exceptionHandler != null) {
+        exceptionHandler.handle(cause != null ? cause : STREAM_CLOSED);
+      }
+    }
+    if (closeHandler != null) {
+      closeHandler.handle(null);
+    }
+  }
+
+  private static final class PendingWrite {
+    private final Handler<AsyncResult<Void>> handler;
+    private Buffer data;
+
+    private PendingWrite(Buffer data, Handler<AsyncResult<Void>> handler) {
+      this.data = data;
+      this.handler = handler;
+    }
+  }
+}
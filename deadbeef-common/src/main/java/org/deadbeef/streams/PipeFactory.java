@@ -5,11 +5,15 @@ import io.vertx.core.streams.Pipe;
 import io.vertx.core.streams.ReadStream;
 import java.util.function.Function;
 
-// TODO we may add some PipeImpl with metric later
 public interface PipeFactory extends Function<ReadStream<Buffer>, Pipe<Buffer>> {
 
   Pipe<Buffer> newPipe(ReadStream<Buffer> src);
 
+  /** Accounts for bytes that bypassed {@link #newPipe} pipes, e.g. spliced by the kernel. */
+  default void transferred(long bytes) {
+    // Nothing to account by default
+  }
+
   @Override
   default Pipe<Buffer> apply(ReadStream<Buffer> src) {
     return newPipe(src);
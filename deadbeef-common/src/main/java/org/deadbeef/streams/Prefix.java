@@ -1,6 +1,11 @@
 package org.deadbeef.streams;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import com.google.protobuf.UnsafeByteOperations;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.util.ReferenceCountUtil;
@@ -44,6 +49,19 @@ public final class Prefix {
     return Buffer.buffer(byteBuf);
   }
 
+  /**
+   * Parses the message framed by a prefix without copying it: the parser reads straight from the
+   * buffer's memory and {@code bytes}/{@code string} fields alias it until they are first decoded.
+   * The buffer must not be modified afterwards.
+   */
+  public static <T extends MessageLite> T parse(Buffer buffer, Parser<T> parser)
+      throws InvalidProtocolBufferException {
+    CodedInputStream input =
+        UnsafeByteOperations.unsafeWrap(buffer.getByteBuf().nioBuffer()).newCodedInput();
+    input.enableAliasing(true);
+    return parser.parseFrom(input);
+  }
+
   public static int serializeToBufferSize(GeneratedMessageV3 data) {
     return FIXED + data.getSerializedSize();
   }
@@ -0,0 +1,109 @@
+package org.deadbeef.streams;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import lombok.NonNull;
+
+/**
+ * Prepends a header to whatever is written to a stream. The header is held back and written
+ * together with the first chunk (or the end) as one composite buffer, so a framed message and the
+ * start of its body leave in a single write and flush rather than two. A caller that cannot count
+ * on the first chunk coming soon calls {@link #flush} once the chunks already at hand had their
+ * turn, so the header never waits for the body.
+ *
+ * <p>Not thread-safe; use it from the context that owns the delegate, like the delegate itself.
+ */
+public final class PrefixedWriteStream implements WriteStream<Buffer> {
+
+  private final WriteStream<Buffer> delegate;
+  private Buffer prefix;
+
+  public PrefixedWriteStream(@NonNull WriteStream<Buffer> delegate, @NonNull Buffer prefix) {
+    this.delegate = delegate;
+    this.prefix = prefix;
+  }
+
+  /** Joins the pending prefix, if any, with {@code data} without copying either. */
+  private Buffer withPrefix(Buffer data) {
+    Buffer pending = prefix;
+    if (pending == null) {
+      return data;
+    }
+    prefix = null;
+    if (data == null || data.length() == 0) {
+      return pending;
+    }
+    return Buffer.buffer(Unpooled.wrappedBuffer(pending.getByteBuf(), data.getByteBuf()));
+  }
+
+  /** Writes the header on its own, unless a chunk or the end already took it. */
+  public void flush() {
+    Buffer pending = withPrefix(null);
+    if (pending != null) {
+      delegate.write(pending);
+    }
+  }
+
+  @Override
+  public PrefixedWriteStream exceptionHandler(Handler<Throwable> handler) {
+    delegate.exceptionHandler(handler);
+    return this;
+  }
+
+  @Override
+  public Future<Void> write(Buffer data) {
+    return delegate.write(withPrefix(data));
+  }
+
+  @Override
+  public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+    delegate.write(withPrefix(data), handler);
+  }
+
+  @Override
+  public Future<Void> end() {
+    Buffer pending = withPrefix(null);
+    return pending == null ? delegate.end() : delegate.end(pending);
+  }
+
+  @Override
+  public void end(Handler<AsyncResult<Void>> handler) {
+    Buffer pending = withPrefix(null);
+    if (pending == null) {
+      delegate.end(handler);
+    } else {
+      delegate.end(pending, handler);
+    }
+  }
+
+  @Override
+  public Future<Void> end(Buffer data) {
+    return delegate.end(withPrefix(data));
+  }
+
+  @Override
+  public void end(Buffer data, Handler<AsyncResult<Void>> handler) {
+    delegate.end(withPrefix(data), handler);
+  }
+
+  @Override
+  public PrefixedWriteStream setWriteQueueMaxSize(int maxSize) {
+    delegate.setWriteQueueMaxSize(maxSize);
+    return this;
+  }
+
+  @Override
+  public boolean writeQueueFull() {
+    return delegate.writeQueueFull();
+  }
+
+  @Override
+  public PrefixedWriteStream drainHandler(Handler<Void> handler) {
+    delegate.drainHandler(handler);
+    return this;
+  }
+}
@@ -3,6 +3,7 @@ package org.deadbeef.streams;
 import com.google.common.base.Strings;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
@@ -11,7 +12,6 @@ import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxException;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.buffer.impl.VertxByteBufAllocator;
 import io.vertx.core.impl.ContextInternal;
 import io.vertx.core.impl.VertxInternal;
 import io.vertx.core.streams.Pipe;
@@ -129,7 +129,13 @@ public final class ProxyStreamPrefixVisitor<W extends WriteStream<Buffer>> {
 
     private static final Buffer EMPTY_BUFFER = Buffer.buffer(Unpooled.EMPTY_BUFFER);
 
-    private final ByteBuf tempBuf = VertxByteBufAllocator.DEFAULT.heapBuffer(0xff);
+    /** Only a prefix split across more chunks than this gets consolidated (copied). */
+    private static final int MAX_COMPONENTS = 1024;
+
+    // Slices of the incoming chunks, never copied: Vert.x hands us unpooled heap buffers, so a
+    // slice stays valid for as long as it is referenced. The prefix and the leftover body bytes
+    // are handed out as slices of this composite too.
+    private final CompositeByteBuf tempBuf = Unpooled.compositeBuffer(MAX_COMPONENTS);
     private final ReadStream<Buffer> src;
     private final Promise<Buffer> promise;
     private final int bodyLengthLimit;
@@ -186,7 +192,7 @@ public final class ProxyStreamPrefixVisitor<W extends WriteStream<Buffer>> {
     }
 
     private void expectBody() {
-      ByteBuf byteBuf = tempBuf.readBytes(bodyLen);
+      ByteBuf byteBuf = tempBuf.readSlice(bodyLen);
       promise.tryComplete(Buffer.buffer(byteBuf));
       if (log.isDebugEnabled()) {
         log.debug("Prefix2 resolved, readableBytes={}", byteBuf.readableBytes());
@@ -203,7 +209,7 @@ public final class ProxyStreamPrefixVisitor<W extends WriteStream<Buffer>> {
             ByteBufUtil.prettyHexDump(event.getByteBuf()));
       }
       int len1 = tempBuf.writerIndex();
-      tempBuf.writeBytes(event.getByteBuf());
+      tempBuf.addComponent(true, event.getByteBuf());
       int len2 = len1 + event.length();
       if (openCloseContains(len1, len2, Prefix.FIXED)) {
         expectMagicAndLength();
@@ -227,7 +233,7 @@ public final class ProxyStreamPrefixVisitor<W extends WriteStream<Buffer>> {
         log.debug("Read remaining bytes, length={}", remainingBytes);
       }
       if (remainingBytes > 0) {
-        return Buffer.buffer(tempBuf.readBytes(remainingBytes));
+        return Buffer.buffer(tempBuf.readSlice(remainingBytes));
       } else {
         return EMPTY_BUFFER;
       }
@@ -0,0 +1,61 @@
+package org.deadbeef.streams;
+
+import com.codahale.metrics.Meter;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.Pipe;
+import io.vertx.core.streams.ReadStream;
+import java.util.function.LongConsumer;
+import lombok.NonNull;
+
+/**
+ * The pipes of one direction of one shaped tunnel, charged to its {@link TokenBucket}; made by
+ * {@link BandwidthShaper} from the factory the tunnel would otherwise use.
+ */
+final class ShapedPipeFactory implements PipeFactory {
+
+  private final TokenBucket bucket;
+  private final Meter meter;
+  private final LongConsumer tally;
+  private final boolean endOnSuccess;
+  private final boolean endOnFailure;
+  private final long flushWindowNanos;
+
+  /**
+   * @param meter marked with the bytes piped, or null for none
+   * @param tally given the bytes piped, or null for none
+   * @param flushWindowNanos see {@link EventLoopPipe#coalesceFlushes}; negative for none
+   */
+  ShapedPipeFactory(
+      @NonNull TokenBucket bucket,
+      Meter meter,
+      LongConsumer tally,
+      boolean endOnSuccess,
+      boolean endOnFailure,
+      long flushWindowNanos) {
+    this.bucket = bucket;
+    this.meter = meter;
+    this.tally = tally;
+    this.endOnSuccess = endOnSuccess;
+    this.endOnFailure = endOnFailure;
+    this.flushWindowNanos = flushWindowNanos;
+  }
+
+  @Override
+  public Pipe<Buffer> newPipe(@NonNull ReadStream<Buffer> src) {
+    return new EventLoopPipe(src, meter, bucket)
+        .coalesceFlushes(flushWindowNanos)
+        .tally(tally)
+        .endOnSuccess(endOnSuccess)
+        .endOnFailure(endOnFailure);
+  }
+
+  @Override
+  public void transferred(long bytes) {
+    if (meter != null) {
+      meter.mark(bytes);
+    }
+    if (tally != null) {
+      tally.accept(bytes);
+    }
+  }
+}
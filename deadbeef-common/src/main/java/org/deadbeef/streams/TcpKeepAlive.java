@@ -0,0 +1,82 @@
+package org.deadbeef.streams;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.nio.NioChannelOption;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.impl.NetSocketInternal;
+import java.net.SocketOption;
+import java.util.concurrent.TimeUnit;
+import jdk.net.ExtendedSocketOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.deadbeef.bootstrap.TunnelTimeouts;
+
+/**
+ * Turns on TCP keepalive, and on epoll {@code TCP_USER_TIMEOUT}, on an already connected tunnel
+ * socket, so the kernel drops a peer that vanished without a FIN (a sleeping phone, a NAT entry
+ * that expired) instead of holding the connection open for hours.
+ *
+ * <p>Each option is offered to the channel in both its epoll and its NIO form; the transport
+ * ignores the form it does not know. The epoll options are bound reflectively, like in {@link
+ * KernelSplice}. NIO has no user timeout.
+ */
+@Slf4j
+final class TcpKeepAlive {
+
+  private static final ChannelOption<Integer> EPOLL_KEEPIDLE = epollOption("TCP_KEEPIDLE");
+  private static final ChannelOption<Integer> EPOLL_KEEPINTVL = epollOption("TCP_KEEPINTVL");
+  private static final ChannelOption<Integer> EPOLL_KEEPCNT = epollOption("TCP_KEEPCNT");
+  private static final ChannelOption<Integer> EPOLL_USER_TIMEOUT = epollOption("TCP_USER_TIMEOUT");
+
+  private TcpKeepAlive() {
+    throw new IllegalStateException();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ChannelOption<Integer> epollOption(String name) {
+    try {
+      return (ChannelOption<Integer>)
+          Class.forName("io.netty.channel.epoll.EpollChannelOption").getField(name).get(null);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+
+  static void apply(NetSocket socket, TunnelTimeouts timeouts) {
+    if (!timeouts.keepsAlive() || !(socket instanceof NetSocketInternal internal)) {
+      return;
+    }
+    Channel channel = internal.channelHandlerContext().channel();
+    ChannelConfig config = channel.config();
+    try {
+      config.setOption(ChannelOption.SO_KEEPALIVE, true);
+      set(
+          config,
+          EPOLL_KEEPIDLE,
+          ExtendedSocketOptions.TCP_KEEPIDLE,
+          timeouts.getKeepAliveIdleSeconds());
+      set(
+          config,
+          EPOLL_KEEPINTVL,
+          ExtendedSocketOptions.TCP_KEEPINTERVAL,
+          timeouts.getKeepAliveIntervalSeconds());
+      set(config, EPOLL_KEEPCNT, ExtendedSocketOptions.TCP_KEEPCOUNT, timeouts.getKeepAliveCount());
+      if (EPOLL_USER_TIMEOUT != null && timeouts.getUserTimeoutSeconds() > 0) {
+        config.setOption(
+            EPOLL_USER_TIMEOUT, (int) TimeUnit.SECONDS.toMillis(timeouts.getUserTimeoutSeconds()));
+      }
+    } catch (RuntimeException e) {
+      // Some platforms lack the finer options; the tunnel still works, it is only reaped later.
+      log.debug("Cannot set keepalive on {}: ", channel, e);
+    }
+  }
+
+  private static void set(
+      ChannelConfig config, ChannelOption<Integer> epoll, SocketOption<Integer> nio, int value) {
+    if (epoll != null && config.setOption(epoll, value)) {
+      return;
+    }
+    config.setOption(NioChannelOption.of(nio), value);
+  }
+}
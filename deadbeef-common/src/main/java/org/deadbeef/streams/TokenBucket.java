@@ -0,0 +1,55 @@
+package org.deadbeef.streams;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte-rate limit that goes into debt rather than refusing: a pipe has already read the chunk it
+ * charges, so {@link #charge} always takes it and answers how long the source should now rest for
+ * the bucket to be back within its burst. Buckets nest: a charge is taken from this bucket and
+ * every parent up to the root, and the longest of their waits is returned.
+ *
+ * <p>Kept as a single theoretical-arrival time (GCRA) in one {@link AtomicLong}, so a charge is a
+ * compare-and-set per level with no lock and no allocation, and the root can be shared by every
+ * event loop.
+ */
+final class TokenBucket {
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final long bytesPerSecond;
+  private final long burstNanos;
+  private final TokenBucket parent;
+  private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * @param bytesPerSecond the sustained rate, or 0 for a level that only passes charges on
+   * @param burstNanos how far ahead of its rate a rested bucket lets traffic run
+   * @param parent charged along with this bucket; null for the root
+   */
+  TokenBucket(long bytesPerSecond, long burstNanos, TokenBucket parent) {
+    Preconditions.checkArgument(bytesPerSecond >= 0 && burstNanos >= 0);
+    this.bytesPerSecond = bytesPerSecond;
+    this.burstNanos = burstNanos;
+    this.parent = parent;
+  }
+
+  /** Takes {@code bytes} and returns the nanoseconds to wait before reading more, or 0. */
+  long charge(long bytes, long nowNanos) {
+    long wait = 0;
+    if (bytesPerSecond > 0) {
+      long cost = bytes * NANOS_PER_SECOND / bytesPerSecond;
+      while (true) {
+        long previous = arrival.get();
+        // A rested bucket starts from now: unused time does not pile up beyond the burst.
+        long next = Math.max(previous, nowNanos) + cost;
+        if (arrival.compareAndSet(previous, next)) {
+          wait = Math.max(0, next - nowNanos - burstNanos);
+          break;
+        }
+      }
+    }
+    return parent == null ? wait : Math.max(wait, parent.charge(bytes, nowNanos));
+  }
+}
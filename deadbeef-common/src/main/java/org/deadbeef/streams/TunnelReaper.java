@@ -0,0 +1,235 @@
+package org.deadbeef.streams;
+
+import com.codahale.metrics.Counter;
+import io.netty.channel.Channel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.streams.Pipe;
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.deadbeef.bootstrap.TunnelTimeouts;
+
+/**
+ * Closes tunnels that have gone quiet in both directions, and sets TCP keepalive on their sockets
+ * (see {@link TcpKeepAlive}). Without it, two sockets coupled by {@link Tunnels} stay open for as
+ * long as neither peer sends a FIN, which a sleeping phone or a NAT box that dropped its state
+ * never does.
+ *
+ * <p>Every watched tunnel has one timeout on a shared {@link HashedWheelTimer}, so a hundred
+ * thousand tunnels cost a hundred thousand wheel slots and no scan. When it fires, the tunnel is
+ * checked on its own event loop: a piped direction is active if its {@link EventLoopPipe} moved
+ * bytes since the last check, a spliced one if the kernel saw data arrive on its source socket. A
+ * tunnel idle past both {@link TunnelTimeouts} limits (a limit of 0 is always past) is closed and
+ * counted; any other is checked again a period later. Tunnels whose pipes are of another kind are
+ * never idle to the reaper.
+ */
+@Slf4j
+public final class TunnelReaper implements Closeable {
+
+  private static final long MIN_PERIOD = TimeUnit.SECONDS.toMillis(1);
+
+  private static final MethodHandle TCP_INFO;
+  private static final MethodHandle LAST_DATA_RECV;
+
+  static {
+    MethodHandle tcpInfo = null;
+    MethodHandle lastDataRecv = null;
+    try {
+      Class<?> channel = Class.forName("io.netty.channel.epoll.EpollSocketChannel");
+      Class<?> info = Class.forName("io.netty.channel.epoll.EpollTcpInfo");
+      tcpInfo =
+          MethodHandles.publicLookup()
+              .findVirtual(channel, "tcpInfo", MethodType.methodType(info))
+              .asType(MethodType.methodType(Object.class, Channel.class));
+      lastDataRecv =
+          MethodHandles.publicLookup()
+              .findVirtual(info, "lastDataRecv", MethodType.methodType(long.class))
+              .asType(MethodType.methodType(long.class, Object.class));
+    } catch (ReflectiveOperationException | LinkageError e) {
+      log.debug("Native epoll not on the classpath, spliced tunnels are never reaped for idling");
+    }
+    TCP_INFO = tcpInfo;
+    LAST_DATA_RECV = lastDataRecv;
+  }
+
+  private final TunnelTimeouts timeouts;
+  private final Counter reaped;
+  private final long clientIdleMillis;
+  private final long upstreamIdleMillis;
+  private final long period;
+  private final LongSupplier clock;
+  private final HashedWheelTimer wheel;
+
+  public TunnelReaper(@NonNull TunnelTimeouts timeouts, @NonNull Counter reaped) {
+    this(timeouts, reaped, System::currentTimeMillis);
+  }
+
+  TunnelReaper(TunnelTimeouts timeouts, Counter reaped, LongSupplier clock) {
+    this.timeouts = timeouts;
+    this.reaped = reaped;
+    this.clock = clock;
+    clientIdleMillis = TimeUnit.SECONDS.toMillis(timeouts.getClientIdleSeconds());
+    upstreamIdleMillis = TimeUnit.SECONDS.toMillis(timeouts.getUpstreamIdleSeconds());
+    // A tunnel is closed at most a quarter of its limit late; a limit of 0 sets no pace.
+    long limit =
+        clientIdleMillis > 0 && upstreamIdleMillis > 0
+            ? Math.min(clientIdleMillis, upstreamIdleMillis)
+            : Math.max(clientIdleMillis, upstreamIdleMillis);
+    period = Math.max(MIN_PERIOD, limit / 4);
+    wheel =
+        new HashedWheelTimer(
+            r -> {
+              Thread thread = new Thread(r, "deadbeef-tunnel-reaper");
+              thread.setDaemon(true);
+              return thread;
+            },
+            MIN_PERIOD,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /** Also for sockets that are not coupled by {@link Tunnels}, such as a mux session's. */
+  public void keepAlive(@NonNull NetSocket socket) {
+    TcpKeepAlive.apply(socket, timeouts);
+  }
+
+  /**
+   * A watch for a tunnel about to be coupled, to be {@link Watch#start started} on its event loop
+   * once its pipes exist and cancelled when it closes. Null when idle reaping is off.
+   */
+  Watch newWatch() {
+    return timeouts.reapsIdle() ? new Watch() : null;
+  }
+
+  /** A direction carried by an {@link EventLoopPipe}, or never idle if the pipe is another kind. */
+  Direction piped(Pipe<Buffer> pipe) {
+    if (!(pipe instanceof EventLoopPipe eventLoopPipe)) {
+      return Direction.NEVER_IDLE;
+    }
+    return new Direction() {
+      private long piped = eventLoopPipe.piped();
+      private long activeAt = clock.getAsLong();
+
+      @Override
+      public long idleMillis(long now) {
+        long current = eventLoopPipe.piped();
+        if (current != piped) {
+          piped = current;
+          activeAt = now;
+        }
+        return now - activeAt;
+      }
+    };
+  }
+
+  /** A direction spliced in the kernel out of {@code source}, idle since data last arrived. */
+  Direction spliced(Channel source) {
+    if (TCP_INFO == null || source == null) {
+      return Direction.NEVER_IDLE;
+    }
+    return now -> {
+      if (!source.isActive()) {
+        return 0;
+      }
+      try {
+        return (long) LAST_DATA_RECV.invoke(TCP_INFO.invoke(source));
+      } catch (Throwable e) {
+        return 0;
+      }
+    };
+  }
+
+  @Override
+  public void close() {
+    wheel.stop();
+  }
+
+  /** How long one direction of a tunnel has carried nothing; asked on the tunnel's event loop. */
+  interface Direction {
+
+    Direction NEVER_IDLE = now -> 0;
+
+    long idleMillis(long now);
+  }
+
+  final class Watch implements TimerTask, Handler<Void> {
+
+    private Context context;
+    private Direction fromClient;
+    private Direction fromUpstream;
+    private Handler<Void> reap;
+    private volatile boolean cancelled;
+    private volatile Timeout timeout;
+
+    private Watch() {}
+
+    /**
+     * @param reap closes the tunnel; called at most once, on the event loop
+     */
+    void start(Direction fromClient, Direction fromUpstream, Handler<Void> reap) {
+      this.context = Vertx.currentContext();
+      this.fromClient = fromClient;
+      this.fromUpstream = fromUpstream;
+      this.reap = reap;
+      schedule();
+    }
+
+    private void schedule() {
+      if (!cancelled) {
+        timeout = wheel.newTimeout(this, period, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /** On the wheel's thread: hop onto the tunnel's event loop for the check. */
+    @Override
+    public void run(Timeout timeout) {
+      if (cancelled) {
+        return;
+      }
+      if (context == null) {
+        handle(null);
+      } else {
+        context.runOnContext(this);
+      }
+    }
+
+    /** The check, on the tunnel's event loop. */
+    @Override
+    public void handle(Void v) {
+      if (cancelled) {
+        return;
+      }
+      long now = clock.getAsLong();
+      // Both directions are asked, so that each notices its own activity at every check.
+      long clientIdle = fromClient.idleMillis(now);
+      long upstreamIdle = fromUpstream.idleMillis(now);
+      if (clientIdle >= clientIdleMillis && upstreamIdle >= upstreamIdleMillis) {
+        cancelled = true;
+        reaped.inc();
+        log.debug("Reaping tunnel idle for {} ms / {} ms", clientIdle, upstreamIdle);
+        reap.handle(null);
+        return;
+      }
+      schedule();
+    }
+
+    void cancel() {
+      cancelled = true;
+      Timeout scheduled = timeout;
+      if (scheduled != null) {
+        scheduled.cancel();
+      }
+    }
+  }
+}
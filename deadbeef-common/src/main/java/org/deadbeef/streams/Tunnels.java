@@ -1,8 +1,10 @@
 package org.deadbeef.streams;
 
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.net.NetSocket;
+import io.vertx.core.streams.Pipe;
 import lombok.NonNull;
 import org.deadbeef.util.Utils;
 
@@ -10,7 +12,11 @@ import org.deadbeef.util.Utils;
  * Shared CONNECT-tunnel plumbing: upgrade the inbound HTTP request to a raw {@link NetSocket} and
  * pipe bytes both ways, closing both halves once (and only once) when either drops. Used by the
  * server's CONNECT handler and by the client for both its direct and remote tunnels, so the
- * close-coupling lives in one place.
+ * close-coupling lives in one place. Tunnels carried by a {@link MuxSession} use the {@link
+ * MuxStream} overloads. Socket-to-socket tunnels on the native epoll transport are spliced in the
+ * kernel when their pipelines allow it and the tunnel is not shaped (see {@link KernelSplice} and
+ * {@link BandwidthShaper}). Given a {@link TunnelReaper}, a tunnel is also closed once it idles and
+ * its sockets get TCP keepalive.
  */
 public final class Tunnels {
 
@@ -26,6 +32,7 @@ public final class Tunnels {
    * @param onUpgraded invoked once after a successful socket upgrade (nullable; e.g. gauge inc)
    * @param onClose invoked once when either side closes (nullable; e.g. gauge dec)
    * @param onError invoked if the upgrade itself fails (nullable)
+   * @param reaper closes the tunnel once it idles, and sets TCP keepalive on its sockets (nullable)
    */
   public static void upgrade(
       @NonNull HttpServerRequest serverRequest,
@@ -34,7 +41,8 @@ public final class Tunnels {
       @NonNull PipeFactory upstreamToClient,
       Handler<Void> onUpgraded,
       Handler<Void> onClose,
-      Handler<Throwable> onError) {
+      Handler<Throwable> onError,
+      TunnelReaper reaper) {
     serverRequest.toNetSocket(
         ar -> {
           if (ar.failed()) {
@@ -48,19 +56,141 @@ public final class Tunnels {
           if (onUpgraded != null) {
             onUpgraded.handle(null);
           }
-          Handler<Void> closeOnce =
-              Utils.atMostOnce(
-                  v -> {
-                    if (onClose != null) {
-                      onClose.handle(null);
-                    }
-                    downstream.close();
-                    upstream.close();
-                  });
-          downstream.closeHandler(closeOnce);
-          upstream.closeHandler(closeOnce);
-          clientToUpstream.newPipe(downstream).to(upstream);
-          upstreamToClient.newPipe(upstream).to(downstream);
+          couple(downstream, upstream, clientToUpstream, upstreamToClient, onClose, reaper);
         });
   }
+
+  /**
+   * Same as {@link #upgrade(HttpServerRequest, NetSocket, PipeFactory, PipeFactory, Handler,
+   * Handler, Handler, TunnelReaper)}, with the upstream being a stream of a multiplexed session.
+   */
+  public static void upgrade(
+      @NonNull HttpServerRequest serverRequest,
+      @NonNull MuxStream upstream,
+      @NonNull PipeFactory clientToUpstream,
+      @NonNull PipeFactory upstreamToClient,
+      Handler<Void> onUpgraded,
+      Handler<Void> onClose,
+      Handler<Throwable> onError,
+      TunnelReaper reaper) {
+    serverRequest.toNetSocket(
+        ar -> {
+          if (ar.failed()) {
+            if (onError != null) {
+              onError.handle(ar.cause());
+            }
+            upstream.close();
+            return;
+          }
+          if (onUpgraded != null) {
+            onUpgraded.handle(null);
+          }
+          pipe(ar.result(), upstream, clientToUpstream, upstreamToClient, onClose, reaper, true);
+        });
+  }
+
+  /**
+   * Pipes a connected socket and an accepted {@link MuxStream} into each other, closing both once
+   * when either side drops. The server end of a multiplexed tunnel.
+   *
+   * @param onClose invoked once when either side closes (nullable)
+   * @param reaper closes the tunnel once it idles, taking the stream as the client side (nullable)
+   */
+  public static void splice(
+      @NonNull NetSocket socket,
+      @NonNull MuxStream stream,
+      @NonNull PipeFactory socketToStream,
+      @NonNull PipeFactory streamToSocket,
+      Handler<Void> onClose,
+      TunnelReaper reaper) {
+    pipe(socket, stream, socketToStream, streamToSocket, onClose, reaper, false);
+  }
+
+  private static void pipe(
+      NetSocket socket,
+      MuxStream stream,
+      PipeFactory socketToStream,
+      PipeFactory streamToSocket,
+      Handler<Void> onClose,
+      TunnelReaper reaper,
+      boolean socketIsClient) {
+    TunnelReaper.Watch watch = reaper != null ? reaper.newWatch() : null;
+    Handler<Void> closeOnce =
+        Utils.atMostOnce(
+            v -> {
+              if (watch != null) {
+                watch.cancel();
+              }
+              if (onClose != null) {
+                onClose.handle(null);
+              }
+              socket.close();
+              stream.close();
+            });
+    socket.closeHandler(closeOnce);
+    stream.closeHandler(closeOnce);
+    if (reaper != null) {
+      reaper.keepAlive(socket);
+    }
+    Pipe<Buffer> fromSocket = socketToStream.newPipe(socket);
+    Pipe<Buffer> fromStream = streamToSocket.newPipe(stream);
+    fromSocket.to(stream);
+    fromStream.to(socket);
+    if (watch != null) {
+      TunnelReaper.Direction socketSends = reaper.piped(fromSocket);
+      TunnelReaper.Direction streamSends = reaper.piped(fromStream);
+      if (socketIsClient) {
+        watch.start(socketSends, streamSends, closeOnce);
+      } else {
+        watch.start(streamSends, socketSends, closeOnce);
+      }
+    }
+  }
+
+  private static void couple(
+      NetSocket downstream,
+      NetSocket upstream,
+      PipeFactory clientToUpstream,
+      PipeFactory upstreamToClient,
+      Handler<Void> onClose,
+      TunnelReaper reaper) {
+    TunnelReaper.Watch watch = reaper != null ? reaper.newWatch() : null;
+    Handler<Void> closeOnce =
+        Utils.atMostOnce(
+            v -> {
+              if (watch != null) {
+                watch.cancel();
+              }
+              if (onClose != null) {
+                onClose.handle(null);
+              }
+              downstream.close();
+              upstream.close();
+            });
+    downstream.closeHandler(closeOnce);
+    upstream.closeHandler(closeOnce);
+    if (reaper != null) {
+      reaper.keepAlive(downstream);
+      reaper.keepAlive(upstream);
+    }
+    boolean shaped =
+        clientToUpstream instanceof ShapedPipeFactory
+            || upstreamToClient instanceof ShapedPipeFactory;
+    if (!shaped && KernelSplice.start(downstream, upstream, clientToUpstream, upstreamToClient)) {
+      if (watch != null) {
+        watch.start(
+            reaper.spliced(KernelSplice.channel(downstream)),
+            reaper.spliced(KernelSplice.channel(upstream)),
+            closeOnce);
+      }
+      return;
+    }
+    Pipe<Buffer> fromClient = clientToUpstream.newPipe(downstream);
+    Pipe<Buffer> fromUpstream = upstreamToClient.newPipe(upstream);
+    fromClient.to(upstream);
+    fromUpstream.to(downstream);
+    if (watch != null) {
+      watch.start(reaper.piped(fromClient), reaper.piped(fromUpstream), closeOnce);
+    }
+  }
 }
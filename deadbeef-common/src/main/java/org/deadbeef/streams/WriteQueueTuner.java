@@ -0,0 +1,137 @@
+package org.deadbeef.streams;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Sizes one pipe's destination write queue from what the pipe observes, so a fast, high-latency
+ * path gets a queue deep enough to stay busy and a slow or quiet one gives the room back.
+ *
+ * <p>Each time the destination fills, the pipe pauses the source; the destination then drains the
+ * lower half of its queue in some time (its throughput), and once resumed the source takes some
+ * time to deliver again (its round trip). If the refill takes longer than the drain, the
+ * destination sat idle and the queue grows by that ratio; if much shorter, it shrinks. Changes are
+ * at most twofold per cycle and stay within {@link #MIN_SIZE} and {@link #MAX_SIZE}. A source quiet
+ * for longer than {@link #IDLE} drops back to {@link #INITIAL_SIZE}.
+ *
+ * <p>Growth beyond the initial size is drawn from a process-wide budget of {@link #GLOBAL_BUDGET}
+ * bytes and returned on {@link #release}, so a crowd of busy tunnels cannot queue without limit.
+ * Confined to the pipe's event loop, except for the shared budget.
+ */
+final class WriteQueueTuner {
+
+  /** Vert.x's default for sockets, which pipes start from. */
+  static final int INITIAL_SIZE = 64 * 1024;
+
+  static final int MIN_SIZE = 16 * 1024;
+  static final int MAX_SIZE = 4 * 1024 * 1024;
+  static final long GLOBAL_BUDGET = 256L * 1024 * 1024;
+  static final long IDLE = TimeUnit.SECONDS.toNanos(1);
+
+  private static final AtomicLong SHARED_BUDGET = new AtomicLong(GLOBAL_BUDGET);
+
+  private final AtomicLong budget;
+  private final LongSupplier nanoClock;
+  private int size = INITIAL_SIZE;
+  private boolean paused;
+  private long pausedAt;
+  private long drainNanos;
+  private boolean resumed;
+  private long resumedAt;
+
+  WriteQueueTuner() {
+    this(SHARED_BUDGET, System::nanoTime);
+  }
+
+  @VisibleForTesting
+  WriteQueueTuner(AtomicLong budget, LongSupplier nanoClock) {
+    this.budget = budget;
+    this.nanoClock = nanoClock;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** The destination is full and the source was paused. */
+  void paused() {
+    paused = true;
+    pausedAt = nanoClock.getAsLong();
+    resumed = false;
+  }
+
+  /** The destination drained and the source was resumed. */
+  void drained() {
+    if (!paused) {
+      return;
+    }
+    paused = false;
+    resumed = true;
+    resumedAt = nanoClock.getAsLong();
+    drainNanos = Math.max(1, resumedAt - pausedAt);
+  }
+
+  /**
+   * Call on each chunk; only the first after a resume does anything.
+   *
+   * @return true if {@link #size} changed and should be applied to the destination
+   */
+  boolean refilled() {
+    if (!resumed) {
+      return false;
+    }
+    resumed = false;
+    long refillNanos = nanoClock.getAsLong() - resumedAt;
+    int target;
+    if (refillNanos > IDLE) {
+      target = INITIAL_SIZE;
+    } else {
+      // A quarter over the measured need, so that jitter does not starve the destination.
+      double need = (double) size * refillNanos / drainNanos * 1.25;
+      target = (int) Math.max(size / 2, Math.min(2L * size, (long) need));
+      target = Math.max(MIN_SIZE, Math.min(MAX_SIZE, target));
+    }
+    return resize(target);
+  }
+
+  private boolean resize(int target) {
+    if (target == size) {
+      return false;
+    }
+    long grownBefore = Math.max(0, size - INITIAL_SIZE);
+    long grownAfter = Math.max(0, target - INITIAL_SIZE);
+    long extra = grownAfter - grownBefore;
+    if (extra > 0) {
+      // Up to the initial size is free; beyond it, only what the budget grants.
+      target = (int) (Math.max(size, INITIAL_SIZE) + take(extra));
+      if (target == size) {
+        return false;
+      }
+    } else if (extra < 0) {
+      budget.addAndGet(-extra);
+    }
+    size = target;
+    return true;
+  }
+
+  /** Takes up to {@code bytes} from the budget, returning how much was granted. */
+  private long take(long bytes) {
+    while (true) {
+      long available = budget.get();
+      long granted = Math.min(available, bytes);
+      if (granted <= 0 || budget.compareAndSet(available, available - granted)) {
+        return Math.max(0, granted);
+      }
+    }
+  }
+
+  /** Returns this pipe's growth to the budget; call once when the pipe completes. */
+  void release() {
+    if (size > INITIAL_SIZE) {
+      budget.addAndGet(size - INITIAL_SIZE);
+    }
+    size = INITIAL_SIZE;
+  }
+}
@@ -5,6 +5,11 @@ import io.netty.util.AsciiString;
 public final class Constants {
 
   private static final AsciiString AUTH_HEADER_NAME = AsciiString.cached("X-Deadbeef-Auth");
+  private static final AsciiString MUX_HEADER_NAME = AsciiString.cached("X-Deadbeef-Mux");
+  private static final AsciiString HEADER_TABLE_HEADER_NAME =
+      AsciiString.cached("X-Deadbeef-Header-Table");
+  private static final AsciiString AUTH_SESSION_HEADER_NAME =
+      AsciiString.cached("X-Deadbeef-Auth-Session");
 
   private Constants() {
     throw new IllegalStateException();
@@ -25,4 +30,25 @@ public final class Constants {
   public static CharSequence authHeaderName() {
     return AUTH_HEADER_NAME;
   }
+
+  /** Marks a CONNECT that asks for a multiplexed session instead of a single tunnel. */
+  public static CharSequence muxHeaderName() {
+    return MUX_HEADER_NAME;
+  }
+
+  /**
+   * Offers (client) and accepts (server) a compressed-header table for the connection; the value is
+   * the table capacity in bytes.
+   */
+  public static CharSequence headerTableHeaderName() {
+    return HEADER_TABLE_HEADER_NAME;
+  }
+
+  /**
+   * Set by the server on a response once the connection it arrived on is authenticated; later
+   * requests on that connection may omit {@link #authHeaderName()}.
+   */
+  public static CharSequence authSessionHeaderName() {
+    return AUTH_SESSION_HEADER_NAME;
+  }
 }
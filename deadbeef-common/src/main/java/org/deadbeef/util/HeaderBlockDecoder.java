@@ -0,0 +1,111 @@
+package org.deadbeef.util;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+import lombok.NonNull;
+
+/**
+ * Decodes the blocks produced by {@link HeaderBlockEncoder}, replaying its dynamic table
+ * insertions. Names come out lower-case. One instance per connection; blocks must be fed in the
+ * order they were encoded.
+ */
+public final class HeaderBlockDecoder {
+
+  private final HeaderTable table;
+
+  public HeaderBlockDecoder(int capacity) {
+    Preconditions.checkArgument(capacity >= 0, "capacity should not be negative: %s", capacity);
+    this.table = new HeaderTable(capacity);
+  }
+
+  /**
+   * @throws IllegalArgumentException if the block is malformed or refers to an entry this table
+   *     does not have; the table is then out of step with the encoder and must be discarded
+   */
+  public void decode(
+      @NonNull ByteString block, @NonNull BiConsumer<? super String, ? super String> consumer) {
+    Reader reader = new Reader(block.toByteArray());
+    while (reader.hasRemaining()) {
+      int first = reader.peek();
+      if ((first & HeaderBlockEncoder.INDEXED) != 0) {
+        int index = reader.readInt(7);
+        Preconditions.checkArgument(
+            index > 0 && index <= table.length(), "Unknown dynamic index: %s", index);
+        String[] entry = table.get(index);
+        consumer.accept(entry[0], entry[1]);
+        continue;
+      }
+      boolean insert = (first & HeaderBlockEncoder.LITERAL_INDEXED) != 0;
+      Preconditions.checkArgument(insert || (first & 0xf0) == 0, "Bad representation: %s", first);
+      int nameIndex = reader.readInt(insert ? 6 : 4);
+      String name = nameIndex == 0 ? reader.readString() : name(nameIndex);
+      String value = reader.readString();
+      if (insert) {
+        table.add(name, value);
+      }
+      consumer.accept(name, value);
+    }
+  }
+
+  private String name(int index) {
+    int staticSize = HeaderTable.STATIC_NAMES.size();
+    if (index <= staticSize) {
+      return HeaderTable.STATIC_NAMES.get(index - 1);
+    }
+    int dynamicIndex = index - staticSize;
+    Preconditions.checkArgument(
+        dynamicIndex <= table.length(), "Unknown dynamic name index: %s", dynamicIndex);
+    return table.get(dynamicIndex)[0];
+  }
+
+  private static final class Reader {
+
+    private final byte[] bytes;
+    private int position;
+
+    private Reader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    boolean hasRemaining() {
+      return position < bytes.length;
+    }
+
+    int peek() {
+      return bytes[position] & 0xff;
+    }
+
+    int next() {
+      Preconditions.checkArgument(position < bytes.length, "Truncated header block");
+      return bytes[position++] & 0xff;
+    }
+
+    int readInt(int prefixBits) {
+      int max = (1 << prefixBits) - 1;
+      int value = next() & max;
+      if (value < max) {
+        return value;
+      }
+      int shift = 0;
+      int b;
+      do {
+        Preconditions.checkArgument(shift <= 21, "Header block integer overflow");
+        b = next();
+        value += (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    String readString() {
+      int length = readInt(7);
+      Preconditions.checkArgument(
+          length <= bytes.length - position, "Truncated header block string");
+      String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package org.deadbeef.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import lombok.NonNull;
+import org.deadbeef.protocol.HttpProto;
+
+/**
+ * Compresses {@link HttpProto.Headers} into the {@code header_block} of a request, HPACK style (RFC
+ * 7541 integer and literal representations, no Huffman). A pair already in the dynamic table costs
+ * one or two bytes; a known name costs its value; anything else is sent literally and remembered
+ * for next time.
+ *
+ * <p>Representations, by leading bits of the first byte:
+ *
+ * <ul>
+ *   <li>{@code 1xxxxxxx} — dynamic table entry, 7-bit index prefix
+ *   <li>{@code 01xxxxxx} — literal value, inserted into the dynamic table; 6-bit name index prefix
+ *   <li>{@code 0000xxxx} — literal value, not inserted; 4-bit name index prefix
+ * </ul>
+ *
+ * A name index of 0 means a literal name follows, {@code 1..S} addresses {@link
+ * HeaderTable#STATIC_NAMES} and {@code S+k} the name of dynamic entry {@code k}. Strings are a
+ * 7-bit-prefix byte length followed by UTF-8.
+ *
+ * <p>Stateful and not thread-safe: one instance per connection, and every block it produces must be
+ * decoded, in order, by the single {@link HeaderBlockDecoder} on the other end.
+ */
+public final class HeaderBlockEncoder {
+
+  static final int INDEXED = 0x80;
+  static final int LITERAL_INDEXED = 0x40;
+  static final int LITERAL = 0x00;
+
+  private static final HttpHeaderDecoder NAMES = new HttpHeaderDecoder(true);
+  private static final Map<String, Integer> STATIC_INDEX;
+
+  /** Credentials are never put in the table, like HPACK's never-indexed literals. */
+  private static final Set<String> NEVER_INDEXED = Set.of("authorization", "proxy-authorization");
+
+  static {
+    Map<String, Integer> map = Maps.newHashMapWithExpectedSize(HeaderTable.STATIC_NAMES.size());
+    for (int i = 0; i < HeaderTable.STATIC_NAMES.size(); i++) {
+      map.put(HeaderTable.STATIC_NAMES.get(i), i + 1);
+    }
+    STATIC_INDEX = map;
+  }
+
+  private final HeaderTable table;
+  // Insertion sequence of the newest entry per pair and per name, pruned on eviction.
+  private final Map<String, Map<String, Long>> pairs = new HashMap<>();
+  private final Map<String, Long> names = new HashMap<>();
+
+  public HeaderBlockEncoder(int capacity) {
+    Preconditions.checkArgument(capacity >= 0, "capacity should not be negative: %s", capacity);
+    this.table = new HeaderTable(capacity, this::evicted);
+  }
+
+  public ByteString encode(@NonNull HttpProto.Headers headers) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+    NAMES.visit(headers, (name, value) -> encodeField(out, name, value));
+    return ByteString.copyFrom(out.toByteArray());
+  }
+
+  private void encodeField(ByteArrayOutputStream out, String name, String value) {
+    Map<String, Long> values = pairs.get(name);
+    int pairIndex = values == null ? 0 : dynamicIndex(values.get(value));
+    if (pairIndex > 0) {
+      writeInt(out, INDEXED, 7, pairIndex);
+      return;
+    }
+
+    int nameIndex = nameIndex(name);
+    boolean index =
+        !NEVER_INDEXED.contains(name) && HeaderTable.entrySize(name, value) <= table.capacity();
+    if (index) {
+      writeInt(out, LITERAL_INDEXED, 6, nameIndex);
+    } else {
+      writeInt(out, LITERAL, 4, nameIndex);
+    }
+    if (nameIndex == 0) {
+      writeString(out, name);
+    }
+    writeString(out, value);
+
+    if (index && table.add(name, value)) {
+      long sequence = table.inserted() - 1;
+      pairs.computeIfAbsent(name, k -> new HashMap<>()).put(value, sequence);
+      names.put(name, sequence);
+    }
+  }
+
+  private void evicted(String name, String value, long sequence) {
+    Map<String, Long> values = pairs.get(name);
+    if (values != null && values.remove(value, sequence) && values.isEmpty()) {
+      pairs.remove(name);
+    }
+    names.remove(name, sequence);
+  }
+
+  private int nameIndex(String name) {
+    Integer staticIndex = STATIC_INDEX.get(name);
+    if (staticIndex != null) {
+      return staticIndex;
+    }
+    int dynamicIndex = dynamicIndex(names.get(name));
+    return dynamicIndex > 0 ? HeaderTable.STATIC_NAMES.size() + dynamicIndex : 0;
+  }
+
+  /** Current 1-based index of the entry inserted as {@code sequence}, or 0 once evicted. */
+  private int dynamicIndex(Long sequence) {
+    if (sequence == null) {
+      return 0;
+    }
+    long index = table.inserted() - sequence;
+    if (index > table.length()) {
+      return 0;
+    }
+    return (int) index;
+  }
+
+  static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      out.write(flags | value);
+      return;
+    }
+    out.write(flags | max);
+    value -= max;
+    while (value >= 0x80) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeInt(out, 0, 7, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+}
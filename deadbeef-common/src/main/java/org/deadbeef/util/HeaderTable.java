@@ -0,0 +1,105 @@
+package org.deadbeef.util;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tables behind {@link HeaderBlockEncoder} and {@link HeaderBlockDecoder}: a static table of
+ * header names and a bounded dynamic table of recently sent {@code (name, value)} pairs, sized the
+ * way HPACK sizes it (name + value + 32 bytes per entry). Both ends apply the same insertions in
+ * the same order, so an index means the same entry on either side.
+ */
+final class HeaderTable {
+
+  static final int ENTRY_OVERHEAD = 32;
+
+  /**
+   * Name-only static table: the declared {@code Headers} fields in field-number order, then a few
+   * common browser headers that only ever travel as undeclared pairs. Index 1 is the first entry.
+   * Both peers derive it from the same proto, so new names may only ever be appended.
+   */
+  static final List<String> STATIC_NAMES;
+
+  static {
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    for (HttpHeaderCodec.Field field : HttpHeaderCodec.FIELDS) {
+      builder.add(field.name);
+    }
+    builder.add(
+        "sec-ch-ua",
+        "sec-ch-ua-mobile",
+        "sec-ch-ua-platform",
+        "sec-fetch-dest",
+        "sec-fetch-mode",
+        "sec-fetch-site",
+        "sec-fetch-user",
+        "priority");
+    STATIC_NAMES = builder.build();
+  }
+
+  /** Told about every evicted entry along with its insertion sequence. */
+  interface EvictionListener {
+    void evicted(String name, String value, long sequence);
+  }
+
+  private final int capacity;
+  private final EvictionListener evictionListener;
+  // Oldest first; dynamic index 1 is the newest entry, i.e. the last element.
+  private final List<String[]> entries = new ArrayList<>();
+  private int size;
+  private long inserted;
+
+  HeaderTable(int capacity) {
+    this(capacity, null);
+  }
+
+  HeaderTable(int capacity, EvictionListener evictionListener) {
+    this.capacity = capacity;
+    this.evictionListener = evictionListener;
+  }
+
+  static int entrySize(String name, String value) {
+    return name.length() + value.length() + ENTRY_OVERHEAD;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  int length() {
+    return entries.size();
+  }
+
+  /**
+   * Total number of insertions so far; lets the encoder turn an insertion sequence into an index.
+   */
+  long inserted() {
+    return inserted;
+  }
+
+  /** 1-based, newest first. */
+  String[] get(int index) {
+    return entries.get(entries.size() - index);
+  }
+
+  /** Inserts an entry, evicting the oldest ones to make room. Returns false if it can never fit. */
+  boolean add(String name, String value) {
+    int entrySize = entrySize(name, value);
+    if (entrySize > capacity) {
+      return false;
+    }
+    while (size + entrySize > capacity) {
+      long sequence = inserted - entries.size();
+      String[] evicted = entries.remove(0);
+      size -= entrySize(evicted[0], evicted[1]);
+      if (evictionListener != null) {
+        evictionListener.evicted(evicted[0], evicted[1], sequence);
+      }
+    }
+    entries.add(new String[] {name, value});
+    size += entrySize;
+    inserted++;
+    return true;
+  }
+}
@@ -0,0 +1,178 @@
+package org.deadbeef.util;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import io.netty.util.AsciiString;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.deadbeef.protocol.HttpProto;
+
+/**
+ * The declared header fields of {@link HttpProto.Headers}, resolved once into what a generated
+ * codec would contain: interned lower-case and canonical names, and direct (non-reflective)
+ * setters, getters and presence checks bound to the generated accessors. Names are looked up
+ * case-insensitively through a collision-free hash table, without lower-casing or allocating.
+ *
+ * <p>Backs {@link HttpHeaderEncoder} and {@link HttpHeaderDecoder}.
+ */
+final class HttpHeaderCodec {
+
+  /** Declared fields in field-number order. */
+  static final List<Field> FIELDS;
+
+  private static final Field[] TABLE;
+  private static final int SEED;
+  private static final int SHIFT;
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    ImmutableList.Builder<Field> builder = ImmutableList.builder();
+    for (Descriptors.FieldDescriptor descriptor : HttpProto.Headers.getDescriptor().getFields()) {
+      if (descriptor.getJavaType() == Descriptors.FieldDescriptor.JavaType.STRING) {
+        builder.add(new Field(lookup, descriptor.getName()));
+      }
+    }
+    FIELDS = builder.build();
+
+    // Smallest power-of-two table, and a multiplier for it, that puts every name in its own slot.
+    int bits = 32 - Integer.numberOfLeadingZeros(FIELDS.size() * 2 - 1);
+    int seed = 0;
+    Field[] table = null;
+    while (table == null) {
+      for (int attempt = 0; attempt < 4096 && table == null; attempt++) {
+        seed = 0x9e3779b9 * (2 * attempt + 1);
+        table = place(FIELDS, seed, 32 - bits);
+      }
+      if (table == null) {
+        bits++;
+      }
+    }
+    TABLE = table;
+    SEED = seed;
+    SHIFT = 32 - bits;
+  }
+
+  private HttpHeaderCodec() {
+    throw new IllegalStateException();
+  }
+
+  private static Field[] place(List<Field> fields, int seed, int shift) {
+    Field[] table = new Field[1 << (32 - shift)];
+    for (Field field : fields) {
+      int slot = (AsciiString.hashCode(field.name) * seed) >>> shift;
+      if (table[slot] != null) {
+        return null;
+      }
+      table[slot] = field;
+    }
+    return table;
+  }
+
+  /** The declared field for a header name in any case, or null for an undeclared header. */
+  static Field lookup(CharSequence name) {
+    Field field = TABLE[(AsciiString.hashCode(name) * SEED) >>> SHIFT];
+    return field != null && AsciiString.contentEqualsIgnoreCase(field.name, name) ? field : null;
+  }
+
+  /** Lower-case form for an undeclared header name; no copy if it already is. */
+  static String lowerCase(CharSequence name) {
+    return Ascii.toLowerCase(name.toString());
+  }
+
+  static final class Field {
+
+    /** {@code content-type}. */
+    final String name;
+
+    /** {@code Content-Type}. */
+    final String canonicalName;
+
+    final BiConsumer<HttpProto.Headers.Builder, String> setter;
+    final Predicate<HttpProto.Headers> presence;
+    final Function<HttpProto.Headers, String> getter;
+
+    @SuppressWarnings("unchecked")
+    private Field(MethodHandles.Lookup lookup, String fieldName) {
+      this.name = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.LOWER_HYPHEN, fieldName).intern();
+      this.canonicalName = canonicalName(fieldName).intern();
+      String accessor = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, fieldName);
+      try {
+        this.setter =
+            bind(
+                lookup,
+                BiConsumer.class,
+                "accept",
+                MethodType.methodType(void.class, HttpProto.Headers.Builder.class, String.class),
+                lookup.findVirtual(
+                    HttpProto.Headers.Builder.class,
+                    "set" + accessor,
+                    MethodType.methodType(HttpProto.Headers.Builder.class, String.class)));
+        this.presence =
+            bind(
+                lookup,
+                Predicate.class,
+                "test",
+                MethodType.methodType(boolean.class, HttpProto.Headers.class),
+                lookup.findVirtual(
+                    HttpProto.Headers.class,
+                    "has" + accessor,
+                    MethodType.methodType(boolean.class)));
+        this.getter =
+            bind(
+                lookup,
+                Function.class,
+                "apply",
+                MethodType.methodType(String.class, HttpProto.Headers.class),
+                lookup.findVirtual(
+                    HttpProto.Headers.class,
+                    "get" + accessor,
+                    MethodType.methodType(String.class)));
+      } catch (Throwable e) {
+        throw new IllegalStateException("Cannot bind accessors of header field: " + fieldName, e);
+      }
+    }
+
+    private static String canonicalName(String fieldName) {
+      StringBuilder builder = new StringBuilder(fieldName.length());
+      boolean upper = true;
+      for (int i = 0; i < fieldName.length(); i++) {
+        char c = fieldName.charAt(i);
+        if (c == '_') {
+          builder.append('-');
+          upper = true;
+        } else {
+          builder.append(upper ? Ascii.toUpperCase(c) : c);
+          upper = false;
+        }
+      }
+      return builder.toString();
+    }
+
+    private static <T> T bind(
+        MethodHandles.Lookup lookup,
+        Class<T> functionalInterface,
+        String methodName,
+        MethodType instantiatedType,
+        MethodHandle implementation)
+        throws Throwable {
+      return functionalInterface.cast(
+          LambdaMetafactory.metafactory(
+                  lookup,
+                  methodName,
+                  MethodType.methodType(functionalInterface),
+                  instantiatedType.erase(),
+                  implementation,
+                  instantiatedType)
+              .getTarget()
+              .invoke());
+    }
+  }
+}
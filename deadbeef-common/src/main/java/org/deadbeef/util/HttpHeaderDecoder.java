@@ -1,11 +1,6 @@
 package org.deadbeef.util;
 
-import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableList;
-import com.google.protobuf.Descriptors;
 import io.vertx.core.MultiMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
@@ -14,12 +9,6 @@ import org.deadbeef.protocol.HttpProto;
 
 public final class HttpHeaderDecoder implements Function<HttpProto.Headers, MultiMap> {
 
-  private static final List<Descriptors.FieldDescriptor> FIELD_DESCRIPTORS =
-      HttpProto.Headers.getDescriptor().getFields().stream()
-          .filter(
-              fieldDescriptor ->
-                  fieldDescriptor.getJavaType() == Descriptors.FieldDescriptor.JavaType.STRING)
-          .collect(ImmutableList.toImmutableList());
   private final boolean allLowerCase;
 
   public HttpHeaderDecoder(boolean allLowerCase) {
@@ -30,23 +19,6 @@ public final class HttpHeaderDecoder implements Function<HttpProto.Headers, Mult
     this(false);
   }
 
-  private String transformName(String fieldName) {
-    Iterator<String> iterator = Splitter.on('_').split(fieldName).iterator();
-    StringBuilder builder = new StringBuilder(fieldName.length());
-    while (iterator.hasNext()) {
-      String next = iterator.next();
-      if (allLowerCase) {
-        builder.append(next);
-      } else {
-        builder.append(Character.toUpperCase(next.charAt(0))).append(next.substring(1));
-      }
-      if (iterator.hasNext()) {
-        builder.append('-');
-      }
-    }
-    return builder.toString();
-  }
-
   @Override
   public MultiMap apply(@NonNull HttpProto.Headers headers) {
     MultiMap multiMap = MultiMap.caseInsensitiveMultiMap();
@@ -57,9 +29,10 @@ public final class HttpHeaderDecoder implements Function<HttpProto.Headers, Mult
   public void visit(
       @NonNull HttpProto.Headers headers,
       @NonNull BiConsumer<? super String, ? super String> consumer) {
-    for (Descriptors.FieldDescriptor descriptor : FIELD_DESCRIPTORS) {
-      if (headers.hasField(descriptor)) {
-        consumer.accept(transformName(descriptor.getName()), (String) headers.getField(descriptor));
+    for (HttpHeaderCodec.Field field : HttpHeaderCodec.FIELDS) {
+      if (field.presence.test(headers)) {
+        consumer.accept(
+            allLowerCase ? field.name : field.canonicalName, field.getter.apply(headers));
       }
     }
     if (headers.getUndeclaredPairsCount() > 0) {
@@ -1,11 +1,8 @@
 package org.deadbeef.util;
 
-import com.google.common.base.Ascii;
-import com.google.common.base.CaseFormat;
-import com.google.common.collect.Maps;
-import com.google.protobuf.Descriptors;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.vertx.core.MultiMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.function.Function;
 import lombok.NonNull;
@@ -13,32 +10,28 @@ import org.deadbeef.protocol.HttpProto;
 
 public final class HttpHeaderEncoder implements Function<MultiMap, HttpProto.Headers> {
 
-  private static final Map<String, Descriptors.FieldDescriptor> FIELD_DESCRIPTOR_MAP;
-
-  static {
-    List<Descriptors.FieldDescriptor> fieldDescriptors =
-        HttpProto.Headers.getDescriptor().getFields();
-    Map<String, Descriptors.FieldDescriptor> map =
-        Maps.newHashMapWithExpectedSize(fieldDescriptors.size());
-    for (Descriptors.FieldDescriptor descriptor : fieldDescriptors) {
-      if (descriptor.getJavaType() == Descriptors.FieldDescriptor.JavaType.STRING) {
-        String name = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.LOWER_HYPHEN, descriptor.getName());
-        map.put(name, descriptor);
-      }
+  private static void put(HttpProto.Headers.Builder builder, CharSequence name, String value) {
+    HttpHeaderCodec.Field field = HttpHeaderCodec.lookup(name);
+    if (field != null) {
+      field.setter.accept(builder, value);
+    } else {
+      builder.putUndeclaredPairs(HttpHeaderCodec.lowerCase(name), value);
     }
-    FIELD_DESCRIPTOR_MAP = map;
   }
 
   @Override
   public HttpProto.Headers apply(@NonNull MultiMap multiMap) {
     HttpProto.Headers.Builder builder = HttpProto.Headers.newBuilder();
-    for (Map.Entry<String, String> entry : multiMap) {
-      String key = Ascii.toLowerCase(entry.getKey());
-      Descriptors.FieldDescriptor descriptor = FIELD_DESCRIPTOR_MAP.get(key);
-      if (descriptor != null) {
-        builder.setField(descriptor, entry.getValue());
-      } else {
-        builder.putUndeclaredPairs(key, entry.getValue());
+    if (multiMap instanceof HttpHeaders httpHeaders) {
+      // Vert.x's own header map: walk the names as stored, without turning them into Strings.
+      Iterator<Map.Entry<CharSequence, CharSequence>> iterator = httpHeaders.iteratorCharSequence();
+      while (iterator.hasNext()) {
+        Map.Entry<CharSequence, CharSequence> entry = iterator.next();
+        put(builder, entry.getKey(), entry.getValue().toString());
+      }
+    } else {
+      for (Map.Entry<String, String> entry : multiMap) {
+        put(builder, entry.getKey(), entry.getValue());
       }
     }
     return builder.build();
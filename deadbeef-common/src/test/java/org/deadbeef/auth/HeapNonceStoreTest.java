@@ -0,0 +1,107 @@
+package org.deadbeef.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class HeapNonceStoreTest {
+
+  private static final long WINDOW = TimeUnit.MINUTES.toMillis(10);
+  private static final long NOW = 1_700_000_000_000L;
+
+  private static ByteString nonce() {
+    byte[] nonce = new byte[NonceStore.NONCE_LENGTH];
+    ThreadLocalRandom.current().nextBytes(nonce);
+    return ByteString.copyFrom(nonce);
+  }
+
+  @Test
+  public void acceptsEachNonceOnce() {
+    HeapNonceStore store = new HeapNonceStore(WINDOW, 1024);
+    ByteString nonce = nonce();
+
+    assertTrue(store.add(NOW, nonce));
+    assertFalse(store.add(NOW, nonce));
+    assertFalse(store.add(NOW, ByteString.copyFrom(nonce.toByteArray())));
+    assertTrue(store.add(NOW, nonce()));
+  }
+
+  @Test
+  public void rejectsMalformedNonces() {
+    HeapNonceStore store = new HeapNonceStore(WINDOW, 1024);
+
+    assertFalse(store.add(NOW, ByteString.copyFrom(new byte[8])));
+    assertFalse(store.add(NOW, ByteString.copyFrom(new byte[NonceStore.NONCE_LENGTH])));
+  }
+
+  @Test
+  public void fullBucketGrowsAndStillRejectsReplays() {
+    HeapNonceStore store = new HeapNonceStore(WINDOW, 64);
+    List<ByteString> nonces = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      ByteString nonce = nonce();
+      nonces.add(nonce);
+      assertTrue(store.add(NOW, nonce));
+    }
+
+    // Far past the expected 64, every nonce was taken and none forgotten.
+    for (ByteString nonce : nonces) {
+      assertFalse(store.add(NOW, nonce));
+    }
+  }
+
+  @Test
+  public void expiredBucketsAreRecycled() {
+    HeapNonceStore store = new HeapNonceStore(WINDOW, 1024);
+    ByteString nonce = nonce();
+
+    assertTrue(store.add(NOW, nonce));
+    // Four windows later the same ring slot holds a new bucket...
+    assertTrue(store.add(NOW + 4 * WINDOW, nonce()));
+    // ...and a token from the recycled bucket can no longer be recorded.
+    assertFalse(store.add(NOW, nonce()));
+  }
+
+  @Test
+  public void concurrentInsertsAcceptEachNonceExactlyOnce() throws Exception {
+    HeapNonceStore store = new HeapNonceStore(WINDOW, 1 << 16);
+    List<ByteString> nonces = new ArrayList<>();
+    for (int i = 0; i < 20_000; i++) {
+      nonces.add(nonce());
+    }
+    AtomicInteger accepted = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (ByteString nonce : nonces) {
+                    if (store.add(NOW, nonce)) {
+                      accepted.incrementAndGet();
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(nonces.size(), accepted.get());
+  }
+}
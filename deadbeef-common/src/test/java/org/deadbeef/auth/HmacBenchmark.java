@@ -0,0 +1,118 @@
+package org.deadbeef.auth;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link SigningKey} against the Guava hasher it replaced, signing one token and verifying one
+ * against a secretId with three rotated keys where the matching key is listed last.
+ *
+ * <pre>
+ * Benchmark                                            Mode  Cnt     Score   Error  Units
+ * HmacBenchmark.guavaSign                              avgt    2  1702.427           ns/op
+ * HmacBenchmark.guavaSign:gc.alloc.rate.norm           avgt    2   696.001            B/op
+ * HmacBenchmark.sign                                   avgt    2  1517.502           ns/op
+ * HmacBenchmark.sign:gc.alloc.rate.norm                avgt    2    48.001            B/op
+ * HmacBenchmark.guavaVerifyRotated                     avgt    2  6624.099           ns/op
+ * HmacBenchmark.guavaVerifyRotated:gc.alloc.rate.norm  avgt    2  2168.005            B/op
+ * HmacBenchmark.verifyRotated                          avgt    2  1837.947           ns/op
+ * HmacBenchmark.verifyRotated:gc.alloc.rate.norm       avgt    2    48.002            B/op
+ * </pre>
+ *
+ * Signing costs about the same; it is the per-call {@code Hasher} and its buffers that go. The
+ * remaining 48 B are the JDK's HMAC finishing step, not ours. Verification mostly gains from the
+ * key-id hint: one HMAC instead of three.
+ */
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 2, time = 3)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(3)
+@Fork(1)
+public class HmacBenchmark {
+
+  private static final String SECRET_ID = "benchmark-secret-id";
+  private static final List<String> KEYS = ImmutableList.of("key-1", "key-2", "key-3");
+
+  private final byte[] secretId = SECRET_ID.getBytes(StandardCharsets.UTF_8);
+  private List<HashFunction> hashFunctions;
+  private List<SigningKey> signingKeys;
+  private long timestamp;
+  private byte[] nonce;
+  private ByteString nonceString;
+  private ByteString signature;
+  private int keyId;
+
+  @Setup
+  public void setup() {
+    hashFunctions =
+        KEYS.stream()
+            .map(key -> Hashing.hmacSha256(key.getBytes(StandardCharsets.UTF_8)))
+            .collect(ImmutableList.toImmutableList());
+    signingKeys =
+        KEYS.stream()
+            .map(key -> new SigningKey(key.getBytes(StandardCharsets.UTF_8)))
+            .collect(ImmutableList.toImmutableList());
+    timestamp = System.currentTimeMillis();
+    nonce = new byte[16];
+    ThreadLocalRandom.current().nextBytes(nonce);
+    nonceString = ByteString.copyFrom(nonce);
+    SigningKey last = signingKeys.get(signingKeys.size() - 1);
+    signature = ByteString.copyFrom(last.sign(secretId, timestamp, nonce));
+    keyId = last.keyId();
+  }
+
+  @Benchmark
+  public byte[] guavaSign() {
+    return ProxyAuthenticationGenerator.signature(
+        SECRET_ID, timestamp, nonce, hashFunctions.get(0));
+  }
+
+  @Benchmark
+  public byte[] sign() {
+    return signingKeys.get(0).sign(secretId, timestamp, nonce);
+  }
+
+  @Benchmark
+  public boolean guavaVerifyRotated() {
+    byte[] nonce = nonceString.toByteArray();
+    byte[] signature = this.signature.toByteArray();
+    for (HashFunction function : hashFunctions) {
+      if (MessageDigest.isEqual(
+          signature,
+          ProxyAuthenticationGenerator.signature(SECRET_ID, timestamp, nonce, function))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Benchmark
+  public boolean verifyRotated() {
+    for (SigningKey key : signingKeys) {
+      if (key.keyId() == keyId && key.verify(secretId, timestamp, nonceString, signature)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,166 @@
+package org.deadbeef.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedNonceStoreTest {
+
+  private static final long WINDOW = TimeUnit.MINUTES.toMillis(10);
+  private static final long NOW = 1_700_000_000_000L;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static ByteString nonce() {
+    byte[] nonce = new byte[NonceStore.NONCE_LENGTH];
+    ThreadLocalRandom.current().nextBytes(nonce);
+    return ByteString.copyFrom(nonce);
+  }
+
+  private Path file() {
+    return folder.getRoot().toPath().resolve("test.nonces");
+  }
+
+  @Test
+  public void storesMappingTheSameFileShareNonces() {
+    // Two mappings of one file stand in for two server processes.
+    MappedNonceStore first = new MappedNonceStore(file(), WINDOW, 1024, () -> NOW);
+    MappedNonceStore second = new MappedNonceStore(file(), WINDOW, 1024, () -> NOW);
+    ByteString nonce = nonce();
+
+    assertTrue(first.add(NOW, nonce));
+    assertFalse(second.add(NOW, nonce));
+    assertFalse(first.add(NOW, nonce));
+    assertTrue(second.add(NOW, nonce()));
+  }
+
+  @Test
+  public void acceptedNoncesSurviveReopening() {
+    ByteString nonce = nonce();
+    assertTrue(new MappedNonceStore(file(), WINDOW, 1024, () -> NOW).add(NOW, nonce));
+
+    assertFalse(new MappedNonceStore(file(), WINDOW, 1024, () -> NOW).add(NOW, nonce));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void rejectsAFileWithAnotherLayout() {
+    new MappedNonceStore(file(), WINDOW, 1024, () -> NOW);
+    new MappedNonceStore(file(), WINDOW, 1 << 16, () -> NOW);
+  }
+
+  @Test
+  public void fullBucketOverflowsIntoTheProcess() {
+    MappedNonceStore first = new MappedNonceStore(file(), WINDOW, 64, () -> NOW);
+    MappedNonceStore second = new MappedNonceStore(file(), WINDOW, 64, () -> NOW);
+    List<ByteString> nonces = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      ByteString nonce = nonce();
+      nonces.add(nonce);
+      assertTrue(first.add(NOW, nonce));
+    }
+
+    // The first 64 are in the file, so a replay to any process fails...
+    for (ByteString nonce : nonces.subList(0, 64)) {
+      assertFalse(second.add(NOW, nonce));
+    }
+    // ...the rest were remembered by the process that took them.
+    for (ByteString nonce : nonces) {
+      assertFalse(first.add(NOW, nonce));
+    }
+  }
+
+  @Test
+  public void expiredBucketsAreWipedForReuse() {
+    MappedNonceStore store = new MappedNonceStore(file(), WINDOW, 1024, () -> NOW);
+    ByteString nonce = nonce();
+
+    assertTrue(store.add(NOW, nonce));
+    // Four windows later the same bucket is wiped and reused...
+    assertTrue(store.add(NOW + 4 * WINDOW, nonce));
+    // ...and tokens from the old window can no longer be recorded.
+    assertFalse(store.add(NOW, nonce()));
+  }
+
+  @Test
+  public void prepareRecyclesTheExpiredBucketAhead() {
+    AtomicLong clock = new AtomicLong(NOW);
+    MappedNonceStore store = new MappedNonceStore(file(), WINDOW, 1024, clock::get);
+    ByteString nonce = nonce();
+    assertTrue(store.add(NOW, nonce));
+
+    // Two windows on, the bucket of NOW is wiped for the epoch after next...
+    clock.addAndGet(2 * WINDOW);
+    store.prepare();
+
+    // ...so it takes that epoch's tokens, and NOW's can no longer be recorded.
+    assertTrue(store.add(NOW + 4 * WINDOW, nonce));
+    assertFalse(store.add(NOW, nonce()));
+  }
+
+  @Test
+  public void wipeLeftByADeadProcessIsTakenOverOnceItsLeaseRunsOut() {
+    AtomicLong clock = new AtomicLong(NOW);
+    MappedNonceStore dead = new MappedNonceStore(file(), WINDOW, 1024, clock::get);
+    MappedNonceStore store = new MappedNonceStore(file(), WINDOW, 1024, clock::get);
+    // The buckets up to the epoch after next are ready; the one after that is not yet due.
+    long epoch = Math.floorDiv(NOW, WINDOW) + 3;
+    // A process claims its wipe early, then dies before finishing it.
+    assertTrue(dead.claim(epoch, NOW) > 0);
+
+    assertFalse(store.add(epoch * WINDOW, nonce()));
+
+    clock.addAndGet(MappedNonceStore.WIPE_LEASE + 1);
+    assertTrue(store.add(epoch * WINDOW, nonce()));
+  }
+
+  @Test
+  public void concurrentInsertsThroughTwoMappingsAcceptEachNonceOnce() throws Exception {
+    List<MappedNonceStore> stores =
+        List.of(
+            new MappedNonceStore(file(), WINDOW, 1 << 16, () -> NOW),
+            new MappedNonceStore(file(), WINDOW, 1 << 16, () -> NOW));
+    List<ByteString> nonces = new ArrayList<>();
+    for (int i = 0; i < 20_000; i++) {
+      nonces.add(nonce());
+    }
+    AtomicInteger accepted = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        MappedNonceStore store = stores.get(t % 2);
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (ByteString nonce : nonces) {
+                    if (store.add(NOW, nonce)) {
+                      accepted.incrementAndGet();
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(nonces.size(), accepted.get());
+  }
+}
@@ -0,0 +1,81 @@
+package org.deadbeef.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.deadbeef.protocol.HttpProto;
+import org.junit.Test;
+
+public class ProxyAuthenticationPoolTest {
+
+  private static final int CAPACITY = 8;
+  private static final long MAX_AGE = 1_000;
+
+  private final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+  private final ProxyAuthenticationGenerator generator =
+      new ProxyAuthenticationGenerator("id", "key", clock::get);
+
+  // Refills run inline, so the pool is full again by the time getString returns.
+  private ProxyAuthenticationPool newPool() {
+    return new ProxyAuthenticationPool(
+        generator, CAPACITY, MAX_AGE, clock::get, MoreExecutors.newDirectExecutorService());
+  }
+
+  private static long timestampOf(String token) throws Exception {
+    return HttpProto.ProxyAuthentication.parseFrom(BaseEncoding.base64Url().decode(token))
+        .getTimestamp();
+  }
+
+  @Test
+  public void handsOutEachValidTokenOnce() {
+    ProxyAuthenticationPool pool = newPool();
+    ProxyAuthenticationValidator validator = ProxyAuthenticationValidator.simple("id", "key");
+    assertEquals(CAPACITY, pool.size());
+
+    Set<String> seen = new HashSet<>();
+    for (int i = 0; i < 3 * CAPACITY; i++) {
+      String token = pool.getString();
+      assertTrue("call " + i, seen.add(token));
+      assertTrue("call " + i, validator.testString(token));
+    }
+  }
+
+  @Test
+  public void refillsInOneBatchBelowHalfCapacity() {
+    ProxyAuthenticationPool pool = newPool();
+    for (int i = 0; i < CAPACITY / 2; i++) {
+      pool.getString();
+    }
+    assertEquals(CAPACITY / 2, pool.size());
+
+    pool.getString();
+    assertEquals(CAPACITY, pool.size());
+  }
+
+  @Test
+  public void discardsTokensPastTheirMaxAge() throws Exception {
+    ProxyAuthenticationPool pool = newPool();
+    clock.addAndGet(MAX_AGE + 1);
+
+    // Every pooled token is stale, so this one is made on the spot.
+    assertEquals(clock.get(), timestampOf(pool.getString()));
+    // The refill it triggered is fresh.
+    assertEquals(CAPACITY, pool.size());
+    assertEquals(clock.get(), timestampOf(pool.getString()));
+  }
+
+  @Test
+  public void closedPoolStillHandsOutTokens() {
+    ProxyAuthenticationPool pool = newPool();
+    pool.close();
+
+    assertEquals(0, pool.size());
+    assertTrue(ProxyAuthenticationValidator.simple("id", "key").testString(pool.getString()));
+    assertEquals(0, pool.size());
+  }
+}
@@ -1,22 +1,31 @@
 package org.deadbeef.auth;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.protobuf.ByteString;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.deadbeef.protocol.HttpProto;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class ProxyAuthenticationValidatorTest {
 
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   public void validatesGeneratedAuth() {
     for (int i = 0; i < 5; ++i) {
@@ -96,6 +105,18 @@ public class ProxyAuthenticationValidatorTest {
     assertFalse(ProxyAuthenticationValidator.simple("id", "key").testString(null));
   }
 
+  @Test
+  public void authenticateReturnsTheProvenId() {
+    ProxyAuthenticationValidator validator = ProxyAuthenticationValidator.simple("id", "key");
+    String token = new ProxyAuthenticationGenerator("id", "key").getString();
+    assertEquals("id", validator.authenticate(token));
+    // Replayed, forged or garbled: no id, not even the claimed one.
+    assertNull(validator.authenticate(token));
+    assertNull(validator.authenticate(new ProxyAuthenticationGenerator("id", "bad").getString()));
+    assertNull(validator.authenticate("!!!not_base64!!!"));
+    assertNull(validator.authenticate(null));
+  }
+
   @Test
   public void testStringReturnsFalseForInvalidBase64() {
     assertFalse(ProxyAuthenticationValidator.simple("id", "key").testString("!!!not_base64!!!"));
@@ -251,4 +272,92 @@ public class ProxyAuthenticationValidatorTest {
     // Same auth, fresh validator → should still be accepted.
     assertTrue(ProxyAuthenticationValidator.simple("id", "key").test(auth));
   }
+
+  @Test
+  public void signingKeyMatchesTheHasherItReplaced() {
+    byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+    byte[] nonce = new byte[16];
+    java.util.Arrays.fill(nonce, (byte) 0x5A);
+    long ts = System.currentTimeMillis();
+
+    assertArrayEquals(
+        ProxyAuthenticationGenerator.signature("id", ts, nonce, Hashing.hmacSha256(key)),
+        new SigningKey(key).sign("id".getBytes(StandardCharsets.UTF_8), ts, nonce));
+  }
+
+  @Test
+  public void keyIdHintPicksTheRotatedKey() {
+    ProxyAuthenticationValidator validator =
+        ProxyAuthenticationValidator.fromEntries(
+            ImmutableList.of(Map.entry("id", "old-key"), Map.entry("id", "new-key")));
+    ProxyAuthenticationGenerator oldGen = new ProxyAuthenticationGenerator("id", "old-key");
+    ProxyAuthenticationGenerator newGen = new ProxyAuthenticationGenerator("id", "new-key");
+
+    assertTrue(validator.test(oldGen.get()));
+    assertTrue(validator.test(newGen.get()));
+    // Tokens without a hint are still checked against every key.
+    assertTrue(validator.test(newGen.get().toBuilder().clearKeyId().build()));
+    // A hint naming another key is not second-guessed.
+    HttpProto.ProxyAuthentication misdirected = newGen.get();
+    int otherKeyId = oldGen.get().getKeyId();
+    assertFalse(validator.test(misdirected.toBuilder().setKeyId(otherKeyId).build()));
+    assertTrue(validator.test(misdirected));
+  }
+
+  @Test
+  public void validatorsSharingANonceDirectoryRejectEachOthersReplays() throws Exception {
+    Path directory = folder.getRoot().toPath().resolve("nonces");
+    ProxyAuthenticationValidator first =
+        ProxyAuthenticationValidator.fromEntries(
+            ImmutableMap.of("id", "key").entrySet(), directory);
+    ProxyAuthenticationValidator second =
+        ProxyAuthenticationValidator.fromEntries(
+            ImmutableMap.of("id", "key").entrySet(), directory);
+    HttpProto.ProxyAuthentication auth = new ProxyAuthenticationGenerator("id", "key").get();
+
+    assertTrue(first.test(auth));
+    assertFalse(second.test(auth));
+  }
+
+  @Test
+  public void busierSecretIdThanThePeakRateStillAuthenticates() {
+    Path directory = folder.getRoot().toPath().resolve("nonces");
+    // One token per second fills a ten-minute bucket at 600.
+    ProxyAuthenticationValidator heap =
+        ProxyAuthenticationValidator.fromEntries(ImmutableMap.of("id", "key").entrySet(), 1);
+    ProxyAuthenticationValidator shared =
+        ProxyAuthenticationValidator.fromEntries(
+            ImmutableMap.of("id", "key").entrySet(), directory, 1);
+    ProxyAuthenticationGenerator generator = new ProxyAuthenticationGenerator("id", "key");
+
+    for (int i = 0; i < 1000; i++) {
+      HttpProto.ProxyAuthentication auth = generator.get();
+      assertTrue(heap.test(auth));
+      assertFalse(heap.test(auth));
+      assertTrue(shared.test(auth));
+      assertFalse(shared.test(auth));
+    }
+  }
+
+  @Test
+  public void reloadSwapsKeysButKeepsAcceptedNonces() {
+    ProxyAuthenticationValidator validator =
+        ProxyAuthenticationValidator.fromMap(ImmutableMap.of("id", "old-key", "gone", "key"));
+    HttpProto.ProxyAuthentication accepted =
+        new ProxyAuthenticationGenerator("id", "new-key").get();
+    HttpProto.ProxyAuthentication replayed =
+        new ProxyAuthenticationGenerator("id", "old-key").get();
+    assertTrue(validator.test(replayed));
+
+    validator.reload(
+        ImmutableList.of(
+            Map.entry("id", "old-key"), Map.entry("id", "new-key"), Map.entry("added", "key")));
+
+    assertTrue(validator.test(accepted));
+    assertFalse(validator.test(replayed));
+    assertTrue(validator.test(new ProxyAuthenticationGenerator("added", "key").get()));
+    assertFalse(validator.test(new ProxyAuthenticationGenerator("gone", "key").get()));
+    assertTrue(validator.knows("added"));
+    assertFalse(validator.knows("gone"));
+  }
 }
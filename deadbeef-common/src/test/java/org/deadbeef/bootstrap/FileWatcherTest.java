@@ -0,0 +1,49 @@
+package org.deadbeef.bootstrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileWatcherTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void reportsEachChangeAndSurvivesAFailingReload() throws Exception {
+    Path file = folder.newFile("watched.yaml").toPath();
+    Files.writeString(file, "a: 1\n", StandardCharsets.UTF_8);
+    Semaphore reloads = new Semaphore(0);
+    AtomicInteger calls = new AtomicInteger();
+
+    try (FileWatcher ignored =
+        new FileWatcher(
+            List.of(file),
+            10,
+            () -> {
+              int call = calls.incrementAndGet();
+              reloads.release();
+              if (call == 1) {
+                throw new IllegalStateException("bad config");
+              }
+            })) {
+      Files.writeString(file, "a: 22\n", StandardCharsets.UTF_8);
+      assertTrue(reloads.tryAcquire(5, TimeUnit.SECONDS));
+
+      Files.writeString(file, "a: 333\n", StandardCharsets.UTF_8);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+      assertTrue(reloads.tryAcquire(5, TimeUnit.SECONDS));
+    }
+    assertEquals(2, calls.get());
+  }
+}
@@ -1,5 +1,7 @@
 package org.deadbeef.bootstrap;
 
+import static org.junit.Assert.assertEquals;
+
 import org.junit.Test;
 
 public class ProxyConfigTest {
@@ -46,4 +48,22 @@ public class ProxyConfigTest {
   public void verifyStringNotBlankRejectsWhitespace() {
     ProxyConfig.verifyStringNotBlank("   ", "f");
   }
+
+  @Test
+  public void verifyInstancesAcceptsNullAndPositive() {
+    ProxyConfig.verifyInstances(null);
+    ProxyConfig.verifyInstances(1);
+    ProxyConfig.verifyInstances(16);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void verifyInstancesRejectsZero() {
+    ProxyConfig.verifyInstances(0);
+  }
+
+  @Test
+  public void instancesOrDefaultFallsBackToProcessorCount() {
+    assertEquals(3, ProxyConfig.instancesOrDefault(3));
+    assertEquals(Runtime.getRuntime().availableProcessors(), ProxyConfig.instancesOrDefault(null));
+  }
 }
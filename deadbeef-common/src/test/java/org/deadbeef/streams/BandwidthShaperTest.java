@@ -0,0 +1,48 @@
+package org.deadbeef.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Meter;
+import org.deadbeef.bootstrap.BandwidthLimits;
+import org.junit.Test;
+
+public class BandwidthShaperTest {
+
+  @Test
+  public void withoutLimitsTunnelsKeepTheirFactory() {
+    BandwidthShaper shaper = new BandwidthShaper(new BandwidthLimits());
+    PipeFactory pipes = new DefaultPipeFactory();
+    assertSame(pipes, shaper.clientToUpstream("user", pipes));
+    assertSame(pipes, shaper.upstreamToClient("user", pipes));
+  }
+
+  @Test
+  public void builtInFactoriesAreShapedPerTunnel() {
+    BandwidthShaper shaper = new BandwidthShaper(new BandwidthLimits(1 << 20, 0, 0));
+    assertTrue(
+        shaper.clientToUpstream("user", new DefaultPipeFactory()) instanceof ShapedPipeFactory);
+    assertTrue(
+        shaper.upstreamToClient(null, new MetricPipeFactory(new Meter()))
+            instanceof ShapedPipeFactory);
+  }
+
+  @Test
+  public void bucketsOfRemovedUsersAreDropped() {
+    BandwidthShaper shaper = new BandwidthShaper(new BandwidthLimits(0, 1 << 16, 0));
+    shaper.clientToUpstream("stays", new DefaultPipeFactory());
+    shaper.upstreamToClient("goes", new DefaultPipeFactory());
+    assertEquals(2, shaper.users());
+
+    shaper.retainUsers("stays"::equals);
+    assertEquals(1, shaper.users());
+  }
+
+  @Test
+  public void otherFactoriesAreLeftAlone() {
+    BandwidthShaper shaper = new BandwidthShaper(new BandwidthLimits(1 << 20, 1 << 16, 1 << 10));
+    PipeFactory custom = src -> new MetricPipeImpl(src, new Meter());
+    assertSame(custom, shaper.clientToUpstream("user", custom));
+  }
+}
@@ -1,11 +1,13 @@
 package org.deadbeef.streams;
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.Pipe;
 import io.vertx.core.streams.ReadStream;
 import io.vertx.core.streams.WriteStream;
 import io.vertx.ext.unit.Async;
@@ -14,12 +16,13 @@ import io.vertx.ext.unit.junit.RunTestOnContext;
 import io.vertx.ext.unit.junit.VertxUnitRunner;
 import java.util.ArrayList;
 import java.util.List;
+import org.deadbeef.bootstrap.BandwidthLimits;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 @RunWith(VertxUnitRunner.class)
-public class MetricPipeImplTest {
+public class EventLoopPipeTest {
 
   @Rule public RunTestOnContext rule = new RunTestOnContext();
 
@@ -82,10 +85,130 @@ public class MetricPipeImplTest {
         });
   }
 
+  @Test
+  public void meterIsMarkedOncePerTick(TestContext testContext) {
+    Vertx vertx = rule.vertx();
+    Async async = testContext.async();
+    vertx.runOnContext(
+        v -> {
+          Meter meter = new MetricRegistry().meter("test.bytes");
+          FakeReadStream src = new FakeReadStream();
+          new MetricPipeFactory(meter).newPipe(src).to(new CollectingWriteStream());
+
+          src.emit(Buffer.buffer("hello"));
+          src.emit(Buffer.buffer("world"));
+          testContext.assertEquals(0L, meter.getCount());
+
+          vertx.runOnContext(
+              next -> {
+                testContext.assertEquals(10L, meter.getCount());
+                async.countDown();
+              });
+        });
+  }
+
+  @Test
+  public void fullDestinationPausesTheSourceUntilDrained(TestContext testContext) {
+    Vertx vertx = rule.vertx();
+    Async async = testContext.async();
+    vertx.runOnContext(
+        v -> {
+          FakeReadStream src = new FakeReadStream();
+          CollectingWriteStream dst = new CollectingWriteStream();
+          dst.full = true;
+          new DefaultPipeFactory().newPipe(src).to(dst);
+
+          src.emit(Buffer.buffer("a"));
+          testContext.assertTrue(src.paused);
+
+          dst.full = false;
+          dst.drainHandler.handle(null);
+          testContext.assertFalse(src.paused);
+          async.countDown();
+        });
+  }
+
+  @Test
+  public void failedWriteFailsCompletionAndEndsDestination(TestContext testContext) {
+    Vertx vertx = rule.vertx();
+    Async async = testContext.async();
+    vertx.runOnContext(
+        v -> {
+          FakeReadStream src = new FakeReadStream();
+          CollectingWriteStream dst = new CollectingWriteStream();
+          dst.writeFailure = new RuntimeException("reset");
+          new DefaultPipeFactory(false, true)
+              .newPipe(src)
+              .to(
+                  dst,
+                  ar -> {
+                    testContext.assertEquals("reset", ar.cause().getMessage());
+                    testContext.assertTrue(dst.ended);
+                    async.countDown();
+                  });
+
+          src.emit(Buffer.buffer("a"));
+        });
+  }
+
+  @Test
+  public void closeFailsThePipe(TestContext testContext) {
+    Vertx vertx = rule.vertx();
+    Async async = testContext.async();
+    vertx.runOnContext(
+        v -> {
+          FakeReadStream src = new FakeReadStream();
+          Pipe<Buffer> pipe = new DefaultPipeFactory().newPipe(src);
+          pipe.to(
+              new CollectingWriteStream(),
+              ar -> {
+                testContext.assertTrue(ar.failed());
+                testContext.assertNull(src.handler);
+                async.countDown();
+              });
+          pipe.close();
+        });
+  }
+
+  @Test
+  public void shapedPipeRestsSourceUntilItsRateAllowsMore(TestContext testContext) {
+    Vertx vertx = rule.vertx();
+    Async async = testContext.async();
+    vertx.runOnContext(
+        v -> {
+          // 10 KB/s with a 250 ms burst: 5000 bytes run 250 ms over.
+          PipeFactory pipes =
+              new BandwidthShaper(new BandwidthLimits(0, 0, 10_000))
+                  .upstreamToClient(null, new DefaultPipeFactory());
+          FakeReadStream src = new FakeReadStream();
+          CollectingWriteStream dst = new CollectingWriteStream();
+          pipes.newPipe(src).to(dst);
+
+          dst.full = true;
+          src.emit(Buffer.buffer(new byte[5000]));
+          // Charged at the end of the tick.
+          vertx.runOnContext(
+              tick -> {
+                testContext.assertTrue(src.paused);
+                // Drained before the rate allows more: still resting.
+                dst.full = false;
+                dst.drainHandler.handle(null);
+                testContext.assertTrue(src.paused);
+                vertx.setTimer(
+                    400,
+                    id -> {
+                      testContext.assertFalse(src.paused);
+                      async.countDown();
+                    });
+              });
+        });
+  }
+
   private static final class FakeReadStream implements ReadStream<Buffer> {
     private Handler<Buffer> handler;
     private Handler<Void> endHandler;
     private Handler<Throwable> exceptionHandler;
+    boolean paused;
 
     @Override
     public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
@@ -101,11 +224,13 @@ public class MetricPipeImplTest {
 
     @Override
     public ReadStream<Buffer> pause() {
+      paused = true;
       return this;
     }
 
     @Override
     public ReadStream<Buffer> resume() {
+      paused = false;
       return this;
     }
 
@@ -142,6 +267,9 @@ public class MetricPipeImplTest {
   private static final class CollectingWriteStream implements WriteStream<Buffer> {
     final List<Buffer> received = new ArrayList<>();
     boolean ended;
+    boolean full;
+    Throwable writeFailure;
+    Handler<Void> drainHandler;
 
     @Override
     public WriteStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
@@ -157,7 +285,8 @@ public class MetricPipeImplTest {
     @Override
     public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
       received.add(data);
-      handler.handle(Future.succeededFuture());
+      handler.handle(
+          writeFailure == null ? Future.succeededFuture() : Future.failedFuture(writeFailure));
     }
 
     @Override
@@ -179,11 +308,12 @@ public class MetricPipeImplTest {
 
     @Override
     public boolean writeQueueFull() {
-      return false;
+      return full;
     }
 
     @Override
     public WriteStream<Buffer> drainHandler(Handler<Void> handler) {
+      this.drainHandler = handler;
       return this;
     }
   }
@@ -0,0 +1,103 @@
+package org.deadbeef.streams;
+
+import static org.junit.Assert.assertEquals;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class FlushCoalescerTest {
+
+  private static final long WINDOW = TimeUnit.MICROSECONDS.toNanos(200);
+
+  private final FlushCounter flushes = new FlushCounter();
+
+  @Test
+  public void sparseFlushesGoOutAtOnce() {
+    EmbeddedChannel channel = channel(WINDOW);
+    channel.pipeline().writeAndFlush("a");
+    assertEquals(1, flushes.count);
+
+    channel.advanceTimeBy(WINDOW, TimeUnit.NANOSECONDS);
+    channel.runScheduledPendingTasks();
+    channel.pipeline().writeAndFlush("b");
+    assertEquals(2, flushes.count);
+    assertEquals(2, channel.outboundMessages().size());
+  }
+
+  @Test
+  public void burstIsFlushedOnceWhenTheWindowCloses() {
+    EmbeddedChannel channel = channel(WINDOW);
+    for (int i = 0; i < 10; i++) {
+      channel.pipeline().writeAndFlush(i);
+    }
+    assertEquals(1, flushes.count);
+    assertEquals(1, channel.outboundMessages().size());
+
+    channel.advanceTimeBy(WINDOW, TimeUnit.NANOSECONDS);
+    channel.runScheduledPendingTasks();
+    assertEquals(2, flushes.count);
+    assertEquals(10, channel.outboundMessages().size());
+  }
+
+  @Test
+  public void zeroWindowHoldsUntilTheIterationEnds() {
+    // Bare flushes: the embedded channel runs its pending tasks on every write.
+    EmbeddedChannel channel = channel(0);
+    channel.pipeline().flush();
+    channel.pipeline().flush();
+    channel.pipeline().flush();
+    assertEquals(1, flushes.count);
+
+    channel.runPendingTasks();
+    assertEquals(2, flushes.count);
+
+    // A quiet iteration ends the burst.
+    channel.runPendingTasks();
+    channel.pipeline().flush();
+    assertEquals(3, flushes.count);
+  }
+
+  @Test
+  public void floodIsFlushedEveryMaxHeld() {
+    EmbeddedChannel channel = channel(WINDOW);
+    for (int i = 0; i <= FlushCoalescer.MAX_HELD; i++) {
+      channel.pipeline().writeAndFlush(i);
+    }
+    assertEquals(2, flushes.count);
+  }
+
+  @Test
+  public void closeFlushesWhatIsHeld() {
+    EmbeddedChannel channel = channel(WINDOW);
+    channel.pipeline().writeAndFlush("a");
+    channel.pipeline().writeAndFlush("b");
+    channel.close();
+    assertEquals(2, flushes.count);
+  }
+
+  @Test
+  public void nullWindowTurnsCoalescingOff() {
+    assertEquals(-1, FlushCoalescer.windowNanos(null));
+    assertEquals(WINDOW, FlushCoalescer.windowNanos(200));
+  }
+
+  private EmbeddedChannel channel(long windowNanos) {
+    EmbeddedChannel channel = new EmbeddedChannel(flushes, new FlushCoalescer(windowNanos));
+    channel.freezeTime();
+    return channel;
+  }
+
+  private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+
+    int count;
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+      count++;
+      ctx.flush();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package org.deadbeef.streams;
+
+import static org.junit.Assert.assertTrue;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.streams.Pipe;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Runs only where the native epoll transport loads (Linux x86_64, see the module pom), and is
+ * skipped elsewhere unless {@value #REQUIRE_EPOLL} is set, as CI does.
+ */
+@RunWith(VertxUnitRunner.class)
+public class KernelSpliceTest {
+
+  static final String REQUIRE_EPOLL = "deadbeef.requireEpoll";
+
+  private static final String REPLY = "bye";
+
+  private Vertx vertx;
+
+  @Before
+  public void setUp() {
+    vertx = Vertx.vertx(new VertxOptions().setPreferNativeTransport(true));
+    boolean epoll =
+        vertx.isNativeTransportEnabled()
+            && classPresent("io.netty.channel.epoll.AbstractEpollStreamChannel");
+    if (Boolean.getBoolean(REQUIRE_EPOLL)) {
+      assertTrue("native epoll unavailable", epoll);
+    }
+    Assume.assumeTrue("native epoll unavailable", epoll);
+  }
+
+  @After
+  public void tearDown(TestContext ctx) {
+    vertx.close().onComplete(ctx.asyncAssertSuccess());
+  }
+
+  private static boolean classPresent(String name) {
+    try {
+      Class.forName(name);
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  /** Counts what {@link KernelSplice} accounts to one direction. */
+  private static final class Tally implements PipeFactory {
+
+    final AtomicLong bytes = new AtomicLong();
+
+    @Override
+    public Pipe<Buffer> newPipe(ReadStream<Buffer> src) {
+      return new DefaultPipeFactory().newPipe(src);
+    }
+
+    @Override
+    public void transferred(long bytes) {
+      this.bytes.addAndGet(bytes);
+    }
+  }
+
+  private static Buffer payload(int size) {
+    Buffer buffer = Buffer.buffer(size);
+    for (int i = 0; i < size; i++) {
+      buffer.appendByte((byte) (i * 31));
+    }
+    return buffer;
+  }
+
+  /**
+   * Client to proxy to upstream, the proxy splicing the two sockets it holds. The client sends
+   * {@code sent}, the upstream answers with {@link #REPLY} once it has it all, and the client
+   * closes.
+   */
+  private void tunnel(TestContext ctx, Buffer sent) {
+    Async done = ctx.async();
+    Tally clientToUpstream = new Tally();
+    Tally upstreamToClient = new Tally();
+    Buffer received = Buffer.buffer();
+
+    NetServer upstream = vertx.createNetServer();
+    upstream.connectHandler(
+        socket ->
+            socket.handler(
+                b -> {
+                  received.appendBuffer(b);
+                  if (received.length() == sent.length()) {
+                    ctx.assertEquals(sent, received);
+                    socket.write(Buffer.buffer(REPLY));
+                  }
+                }));
+    NetServer proxy = vertx.createNetServer();
+    upstream
+        .listen(0, "127.0.0.1")
+        .compose(
+            u -> {
+              proxy.connectHandler(
+                  downstream -> {
+                    downstream.pause();
+                    vertx
+                        .createNetClient()
+                        .connect(u.actualPort(), "127.0.0.1")
+                        .onFailure(ctx::fail)
+                        .onSuccess(
+                            up -> {
+                              downstream.closeHandler(v -> up.close());
+                              up.closeHandler(v -> downstream.close());
+                              ctx.assertTrue(
+                                  KernelSplice.start(
+                                      downstream, up, clientToUpstream, upstreamToClient));
+                            });
+                  });
+              return proxy.listen(0, "127.0.0.1");
+            })
+        .compose(p -> vertx.createNetClient().connect(p.actualPort(), "127.0.0.1"))
+        .onFailure(ctx::fail)
+        .onSuccess(
+            client -> {
+              Buffer reply = Buffer.buffer();
+              client.handler(
+                  b -> {
+                    reply.appendBuffer(b);
+                    if (reply.length() == REPLY.length()) {
+                      ctx.assertEquals(REPLY, reply.toString());
+                      client.close();
+                    }
+                  });
+              client.closeHandler(
+                  v ->
+                      vertx.setPeriodic(
+                          10,
+                          id -> {
+                            if (clientToUpstream.bytes.get() == sent.length()
+                                && upstreamToClient.bytes.get() == REPLY.length()) {
+                              vertx.cancelTimer(id);
+                              done.complete();
+                            }
+                          }));
+              // Written before the proxy has switched, in pieces, so that some bytes take the
+              // Vert.x path and the rest the kernel one.
+              int piece = Math.max(1, sent.length() / 8);
+              for (int i = 0; i < sent.length(); i += piece) {
+                client.write(sent.slice(i, Math.min(sent.length(), i + piece)));
+              }
+            });
+  }
+
+  @Test
+  public void directionsShorterThanASliceAreCounted(TestContext ctx) {
+    tunnel(ctx, payload(1000));
+  }
+
+  @Test
+  public void splicedBytesArriveInOrderAndAreCountedToTheByte(TestContext ctx) {
+    tunnel(ctx, payload(5 * KernelSplice.CHUNK + 123));
+  }
+}
@@ -1,13 +1,17 @@
 package org.deadbeef.streams;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
 import io.vertx.core.streams.Pipe;
 import io.vertx.core.streams.ReadStream;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 import org.mockito.Mockito;
 
@@ -44,6 +48,40 @@ public class MetricPipeFactoryTest {
     assertNotSame(factory.newPipe(src1), factory.newPipe(src2));
   }
 
+  @Test
+  public void splicedBytesAreMetered() {
+    Meter meter = new MetricRegistry().meter("test.bytes");
+    MetricPipeFactory factory = new MetricPipeFactory(meter);
+
+    factory.transferred(KernelSplice.CHUNK);
+    factory.transferred(100);
+
+    assertEquals(KernelSplice.CHUNK + 100, meter.getCount());
+  }
+
+  @Test
+  public void splicedBytesAreTallied() {
+    Meter meter = new MetricRegistry().meter("test.bytes");
+    AtomicLong tallied = new AtomicLong();
+    MetricPipeFactory factory =
+        new MetricPipeFactory(meter, false, false, null, tallied::addAndGet);
+
+    factory.transferred(100);
+    factory.transferred(23);
+
+    assertEquals(123, tallied.get());
+    assertEquals(123, meter.getCount());
+  }
+
+  @Test
+  public void socketsOffTheEpollTransportAreNotSpliced() {
+    NetSocket a = Mockito.mock(NetSocket.class);
+    NetSocket b = Mockito.mock(NetSocket.class);
+
+    assertFalse(KernelSplice.start(a, b, new DefaultPipeFactory(), new DefaultPipeFactory()));
+    Mockito.verifyNoInteractions(a, b);
+  }
+
   @Test(expected = NullPointerException.class)
   public void rejectsNullMeter() {
     new MetricPipeFactory(null);
@@ -13,6 +13,9 @@ import io.vertx.core.streams.WriteStream;
 import lombok.NonNull;
 import org.deadbeef.util.Utils;
 
+/**
+ * The metered pipe {@link EventLoopPipe} replaced, kept as a baseline for {@link PipeBenchmark}.
+ */
 final class MetricPipeImpl implements Pipe<Buffer> {
 
   private final Promise<Void> result;
@@ -0,0 +1,262 @@
+package org.deadbeef.streams;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.streams.Pipe;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(VertxUnitRunner.class)
+public class MuxSessionTest {
+
+  @Rule public RunTestOnContext rule = new RunTestOnContext();
+
+  /** Server end: "echo" streams are accepted and echoed, "reject" streams refused with 403. */
+  private static void echoOrReject(MuxStream stream) {
+    if (stream.authority().startsWith("reject")) {
+      stream.reject(403);
+      return;
+    }
+    stream.accept();
+    new DefaultPipeFactory().newPipe(stream).to(stream);
+  }
+
+  private Future<MuxSession> connect(Vertx vertx, Handler<MuxStream> openHandler) {
+    return connect(vertx, openHandler, 0);
+  }
+
+  /**
+   * @param expireIdleMillis how long the server end waits on a silent client; 0 for ever
+   */
+  private Future<MuxSession> connect(
+      Vertx vertx, Handler<MuxStream> openHandler, long expireIdleMillis) {
+    NetServer server = vertx.createNetServer();
+    server.connectHandler(
+        socket -> {
+          MuxSession session = MuxSession.server(socket, openHandler, 16);
+          if (expireIdleMillis > 0) {
+            session.expireIdle(vertx, expireIdleMillis);
+          }
+        });
+    return server
+        .listen(0)
+        .compose(s -> vertx.createNetClient().connect(s.actualPort(), "127.0.0.1"))
+        .map(MuxSession::client);
+  }
+
+  private static Buffer payload(int size) {
+    Buffer buffer = Buffer.buffer(size);
+    for (int i = 0; i < size; i++) {
+      buffer.appendByte((byte) i);
+    }
+    return buffer;
+  }
+
+  @Test
+  public void echoesPayloadLargerThanWindow(TestContext ctx) {
+    Async done = ctx.async();
+    // Four windows' worth: only gets through if WINDOW credits flow in both directions.
+    Buffer sent = payload(4 * MuxSession.INITIAL_WINDOW);
+    connect(rule.vertx(), MuxSessionTest::echoOrReject)
+        .compose(session -> session.open("echo:1"))
+        .onFailure(ctx::fail)
+        .onSuccess(
+            stream -> {
+              Buffer received = Buffer.buffer();
+              stream.handler(
+                  b -> {
+                    received.appendBuffer(b);
+                    if (received.length() == sent.length()) {
+                      ctx.assertEquals(sent, received);
+                      done.complete();
+                    }
+                  });
+              stream.write(sent);
+            });
+  }
+
+  @Test
+  public void rejectedOpenFailsWithStatus(TestContext ctx) {
+    Async done = ctx.async();
+    connect(rule.vertx(), MuxSessionTest::echoOrReject)
+        .compose(session -> session.open("reject:1"))
+        .onSuccess(stream -> ctx.fail("expected rejection"))
+        .onFailure(
+            cause -> {
+              ctx.assertTrue(cause instanceof MuxRejectedException);
+              ctx.assertEquals(403, ((MuxRejectedException) cause).status());
+              done.complete();
+            });
+  }
+
+  @Test
+  public void closeReachesThePeerStream(TestContext ctx) {
+    Async done = ctx.async();
+    Handler<MuxStream> openHandler =
+        stream -> {
+          stream.accept();
+          stream.closeHandler(v -> done.complete());
+        };
+    connect(rule.vertx(), openHandler)
+        .compose(session -> session.open("echo:1"))
+        .onFailure(ctx::fail)
+        .onSuccess(MuxStream::close);
+  }
+
+  @Test
+  public void sessionCloseClosesStreamsOnBothEnds(TestContext ctx) {
+    Async done = ctx.async(2);
+    Handler<MuxStream> openHandler =
+        stream -> {
+          stream.accept();
+          stream.closeHandler(v -> done.countDown());
+        };
+    connect(rule.vertx(), openHandler)
+        .onFailure(ctx::fail)
+        .onSuccess(
+            session ->
+                session
+                    .open("echo:1")
+                    .onFailure(ctx::fail)
+                    .onSuccess(
+                        stream -> {
+                          stream.closeHandler(
+                              v -> {
+                                ctx.assertTrue(session.isClosed());
+                                ctx.assertEquals(0, session.activeStreams());
+                                done.countDown();
+                              });
+                          session.close();
+                        }));
+  }
+
+  /** A tuner that has grown past its initial size, drawing on {@code budget}. */
+  private static WriteQueueTuner grownTuner(AtomicLong budget) {
+    AtomicLong now = new AtomicLong();
+    WriteQueueTuner tuner = new WriteQueueTuner(budget, now::get);
+    tuner.paused();
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+    tuner.drained();
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(40));
+    tuner.refilled();
+    return tuner;
+  }
+
+  private void assertPipeReturnsBudgetOnClose(TestContext ctx, boolean closeSession) {
+    Async done = ctx.async();
+    AtomicLong budget = new AtomicLong(WriteQueueTuner.GLOBAL_BUDGET);
+    connect(rule.vertx(), MuxSessionTest::echoOrReject)
+        .onFailure(ctx::fail)
+        .onSuccess(
+            session ->
+                session
+                    .open("echo:1")
+                    .onFailure(ctx::fail)
+                    .onSuccess(
+                        stream -> {
+                          Pipe<Buffer> pipe =
+                              new EventLoopPipe(stream, null, null, grownTuner(budget));
+                          ctx.assertTrue(budget.get() < WriteQueueTuner.GLOBAL_BUDGET);
+                          pipe.to(
+                              stream,
+                              ar -> {
+                                ctx.assertTrue(ar.failed());
+                                ctx.assertEquals(WriteQueueTuner.GLOBAL_BUDGET, budget.get());
+                                done.complete();
+                              });
+                          if (closeSession) {
+                            session.close();
+                          } else {
+                            stream.close();
+                          }
+                        }));
+  }
+
+  @Test
+  public void localCloseCompletesThePipeReadingTheStream(TestContext ctx) {
+    assertPipeReturnsBudgetOnClose(ctx, false);
+  }
+
+  @Test
+  public void sessionCloseCompletesThePipeReadingTheStream(TestContext ctx) {
+    assertPipeReturnsBudgetOnClose(ctx, true);
+  }
+
+  @Test
+  public void stalledStreamDoesNotBlockSiblings(TestContext ctx) {
+    Async done = ctx.async();
+    Handler<MuxStream> openHandler =
+        stream -> {
+          if (stream.authority().startsWith("stalled")) {
+            // Accepted but never read: its window fills up and stays full.
+            stream.accept();
+            stream.pause();
+            stream.handler(b -> {});
+            return;
+          }
+          echoOrReject(stream);
+        };
+    connect(rule.vertx(), openHandler)
+        .onFailure(ctx::fail)
+        .onSuccess(
+            session ->
+                session
+                    .open("stalled:1")
+                    .onFailure(ctx::fail)
+                    .onSuccess(
+                        stalled -> {
+                          stalled.write(payload(2 * MuxSession.INITIAL_WINDOW));
+                          ctx.assertTrue(stalled.writeQueueFull());
+                          session
+                              .open("echo:1")
+                              .onFailure(ctx::fail)
+                              .onSuccess(
+                                  echo -> {
+                                    echo.handler(
+                                        b -> {
+                                          ctx.assertEquals("ping", b.toString());
+                                          ctx.assertTrue(stalled.writeQueueFull());
+                                          done.complete();
+                                        });
+                                    echo.write(Buffer.buffer("ping"));
+                                  });
+                        }));
+  }
+
+  @Test
+  public void serverClosesASessionThatStoppedPinging(TestContext ctx) {
+    Async done = ctx.async();
+    connect(rule.vertx(), MuxSessionTest::echoOrReject, 100)
+        .onFailure(ctx::fail)
+        .onSuccess(session -> session.closeHandler(v -> done.complete()));
+  }
+
+  @Test
+  public void pingsKeepTheSessionOpen(TestContext ctx) {
+    Async done = ctx.async();
+    Vertx vertx = rule.vertx();
+    connect(vertx, MuxSessionTest::echoOrReject, 100)
+        .onFailure(ctx::fail)
+        .onSuccess(
+            session -> {
+              session.keepAlive(vertx, 30).closeHandler(v -> ctx.fail("session expired"));
+              vertx.setTimer(
+                  500,
+                  id ->
+                      session
+                          .open("echo:1")
+                          .onFailure(ctx::fail)
+                          .onSuccess(stream -> done.complete()));
+            });
+  }
+}
@@ -3,6 +3,7 @@ package org.deadbeef.streams;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import com.google.protobuf.ByteString;
 import io.vertx.core.buffer.Buffer;
 import java.nio.charset.StandardCharsets;
 import org.deadbeef.protocol.HttpProto;
@@ -51,6 +52,24 @@ public class PrefixTest {
     assertEquals(original, decoded);
   }
 
+  @Test
+  public void parseReadsBytesFieldsInPlace() throws Exception {
+    HttpProto.Request original =
+        HttpProto.Request.newBuilder()
+            .setMethod(HttpProto.Method.GET)
+            .setHeaderBlock(ByteString.copyFromUtf8("aaaa"))
+            .build();
+    Buffer buf = Prefix.serializeToBuffer(original);
+    Buffer envelope = buf.slice(Prefix.FIXED, buf.length());
+
+    HttpProto.Request decoded = Prefix.parse(envelope, HttpProto.Request.parser());
+    assertEquals(original, decoded);
+
+    // The parsed field aliases the buffer rather than holding a copy of it.
+    buf.setByte(buf.length() - 1, (byte) 'b');
+    assertEquals("aaab", decoded.getHeaderBlock().toStringUtf8());
+  }
+
   @Test
   public void serializeToBufferSizeAddsFixed() {
     HttpProto.Request msg = HttpProto.Request.newBuilder().setMethod(HttpProto.Method.GET).build();
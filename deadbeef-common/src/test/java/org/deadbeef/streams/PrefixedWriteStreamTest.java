@@ -0,0 +1,117 @@
+package org.deadbeef.streams;
+
+import static org.junit.Assert.assertEquals;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class PrefixedWriteStreamTest {
+
+  private static final Buffer PREFIX = Buffer.buffer("head|");
+
+  @Test
+  public void prefixTravelsWithFirstWriteOnly() {
+    RecordingWriteStream dst = new RecordingWriteStream();
+    PrefixedWriteStream stream = new PrefixedWriteStream(dst, PREFIX);
+
+    stream.write(Buffer.buffer("a"));
+    stream.write(Buffer.buffer("b"));
+    stream.end();
+
+    assertEquals(List.of("write:head|a", "write:b", "end"), dst.calls);
+  }
+
+  @Test
+  public void prefixTravelsWithEndWhenNothingWasWritten() {
+    RecordingWriteStream dst = new RecordingWriteStream();
+
+    new PrefixedWriteStream(dst, PREFIX).end(ar -> {});
+
+    assertEquals(List.of("end:head|"), dst.calls);
+  }
+
+  @Test
+  public void prefixTravelsWithEndData() {
+    RecordingWriteStream dst = new RecordingWriteStream();
+
+    new PrefixedWriteStream(dst, PREFIX).end(Buffer.buffer("tail"));
+
+    assertEquals(List.of("end:head|tail"), dst.calls);
+  }
+
+  @Test
+  public void flushWritesAPrefixNoChunkTook() {
+    RecordingWriteStream dst = new RecordingWriteStream();
+    PrefixedWriteStream stream = new PrefixedWriteStream(dst, PREFIX);
+
+    stream.flush();
+    stream.write(Buffer.buffer("a"));
+    stream.flush();
+    stream.end();
+
+    assertEquals(List.of("write:head|", "write:a", "end"), dst.calls);
+  }
+
+  private static final class RecordingWriteStream implements WriteStream<Buffer> {
+    final List<String> calls = new ArrayList<>();
+
+    @Override
+    public WriteStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+      return this;
+    }
+
+    @Override
+    public Future<Void> write(Buffer data) {
+      calls.add("write:" + data);
+      return Future.succeededFuture();
+    }
+
+    @Override
+    public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+      handler.handle(write(data));
+    }
+
+    @Override
+    public Future<Void> end() {
+      calls.add("end");
+      return Future.succeededFuture();
+    }
+
+    @Override
+    public void end(Handler<AsyncResult<Void>> handler) {
+      handler.handle(end());
+    }
+
+    @Override
+    public Future<Void> end(Buffer data) {
+      calls.add("end:" + data);
+      return Future.succeededFuture();
+    }
+
+    @Override
+    public void end(Buffer data, Handler<AsyncResult<Void>> handler) {
+      handler.handle(end(data));
+    }
+
+    @Override
+    public WriteStream<Buffer> setWriteQueueMaxSize(int maxSize) {
+      return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+      return false;
+    }
+
+    @Override
+    public WriteStream<Buffer> drainHandler(Handler<Void> handler) {
+      return this;
+    }
+  }
+}
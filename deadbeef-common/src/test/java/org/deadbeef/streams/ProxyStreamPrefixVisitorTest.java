@@ -151,6 +151,39 @@ public class ProxyStreamPrefixVisitorTest {
         });
   }
 
+  @Test
+  public void prefixAndTailAreViewsOfTheIncomingChunk(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    vertx.runOnContext(
+        v -> {
+          FakeReadStream src = new FakeReadStream();
+          CollectingWriteStream dst = new CollectingWriteStream();
+          HttpProto.Request expected = sampleRequest();
+          Buffer combined =
+              Buffer.buffer().appendBuffer(Prefix.serializeToBuffer(expected)).appendString("x");
+
+          new ProxyStreamPrefixVisitor<CollectingWriteStream>(vertx, new DefaultPipeFactory())
+              .visit(src)
+              .onFailure(ctx::fail)
+              .onSuccess(
+                  pa -> {
+                    ctx.assertEquals(expected, parseRequest(ctx, pa.get()));
+                    // Writes to the original chunk show through: nothing was copied.
+                    combined.setByte(combined.length() - 1, (byte) 'y');
+                    pa.apply(dst)
+                        .onFailure(ctx::fail)
+                        .onSuccess(
+                            ignored -> {
+                              ctx.assertEquals("y", dst.received.get(0).toString());
+                              done.complete();
+                            });
+                  });
+          src.emit(combined);
+          src.end();
+        });
+  }
+
   // ---------- failure paths ----------
 
   @Test
@@ -0,0 +1,50 @@
+package org.deadbeef.streams;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void burstPassesThenDebtIsWaitedOff() {
+    TokenBucket bucket = new TokenBucket(1000, 100 * MS, null);
+    long now = 5_000 * MS;
+    // 100 bytes at 1000 B/s take 100 ms, which the burst covers.
+    assertEquals(0, bucket.charge(100, now));
+    assertEquals(100 * MS, bucket.charge(100, now));
+    assertEquals(200 * MS, bucket.charge(100, now));
+    // Waiting it off brings the bucket back to the same point.
+    assertEquals(100 * MS, bucket.charge(100, now + 200 * MS));
+  }
+
+  @Test
+  public void restDoesNotBuildUpBeyondTheBurst() {
+    TokenBucket bucket = new TokenBucket(1000, 100 * MS, null);
+    long later = 60_000 * MS;
+    assertEquals(0, bucket.charge(100, later));
+    assertEquals(100 * MS, bucket.charge(100, later));
+  }
+
+  @Test
+  public void unlimitedLevelPassesChargesToItsParent() {
+    TokenBucket parent = new TokenBucket(1000, 0, null);
+    TokenBucket child = new TokenBucket(0, 0, parent);
+    assertEquals(100 * MS, child.charge(100, 0));
+    assertEquals(200 * MS, child.charge(100, 0));
+  }
+
+  @Test
+  public void siblingsShareTheirParentAndWaitForTheTighterLevel() {
+    TokenBucket parent = new TokenBucket(1000, 0, null);
+    TokenBucket slow = new TokenBucket(100, 0, parent);
+    TokenBucket fast = new TokenBucket(10_000, 0, parent);
+    // The slow tunnel is held by its own rate, not the parent's.
+    assertEquals(1000 * MS, slow.charge(100, 0));
+    // Its bytes were still taken from the parent, which now holds back the fast one.
+    assertEquals(200 * MS, fast.charge(100, 0));
+  }
+}
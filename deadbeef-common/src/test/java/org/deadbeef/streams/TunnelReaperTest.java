@@ -0,0 +1,218 @@
+package org.deadbeef.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.Pipe;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.deadbeef.bootstrap.TunnelTimeouts;
+import org.deadbeef.util.YAMLMapperFactory;
+import org.junit.After;
+import org.junit.Test;
+
+public class TunnelReaperTest {
+
+  // Long enough that the wheel never fires during a test; checks are run by hand.
+  private static final long LIMIT = TimeUnit.MINUTES.toMillis(10);
+
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+  private final Counter reaped = new Counter();
+  private final TunnelReaper reaper =
+      new TunnelReaper(new TunnelTimeouts(600, 600), reaped, clock::get);
+
+  @After
+  public void tearDown() {
+    reaper.close();
+  }
+
+  @Test
+  public void reapsOnlyWhenBothDirectionsAreIdle() {
+    AtomicLong clientIdle = new AtomicLong();
+    AtomicLong upstreamIdle = new AtomicLong();
+    AtomicInteger closed = new AtomicInteger();
+    TunnelReaper.Watch watch = reaper.newWatch();
+    watch.start(now -> clientIdle.get(), now -> upstreamIdle.get(), v -> closed.incrementAndGet());
+
+    clientIdle.set(LIMIT);
+    watch.handle(null);
+    assertEquals(0, closed.get());
+
+    upstreamIdle.set(LIMIT - 1);
+    watch.handle(null);
+    assertEquals(0, closed.get());
+
+    upstreamIdle.set(LIMIT);
+    watch.handle(null);
+    assertEquals(1, closed.get());
+    assertEquals(1, reaped.getCount());
+
+    // Reaped once; later checks do nothing.
+    watch.handle(null);
+    assertEquals(1, closed.get());
+  }
+
+  @Test
+  public void cancelledWatchNeverReaps() {
+    AtomicInteger closed = new AtomicInteger();
+    TunnelReaper.Watch watch = reaper.newWatch();
+    watch.start(now -> LIMIT, now -> LIMIT, v -> closed.incrementAndGet());
+    watch.cancel();
+    watch.handle(null);
+    assertEquals(0, closed.get());
+    assertEquals(0, reaped.getCount());
+  }
+
+  @Test
+  public void pipedDirectionIsIdleOnlySinceItsLastBytes() {
+    FakeReadStream src = new FakeReadStream();
+    Pipe<Buffer> pipe = new DefaultPipeFactory().newPipe(src);
+    pipe.to(new NullWriteStream());
+    TunnelReaper.Direction direction = reaper.piped(pipe);
+
+    clock.addAndGet(1000);
+    assertEquals(1000, direction.idleMillis(clock.get()));
+
+    src.emit(Buffer.buffer("ping"));
+    clock.addAndGet(500);
+    assertEquals(0, direction.idleMillis(clock.get()));
+
+    clock.addAndGet(LIMIT);
+    assertEquals(LIMIT, direction.idleMillis(clock.get()));
+  }
+
+  @Test
+  public void otherPipesAreNeverIdle() {
+    Pipe<Buffer> pipe = new MetricPipeImpl(new FakeReadStream(), new Meter());
+    assertEquals(0, reaper.piped(pipe).idleMillis(clock.get() + LIMIT));
+  }
+
+  @Test
+  public void reapingIsOffByDefault() {
+    try (TunnelReaper off = new TunnelReaper(new TunnelTimeouts(), new Counter())) {
+      assertNull(off.newWatch());
+    }
+  }
+
+  @Test
+  public void directionWithoutALimitNeverKeepsTheTunnelOpen() {
+    AtomicInteger closed = new AtomicInteger();
+    try (TunnelReaper clientOnly =
+        new TunnelReaper(new TunnelTimeouts(600, 0), reaped, clock::get)) {
+      AtomicLong clientIdle = new AtomicLong(LIMIT - 1);
+      TunnelReaper.Watch watch = clientOnly.newWatch();
+      // The upstream side chatters away, yet only the client's silence counts.
+      watch.start(now -> clientIdle.get(), now -> 0, v -> closed.incrementAndGet());
+      watch.handle(null);
+      assertEquals(0, closed.get());
+
+      clientIdle.set(LIMIT);
+      watch.handle(null);
+      assertEquals(1, closed.get());
+    }
+  }
+
+  @Test
+  public void timeoutsReadFromYaml() throws Exception {
+    YAMLMapper mapper = new YAMLMapperFactory().get();
+    TunnelTimeouts timeouts =
+        mapper.readValue("clientIdleSeconds: 30\nkeepAliveIdleSeconds: 0\n", TunnelTimeouts.class);
+    timeouts.verify();
+    assertEquals(30, timeouts.getClientIdleSeconds());
+    assertEquals(0, timeouts.getUpstreamIdleSeconds());
+    assertEquals(0, timeouts.getKeepAliveIdleSeconds());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void keepAliveWithoutCountIsRejected() throws Exception {
+    new YAMLMapperFactory().get().readValue("keepAliveCount: 0\n", TunnelTimeouts.class).verify();
+  }
+
+  private static final class FakeReadStream implements ReadStream<Buffer> {
+
+    private Handler<Buffer> handler;
+
+    void emit(Buffer buffer) {
+      handler.handle(buffer);
+    }
+
+    @Override
+    public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+      return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> handler(Handler<Buffer> handler) {
+      this.handler = handler;
+      return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> pause() {
+      return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> resume() {
+      return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> fetch(long amount) {
+      return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> endHandler(Handler<Void> endHandler) {
+      return this;
+    }
+  }
+
+  private static final class NullWriteStream implements WriteStream<Buffer> {
+
+    @Override
+    public WriteStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+      return this;
+    }
+
+    @Override
+    public Future<Void> write(Buffer data) {
+      return Future.succeededFuture();
+    }
+
+    @Override
+    public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+      handler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void end(Handler<AsyncResult<Void>> handler) {
+      handler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public WriteStream<Buffer> setWriteQueueMaxSize(int maxSize) {
+      return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+      return false;
+    }
+
+    @Override
+    public WriteStream<Buffer> drainHandler(Handler<Void> handler) {
+      return this;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package org.deadbeef.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class WriteQueueTunerTest {
+
+  private final AtomicLong now = new AtomicLong();
+  private final AtomicLong budget = new AtomicLong(WriteQueueTuner.GLOBAL_BUDGET);
+  private final WriteQueueTuner tuner = new WriteQueueTuner(budget, now::get);
+
+  /**
+   * One full-queue cycle: the lower half drains in {@code drainMillis}, the source answers after.
+   */
+  private boolean cycle(long drainMillis, long refillMillis) {
+    tuner.paused();
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(drainMillis));
+    tuner.drained();
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(refillMillis));
+    return tuner.refilled();
+  }
+
+  @Test
+  public void growsWhileTheSourceIsSlowerToRefillThanTheQueueToDrain() {
+    assertTrue(cycle(1, 40));
+    assertEquals(2 * WriteQueueTuner.INITIAL_SIZE, tuner.size());
+
+    for (int i = 0; i < 20; i++) {
+      cycle(1, 40);
+    }
+    assertEquals(WriteQueueTuner.MAX_SIZE, tuner.size());
+    assertEquals(
+        WriteQueueTuner.GLOBAL_BUDGET - (WriteQueueTuner.MAX_SIZE - WriteQueueTuner.INITIAL_SIZE),
+        budget.get());
+  }
+
+  @Test
+  public void shrinksWhenTheSourceAnswersFasterThanNeeded() {
+    cycle(1, 40);
+    cycle(1, 40);
+    int grown = tuner.size();
+
+    assertTrue(cycle(40, 1));
+    assertEquals(grown / 2, tuner.size());
+
+    for (int i = 0; i < 10; i++) {
+      cycle(40, 1);
+    }
+    assertEquals(WriteQueueTuner.MIN_SIZE, tuner.size());
+    assertEquals(WriteQueueTuner.GLOBAL_BUDGET, budget.get());
+  }
+
+  @Test
+  public void idleSourceFallsBackToTheInitialSize() {
+    cycle(1, 40);
+    cycle(1, 40);
+
+    assertTrue(cycle(1, TimeUnit.NANOSECONDS.toMillis(WriteQueueTuner.IDLE) + 1));
+    assertEquals(WriteQueueTuner.INITIAL_SIZE, tuner.size());
+    assertEquals(WriteQueueTuner.GLOBAL_BUDGET, budget.get());
+  }
+
+  @Test
+  public void growthStopsAtTheGlobalBudget() {
+    budget.set(10_000);
+
+    assertTrue(cycle(1, 40));
+    assertEquals(WriteQueueTuner.INITIAL_SIZE + 10_000, tuner.size());
+    assertFalse(cycle(1, 40));
+
+    tuner.release();
+    assertEquals(10_000, budget.get());
+    assertEquals(WriteQueueTuner.INITIAL_SIZE, tuner.size());
+  }
+
+  @Test
+  public void onlyTheFirstChunkAfterAResumeCounts() {
+    assertFalse(tuner.refilled());
+    assertTrue(cycle(1, 40));
+    assertFalse(tuner.refilled());
+  }
+}
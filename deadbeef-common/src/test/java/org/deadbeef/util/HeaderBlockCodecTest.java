@@ -0,0 +1,115 @@
+package org.deadbeef.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import java.util.Map;
+import java.util.TreeMap;
+import org.deadbeef.protocol.HttpProto;
+import org.junit.Test;
+
+public class HeaderBlockCodecTest {
+
+  private static final String USER_AGENT =
+      "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/126.0 Safari";
+
+  private static HttpProto.Headers browserHeaders(String cookie) {
+    return HttpProto.Headers.newBuilder()
+        .setHost("example.com")
+        .setUserAgent(USER_AGENT)
+        .setCookie(cookie)
+        .setAuthorization("Bearer secret")
+        .putUndeclaredPairs("sec-ch-ua", "\"Chromium\";v=\"126\"")
+        .putUndeclaredPairs("x-custom", "value")
+        .build();
+  }
+
+  private static Map<String, String> decode(HeaderBlockDecoder decoder, ByteString block) {
+    Map<String, String> decoded = new TreeMap<>();
+    decoder.decode(block, decoded::put);
+    return decoded;
+  }
+
+  private static Map<String, String> plain(HttpProto.Headers headers) {
+    Map<String, String> expected = new TreeMap<>();
+    new HttpHeaderDecoder(true).visit(headers, expected::put);
+    return expected;
+  }
+
+  @Test
+  public void roundTripsAndShrinksOnRepeat() {
+    HeaderBlockEncoder encoder = new HeaderBlockEncoder(4096);
+    HeaderBlockDecoder decoder = new HeaderBlockDecoder(4096);
+    HttpProto.Headers headers = browserHeaders("session=abcdef0123456789");
+
+    ByteString first = encoder.encode(headers);
+    ByteString second = encoder.encode(headers);
+
+    assertEquals(plain(headers), decode(decoder, first));
+    assertEquals(plain(headers), decode(decoder, second));
+    // Everything but the never-indexed authorization is a one-byte reference the second time.
+    assertTrue(second.size() < 25);
+    assertTrue(second.size() * 5 < first.size());
+  }
+
+  @Test
+  public void authorizationIsNeverIndexed() {
+    HeaderBlockEncoder encoder = new HeaderBlockEncoder(4096);
+    HttpProto.Headers headers =
+        HttpProto.Headers.newBuilder().setAuthorization("Bearer secret").build();
+
+    encoder.encode(headers);
+    ByteString second = encoder.encode(headers);
+
+    assertTrue(second.toStringUtf8().contains("Bearer secret"));
+  }
+
+  @Test
+  public void staysInStepThroughEvictions() {
+    // Small table: every few requests evict older cookies and user agents.
+    HeaderBlockEncoder encoder = new HeaderBlockEncoder(256);
+    HeaderBlockDecoder decoder = new HeaderBlockDecoder(256);
+    for (int i = 0; i < 200; i++) {
+      HttpProto.Headers headers = browserHeaders("session=" + (i % 7));
+      assertEquals(plain(headers), decode(decoder, encoder.encode(headers)));
+    }
+  }
+
+  @Test
+  public void valueLargerThanTableIsSentLiterally() {
+    HeaderBlockEncoder encoder = new HeaderBlockEncoder(64);
+    HeaderBlockDecoder decoder = new HeaderBlockDecoder(64);
+    HttpProto.Headers headers = HttpProto.Headers.newBuilder().setUserAgent(USER_AGENT).build();
+
+    for (int i = 0; i < 3; i++) {
+      ByteString block = encoder.encode(headers);
+      assertTrue(block.size() > USER_AGENT.length());
+      assertEquals(plain(headers), decode(decoder, block));
+    }
+  }
+
+  @Test
+  public void unknownIndexIsRejected() {
+    HeaderBlockDecoder decoder = new HeaderBlockDecoder(4096);
+    try {
+      decode(decoder, ByteString.copyFrom(new byte[] {(byte) 0x81}));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("index"));
+    }
+  }
+
+  @Test
+  public void truncatedBlockIsRejected() {
+    HeaderBlockEncoder encoder = new HeaderBlockEncoder(4096);
+    ByteString block = encoder.encode(browserHeaders("a=b"));
+    try {
+      decode(new HeaderBlockDecoder(4096), block.substring(0, block.size() - 3));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("Truncated"));
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package org.deadbeef.util;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.CaseFormat;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import io.vertx.core.MultiMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.deadbeef.protocol.HttpProto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link HttpHeaderEncoder} / {@link HttpHeaderDecoder} on a typical browser request
+ * against the descriptor-reflection codec they replaced (reproduced below as {@code descriptor*}).
+ * Not run by Surefire; run with the JMH harness, e.g. {@code java -cp <test-classpath>
+ * org.openjdk.jmh.Main HttpHeaderCodecBenchmark -prof gc}.
+ *
+ * <p>Measured (single-core x86_64 VM, JDK 21, 14 headers, average time, {@code -prof gc}):
+ *
+ * <pre>
+ *   encode              1520 ns/op    1352 B/op
+ *   descriptorEncode    1702 ns/op    2336 B/op
+ *   decode               923 ns/op      56 B/op
+ *   descriptorDecode    5989 ns/op    3208 B/op
+ * </pre>
+ *
+ * Decoding no longer rebuilds each name, which was most of its time and almost all of its garbage.
+ * Encoding mostly sheds the lower-casing and the reflective setter; what remains is the builder
+ * itself and the undeclared-pairs map.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HttpHeaderCodecBenchmark {
+
+  private static final Map<String, Descriptors.FieldDescriptor> DESCRIPTORS_BY_NAME =
+      new HashMap<>();
+  private static final List<Descriptors.FieldDescriptor> DESCRIPTORS =
+      HttpProto.Headers.getDescriptor().getFields().stream()
+          .filter(d -> d.getJavaType() == Descriptors.FieldDescriptor.JavaType.STRING)
+          .collect(ImmutableList.toImmutableList());
+
+  static {
+    for (Descriptors.FieldDescriptor descriptor : DESCRIPTORS) {
+      DESCRIPTORS_BY_NAME.put(
+          CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.LOWER_HYPHEN, descriptor.getName()),
+          descriptor);
+    }
+  }
+
+  private final HttpHeaderEncoder encoder = new HttpHeaderEncoder();
+  private final HttpHeaderDecoder decoder = new HttpHeaderDecoder();
+  private MultiMap request;
+  private HttpProto.Headers headers;
+  private BiConsumer<String, String> sink;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    sink =
+        (name, value) -> {
+          blackhole.consume(name);
+          blackhole.consume(value);
+        };
+    request =
+        MultiMap.caseInsensitiveMultiMap()
+            .add("Host", "www.example.com")
+            .add("Connection", "keep-alive")
+            .add("Cache-Control", "max-age=0")
+            .add("sec-ch-ua", "\"Chromium\";v=\"126\", \"Not.A/Brand\";v=\"24\"")
+            .add("sec-ch-ua-mobile", "?0")
+            .add("Upgrade-Insecure-Requests", "1")
+            .add(
+                "User-Agent",
+                "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)"
+                    + " Chrome/126.0.0.0 Safari/537.36")
+            .add("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+            .add("Sec-Fetch-Site", "none")
+            .add("Sec-Fetch-Mode", "navigate")
+            .add("Accept-Encoding", "gzip, deflate, br, zstd")
+            .add("Accept-Language", "en-US,en;q=0.9")
+            .add("Cookie", "session=0123456789abcdef; theme=dark")
+            .add("If-None-Match", "W/\"62ef0966-21aa\"");
+    headers = encoder.apply(request);
+  }
+
+  @Benchmark
+  public HttpProto.Headers encode() {
+    return encoder.apply(request);
+  }
+
+  @Benchmark
+  public HttpProto.Headers descriptorEncode() {
+    HttpProto.Headers.Builder builder = HttpProto.Headers.newBuilder();
+    for (Map.Entry<String, String> entry : request) {
+      String key = Ascii.toLowerCase(entry.getKey());
+      Descriptors.FieldDescriptor descriptor = DESCRIPTORS_BY_NAME.get(key);
+      if (descriptor != null) {
+        builder.setField(descriptor, entry.getValue());
+      } else {
+        builder.putUndeclaredPairs(key, entry.getValue());
+      }
+    }
+    return builder.build();
+  }
+
+  @Benchmark
+  public void decode() {
+    decoder.visit(headers, sink);
+  }
+
+  @Benchmark
+  public void descriptorDecode() {
+    for (Descriptors.FieldDescriptor descriptor : DESCRIPTORS) {
+      if (headers.hasField(descriptor)) {
+        Iterator<String> iterator = Splitter.on('_').split(descriptor.getName()).iterator();
+        StringBuilder builder = new StringBuilder(descriptor.getName().length());
+        while (iterator.hasNext()) {
+          String next = iterator.next();
+          builder.append(Character.toUpperCase(next.charAt(0))).append(next.substring(1));
+          if (iterator.hasNext()) {
+            builder.append('-');
+          }
+        }
+        sink.accept(builder.toString(), (String) headers.getField(descriptor));
+      }
+    }
+    for (Map.Entry<String, String> entry : headers.getUndeclaredPairsMap().entrySet()) {
+      sink.accept(entry.getKey(), entry.getValue());
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package org.deadbeef.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.deadbeef.protocol.HttpProto;
+import org.junit.Test;
+
+public class HttpHeaderCodecTest {
+
+  @Test
+  public void looksUpNamesInAnyCaseAndRepresentation() {
+    HttpHeaderCodec.Field field = HttpHeaderCodec.lookup("content-type");
+
+    assertEquals("content-type", field.name);
+    assertEquals("Content-Type", field.canonicalName);
+    assertSame(field, HttpHeaderCodec.lookup("Content-Type"));
+    assertSame(field, HttpHeaderCodec.lookup("CONTENT-TYPE"));
+    assertSame(field, HttpHeaderCodec.lookup(HttpHeaderNames.CONTENT_TYPE));
+  }
+
+  @Test
+  public void undeclaredNamesAreNotFound() {
+    assertNull(HttpHeaderCodec.lookup("x-custom"));
+    assertNull(HttpHeaderCodec.lookup("content-typ"));
+    assertNull(HttpHeaderCodec.lookup(""));
+  }
+
+  @Test
+  public void everyFieldIsReachableAndBoundToItsOwnAccessors() {
+    for (HttpHeaderCodec.Field field : HttpHeaderCodec.FIELDS) {
+      assertSame(field, HttpHeaderCodec.lookup(field.canonicalName));
+
+      HttpProto.Headers.Builder builder = HttpProto.Headers.newBuilder();
+      field.setter.accept(builder, field.name);
+      HttpProto.Headers headers = builder.build();
+
+      assertTrue(field.presence.test(headers));
+      assertEquals(field.name, field.getter.apply(headers));
+      for (HttpHeaderCodec.Field other : HttpHeaderCodec.FIELDS) {
+        if (other != field) {
+          assertFalse(other.presence.test(headers));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void lowerCaseKeepsAlreadyLowerNames() {
+    String name = "x-custom";
+
+    assertSame(name, HttpHeaderCodec.lowerCase(name));
+    assertEquals("x-custom", HttpHeaderCodec.lowerCase("X-Custom"));
+  }
+}
@@ -1,18 +1,64 @@
 package org.deadbeef;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Slf4jReporter;
 import io.vertx.core.Vertx;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
+import org.deadbeef.auth.ProxyAuthenticationValidator;
 import org.deadbeef.bootstrap.Bootstrap;
+import org.deadbeef.bootstrap.FileWatcher;
+import org.deadbeef.bootstrap.TunnelTimeouts;
+import org.deadbeef.security.AuthFloodGuard;
 import org.deadbeef.server.HttpVerticle;
 import org.deadbeef.server.ServerConfig;
+import org.deadbeef.streams.BandwidthShaper;
+import org.deadbeef.streams.TunnelReaper;
 
 @Slf4j
 public final class App {
 
+  private static final long CONFIG_POLL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
   public static void main(String[] args) {
     Bootstrap.printLogo();
     ServerConfig config = Bootstrap.loadCommandLineConfig(args, ServerConfig.class);
     Vertx vertx = Bootstrap.vertx(config);
-    Bootstrap.deploy(vertx, HttpVerticle::new, config);
+    // One validator for the whole process so replay protection holds across all instances.
+    ProxyAuthenticationValidator validator = HttpVerticle.createValidator(config);
+    // Likewise one flood guard and tunnel reaper, and their counters logged every few minutes.
+    MetricRegistry registry = new MetricRegistry();
+    AuthFloodGuard floodGuard = new AuthFloodGuard(registry);
+    TunnelReaper reaper =
+        new TunnelReaper(
+            TunnelTimeouts.orDefault(config.getTunnelTimeouts()),
+            registry.counter("server.tunnels.reaped"));
+    BandwidthShaper shaper =
+        config.getBandwidth() != null && config.getBandwidth().limitsAny()
+            ? new BandwidthShaper(config.getBandwidth())
+            : null;
+    Slf4jReporter.forRegistry(registry).outputTo(log).build().start(5, TimeUnit.MINUTES);
+    watchAuth(Bootstrap.commandLineConfigPath(args), validator, shaper);
+    Bootstrap.deploy(
+        vertx, c -> new HttpVerticle(c, validator, floodGuard, reaper, shaper), config);
+  }
+
+  /** Applies edits to {@code auth:} live; every other setting still takes a restart. */
+  private static void watchAuth(
+      String configPath, ProxyAuthenticationValidator validator, BandwidthShaper shaper) {
+    new FileWatcher(
+        List.of(Paths.get(configPath)),
+        CONFIG_POLL_MILLIS,
+        () -> {
+          ServerConfig reloaded = Bootstrap.loadYamlFileConfig(configPath, ServerConfig.class);
+          reloaded.verify();
+          validator.reload(reloaded.getAuth());
+          if (shaper != null) {
+            shaper.retainUsers(validator::knows);
+          }
+          log.info("Reloaded {} auth entries from {}", reloaded.getAuth().size(), configPath);
+        });
   }
 }
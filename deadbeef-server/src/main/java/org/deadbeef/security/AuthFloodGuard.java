@@ -0,0 +1,142 @@
+package org.deadbeef.security;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import io.vertx.core.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import lombok.NonNull;
+import org.deadbeef.auth.ProxyAuthenticationValidator;
+
+/**
+ * Admission stage in front of token verification. Counts failed authentications per remote host and
+ * turns a host away, before any base64, protobuf or HMAC work, once it has failed too often. Meant
+ * to stop scanners and brute-forcers from burning the CPU real clients need.
+ *
+ * <p>Failures are kept in a fixed-size count-min sketch, so memory does not grow with the number of
+ * sources. Every {@code decayPeriod} all counts are halved, so an offender that stops is admitted
+ * again after a few periods. A sketch can only overestimate: an innocent host may be shed if it
+ * shares every cell with offenders, which the random per-process seed makes unlikely and impossible
+ * to aim for.
+ *
+ * <p>Shared by all server instances. Exposes {@code server.auth.verified}, {@code
+ * server.auth.failed} and {@code server.auth.shed} counters.
+ */
+public final class AuthFloodGuard {
+
+  /** Failures, after decay, at which a host is shed. */
+  public static final int DEFAULT_MAX_FAILURES = 64;
+
+  public static final long DEFAULT_DECAY_PERIOD = TimeUnit.MINUTES.toMillis(1);
+
+  private static final int DEPTH = 4;
+  private static final int WIDTH_BITS = 12;
+  private static final int WIDTH_MASK = (1 << WIDTH_BITS) - 1;
+
+  private final AtomicIntegerArray cells = new AtomicIntegerArray(DEPTH << WIDTH_BITS);
+  private final long seed = new SecureRandom().nextLong();
+  private final int maxFailures;
+  private final long decayPeriod;
+  private final LongSupplier clock;
+  private final AtomicLong nextDecay;
+  private final Counter verified;
+  private final Counter failed;
+  private final Counter shed;
+
+  public AuthFloodGuard(@NonNull MetricRegistry registry) {
+    this(registry, DEFAULT_MAX_FAILURES, DEFAULT_DECAY_PERIOD, System::currentTimeMillis);
+  }
+
+  AuthFloodGuard(MetricRegistry registry, int maxFailures, long decayPeriod, LongSupplier clock) {
+    Preconditions.checkArgument(maxFailures > 0, "maxFailures should be positive: %s", maxFailures);
+    Preconditions.checkArgument(decayPeriod > 0, "decayPeriod should be positive: %s", decayPeriod);
+    this.maxFailures = maxFailures;
+    this.decayPeriod = decayPeriod;
+    this.clock = clock;
+    this.nextDecay = new AtomicLong(clock.getAsLong() + decayPeriod);
+    this.verified = registry.counter("server.auth.verified");
+    this.failed = registry.counter("server.auth.failed");
+    this.shed = registry.counter("server.auth.shed");
+  }
+
+  /**
+   * Verifies {@code token} from {@code remote} unless the host is shed, and records the outcome. A
+   * missing token is a failure like any other.
+   *
+   * @return the secretId the token proved, or null if it was refused
+   */
+  public String authenticate(
+      SocketAddress remote, String token, @NonNull ProxyAuthenticationValidator validator) {
+    String host = remote == null ? null : remote.hostAddress();
+    if (host != null && isShed(host)) {
+      shed.inc();
+      return null;
+    }
+    String secretId = validator.authenticate(token);
+    if (secretId != null) {
+      verified.inc();
+      return secretId;
+    }
+    failed.inc();
+    if (host != null) {
+      recordFailure(host);
+    }
+    return null;
+  }
+
+  boolean isShed(String host) {
+    decayIfDue();
+    long hash = hash(host);
+    for (int row = 0; row < DEPTH; row++) {
+      if (cells.get(cell(row, hash)) < maxFailures) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Conservative update: only the cells at the host's current minimum go up. */
+  void recordFailure(String host) {
+    long hash = hash(host);
+    int estimate = Integer.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      estimate = Math.min(estimate, cells.get(cell(row, hash)));
+    }
+    int next = estimate + 1;
+    for (int row = 0; row < DEPTH; row++) {
+      cells.accumulateAndGet(cell(row, hash), next, Math::max);
+    }
+  }
+
+  private void decayIfDue() {
+    long now = clock.getAsLong();
+    long due = nextDecay.get();
+    if (now < due || !nextDecay.compareAndSet(due, now + decayPeriod)) {
+      return;
+    }
+    // Halve once per elapsed period, so a long quiet spell forgets everything.
+    int shift = (int) Math.min(Integer.SIZE - 1, 1 + (now - due) / decayPeriod);
+    for (int i = 0; i < cells.length(); i++) {
+      cells.getAndUpdate(i, count -> count >>> shift);
+    }
+  }
+
+  /** Seeded FNV-1a over the address text, so collisions differ from one process to the next. */
+  private long hash(String host) {
+    long h = seed;
+    for (int i = 0; i < host.length(); i++) {
+      h = (h ^ host.charAt(i)) * 0x100000001B3L;
+    }
+    h *= 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 32);
+  }
+
+  /** Each row of the sketch takes its own {@link #WIDTH_BITS} bits of the hash. */
+  private static int cell(int row, long hash) {
+    return (row << WIDTH_BITS) | ((int) (hash >>> (row * WIDTH_BITS)) & WIDTH_MASK);
+  }
+}
@@ -58,20 +58,26 @@ public final class UpstreamResolver {
   }
 
   /**
-   * Maps a failure from {@link #resolveAndFilter} to an HTTP status on the supplied response:
-   * {@code 403} for a filter rejection, otherwise {@link HttpRequestUtils#errorMapping} (timeout →
-   * 504, anything else → 502).
+   * Maps a failure from {@link #resolveAndFilter} to an HTTP status on the supplied response; see
+   * {@link #errorStatus}.
    */
   public static void replyWithError(
       @NonNull String host, @NonNull Throwable cause, @NonNull HttpServerResponse response) {
+    response.setStatusCode(errorStatus(host, cause)).end();
+  }
+
+  /**
+   * {@code 403} for a filter rejection, otherwise {@link HttpRequestUtils#errorMapping} (timeout →
+   * 504, anything else → 502). Also used to reject multiplexed streams, which have no response.
+   */
+  public static int errorStatus(@NonNull String host, @NonNull Throwable cause) {
     if (cause instanceof UpstreamRejectedException rej) {
       log.info(
           "Rejecting upstream {} ({}): {}", host, rej.address().getHostAddress(), rej.reason());
-      response.setStatusCode(403).end();
-      return;
+      return 403;
     }
     log.warn("Resolve failure for upstream {}: {}", host, cause.getMessage());
-    response.setStatusCode(HttpRequestUtils.errorMapping(cause).code()).end();
+    return HttpRequestUtils.errorMapping(cause).code();
   }
 
   // ---- internals ----
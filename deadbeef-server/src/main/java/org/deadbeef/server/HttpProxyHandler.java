@@ -1,39 +1,49 @@
 package org.deadbeef.server;
 
-import io.netty.buffer.ByteBufInputStream;
+import com.google.common.primitives.Ints;
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpConnection;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.core.http.RequestOptions;
 import io.vertx.core.net.SocketAddress;
-import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.deadbeef.auth.ProxyAuthenticationValidator;
 import org.deadbeef.protocol.HttpProto;
 import org.deadbeef.route.Authorities;
+import org.deadbeef.security.AuthFloodGuard;
 import org.deadbeef.security.UpstreamAddressFilter;
 import org.deadbeef.security.UpstreamResolver;
 import org.deadbeef.streams.PipeFactory;
 import org.deadbeef.streams.Prefix;
 import org.deadbeef.streams.PrefixAndAction;
+import org.deadbeef.streams.PrefixedWriteStream;
 import org.deadbeef.streams.ProxyStreamPrefixVisitor;
 import org.deadbeef.util.Constants;
+import org.deadbeef.util.HeaderBlockDecoder;
 import org.deadbeef.util.HttpHeaderDecoder;
 import org.deadbeef.util.HttpRequestUtils;
 
 @Slf4j
 public final class HttpProxyHandler implements Handler<HttpServerRequest> {
 
+  private static final int MAX_HEADER_TABLE_CAPACITY = 64 * 1024;
+
   private final Vertx vertx;
   private final HttpClientResponseEncoder encoder = new HttpClientResponseEncoder();
   private final HttpHeaderDecoder headerDecoder = new HttpHeaderDecoder();
@@ -42,19 +52,33 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
   private final ProxyStreamPrefixVisitor<HttpClientRequest> proxyStreamPrefixVisitor;
   private final ProxyAuthenticationValidator proxyAuthenticationValidator;
   private final UpstreamAddressFilter addressFilter;
+  // Compressed-header tables of the HTTP/1.x client connections that accepted one.
+  private final Map<HttpConnection, HeaderBlockDecoder> headerTables = new WeakHashMap<>();
+  private final boolean connectionAuth;
+  private final AuthFloodGuard floodGuard;
+  // Client connections that presented a valid token, and its secretId, when connectionAuth is on.
+  private final Map<HttpConnection, String> authenticated = new WeakHashMap<>();
 
+  /**
+   * @param connectionAuth verify the auth token once per connection rather than per request
+   * @param floodGuard sheds hosts that keep failing authentication, shared across instances
+   */
   public HttpProxyHandler(
       @NonNull Vertx vertx,
       @NonNull HttpClient httpClient,
       @NonNull ProxyAuthenticationValidator validator,
       @NonNull PipeFactory pipeFactory,
-      @NonNull UpstreamAddressFilter addressFilter) {
+      @NonNull UpstreamAddressFilter addressFilter,
+      boolean connectionAuth,
+      @NonNull AuthFloodGuard floodGuard) {
     this.vertx = vertx;
     this.httpClient = httpClient;
     this.proxyStreamPrefixVisitor = new ProxyStreamPrefixVisitor<>(vertx, pipeFactory);
     this.proxyAuthenticationValidator = validator;
     this.pipeFactory = pipeFactory;
     this.addressFilter = addressFilter;
+    this.connectionAuth = connectionAuth;
+    this.floodGuard = floodGuard;
   }
 
   @Override
@@ -64,34 +88,115 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
       serverResponse.setStatusCode(HttpResponseStatus.METHOD_NOT_ALLOWED.code()).end();
       return;
     }
-    if (!proxyAuthenticationValidator.testString(
-        serverRequest.getHeader(Constants.authHeaderName()))) {
+    if (!authenticate(serverRequest)) {
       serverResponse.setStatusCode(HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED.code()).end();
+      // The envelope is never read, so its table insertions never happen on this side.
+      dropHeaderTable(serverRequest);
       return;
     }
-    Handler<Throwable> errorHandler = HttpRequestUtils.createErrorHandler(serverResponse);
+    acceptHeaderTableOffer(serverRequest);
+    Handler<Throwable> originalErrorHandler = HttpRequestUtils.createErrorHandler(serverResponse);
+    Handler<Throwable> errorHandler =
+        cause -> {
+          originalErrorHandler.handle(cause);
+          dropHeaderTable(serverRequest);
+        };
     proxyStreamPrefixVisitor
         .visit(serverRequest)
         .onFailure(errorHandler)
         .onSuccess(
             prefixAndAction -> {
               HttpProto.Request request;
-              try (ByteBufInputStream inputStream =
-                  new ByteBufInputStream(prefixAndAction.get().getByteBuf())) {
-                request = HttpProto.Request.parseFrom(inputStream);
-              } catch (IOException e) {
+              try {
+                request = Prefix.parse(prefixAndAction.get(), HttpProto.Request.parser());
+              } catch (InvalidProtocolBufferException e) {
                 errorHandler.handle(e);
                 return;
               }
               if (log.isDebugEnabled()) {
                 log.debug("{} :{}{}", Constants.rightArrow(), Constants.lineSeparator(), request);
               }
-              dispatch(request, prefixAndAction, serverResponse, errorHandler);
+              // Decode right away: the dynamic table must see blocks in arrival order.
+              MultiMap headers;
+              try {
+                headers = decodeHeaders(serverRequest, request);
+              } catch (IllegalArgumentException e) {
+                log.warn("Undecodable header block: {}", e.getMessage());
+                serverResponse.setStatusCode(HttpResponseStatus.BAD_REQUEST.code()).end();
+                dropHeaderTable(serverRequest);
+                return;
+              }
+              dispatch(request, headers, prefixAndAction, serverResponse, errorHandler);
             });
   }
 
+  /**
+   * A request with a token is always verified. Without one it is let through only on a connection
+   * that already presented a valid token whose secretId is still accepted, and only in
+   * connectionAuth mode.
+   */
+  private boolean authenticate(HttpServerRequest serverRequest) {
+    String token = serverRequest.getHeader(Constants.authHeaderName());
+    if (token == null
+        && connectionAuth
+        && proxyAuthenticationValidator.knows(authenticated.get(serverRequest.connection()))) {
+      return true;
+    }
+    String secretId =
+        floodGuard.authenticate(serverRequest.remoteAddress(), token, proxyAuthenticationValidator);
+    if (secretId == null) {
+      authenticated.remove(serverRequest.connection());
+      return false;
+    }
+    if (connectionAuth && authenticated.put(serverRequest.connection(), secretId) == null) {
+      serverRequest.response().putHeader(Constants.authSessionHeaderName(), "1");
+    }
+    return true;
+  }
+
+  private void acceptHeaderTableOffer(HttpServerRequest serverRequest) {
+    String offer = serverRequest.getHeader(Constants.headerTableHeaderName());
+    Integer capacity = offer == null ? null : Ints.tryParse(offer);
+    if (capacity == null || capacity <= 0 || serverRequest.version() == HttpVersion.HTTP_2) {
+      return;
+    }
+    capacity = Math.min(capacity, MAX_HEADER_TABLE_CAPACITY);
+    headerTables.put(serverRequest.connection(), new HeaderBlockDecoder(capacity));
+    serverRequest
+        .response()
+        .putHeader(Constants.headerTableHeaderName(), Integer.toString(capacity));
+  }
+
+  private MultiMap decodeHeaders(HttpServerRequest serverRequest, HttpProto.Request request) {
+    if (request.hasHeaderBlock()) {
+      HeaderBlockDecoder decoder = headerTables.get(serverRequest.connection());
+      if (decoder == null) {
+        throw new IllegalArgumentException("No header table on this connection");
+      }
+      MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+      decoder.decode(request.getHeaderBlock(), headers::add);
+      return headers;
+    }
+    return request.hasHeaders() ? headerDecoder.apply(request.getHeaders()) : null;
+  }
+
+  /**
+   * A request whose envelope was not decoded leaves the client's table ahead of ours. Closing the
+   * connection discards both; the client starts over with a fresh offer on its next connection.
+   */
+  private void dropHeaderTable(HttpServerRequest serverRequest) {
+    HttpConnection connection = serverRequest.connection();
+    if (headerTables.remove(connection) != null) {
+      serverRequest.response().endHandler(v -> connection.close());
+      if (serverRequest.response().ended()) {
+        connection.close();
+      }
+    }
+  }
+
   private void dispatch(
       HttpProto.Request request,
+      MultiMap headers,
       PrefixAndAction<? super HttpClientRequest> prefixAndAction,
       HttpServerResponse serverResponse,
       Handler<Throwable> errorHandler) {
@@ -108,7 +213,7 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
         .onFailure(cause -> UpstreamResolver.replyWithError(host, cause, serverResponse))
         .onSuccess(
             socketAddress -> {
-              RequestOptions options = buildRequestOptions(request);
+              RequestOptions options = buildRequestOptions(request, headers);
               // Pin the TCP target to the resolved IP via Vert.x's SocketAddress so the connection
               // does not re-resolve (defeats DNS rebinding) while leaving the URI / Host header
               // unchanged for upstream SNI / virtual-host correctness.
@@ -163,10 +268,12 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
       serverResponse.end(prefixData);
       return;
     }
-    serverResponse.write(prefixData).onFailure(errorHandler);
+    // The envelope goes out with the first body chunk, in one write, if that chunk is already
+    // here; a response slow to its first byte (server-sent events, long polls) gets it at once.
+    PrefixedWriteStream prefixed = new PrefixedWriteStream(serverResponse, prefixData);
     pipeFactory
         .newPipe(clientResponse)
-        .to(serverResponse)
+        .to(prefixed)
         .onSuccess(
             v -> {
               if (log.isDebugEnabled()) {
@@ -180,6 +287,12 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
               serverResponse.end();
             })
         .onFailure(errorHandler);
+    vertx.runOnContext(
+        v -> {
+          if (!serverResponse.ended() && !serverResponse.closed()) {
+            prefixed.flush();
+          }
+        });
   }
 
   private void putHeaders(
@@ -197,10 +310,10 @@ public final class HttpProxyHandler implements Handler<HttpServerRequest> {
     }
   }
 
-  private RequestOptions buildRequestOptions(HttpProto.Request request) {
+  private RequestOptions buildRequestOptions(HttpProto.Request request, MultiMap headers) {
     RequestOptions requestOptions = new RequestOptions();
-    if (request.hasHeaders()) {
-      requestOptions.setHeaders(headerDecoder.apply(request.getHeaders()));
+    if (headers != null) {
+      requestOptions.setHeaders(headers);
     }
     requestOptions.setAbsoluteURI(request.getAbsoluteUri());
     requestOptions.setMethod(HttpMethod.valueOf(request.getMethod().name()));
@@ -2,6 +2,7 @@ package org.deadbeef.server;
 
 import io.vertx.core.Handler;
 import io.vertx.core.Promise;
+import io.vertx.core.http.Http2Settings;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpMethod;
@@ -10,20 +11,62 @@ import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetClientOptions;
+import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
+import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.deadbeef.auth.ProxyAuthenticationValidator;
 import org.deadbeef.bootstrap.ProxyVerticle;
+import org.deadbeef.security.AuthFloodGuard;
 import org.deadbeef.security.UpstreamAddressFilter;
+import org.deadbeef.streams.BandwidthShaper;
 import org.deadbeef.streams.DefaultPipeFactory;
+import org.deadbeef.streams.TunnelReaper;
 
 @Slf4j
 public final class HttpVerticle extends ProxyVerticle<ServerConfig> {
 
   private static final int DEFAULT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+  private static final int MAX_CONCURRENT_STREAMS = 1024;
 
-  public HttpVerticle(ServerConfig config) {
+  // Shared by every deployed instance: the nonce cache inside is what makes each token single-use,
+  // so a per-instance validator would let a captured token replay once per event loop.
+  private final ProxyAuthenticationValidator validator;
+  // Shared for the same reason: failures seen by one event loop must shed the host on all of them.
+  private final AuthFloodGuard floodGuard;
+  // Shared so that one wheel thread watches the tunnels of every event loop.
+  private final TunnelReaper reaper;
+  // Shared so that the global and per-secretId rates hold across every event loop.
+  private final BandwidthShaper shaper;
+
+  /**
+   * @param reaper closes idle tunnels; {@code null} to leave them open until either side closes
+   * @param shaper shapes each tunnel to its secretId's bandwidth; {@code null} for no shaping
+   */
+  public HttpVerticle(
+      ServerConfig config,
+      @NonNull ProxyAuthenticationValidator validator,
+      @NonNull AuthFloodGuard floodGuard,
+      TunnelReaper reaper,
+      BandwidthShaper shaper) {
     super(config);
+    this.validator = validator;
+    this.floodGuard = floodGuard;
+    this.reaper = reaper;
+    this.shaper = shaper;
+  }
+
+  /** The validator for {@code config}, with its nonces in the shared store if one is set. */
+  public static ProxyAuthenticationValidator createValidator(ServerConfig config) {
+    int peakRate =
+        config.getAuthPeakRate() != null
+            ? config.getAuthPeakRate()
+            : ProxyAuthenticationValidator.DEFAULT_PEAK_RATE;
+    if (config.getSharedNonceStore() == null) {
+      return ProxyAuthenticationValidator.fromEntries(config.getAuth(), peakRate);
+    }
+    return ProxyAuthenticationValidator.fromEntries(
+        config.getAuth(), Paths.get(config.getSharedNonceStore()), peakRate);
   }
 
   private HttpClient createHttpClient() {
@@ -47,11 +90,31 @@ public final class HttpVerticle extends ProxyVerticle<ServerConfig> {
   }
 
   private HttpServer createHttpServer() {
-    return getVertx()
-        .createHttpServer(
-            getOptionsOrDefault(
-                getConfig().getHttpServerOptions(),
-                () -> new HttpServerOptions().setDecompressionSupported(true)));
+    HttpServerOptions configured = getConfig().getHttpServerOptions();
+    // Every instance shares the config; adjust a copy, never the configured options themselves.
+    HttpServerOptions options =
+        getOptionsOrDefault(
+            configured != null ? new HttpServerOptions(configured) : null,
+            () -> new HttpServerOptions().setDecompressionSupported(true));
+    // Clients with remoteHttp2 multiplex every envelope POST over a couple of connections; the
+    // default of 100 streams would queue them. A limit the config chose itself is kept.
+    Http2Settings settings = options.getInitialSettings();
+    if (settings.getMaxConcurrentStreams()
+        == HttpServerOptions.DEFAULT_INITIAL_SETTINGS_MAX_CONCURRENT_STREAMS) {
+      settings.setMaxConcurrentStreams(MAX_CONCURRENT_STREAMS);
+    }
+    if (options.isSsl()) {
+      // h2 over TLS is only ever negotiated through ALPN.
+      options.setUseAlpn(true);
+    }
+    if (getConfig().getSharedNonceStore() != null) {
+      // Other server processes on this host share the replay store, so they may share the port.
+      if (!getVertx().isNativeTransportEnabled()) {
+        log.warn("SO_REUSEPORT needs the native transport; other processes cannot bind the port");
+      }
+      options.setReusePort(true);
+    }
+    return getVertx().createHttpServer(options);
   }
 
   @Override
@@ -62,15 +125,30 @@ public final class HttpVerticle extends ProxyVerticle<ServerConfig> {
     NetClient netClient = createNetClient();
     HttpServer httpServer = createHttpServer();
 
-    ProxyAuthenticationValidator validator =
-        ProxyAuthenticationValidator.fromEntries(config.getAuth());
     DefaultPipeFactory pipeFactory = new DefaultPipeFactory();
+    DefaultPipeFactory tunnelPipeFactory =
+        new DefaultPipeFactory(false, false, config.getTunnelFlushWindowMicros());
     UpstreamAddressFilter addressFilter = UpstreamAddressFilter.defaultDenyList();
 
     Handler<HttpServerRequest> proxyHandler =
-        new HttpProxyHandler(getVertx(), httpClient, validator, pipeFactory, addressFilter);
+        new HttpProxyHandler(
+            getVertx(),
+            httpClient,
+            validator,
+            pipeFactory,
+            addressFilter,
+            config.isConnectionAuth(),
+            floodGuard);
     Handler<HttpServerRequest> connectHandler =
-        new ServerConnectHandler(getVertx(), netClient, validator, pipeFactory, addressFilter);
+        new ServerConnectHandler(
+            getVertx(),
+            netClient,
+            validator,
+            tunnelPipeFactory,
+            addressFilter,
+            floodGuard,
+            reaper,
+            shaper);
 
     httpServer.requestHandler(
         request -> {
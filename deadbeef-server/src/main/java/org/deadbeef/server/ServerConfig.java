@@ -9,7 +9,9 @@ import io.vertx.core.net.NetClientOptions;
 import java.util.List;
 import java.util.Map;
 import lombok.Getter;
+import org.deadbeef.bootstrap.BandwidthLimits;
 import org.deadbeef.bootstrap.ProxyConfig;
+import org.deadbeef.bootstrap.TunnelTimeouts;
 
 @Getter
 public final class ServerConfig implements ProxyConfig {
@@ -18,10 +20,45 @@ public final class ServerConfig implements ProxyConfig {
 
   private List<String> addressResolver;
 
+  /** Verticle instances sharing {@code port}; unset means one per available processor. */
+  private Integer instances;
+
   private List<AuthTuple> auth;
 
+  /**
+   * Verify the auth token once per client connection instead of on every envelope request; later
+   * requests on a verified connection are trusted by connection identity.
+   */
+  private boolean connectionAuth;
+
+  /**
+   * Directory for the replay-nonce store, shared by every server process that points at it. When
+   * set, the server also binds {@code port} with SO_REUSEPORT, so several processes can serve it.
+   */
+  private String sharedNonceStore;
+
+  /**
+   * Optional: tokens per second one secretId is expected to present at peak, which sizes its
+   * replay-nonce store; unset means 500. A busier secretId still authenticates. Every process
+   * sharing {@code sharedNonceStore} must use the same value.
+   */
+  private Integer authPeakRate;
+
   private int port;
 
+  /** Optional: idle limits and keepalive for CONNECT tunnels; unset uses the defaults. */
+  private TunnelTimeouts tunnelTimeouts;
+
+  /**
+   * Optional: when set, a burst of small writes to a tunnel socket is flushed once per this many
+   * microseconds (0: once per event-loop iteration) instead of once per write. A write after a
+   * quiet spell is flushed at once. Unset flushes every write.
+   */
+  private Integer tunnelFlushWindowMicros;
+
+  /** Optional: byte rates tunnels are shaped to, globally, per secretId and per tunnel. */
+  private BandwidthLimits bandwidth;
+
   @JsonProperty("httpClient")
   private HttpClientOptions httpClientOptions;
 
@@ -34,6 +71,21 @@ public final class ServerConfig implements ProxyConfig {
   @Override
   public void verify() {
     ProxyConfig.verifyPort(port, "port");
+    ProxyConfig.verifyInstances(instances);
+    if (tunnelTimeouts != null) {
+      tunnelTimeouts.verify();
+    }
+    if (bandwidth != null) {
+      bandwidth.verify();
+    }
+    Preconditions.checkArgument(
+        tunnelFlushWindowMicros == null || tunnelFlushWindowMicros >= 0,
+        "Illegal value for field `tunnelFlushWindowMicros`: %s",
+        tunnelFlushWindowMicros);
+    Preconditions.checkArgument(
+        authPeakRate == null || authPeakRate > 0,
+        "Illegal value for field `authPeakRate`: %s",
+        authPeakRate);
 
     Preconditions.checkArgument(auth != null && !auth.isEmpty(), "Empty auth list!");
   }
@@ -8,48 +8,78 @@ import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetSocket;
 import io.vertx.core.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.deadbeef.auth.ProxyAuthenticationValidator;
 import org.deadbeef.route.Authorities;
+import org.deadbeef.security.AuthFloodGuard;
 import org.deadbeef.security.UpstreamAddressFilter;
 import org.deadbeef.security.UpstreamResolver;
+import org.deadbeef.streams.BandwidthShaper;
+import org.deadbeef.streams.MuxSession;
+import org.deadbeef.streams.MuxStream;
 import org.deadbeef.streams.PipeFactory;
+import org.deadbeef.streams.TunnelReaper;
 import org.deadbeef.streams.Tunnels;
 import org.deadbeef.util.Constants;
 
 @Slf4j
 public final class ServerConnectHandler implements Handler<HttpServerRequest> {
 
+  /** How often a mux session checks that its secretId has not been reloaded away. */
+  private static final long REVOCATION_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
   private final Vertx vertx;
   private final NetClient netClient;
   private final ProxyAuthenticationValidator validator;
   private final PipeFactory pipeFactory;
   private final UpstreamAddressFilter addressFilter;
+  private final AuthFloodGuard floodGuard;
+  private final TunnelReaper reaper;
+  private final BandwidthShaper shaper;
 
+  /**
+   * @param reaper closes idle tunnels; {@code null} to leave them open until either side closes
+   * @param shaper shapes each tunnel to its secretId's bandwidth; {@code null} for no shaping
+   */
   public ServerConnectHandler(
       @NonNull Vertx vertx,
       @NonNull NetClient netClient,
       @NonNull ProxyAuthenticationValidator validator,
       @NonNull PipeFactory pipeFactory,
-      @NonNull UpstreamAddressFilter addressFilter) {
+      @NonNull UpstreamAddressFilter addressFilter,
+      @NonNull AuthFloodGuard floodGuard,
+      TunnelReaper reaper,
+      BandwidthShaper shaper) {
     this.vertx = vertx;
     this.netClient = netClient;
     this.validator = validator;
     this.pipeFactory = pipeFactory;
     this.addressFilter = addressFilter;
+    this.floodGuard = floodGuard;
+    this.reaper = reaper;
+    this.shaper = shaper;
   }
 
   @Override
   public void handle(HttpServerRequest request) {
     HttpServerResponse response = request.response();
 
-    if (!validator.testString(request.getHeader(Constants.authHeaderName()))) {
+    String token = request.getHeader(Constants.authHeaderName());
+    String secretId = floodGuard.authenticate(request.remoteAddress(), token, validator);
+    if (secretId == null) {
       response.setStatusCode(HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED.code()).end();
       return;
     }
 
+    if (request.getHeader(Constants.muxHeaderName()) != null) {
+      // Authenticated once for the whole session; every stream opened on it is trusted alike.
+      acceptSession(request, secretId);
+      return;
+    }
+
     String authority = request.uri();
     if (StringUtils.isEmpty(authority)) {
       response.setStatusCode(HttpResponseStatus.BAD_REQUEST.code()).end();
@@ -74,17 +104,82 @@ public final class ServerConnectHandler implements Handler<HttpServerRequest> {
                     .connect(socketAddress)
                     .onFailure(
                         cause -> UpstreamResolver.replyWithError(target.host(), cause, response))
-                    .onSuccess(upstream -> upgrade(request, upstream)));
+                    .onSuccess(upstream -> upgrade(request, upstream, secretId)));
+  }
+
+  private void acceptSession(HttpServerRequest request, String secretId) {
+    request
+        .toNetSocket()
+        .onFailure(cause -> log.warn("Mux session upgrade failed: ", cause))
+        .onSuccess(
+            socket -> {
+              if (reaper != null) {
+                reaper.keepAlive(socket);
+              }
+              // Three client PINGs missed in a row and the client is gone.
+              MuxSession session =
+                  MuxSession.server(
+                          socket,
+                          stream -> openStream(stream, secretId),
+                          MuxSession.DEFAULT_MAX_STREAMS)
+                      .expireIdle(vertx, 3 * MuxSession.DEFAULT_KEEP_ALIVE_MILLIS);
+              // Removing a secretId from auth ends its sessions, streams and all.
+              long revocationCheck =
+                  vertx.setPeriodic(
+                      REVOCATION_CHECK_MILLIS,
+                      id -> {
+                        if (!validator.knows(secretId)) {
+                          session.close();
+                        }
+                      });
+              session.closeHandler(v -> vertx.cancelTimer(revocationCheck));
+            });
+  }
+
+  /** Same resolve → filter → connect path as a plain CONNECT, answered on the stream instead. */
+  private void openStream(MuxStream stream, String secretId) {
+    if (!validator.knows(secretId)) {
+      stream.reject(HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED.code());
+      stream.session().close();
+      return;
+    }
+    SocketAddress target;
+    try {
+      target = Authorities.fromAuthority(stream.authority(), 443);
+    } catch (IllegalArgumentException e) {
+      stream.reject(HttpResponseStatus.BAD_REQUEST.code());
+      return;
+    }
+
+    UpstreamResolver.resolveAndFilter(vertx, target.host(), target.port(), addressFilter)
+        .compose(netClient::connect)
+        .onFailure(cause -> stream.reject(UpstreamResolver.errorStatus(target.host(), cause)))
+        .onSuccess(
+            upstream -> {
+              if (stream.accept()) {
+                // The stream is the client side: upstream → stream is the download.
+                Tunnels.splice(
+                    upstream,
+                    stream,
+                    shaper != null ? shaper.upstreamToClient(secretId, pipeFactory) : pipeFactory,
+                    shaper != null ? shaper.clientToUpstream(secretId, pipeFactory) : pipeFactory,
+                    null,
+                    reaper);
+              } else {
+                upstream.close();
+              }
+            });
   }
 
-  private void upgrade(HttpServerRequest request, NetSocket upstream) {
+  private void upgrade(HttpServerRequest request, NetSocket upstream, String secretId) {
     Tunnels.upgrade(
         request,
         upstream,
-        pipeFactory,
-        pipeFactory,
+        shaper != null ? shaper.clientToUpstream(secretId, pipeFactory) : pipeFactory,
+        shaper != null ? shaper.upstreamToClient(secretId, pipeFactory) : pipeFactory,
         null,
         null,
-        cause -> log.warn("CONNECT upgrade failed: ", cause));
+        cause -> log.warn("CONNECT upgrade failed: ", cause),
+        reaper);
   }
 }
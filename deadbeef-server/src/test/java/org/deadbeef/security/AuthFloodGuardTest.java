@@ -0,0 +1,88 @@
+package org.deadbeef.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import io.vertx.core.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import org.deadbeef.auth.ProxyAuthenticationGenerator;
+import org.deadbeef.auth.ProxyAuthenticationValidator;
+import org.junit.Test;
+
+public class AuthFloodGuardTest {
+
+  private static final int MAX_FAILURES = 8;
+  private static final long DECAY_PERIOD = 60_000;
+  private static final SocketAddress OFFENDER = SocketAddress.inetSocketAddress(40000, "192.0.2.1");
+  private static final SocketAddress BYSTANDER =
+      SocketAddress.inetSocketAddress(40000, "198.51.100.7");
+
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+  private final MetricRegistry registry = new MetricRegistry();
+  private final AuthFloodGuard guard =
+      new AuthFloodGuard(registry, MAX_FAILURES, DECAY_PERIOD, clock::get);
+  private final ProxyAuthenticationValidator validator =
+      ProxyAuthenticationValidator.simple("id", "key");
+  private final ProxyAuthenticationGenerator generator =
+      new ProxyAuthenticationGenerator("id", "key");
+
+  private void failAuth(SocketAddress remote, int times) {
+    for (int i = 0; i < times; i++) {
+      assertNull(guard.authenticate(remote, "garbage", validator));
+    }
+  }
+
+  private long count(String name) {
+    return registry.counter(name).getCount();
+  }
+
+  @Test
+  public void shedsAHostAfterRepeatedFailures() {
+    failAuth(OFFENDER, MAX_FAILURES);
+    assertEquals(MAX_FAILURES, count("server.auth.failed"));
+
+    // Even a valid token is turned away now, without being looked at.
+    assertNull(guard.authenticate(OFFENDER, generator.getString(), validator));
+    assertEquals(1, count("server.auth.shed"));
+    assertEquals(MAX_FAILURES, count("server.auth.failed"));
+
+    assertEquals("id", guard.authenticate(BYSTANDER, generator.getString(), validator));
+    assertEquals(1, count("server.auth.verified"));
+  }
+
+  @Test
+  public void missingTokensCountAsFailures() {
+    failAuth(OFFENDER, MAX_FAILURES - 1);
+    assertNull(guard.authenticate(OFFENDER, null, validator));
+
+    assertTrue(guard.isShed(OFFENDER.hostAddress()));
+  }
+
+  @Test
+  public void failuresDecayOverTime() {
+    failAuth(OFFENDER, MAX_FAILURES);
+    assertTrue(guard.isShed(OFFENDER.hostAddress()));
+
+    clock.addAndGet(DECAY_PERIOD);
+    assertFalse(guard.isShed(OFFENDER.hostAddress()));
+    assertEquals("id", guard.authenticate(OFFENDER, generator.getString(), validator));
+
+    // Half the count is remembered: half as many failures shed it again.
+    failAuth(OFFENDER, MAX_FAILURES / 2);
+    assertTrue(guard.isShed(OFFENDER.hostAddress()));
+  }
+
+  @Test
+  public void manyScannersDoNotShedOtherHosts() {
+    for (int i = 0; i < 1000; i++) {
+      String host = "10." + (i >> 8) + "." + (i & 0xFF) + ".9";
+      failAuth(SocketAddress.inetSocketAddress(40000, host), MAX_FAILURES - 1);
+    }
+    for (int i = 0; i < 100; i++) {
+      assertFalse(guard.isShed("172.16." + i + ".1"));
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package org.deadbeef.server;
+
+import com.codahale.metrics.MetricRegistry;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import java.util.List;
+import java.util.Map;
+import org.deadbeef.auth.ProxyAuthenticationGenerator;
+import org.deadbeef.auth.ProxyAuthenticationValidator;
+import org.deadbeef.protocol.HttpProto;
+import org.deadbeef.security.AuthFloodGuard;
+import org.deadbeef.security.UpstreamAddressFilter;
+import org.deadbeef.streams.DefaultPipeFactory;
+import org.deadbeef.streams.Prefix;
+import org.deadbeef.util.Constants;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(VertxUnitRunner.class)
+public class HttpProxyHandlerTest {
+
+  private static final String SECRET_ID = "test-id";
+  private static final String SECRET_KEY = "test-key";
+
+  // Loopback is denied, so every authenticated envelope ends in a quick 403 on a live connection.
+  private static final Buffer ENVELOPE =
+      Prefix.serializeToBuffer(
+          HttpProto.Request.newBuilder()
+              .setMethod(HttpProto.Method.GET)
+              .setAbsoluteUri("http://127.0.0.1:1/")
+              .build());
+
+  @Rule public RunTestOnContext rule = new RunTestOnContext();
+
+  private final ProxyAuthenticationGenerator generator =
+      new ProxyAuthenticationGenerator(SECRET_ID, SECRET_KEY);
+  private final ProxyAuthenticationValidator validator =
+      ProxyAuthenticationValidator.simple(SECRET_ID, SECRET_KEY);
+
+  private Future<HttpServer> startProxyServer(Vertx vertx, boolean connectionAuth) {
+    return startProxyServer(vertx, connectionAuth, UpstreamAddressFilter.defaultDenyList());
+  }
+
+  private Future<HttpServer> startProxyServer(
+      Vertx vertx, boolean connectionAuth, UpstreamAddressFilter filter) {
+    HttpProxyHandler handler =
+        new HttpProxyHandler(
+            vertx,
+            vertx.createHttpClient(),
+            validator,
+            new DefaultPipeFactory(),
+            filter,
+            connectionAuth,
+            new AuthFloodGuard(new MetricRegistry()));
+    HttpServer server = vertx.createHttpServer();
+    server.requestHandler(handler);
+    return server.listen(0).map(server);
+  }
+
+  private Future<HttpClientResponse> post(HttpClient client, int port, boolean withToken) {
+    RequestOptions options =
+        new RequestOptions()
+            .setMethod(HttpMethod.POST)
+            .setHost("127.0.0.1")
+            .setPort(port)
+            .setURI("/");
+    if (withToken) {
+      options.putHeader(Constants.authHeaderName(), generator.getString());
+    }
+    return client
+        .request(options)
+        .compose(req -> req.send(ENVELOPE))
+        .compose(resp -> resp.body().map(resp));
+  }
+
+  @Test
+  public void connectionAuthTrustsOnlyTheVerifiedConnection(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    startProxyServer(vertx, true)
+        .onFailure(ctx::fail)
+        .onSuccess(
+            proxy -> {
+              int port = proxy.actualPort();
+              HttpClient client = vertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(1));
+              post(client, port, true)
+                  .compose(
+                      first -> {
+                        ctx.assertNotEquals(407, first.statusCode());
+                        ctx.assertEquals("1", first.getHeader(Constants.authSessionHeaderName()));
+                        return post(client, port, false);
+                      })
+                  .compose(
+                      second -> {
+                        ctx.assertNotEquals(407, second.statusCode());
+                        ctx.assertNull(second.getHeader(Constants.authSessionHeaderName()));
+                        // A different connection has not presented a token yet.
+                        return post(vertx.createHttpClient(), port, false);
+                      })
+                  .onFailure(ctx::fail)
+                  .onSuccess(
+                      other -> {
+                        ctx.assertEquals(407, other.statusCode());
+                        done.complete();
+                      });
+            });
+  }
+
+  @Test
+  public void connectionAuthEndsWhenTheSecretIdIsRemoved(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    startProxyServer(vertx, true)
+        .onFailure(ctx::fail)
+        .onSuccess(
+            proxy -> {
+              int port = proxy.actualPort();
+              HttpClient client = vertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(1));
+              post(client, port, true)
+                  .compose(
+                      first -> {
+                        ctx.assertNotEquals(407, first.statusCode());
+                        validator.reload(List.of(Map.entry("other-id", SECRET_KEY)));
+                        return post(client, port, false);
+                      })
+                  .onFailure(ctx::fail)
+                  .onSuccess(
+                      second -> {
+                        ctx.assertEquals(407, second.statusCode());
+                        done.complete();
+                      });
+            });
+  }
+
+  @Test
+  public void everyRequestNeedsATokenByDefault(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    startProxyServer(vertx, false)
+        .onFailure(ctx::fail)
+        .onSuccess(
+            proxy -> {
+              int port = proxy.actualPort();
+              HttpClient client = vertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(1));
+              post(client, port, true)
+                  .compose(
+                      first -> {
+                        ctx.assertNotEquals(407, first.statusCode());
+                        ctx.assertNull(first.getHeader(Constants.authSessionHeaderName()));
+                        return post(client, port, false);
+                      })
+                  .onFailure(ctx::fail)
+                  .onSuccess(
+                      second -> {
+                        ctx.assertEquals(407, second.statusCode());
+                        done.complete();
+                      });
+            });
+  }
+
+  @Test
+  public void envelopeDoesNotWaitForASlowFirstChunk(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    // The upstream sends its head at once, but its body only after the client saw the envelope.
+    Promise<NetSocket> upstreamSocket = Promise.promise();
+    NetServer upstream =
+        vertx
+            .createNetServer()
+            .connectHandler(
+                socket -> {
+                  socket.handler(request -> {});
+                  socket.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+                  upstreamSocket.tryComplete(socket);
+                });
+    upstream
+        .listen(0, "127.0.0.1")
+        .compose(
+            u ->
+                startProxyServer(
+                        vertx, false, UpstreamAddressFilter.builder().allowLoopback().build())
+                    .map(proxy -> new int[] {u.actualPort(), proxy.actualPort()}))
+        .compose(
+            ports -> {
+              Buffer envelope =
+                  Prefix.serializeToBuffer(
+                      HttpProto.Request.newBuilder()
+                          .setMethod(HttpProto.Method.GET)
+                          .setAbsoluteUri("http://127.0.0.1:" + ports[0] + "/events")
+                          .build());
+              return vertx
+                  .createHttpClient()
+                  .request(
+                      new RequestOptions()
+                          .setMethod(HttpMethod.POST)
+                          .setHost("127.0.0.1")
+                          .setPort(ports[1])
+                          .setURI("/")
+                          .putHeader(Constants.authHeaderName(), generator.getString()))
+                  .compose(req -> req.send(envelope));
+            })
+        .onFailure(ctx::fail)
+        .onSuccess(
+            response -> {
+              ctx.assertEquals(200, response.statusCode());
+              Buffer body = Buffer.buffer();
+              response.handler(
+                  chunk -> {
+                    if (body.length() == 0) {
+                      // Only now may the upstream send its first chunk.
+                      upstreamSocket
+                          .future()
+                          .onSuccess(socket -> socket.write("4\r\ndata\r\n0\r\n\r\n"));
+                    }
+                    body.appendBuffer(chunk);
+                  });
+              response.endHandler(
+                  v -> {
+                    ctx.assertTrue(body.toString().endsWith("data"));
+                    done.complete();
+                  });
+            });
+  }
+}
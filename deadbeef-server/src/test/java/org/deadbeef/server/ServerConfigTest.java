@@ -42,6 +42,20 @@ public class ServerConfigTest {
     }
   }
 
+  @Test
+  public void verifyRejectsNonPositiveInstances() throws Exception {
+    ServerConfig cfg =
+        YAML.readValue(
+            "port: 14483\ninstances: 0\nauth:\n  - { secretId: a, secretKey: b }\n",
+            ServerConfig.class);
+    try {
+      cfg.verify();
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("instances"));
+    }
+  }
+
   @Test
   public void authTupleExposesKeyValue() {
     ServerConfig.AuthTuple tuple = new ServerConfig.AuthTuple("s-id", "s-key");
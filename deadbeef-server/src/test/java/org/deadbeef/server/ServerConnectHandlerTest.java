@@ -1,5 +1,6 @@
 package org.deadbeef.server;
 
+import com.codahale.metrics.MetricRegistry;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
@@ -13,10 +14,15 @@ import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestContext;
 import io.vertx.ext.unit.junit.RunTestOnContext;
 import io.vertx.ext.unit.junit.VertxUnitRunner;
+import java.util.List;
+import java.util.Map;
 import org.deadbeef.auth.ProxyAuthenticationGenerator;
 import org.deadbeef.auth.ProxyAuthenticationValidator;
+import org.deadbeef.security.AuthFloodGuard;
 import org.deadbeef.security.UpstreamAddressFilter;
 import org.deadbeef.streams.DefaultPipeFactory;
+import org.deadbeef.streams.MuxRejectedException;
+import org.deadbeef.streams.MuxSession;
 import org.deadbeef.util.Constants;
 import org.junit.Rule;
 import org.junit.Test;
@@ -30,6 +36,9 @@ public class ServerConnectHandlerTest {
 
   @Rule public RunTestOnContext rule = new RunTestOnContext();
 
+  private final ProxyAuthenticationValidator validator =
+      ProxyAuthenticationValidator.simple(SECRET_ID, SECRET_KEY);
+
   /**
    * Default test setup allows loopback so the fake upstream (bound to 127.0.0.1) can be reached.
    */
@@ -39,10 +48,16 @@ public class ServerConnectHandlerTest {
 
   private Future<HttpServer> startProxyServer(Vertx vertx, UpstreamAddressFilter filter) {
     NetClient netClient = vertx.createNetClient();
-    ProxyAuthenticationValidator validator =
-        ProxyAuthenticationValidator.simple(SECRET_ID, SECRET_KEY);
     ServerConnectHandler handler =
-        new ServerConnectHandler(vertx, netClient, validator, new DefaultPipeFactory(), filter);
+        new ServerConnectHandler(
+            vertx,
+            netClient,
+            validator,
+            new DefaultPipeFactory(),
+            filter,
+            new AuthFloodGuard(new MetricRegistry()),
+            null,
+            null);
     HttpServer server = vertx.createHttpServer();
     server.requestHandler(
         req -> {
@@ -156,6 +171,126 @@ public class ServerConnectHandlerTest {
             });
   }
 
+  /** Opens an authenticated multiplexed session against the proxy under test. */
+  private Future<MuxSession> openMuxSession(Vertx vertx, HttpServer proxy) {
+    String token = new ProxyAuthenticationGenerator(SECRET_ID, SECRET_KEY).getString();
+    return vertx
+        .createHttpClient()
+        .request(
+            new RequestOptions()
+                .setMethod(HttpMethod.CONNECT)
+                .setHost("127.0.0.1")
+                .setPort(proxy.actualPort())
+                .setURI("127.0.0.1:" + proxy.actualPort())
+                .putHeader(Constants.authHeaderName(), token)
+                .putHeader(Constants.muxHeaderName(), "1"))
+        .compose(req -> req.connect())
+        .map(
+            resp -> {
+              if (resp.statusCode() != 200) {
+                throw new IllegalStateException("status " + resp.statusCode());
+              }
+              return MuxSession.client(resp.netSocket());
+            });
+  }
+
+  @Test
+  public void muxSessionRelaysEveryStream(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async(2);
+    NetServer upstream = vertx.createNetServer();
+    upstream.connectHandler(sock -> sock.handler(sock::write));
+    upstream
+        .listen(0)
+        .onFailure(ctx::fail)
+        .onSuccess(
+            srv ->
+                startProxyServer(vertx)
+                    .compose(proxy -> openMuxSession(vertx, proxy))
+                    .onFailure(ctx::fail)
+                    .onSuccess(
+                        session -> {
+                          for (String word : new String[] {"hello", "world"}) {
+                            session
+                                .open("127.0.0.1:" + srv.actualPort())
+                                .onFailure(ctx::fail)
+                                .onSuccess(
+                                    stream -> {
+                                      stream.handler(
+                                          b -> {
+                                            ctx.assertEquals(word, b.toString());
+                                            done.countDown();
+                                          });
+                                      stream.write(Buffer.buffer(word));
+                                    });
+                          }
+                        }));
+  }
+
+  @Test
+  public void muxStreamToForbiddenTargetIsRejectedWith403(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    startProxyServer(vertx, UpstreamAddressFilter.defaultDenyList())
+        .compose(proxy -> openMuxSession(vertx, proxy))
+        .compose(session -> session.open("169.254.169.254:80"))
+        .onSuccess(stream -> ctx.fail("expected rejection"))
+        .onFailure(
+            cause -> {
+              ctx.assertTrue(cause instanceof MuxRejectedException);
+              ctx.assertEquals(403, ((MuxRejectedException) cause).status());
+              done.complete();
+            });
+  }
+
+  @Test
+  public void muxSessionEndsWhenItsSecretIdIsRemoved(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async(2);
+    startProxyServer(vertx)
+        .compose(proxy -> openMuxSession(vertx, proxy))
+        .onFailure(ctx::fail)
+        .onSuccess(
+            session -> {
+              session.closeHandler(v -> done.countDown());
+              validator.reload(List.of(Map.entry("other-id", SECRET_KEY)));
+              session
+                  .open("127.0.0.1:1")
+                  .onSuccess(stream -> ctx.fail("expected rejection"))
+                  .onFailure(
+                      cause -> {
+                        ctx.assertTrue(cause instanceof MuxRejectedException);
+                        ctx.assertEquals(407, ((MuxRejectedException) cause).status());
+                        done.countDown();
+                      });
+            });
+  }
+
+  @Test
+  public void muxSessionRequiresAuth(TestContext ctx) {
+    Vertx vertx = rule.vertx();
+    Async done = ctx.async();
+    startProxyServer(vertx)
+        .compose(
+            proxy ->
+                vertx
+                    .createHttpClient()
+                    .request(
+                        new RequestOptions()
+                            .setMethod(HttpMethod.CONNECT)
+                            .setHost("127.0.0.1")
+                            .setPort(proxy.actualPort())
+                            .setURI("127.0.0.1:" + proxy.actualPort())
+                            .putHeader(Constants.muxHeaderName(), "1")))
+        .compose(req -> req.connect())
+        .onFailure(ctx::fail)
+        .onSuccess(
+            resp -> {
+              ctx.assertEquals(407, resp.statusCode());
+              done.complete();
+            });
+  }
+
   // ---- new: default-deny filter rejects forbidden literal upstreams with 403 ----
 
   @Test